@@ -59,6 +59,7 @@ import com.zegoggles.smssync.calendar.CalendarAccessor;
 import com.zegoggles.smssync.contacts.ContactAccessor;
 import com.zegoggles.smssync.mail.BackupImapStore;
 import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.mail.UidIndex;
 import com.zegoggles.smssync.preferences.AuthMode;
 import com.zegoggles.smssync.preferences.AuthPreferences;
 import com.zegoggles.smssync.preferences.BackupManagerWrapper;
@@ -66,6 +67,7 @@ import com.zegoggles.smssync.preferences.Preferences;
 import com.zegoggles.smssync.service.BackupType;
 import com.zegoggles.smssync.service.SmsBackupService;
 import com.zegoggles.smssync.service.SmsRestoreService;
+import com.zegoggles.smssync.service.UploadedMessages;
 import com.zegoggles.smssync.service.state.RestoreState;
 import com.zegoggles.smssync.tasks.OAuth2CallbackTask;
 import com.zegoggles.smssync.utils.AppLog;
@@ -671,6 +673,8 @@ public class MainActivity extends PreferenceActivity {
                                 authPreferences.clearOAuth1Data();
                                 authPreferences.clearOauth2Data();
                                 preferences.getDataTypePreferences().clearLastSyncData();
+                                new UploadedMessages(getFilesDir()).clear();
+                                UidIndex.get(MainActivity.this).clear();
                                 updateConnected();
                             }
                         }).create();
@@ -712,7 +716,7 @@ public class MainActivity extends PreferenceActivity {
         return createMessageDialog(title, msg);
     }
 
-    private void reset() {
+    /* package, for testing */ void reset() {
         preferences.getDataTypePreferences().clearLastSyncData();
         preferences.reset();
     }
@@ -104,9 +104,10 @@ class StatusPreference extends Preference implements View.OnClickListener {
                 mRestoreButton.setText(R.string.ui_restore_button_label_restoring);
                 mStatusLabel.setText(R.string.status_restore);
                 mSyncDetailsLabel.setText(newState.getNotificationLabel(getContext().getResources()));
-                mProgressBar.setIndeterminate(false);
+                // the total is not known upfront if the server does not support ESEARCH
+                mProgressBar.setIndeterminate(newState.itemsToRestore < 0);
                 mProgressBar.setProgress(newState.currentRestoredCount);
-                mProgressBar.setMax(newState.itemsToRestore);
+                mProgressBar.setMax(Math.max(0, newState.itemsToRestore));
                 break;
             case FINISHED_RESTORE:
                 finishedRestore(newState);
@@ -12,10 +12,12 @@ import com.fsck.k9.mail.internet.MimeHeader;
 import com.fsck.k9.mail.internet.TextBody;
 import org.apache.commons.io.IOUtils;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -39,6 +41,14 @@ class Attachment {
         return createPart(new ResolverBody(resolver, uri), filename, contentType);
     }
 
+    /**
+     * Like {@link #createPartFromUri(ContentResolver, Uri, String, String)}, but the content
+     * is only read and encoded once, into the spool, if there is space.
+     */
+    public static MimeBodyPart createSpooledPartFromUri(BodySpool spool, ContentResolver resolver, Uri uri, String filename, String contentType) throws MessagingException {
+        return createPart(new SpooledBody(spool, new ResolverBody(resolver, uri)), filename, contentType);
+    }
+
     public static MimeBodyPart createPartFromFile(File file, String contentType) throws MessagingException {
         return createPart(new FileBody(file), file.getName(), contentType);
     }
@@ -74,6 +84,125 @@ class Attachment {
         }
     }
 
+    /**
+     * Encodes another body into a file of the spool when it is first written, and copies the
+     * file for all subsequent writes. Falls back to writing the other body directly if the
+     * spool is full or unusable.
+     */
+    static class SpooledBody implements Body {
+        private final BodySpool spool;
+        private final Base64Body source;
+        private File file;
+        private long length = -1;
+        private boolean failed;
+
+        SpooledBody(BodySpool spool, Base64Body source) {
+            this.spool = spool;
+            this.source = source;
+        }
+
+        @Override
+        public InputStream getInputStream() throws MessagingException {
+            return source.getInputStream();
+        }
+
+        @Override
+        public synchronized void writeTo(OutputStream outputStream) throws IOException, MessagingException {
+            if (file == null && !failed) {
+                failed = !spool();
+            }
+            if (file != null) {
+                final InputStream in = new FileInputStream(file);
+                try {
+                    IOUtils.copy(in, outputStream);
+                } finally {
+                    in.close();
+                }
+            } else {
+                source.writeTo(outputStream);
+            }
+        }
+
+        @Override
+        public void setEncoding(String s) throws MessagingException {
+        }
+
+        /**
+         * Deletes the spooled file, the body can still be written afterwards.
+         */
+        synchronized void release() {
+            if (file != null) {
+                if (!file.delete()) {
+                    Log.w(TAG, "could not delete " + file);
+                }
+                spool.free(length);
+                file = null;
+                length = -1;
+            }
+            failed = false;
+        }
+
+        private boolean spool() throws MessagingException {
+            final File spoolFile = spool.createFile();
+            if (spoolFile == null) return false;
+
+            final SpoolOutputStream out;
+            try {
+                out = new SpoolOutputStream(spool, new FileOutputStream(spoolFile));
+            } catch (FileNotFoundException e) {
+                Log.w(TAG, "could not open " + spoolFile, e);
+                return false;
+            }
+            try {
+                source.writeTo(out);
+                out.close();
+                file = spoolFile;
+                length = out.written;
+                return true;
+            } catch (IOException e) {
+                Log.w(TAG, "could not spool body: " + e.getMessage());
+                IOUtils.closeQuietly(out);
+                spool.free(out.written);
+                if (!spoolFile.delete()) {
+                    Log.w(TAG, "could not delete " + spoolFile);
+                }
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Reserves space in the spool for everything written, fails once the spool is full.
+     */
+    private static class SpoolOutputStream extends BufferedOutputStream {
+        private final BodySpool spool;
+        long written;
+
+        SpoolOutputStream(BodySpool spool, OutputStream out) {
+            super(out, 8192);
+            this.spool = spool;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            reserve(1);
+            super.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            reserve(len);
+            super.write(b, off, len);
+        }
+
+        private void reserve(int bytes) throws IOException {
+            if (!spool.reserve(bytes)) {
+                throw new IOException("spool full");
+            }
+            written += bytes;
+        }
+    }
+
     private static class ResolverBody extends Base64Body {
         private ContentResolver mResolver;
         private Uri mUri;
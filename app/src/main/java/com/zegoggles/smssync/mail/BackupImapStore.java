@@ -20,6 +20,7 @@ import android.net.ConnectivityManager;
 import android.net.Uri;
 import android.provider.Telephony;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
 import com.fsck.k9.mail.FetchProfile;
@@ -30,16 +31,17 @@ import com.fsck.k9.mail.MessageRetrievalListener;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.ssl.DefaultTrustedSocketFactory;
 import com.fsck.k9.mail.ssl.TrustedSocketFactory;
+import com.fsck.k9.mail.store.StoreConfig;
 import com.fsck.k9.mail.store.imap.ImapFolder;
 import com.fsck.k9.mail.store.imap.ImapMessage;
 import com.fsck.k9.mail.store.imap.ImapResponse;
-import com.fsck.k9.mail.store.imap.ImapSearcher;
 import com.fsck.k9.mail.store.imap.ImapStore;
 import com.zegoggles.smssync.MmsConsts;
 import com.zegoggles.smssync.preferences.DataTypePreferences;
 import com.zegoggles.smssync.preferences.Preferences;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
@@ -51,6 +53,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.PriorityQueue;
 
 import static android.content.Context.CONNECTIVITY_SERVICE;
 import static com.zegoggles.smssync.App.LOCAL_LOGV;
@@ -59,9 +62,17 @@ import static java.util.Collections.sort;
 
 public class BackupImapStore extends ImapStore {
     private final Map<DataType, BackupFolder> openFolders = new HashMap<DataType, BackupFolder>();
+    private ImapCapabilities capabilities;
 
     public BackupImapStore(final Context context, final String uri) throws MessagingException {
-        super(new BackupStoreConfig(uri),
+        this(context, uri, false);
+    }
+
+    /**
+     * @param useCompression if the connection should be compressed, if supported by the server.
+     */
+    public BackupImapStore(final Context context, final String uri, boolean useCompression) throws MessagingException {
+        super(new BackupStoreConfig(uri, useCompression),
                 getTrustedSocketFactory(context, uri),
                 (ConnectivityManager) context.getSystemService(CONNECTIVITY_SERVICE));
     }
@@ -78,6 +89,19 @@ public class BackupImapStore extends ImapStore {
         return folder;
     }
 
+    @Override
+    public void checkSettings() throws MessagingException {
+        capabilities = null;
+        super.checkSettings();
+    }
+
+    /**
+     * @return the capabilities of the server, available once a folder has been opened
+     */
+    @NonNull ImapCapabilities getCapabilities() {
+        return capabilities == null ? ImapCapabilities.NONE : capabilities;
+    }
+
     public void closeFolders() {
         Collection<BackupFolder> folders = openFolders.values();
         for (BackupFolder folder : folders) {
@@ -121,6 +145,10 @@ public class BackupImapStore extends ImapStore {
         return mTrustedSocketFactory;
     }
 
+    /* package, for testing */ StoreConfig getStoreConfig() {
+        return mStoreConfig;
+    }
+
     private @NonNull BackupFolder createAndOpenFolder(DataType type, @NonNull String label) throws MessagingException {
         try {
             BackupFolder folder = new BackupFolder(this, label, type);
@@ -129,6 +157,10 @@ public class BackupImapStore extends ImapStore {
                 folder.create(FolderType.HOLDS_MESSAGES);
             }
             folder.open(Folder.OPEN_MODE_RW);
+            if (capabilities == null) {
+                capabilities = folder.readCapabilities();
+                Log.d(TAG, "server capabilities: " + capabilities);
+            }
             return folder;
         } catch (IllegalArgumentException e) {
             // thrown inside K9
@@ -142,57 +174,165 @@ public class BackupImapStore extends ImapStore {
     }
 
     public class BackupFolder extends ImapFolder {
+        private static final int FETCH_CHUNK_SIZE = 500;
         private final DataType type;
+        private volatile long appendUidValidity = -1;
+        private long uidValidity = -1;
+        private boolean uidValidityRead;
 
         BackupFolder(ImapStore store, String name, DataType type) {
             super(store, name);
             this.type = type;
         }
 
+        /**
+         * @param max the max number of messages to return (the most recent ones), or 0 for all
+         * @return the matching messages, oldest first if limited
+         */
         public List<ImapMessage> getMessages(final int max, final boolean flagged, final Date since)
                 throws MessagingException {
             if (LOCAL_LOGV)
                 Log.v(TAG, String.format(Locale.ENGLISH, "getMessages(%d, %b, %s)", max, flagged, since));
 
-            final List<ImapMessage> messages;
-            final ImapSearcher searcher = new ImapSearcher() {
-                @Override
-                public List<ImapResponse> search() throws IOException, MessagingException {
-                    final StringBuilder sb = new StringBuilder("UID SEARCH 1:*")
-                            .append(' ')
-                            .append(getQuery())
-                            .append(" UNDELETED");
-                    if (since != null) sb.append(" SENTSINCE ").append(RFC3501_DATE.get().format(since));
-                    if (flagged) sb.append(" FLAGGED");
-
-                    return executeSimpleCommand(sb.toString().trim());
+            final String criteria = getSearchCriteria(flagged, since);
+            final ImapCapabilities capabilities = getCapabilities();
+            List<ImapMessage> messages;
+            if (max > 0 && capabilities.isSort()) {
+                messages = sortByDate(criteria, max);
+            } else {
+                final List<String> uids = capabilities.isESearch() ? eSearch(criteria) : search(criteria);
+
+                Log.i(TAG, "Found " + uids.size() + " msgs" + (since == null ? "" : " (since " + since + ")"));
+                if (max > 0 && uids.size() > max) {
+                    messages = getMostRecent(uids, max);
+                } else {
+                    messages = toMessages(uids);
                 }
-            };
+            }
+
+            Collections.reverse(messages);
+
+            return messages;
+        }
+
+        /**
+         * @param max the max number of messages to return (the most recent ones), or 0 for all
+         * @return the matching messages, which are searched in UID ranges if not limited
+         */
+        public MessageWindows getMessageWindows(final int max, final boolean flagged, final Date since)
+                throws MessagingException {
+            if (max > 0) {
+                return new MessageList(this, getMessages(max, flagged, since));
+            } else {
+                return new UidWindows(this, newSearcher(getSearchCriteria(flagged, since)));
+            }
+        }
 
-            final List<ImapMessage> msgs = search(searcher, null);
+        /**
+         * @param uidValidity the UIDVALIDITY of the folder at the time of the last restore
+         * @param lastUid the highest UID searched by the last restore
+         * @return the messages added since the last restore, or all messages if the
+         *         UIDVALIDITY of the folder has changed
+         */
+        public MessageWindows getMessageWindowsAfter(long uidValidity, long lastUid) throws MessagingException {
+            return new UidWindows(this, newSearcher(getSearchCriteria(false, null)), uidValidity, lastUid);
+        }
 
-            Log.i(TAG, "Found " + msgs.size() + " msgs" + (since == null ? "" : " (since " + since + ")"));
-            if (max > 0 && msgs.size() > max) {
-                if (LOCAL_LOGV) Log.v(TAG, "Fetching envelopes");
+        private FolderSearcher newSearcher(String criteria) {
+            return new FolderSearcher(new SelectedFolderAdapter(), ImapAppender.quote(getPrefixedName()),
+                    criteria, getCapabilities().isESearch());
+        }
 
-                FetchProfile fp = new FetchProfile();
-                fp.add(FetchProfile.Item.DATE);
-                fetch(msgs, fp, null);
+        private String getSearchCriteria(boolean flagged, Date since) {
+            final StringBuilder sb = new StringBuilder("1:*")
+                    .append(' ')
+                    .append(getQuery())
+                    .append(" UNDELETED");
+            if (since != null) sb.append(" SENTSINCE ").append(RFC3501_DATE.get().format(since));
+            if (flagged) sb.append(" FLAGGED");
+            return sb.toString().trim();
+        }
 
-                if (LOCAL_LOGV) Log.v(TAG, "Sorting");
-                //Debug.startMethodTracing("sorting");
-                sort(msgs, MessageComparator.INSTANCE);
-                //Debug.stopMethodTracing();
-                if (LOCAL_LOGV) Log.v(TAG, "Sorting done");
+        private List<String> search(String criteria) throws MessagingException {
+            try {
+                final long[] found = ImapSearchResults.parseSearch(executeSimpleCommand("UID SEARCH " + criteria));
+                final List<String> uids = new ArrayList<String>(found.length);
+                for (long uid : found) {
+                    uids.add(String.valueOf(uid));
+                }
+                return uids;
+            } catch (IOException e) {
+                throw new MessagingException("error searching messages", e);
+            } catch (NumberFormatException e) {
+                throw new MessagingException("invalid SEARCH response", e);
+            }
+        }
 
-                messages = new ArrayList<ImapMessage>(max);
-                messages.addAll(msgs.subList(0, max));
-            } else {
-                messages = msgs;
+        /**
+         * Lets the server sort the messages (RFC 5256), so that only the UIDs of the
+         * matching messages need to be transferred, instead of the envelopes of all of them.
+         *
+         * @return the most recent messages, newest first
+         */
+        private List<ImapMessage> sortByDate(String criteria, int max) throws MessagingException {
+            try {
+                final List<String> uids = ImapSearchResults.parseSort(
+                        executeSimpleCommand("UID SORT (REVERSE DATE) US-ASCII " + criteria));
+                Log.i(TAG, "Found " + uids.size() + " msgs (sorted)");
+                return toMessages(uids.subList(0, Math.min(max, uids.size())));
+            } catch (IOException e) {
+                throw new MessagingException("error sorting messages", e);
+            }
+        }
+
+        private List<String> eSearch(String criteria) throws MessagingException {
+            try {
+                return ImapSearchResults.parseESearch(
+                        executeSimpleCommand("UID SEARCH RETURN (ALL) " + criteria));
+            } catch (IOException e) {
+                throw new MessagingException("error searching messages", e);
+            } catch (NumberFormatException e) {
+                throw new MessagingException("invalid ESEARCH response", e);
             }
+        }
 
-            Collections.reverse(messages);
+        /**
+         * Fetches the dates of the messages in chunks, keeping only the most recent ones.
+         * Only the UIDs of all matching messages are kept, messages are created a chunk at a
+         * time and dropped again unless they are among the most recent ones.
+         *
+         * @return the most recent messages, newest first
+         */
+        private List<ImapMessage> getMostRecent(List<String> uids, int max) throws MessagingException {
+            if (LOCAL_LOGV) Log.v(TAG, "Fetching envelopes");
+
+            final FetchProfile fp = new FetchProfile();
+            fp.add(FetchProfile.Item.DATE);
+
+            // oldest message first
+            final PriorityQueue<ImapMessage> mostRecent = new PriorityQueue<ImapMessage>(max + 1,
+                    Collections.reverseOrder(MessageComparator.INSTANCE));
+            for (int i = 0; i < uids.size(); i += FETCH_CHUNK_SIZE) {
+                final List<ImapMessage> chunk = toMessages(uids.subList(i, Math.min(uids.size(), i + FETCH_CHUNK_SIZE)));
+                fetch(chunk, fp, null);
+                for (ImapMessage message : chunk) {
+                    mostRecent.add(message);
+                    if (mostRecent.size() > max) {
+                        mostRecent.poll();
+                    }
+                }
+            }
+
+            final List<ImapMessage> messages = new ArrayList<ImapMessage>(mostRecent);
+            sort(messages, MessageComparator.INSTANCE);
+            return messages;
+        }
 
+        private List<ImapMessage> toMessages(List<String> uids) throws MessagingException {
+            final List<ImapMessage> messages = new ArrayList<ImapMessage>(uids.size());
+            for (String uid : uids) {
+                messages.add(getMessage(uid));
+            }
             return messages;
         }
 
@@ -231,7 +371,156 @@ public class BackupImapStore extends ImapStore {
 
         @Override
         public Map<String, String> appendMessages(List<? extends Message> messages) throws MessagingException {
-            return super.appendMessages(messages);
+            appendUidValidity = -1;
+            final ImapCapabilities capabilities = getCapabilities();
+            final String mailbox = ImapAppender.quote(getPrefixedName());
+            if (mailbox == null) {
+                return super.appendMessages(messages);
+            } else if (messages.size() > 1 && capabilities.isMultiAppend()) {
+                return append(mailbox, messages, true);
+            } else if (capabilities.hasNonSyncLiterals()) {
+                return append(mailbox, messages, false);
+            } else {
+                return super.appendMessages(messages);
+            }
+        }
+
+        /**
+         * @return the UIDVALIDITY reported with the UIDs of the last appended messages
+         *         (UIDPLUS), or -1 if the server did not report UIDs
+         */
+        public long getAppendUidValidity() {
+            return appendUidValidity;
+        }
+
+        /**
+         * @return the UIDVALIDITY of the folder, or -1 if not known. Only selects the folder
+         *         once, unless the server reported it with the UIDs of appended messages.
+         */
+        public long getUidValidity() throws MessagingException {
+            if (appendUidValidity != -1) {
+                return appendUidValidity;
+            } else if (!uidValidityRead) {
+                uidValidityRead = true;
+                uidValidity = newSearcher("").getUidValidity();
+            }
+            return uidValidity;
+        }
+
+        private Map<String, String> append(String mailbox, List<? extends Message> messages, boolean multiAppend)
+                throws MessagingException {
+            try {
+                final ImapAppender appender = new ImapAppender(new ConnectionAdapter(), getCapabilities());
+                final List<String> uids = multiAppend ?
+                        appender.append(mailbox, messages) :
+                        appender.appendEach(mailbox, messages);
+                appendUidValidity = appender.getUidValidity();
+
+                final Map<String, String> uidMap = new HashMap<String, String>();
+                for (int i = 0; i < uids.size(); i++) {
+                    final Message message = messages.get(i);
+                    if (message.getUid() != null) {
+                        uidMap.put(message.getUid(), uids.get(i));
+                    }
+                    message.setUid(uids.get(i));
+                }
+                return uidMap;
+            } catch (IOException e) {
+                // the connection might be stuck in the middle of a literal, like k9's
+                // ImapFolder#ioExceptionHandler make sure it does not go back to the pool
+                Log.e(TAG, "error appending messages to " + mailbox, e);
+                if (connection != null) {
+                    connection.close();
+                }
+                close();
+                throw new MessagingException("error appending messages", e);
+            }
+        }
+
+        ImapCapabilities readCapabilities() {
+            try {
+                return ImapCapabilities.parse(executeSimpleCommand("CAPABILITY"));
+            } catch (IOException e) {
+                Log.w(TAG, "error reading capabilities", e);
+            } catch (MessagingException e) {
+                Log.w(TAG, "error reading capabilities", e);
+            }
+            return ImapCapabilities.NONE;
+        }
+
+        private class SelectedFolderAdapter implements FolderSearcher.SelectedFolder {
+            @Override @NonNull
+            public List<ImapResponse> execute(String command) throws IOException, MessagingException {
+                return executeSimpleCommand(command);
+            }
+
+            @Override @NonNull
+            public ImapMessage getMessage(String uid) throws MessagingException {
+                return BackupFolder.this.getMessage(uid);
+            }
+        }
+
+        private class ConnectionAdapter implements ImapAppender.Connection {
+            @Override
+            public String sendCommand(String command) throws IOException, MessagingException {
+                return connection.sendCommand(command, false);
+            }
+
+            @Override
+            public OutputStream getOutputStream() throws IOException {
+                return connection.getOutputStream();
+            }
+
+            @Override
+            public ImapAppender.Response readResponse() throws IOException, MessagingException {
+                final ImapResponse response = connection.readResponse();
+                if (response.isContinuationRequested()) {
+                    return ImapAppender.Response.continuation();
+                } else {
+                    return ImapAppender.Response.from(response.getTag(), response);
+                }
+            }
+        }
+    }
+
+    /**
+     * Messages which have already been searched, handed out from a list.
+     */
+    static class MessageList implements MessageWindows {
+        private final BackupFolder folder;
+        private final List<ImapMessage> messages;
+        private int position;
+
+        MessageList(BackupFolder folder, List<ImapMessage> messages) {
+            this.folder = folder;
+            this.messages = messages;
+        }
+
+        @Override @NonNull public BackupFolder getFolder() {
+            return folder;
+        }
+
+        @Override public int count() {
+            return messages.size();
+        }
+
+        @Override public long getUidValidity() {
+            return -1;
+        }
+
+        @Override public long getLastUid() {
+            return -1;
+        }
+
+        @Override @Nullable public List<ImapMessage> next(int max) {
+            if (position == messages.size()) return null;
+            final int end = Math.min(messages.size(), position + Math.max(1, max));
+            final List<ImapMessage> next = new ArrayList<ImapMessage>(messages.subList(position, end));
+            // help gc
+            for (; position < end; position++) {
+                messages.set(position, null);
+            }
+            return next;
         }
     }
 
@@ -6,9 +6,15 @@ import com.fsck.k9.mail.NetworkType;
 class BackupStoreConfig implements StoreConfig {
     private static final String INBOX = "INBOX";
     private final String storeUri;
+    private final boolean useCompression;
 
-    BackupStoreConfig(String storeUri) {
+    /**
+     * @param useCompression if COMPRESS=DEFLATE (RFC 4978) should be negotiated with servers
+     *                       supporting it. Applies to all network types.
+     */
+    BackupStoreConfig(String storeUri, boolean useCompression) {
         this.storeUri = storeUri;
+        this.useCompression = useCompression;
     }
 
     @Override public String getStoreUri() {
@@ -19,7 +25,7 @@ class BackupStoreConfig implements StoreConfig {
         return false;
     }
     @Override public boolean useCompression(NetworkType type) {
-        return false;
+        return useCompression;
     }
     @Override public String getInboxFolderName() {
         return INBOX;
@@ -0,0 +1,115 @@
+package com.zegoggles.smssync.mail;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+import com.fsck.k9.mail.Body;
+import com.fsck.k9.mail.BodyPart;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.Multipart;
+
+import java.io.File;
+import java.io.IOException;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * A directory for encoded attachment bodies, limited to a maximum size. Spooled bodies
+ * only need to be read and encoded once, no matter how often a message gets written
+ * (to calculate its size for batching, for the APPEND literal, and for the upload).
+ * <p>
+ * Files are removed with {@link #release(Iterable)} once their messages have been sent,
+ * leftovers of previous runs when a new spool is created.
+ */
+public class BodySpool {
+    /**
+     * Default max size of all files in the spool.
+     */
+    public static final long MAX_SIZE = 32 * 1024 * 1024;
+    private static final String DIRECTORY = "spool";
+    private static final long STALE_AGE = 60 * 60 * 1000L;
+
+    private final File directory;
+    private final long maxSize;
+    private long used;
+
+    /**
+     * @param cacheDir the cache directory of the app, the spool uses a subdirectory
+     */
+    public BodySpool(File cacheDir, long maxSize) {
+        this.directory = new File(cacheDir, DIRECTORY);
+        this.maxSize = maxSize;
+        deleteStaleFiles();
+    }
+
+    /**
+     * Removes the spooled bodies of the given messages.
+     */
+    public static void release(Iterable<? extends Message> messages) {
+        for (Message message : messages) {
+            release(message.getBody());
+        }
+    }
+
+    /**
+     * @return a new empty file, or null if the spool is not usable
+     */
+    @Nullable File createFile() {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "could not create spool directory " + directory);
+            return null;
+        }
+        try {
+            return File.createTempFile("body", ".b64", directory);
+        } catch (IOException e) {
+            Log.w(TAG, "could not create spool file", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the given number of bytes fit into the spool, and were reserved
+     */
+    synchronized boolean reserve(long bytes) {
+        if (used + bytes > maxSize) {
+            return false;
+        }
+        used += bytes;
+        return true;
+    }
+
+    synchronized void free(long bytes) {
+        used = Math.max(0, used - bytes);
+    }
+
+    synchronized long getUsed() {
+        return used;
+    }
+
+    private static void release(Body body) {
+        if (body instanceof Attachment.SpooledBody) {
+            ((Attachment.SpooledBody) body).release();
+        } else if (body instanceof Multipart) {
+            final Multipart multipart = (Multipart) body;
+            for (int i = 0; i < multipart.getCount(); i++) {
+                final BodyPart part = multipart.getBodyPart(i);
+                release(part.getBody());
+            }
+        }
+    }
+
+    private void deleteStaleFiles() {
+        final File[] files = directory.listFiles();
+        if (files == null) return;
+
+        final long now = System.currentTimeMillis();
+        for (File file : files) {
+            if (now - file.lastModified() > STALE_AGE) {
+                if (LOCAL_LOGV) Log.v(TAG, "deleting stale spool file " + file);
+                if (!file.delete()) {
+                    Log.w(TAG, "could not delete " + file);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.zegoggles.smssync.mail;
+
+import com.fsck.k9.mail.Body;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.internet.MimeMessage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A message which is serialized only once, the first time it gets written. A backup
+ * writes each message several times: to calculate its size for the batch, to calculate
+ * the length of the APPEND literal, and to send it. Subsequent writes copy the rendered
+ * bytes, which are identical to what {@link MimeMessage} writes.
+ * <p>
+ * Only used for small messages (SMS and call logs), since the rendered bytes are kept in
+ * memory until the message is discarded. Changing headers or the body drops them.
+ */
+class CachingMimeMessage extends MimeMessage {
+    private static final int MAX_BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<ByteArrayOutputStream> BUFFER = new ThreadLocal<ByteArrayOutputStream>() {
+        @Override protected ByteArrayOutputStream initialValue() {
+            return new ByteArrayOutputStream(4096);
+        }
+    };
+
+    private byte[] rendered;
+    private long size = -1;
+
+    @Override
+    public synchronized void writeTo(OutputStream out) throws IOException, MessagingException {
+        if (rendered == null) {
+            rendered = render();
+        }
+        out.write(rendered);
+    }
+
+    @Override
+    public synchronized long calculateSize() {
+        if (size == -1) {
+            size = super.calculateSize();
+        }
+        return size;
+    }
+
+    @Override
+    public synchronized void setHeader(String name, String value) throws MessagingException {
+        super.setHeader(name, value);
+        invalidate();
+    }
+
+    @Override
+    public synchronized void addHeader(String name, String value) throws MessagingException {
+        super.addHeader(name, value);
+        invalidate();
+    }
+
+    @Override
+    public synchronized void removeHeader(String name) throws MessagingException {
+        super.removeHeader(name);
+        invalidate();
+    }
+
+    @Override
+    public synchronized void setBody(Body body) throws MessagingException {
+        super.setBody(body);
+        invalidate();
+    }
+
+    private byte[] render() throws IOException, MessagingException {
+        ByteArrayOutputStream buffer = BUFFER.get();
+        buffer.reset();
+        super.writeTo(buffer);
+        final byte[] bytes = buffer.toByteArray();
+        if (buffer.size() > MAX_BUFFER_SIZE) {
+            // don't hold on to the buffer of an unusually large message
+            BUFFER.remove();
+        }
+        return bytes;
+    }
+
+    private void invalidate() {
+        rendered = null;
+        size = -1;
+    }
+}
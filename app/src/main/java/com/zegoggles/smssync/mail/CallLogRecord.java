@@ -0,0 +1,55 @@
+package com.zegoggles.smssync.mail;
+
+import android.database.Cursor;
+import android.provider.CallLog;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+public class CallLogRecord extends MessageRecord {
+    public final @Nullable String number;
+    /** one of the CallLog.Calls.*_TYPE constants */
+    public final int callType;
+    /** the duration in seconds */
+    public final long duration;
+
+    public CallLogRecord(long id, @Nullable String number, int callType, long date, long duration) {
+        super(DataType.CALLLOG, id, date);
+        this.number = number;
+        this.callType = callType;
+        this.duration = duration;
+    }
+
+    @Override public boolean isRead() {
+        return true;
+    }
+
+    @Override public String toString() {
+        return "CallLogRecord{id=" + id + ", type=" + callType + ", date=" + date + ", duration=" + duration + '}';
+    }
+
+    static class Reader extends MessageRecord.Reader {
+        private final int id, number, type, date, duration;
+
+        Reader(Cursor cursor) {
+            super(cursor);
+            id = cursor.getColumnIndex(CallLog.Calls._ID);
+            number = cursor.getColumnIndex(CallLog.Calls.NUMBER);
+            type = cursor.getColumnIndex(CallLog.Calls.TYPE);
+            date = cursor.getColumnIndex(CallLog.Calls.DATE);
+            duration = cursor.getColumnIndex(CallLog.Calls.DURATION);
+        }
+
+        @Override @NonNull CallLogRecord read() {
+            return new CallLogRecord(
+                getLong(id),
+                getString(number),
+                getInt(type),
+                getLong(date),
+                getLong(duration));
+        }
+
+        @Override DataType getType() {
+            return DataType.CALLLOG;
+        }
+    }
+}
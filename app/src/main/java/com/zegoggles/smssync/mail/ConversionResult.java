@@ -4,34 +4,46 @@ import com.fsck.k9.mail.Message;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 public class ConversionResult {
     public final DataType type;
     private final List<Message> messages = new ArrayList<Message>();
-    private final List<Map<String, String>> mapList = new ArrayList<Map<String, String>>();
+    private final List<MessageRecord> records = new ArrayList<MessageRecord>();
     private long maxDate = DataType.Defaults.MAX_SYNCED_DATE;
 
     public ConversionResult(DataType type) {
         this.type = type;
     }
 
-    public void add(Message message, Map<String, String> map) {
+    public void add(Message message, MessageRecord record) {
+        if (record.type != type) throw new IllegalArgumentException("cannot mix "+type+" and "+record.type);
+
         messages.add(message);
-        mapList.add(map);
-
-        String dateHeader = Headers.get(message, Headers.DATE);
-        if (dateHeader != null) {
-            try {
-                final long date = Long.parseLong(dateHeader);
-                if (date > maxDate) {
-                    maxDate = date;
-                }
-            } catch (NumberFormatException ignored) {
-            }
+        records.add(record);
+
+        if (record.date > maxDate) {
+            maxDate = record.date;
+        }
+    }
+
+    public void addAll(ConversionResult result) {
+        if (result.type != type) throw new IllegalArgumentException("cannot mix "+type+" and "+result.type);
+
+        messages.addAll(result.messages);
+        records.addAll(result.records);
+        if (result.maxDate > maxDate) {
+            maxDate = result.maxDate;
         }
     }
 
+    /**
+     * Removes a message which should not be sent. The max date is not changed.
+     */
+    public void remove(int index) {
+        messages.remove(index);
+        records.remove(index);
+    }
+
     public boolean isEmpty() {
         return messages.isEmpty();
     }
@@ -44,8 +56,8 @@ public class ConversionResult {
         return maxDate;
     }
 
-    public List<Map<String, String>> getMapList() {
-        return mapList;
+    public List<MessageRecord> getRecords() {
+        return records;
     }
 
     public int size() {
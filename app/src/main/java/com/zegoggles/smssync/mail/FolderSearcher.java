@@ -0,0 +1,113 @@
+package com.zegoggles.smssync.mail;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.store.imap.ImapMessage;
+
+import java.io.IOException;
+import java.util.List;
+
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Searches the selected folder in UID ranges, with the commands sent by {@link UidWindows}.
+ * <p>
+ * UIDNEXT and UIDVALIDITY are taken from the response codes of a SELECT of the folder:
+ * STATUS is meant for folders other than the selected one (RFC 3501, 6.3.10), and some
+ * servers answer it with stale values for the selected folder.
+ */
+class FolderSearcher implements UidWindows.Searcher {
+    private static final String UIDNEXT = "UIDNEXT";
+    private static final String UIDVALIDITY = "UIDVALIDITY";
+
+    /**
+     * The parts of a selected IMAP folder needed to search it.
+     */
+    interface SelectedFolder {
+        /**
+         * @return the responses to the command, each as a list of its parsed tokens
+         */
+        @NonNull List<? extends List<?>> execute(String command) throws IOException, MessagingException;
+
+        @NonNull ImapMessage getMessage(String uid) throws MessagingException;
+    }
+
+    private final SelectedFolder folder;
+    private final @Nullable String mailbox;
+    private final String criteria;
+    private final boolean eSearch;
+    private long uidNext = -1;
+    private long uidValidity = -1;
+    private boolean selected;
+
+    /**
+     * @param mailbox the quoted name of the folder, or null if it can't be quoted
+     * @param criteria the search criteria, applied to each UID range
+     * @param eSearch if the server supports ESEARCH (RFC 4731), to count messages
+     */
+    FolderSearcher(@NonNull SelectedFolder folder, @Nullable String mailbox, @NonNull String criteria, boolean eSearch) {
+        this.folder = folder;
+        this.mailbox = mailbox;
+        this.criteria = criteria;
+        this.eSearch = eSearch;
+    }
+
+    @Override
+    public long getUidNext() throws MessagingException {
+        select();
+        return uidNext;
+    }
+
+    @Override
+    public long getUidValidity() throws MessagingException {
+        select();
+        return uidValidity;
+    }
+
+    private void select() throws MessagingException {
+        if (selected) return;
+        selected = true;
+
+        if (mailbox == null) return;
+        try {
+            final List<? extends List<?>> responses = folder.execute("SELECT " + mailbox);
+            uidNext = ImapSearchResults.parseResponseCode(responses, UIDNEXT);
+            uidValidity = ImapSearchResults.parseResponseCode(responses, UIDVALIDITY);
+        } catch (IOException e) {
+            throw new MessagingException("error selecting folder", e);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "invalid SELECT response", e);
+        }
+    }
+
+    @Override @NonNull
+    public long[] search(String uids) throws MessagingException {
+        try {
+            return ImapSearchResults.parseSearch(folder.execute("UID SEARCH UID " + uids + " " + criteria));
+        } catch (IOException e) {
+            throw new MessagingException("error searching messages", e);
+        } catch (NumberFormatException e) {
+            throw new MessagingException("invalid SEARCH response", e);
+        }
+    }
+
+    @Override
+    public int count(String uids) throws MessagingException {
+        if (!eSearch) return -1;
+        try {
+            return ImapSearchResults.parseESearchCount(folder.execute("UID SEARCH RETURN (COUNT) UID " + uids + " " + criteria));
+        } catch (IOException e) {
+            throw new MessagingException("error counting messages", e);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "invalid ESEARCH response", e);
+            return -1;
+        }
+    }
+
+    @Override @NonNull
+    public ImapMessage getMessage(String uid) throws MessagingException {
+        return folder.getMessage(uid);
+    }
+}
@@ -1,31 +1,44 @@
 package com.zegoggles.smssync.mail;
 
-import android.provider.CallLog;
-import android.provider.Telephony;
 import android.support.annotation.NonNull;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessagingException;
 
+import java.nio.charset.Charset;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.GregorianCalendar;
 import java.util.Locale;
-import java.util.Map;
 import java.util.TimeZone;
 
+import static com.zegoggles.smssync.mail.MessageRecord.headerValue;
 import static com.zegoggles.smssync.utils.Sanitizer.sanitize;
 
 /**
- * Generates headers for SMS, MMS, Call logs
+ * Generates headers for SMS, MMS, Call logs.
+ * <p>
+ * Called for every message of a backup, so it avoids per message setup: the backup time
+ * is formatted once per generator (i.e. once per backup), and digests are kept per thread.
  */
 class HeaderGenerator {
-    private static final String REFERENCE_UID_TEMPLATE = "<%s.%s@sms-backup-plus.local>";
-    private static final String MSG_ID_TEMPLATE        = "<%s@sms-backup-plus.local>";
-    private static final String UTF_8 = "UTF-8";
+    private static final String DOMAIN = "@sms-backup-plus.local>";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<MessageDigest> MD5 = new ThreadLocal<MessageDigest>() {
+        @Override protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
 
     private final String reference;
     private final String version;
+    private String backupTime;
 
     HeaderGenerator(String reference, String version) {
         this.version = version;
@@ -33,61 +46,68 @@ class HeaderGenerator {
     }
 
     public void setHeaders(final Message message,
-                           final Map<String, String> msgMap,
-                           final DataType dataType,
+                           final MessageRecord record,
                            final String address,
                            final @NonNull PersonRecord contact,
                            final Date sentDate,
                            final int status) throws MessagingException {
 
         // Threading by contact ID, not by thread ID. I think this value is more stable.
-        message.setHeader(Headers.REFERENCES, String.format(REFERENCE_UID_TEMPLATE, reference, contact.getId()));
+        message.setHeader(Headers.REFERENCES, "<" + reference + "." + contact.getId() + DOMAIN);
         message.setHeader(Headers.MESSAGE_ID, createMessageId(sentDate, address, status));
         message.setHeader(Headers.ADDRESS,  sanitize(address));
-        message.setHeader(Headers.DATATYPE, dataType.toString());
-        message.setHeader(Headers.BACKUP_TIME, toGMTString(new Date()));
+        message.setHeader(Headers.DATATYPE, record.type.toString());
+        message.setHeader(Headers.BACKUP_TIME, getBackupTime());
         message.setHeader(Headers.VERSION, version);
         message.setSentDate(sentDate, false);
         message.setInternalDate(sentDate);
-        switch (dataType) {
-            case SMS: setSmsHeaders(message, msgMap); break;
-            case MMS: setMmsHeaders(message, msgMap); break;
-            case CALLLOG: setCallLogHeaders(message, msgMap); break;
+        switch (record.type) {
+            case SMS: setSmsHeaders(message, (SmsRecord) record); break;
+            case MMS: setMmsHeaders(message, (MmsRecord) record); break;
+            case CALLLOG: setCallLogHeaders(message, (CallLogRecord) record); break;
         }
     }
 
-    private void setSmsHeaders(Message message, Map<String,String> msgMap) throws MessagingException {
-        message.setHeader(Headers.ID, msgMap.get(Telephony.BaseMmsColumns._ID));
-        message.setHeader(Headers.TYPE, msgMap.get(Telephony.TextBasedSmsColumns.TYPE));
-        message.setHeader(Headers.DATE, msgMap.get(Telephony.TextBasedSmsColumns.DATE));
-        message.setHeader(Headers.THREAD_ID, msgMap.get(Telephony.TextBasedSmsColumns.THREAD_ID));
-        message.setHeader(Headers.READ, msgMap.get(Telephony.TextBasedSmsColumns.READ));
-        message.setHeader(Headers.STATUS, msgMap.get(Telephony.TextBasedSmsColumns.STATUS));
-        message.setHeader(Headers.PROTOCOL, msgMap.get(Telephony.TextBasedSmsColumns.PROTOCOL));
-        message.setHeader(Headers.SERVICE_CENTER, msgMap.get(Telephony.TextBasedSmsColumns.SERVICE_CENTER));
+    private void setSmsHeaders(Message message, SmsRecord record) throws MessagingException {
+        message.setHeader(Headers.ID, headerValue(record.id));
+        message.setHeader(Headers.TYPE, headerValue(record.messageType));
+        message.setHeader(Headers.DATE, headerValue(record.date));
+        message.setHeader(Headers.THREAD_ID, record.threadId);
+        message.setHeader(Headers.READ, record.read);
+        message.setHeader(Headers.STATUS, record.status);
+        message.setHeader(Headers.PROTOCOL, record.protocol);
+        message.setHeader(Headers.SERVICE_CENTER, record.serviceCenter);
     }
 
-    private void setMmsHeaders(Message message, Map<String,String> msgMap) throws MessagingException {
-        message.setHeader(Headers.ID, msgMap.get(Telephony.BaseMmsColumns._ID));
-        message.setHeader(Headers.TYPE, msgMap.get(Telephony.BaseMmsColumns.MESSAGE_TYPE));
-        message.setHeader(Headers.DATE, msgMap.get(Telephony.BaseMmsColumns.DATE));
-        message.setHeader(Headers.THREAD_ID, msgMap.get(Telephony.BaseMmsColumns.THREAD_ID));
-        message.setHeader(Headers.READ, msgMap.get(Telephony.BaseMmsColumns.READ));
+    private void setMmsHeaders(Message message, MmsRecord record) throws MessagingException {
+        message.setHeader(Headers.ID, headerValue(record.id));
+        message.setHeader(Headers.TYPE, record.messageType);
+        message.setHeader(Headers.DATE, headerValue(record.date));
+        message.setHeader(Headers.THREAD_ID, record.threadId);
+        message.setHeader(Headers.READ, record.read);
     }
 
-    private void setCallLogHeaders(Message message, Map<String,String> msgMap) throws MessagingException {
-        message.setHeader(Headers.ID, msgMap.get(CallLog.Calls._ID));
-        message.setHeader(Headers.TYPE, msgMap.get(CallLog.Calls.TYPE));
-        message.setHeader(Headers.DATE, msgMap.get(CallLog.Calls.DATE));
-        message.setHeader(Headers.DURATION, msgMap.get(CallLog.Calls.DURATION));
+    private void setCallLogHeaders(Message message, CallLogRecord record) throws MessagingException {
+        message.setHeader(Headers.ID, headerValue(record.id));
+        message.setHeader(Headers.TYPE, headerValue(record.callType));
+        message.setHeader(Headers.DATE, headerValue(record.date));
+        message.setHeader(Headers.DURATION, headerValue(record.duration));
+    }
+
+    private synchronized String getBackupTime() {
+        if (backupTime == null) {
+            backupTime = toGMTString(now());
+        }
+        return backupTime;
     }
 
-    private static String toGMTString(Date date) {
+    /* package, for testing */ Date now() {
+        return new Date();
+    }
+
+    static String toGMTString(Date date) {
         SimpleDateFormat sdf = new SimpleDateFormat("d MMM y HH:mm:ss 'GMT'", Locale.US);
-        TimeZone gmtZone = TimeZone.getTimeZone("GMT");
-        sdf.setTimeZone(gmtZone);
-        GregorianCalendar gc = new GregorianCalendar(gmtZone);
-        gc.setTimeInMillis(date.getTime());
+        sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
         return sdf.format(date);
     }
 
@@ -100,25 +120,21 @@ class HeaderGenerator {
      * @param type    the type
      * @return the message-id
      */
-    private static String createMessageId(Date sent, String address, int type) {
-        try {
-            final MessageDigest digest = MessageDigest.getInstance("MD5");
+    static String createMessageId(Date sent, String address, int type) {
+        final MessageDigest digest = MD5.get();
+        digest.reset();
 
-            digest.update(Long.toString(sent.getTime()).getBytes(UTF_8));
-            if (address != null) {
-                digest.update(address.getBytes(UTF_8));
-            }
-            digest.update(Integer.toString(type).getBytes(UTF_8));
+        digest.update(Long.toString(sent.getTime()).getBytes(UTF_8));
+        if (address != null) {
+            digest.update(address.getBytes(UTF_8));
+        }
+        digest.update(Integer.toString(type).getBytes(UTF_8));
 
-            final StringBuilder sb = new StringBuilder();
-            for (byte b : digest.digest()) {
-                sb.append(String.format(Locale.ENGLISH, "%02x", b));
-            }
-            return String.format(Locale.ENGLISH, MSG_ID_TEMPLATE, sb.toString());
-        } catch (java.io.UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
-        } catch (java.security.NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
+        final byte[] hash = digest.digest();
+        final StringBuilder sb = new StringBuilder(1 + hash.length * 2 + DOMAIN.length()).append('<');
+        for (byte b : hash) {
+            sb.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
         }
+        return sb.append(DOMAIN).toString();
     }
 }
@@ -0,0 +1,349 @@
+package com.zegoggles.smssync.mail;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import com.fsck.k9.mail.Flag;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.filter.EOLConvertingOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Sends a list of messages to the server with fewer round trips than k9's APPEND, which
+ * waits for a continuation request and a tagged response for every message. Uses
+ * MULTIAPPEND (RFC 3502) and non-synchronizing literals (RFC 7888) where available.
+ */
+class ImapAppender {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    /**
+     * The parts of an IMAP connection needed to send an append command.
+     */
+    interface Connection {
+        /**
+         * Sends a command, terminated by CRLF.
+         * @return the tag of the command
+         */
+        String sendCommand(String command) throws IOException, MessagingException;
+
+        OutputStream getOutputStream() throws IOException;
+
+        Response readResponse() throws IOException, MessagingException;
+    }
+
+    static class Response {
+        final @Nullable String tag;
+        final boolean continuation;
+        final @Nullable String status;
+        final @NonNull List<String> code;
+        final @NonNull String text;
+
+        Response(@Nullable String tag, boolean continuation, @Nullable String status,
+                 @NonNull List<String> code, @NonNull String text) {
+            this.tag = tag;
+            this.continuation = continuation;
+            this.status = status;
+            this.code = code;
+            this.text = text;
+        }
+
+        static Response continuation() {
+            return new Response(null, true, null, Collections.<String>emptyList(), "");
+        }
+
+        /**
+         * @param tokens the parsed response, status first, followed by an optional
+         *               response code (as a nested list) and the human readable text.
+         */
+        static Response from(@Nullable String tag, List<?> tokens) {
+            String status = null;
+            List<String> code = Collections.emptyList();
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < tokens.size(); i++) {
+                Object token = tokens.get(i);
+                if (i == 0 && token instanceof String) {
+                    status = (String) token;
+                } else if (i == 1 && token instanceof List) {
+                    code = new ArrayList<String>();
+                    for (Object element : (List<?>) token) {
+                        code.add(String.valueOf(element));
+                    }
+                } else {
+                    if (text.length() > 0) text.append(' ');
+                    text.append(token);
+                }
+            }
+            return new Response(tag, false, status, code, text.toString());
+        }
+
+        boolean isOk() {
+            return "OK".equalsIgnoreCase(status);
+        }
+
+        @Override public String toString() {
+            return continuation ? "+" : (tag == null ? "*" : tag) + " " + status + " " + code + " " + text;
+        }
+    }
+
+    private final Connection connection;
+    private final ImapCapabilities capabilities;
+    /** tagged responses which were read while waiting for another response */
+    private final Map<String, Response> completed = new HashMap<String, Response>();
+    private long uidValidity = -1;
+
+    ImapAppender(Connection connection, ImapCapabilities capabilities) {
+        this.connection = connection;
+        this.capabilities = capabilities;
+    }
+
+    /**
+     * Appends all messages with a single MULTIAPPEND command, atomically: either the server
+     * stores all of them, or none. Literals are sent without waiting for continuation
+     * requests when the server supports it (LITERAL+ / LITERAL-).
+     *
+     * @param mailbox the quoted mailbox name, see {@link #quote(String)}
+     * @return the UIDs assigned to the messages, in the same order, if reported by the server
+     *         (UIDPLUS), otherwise an empty list
+     * @throws MessagingException if the server rejected the command
+     */
+    @NonNull List<String> append(@NonNull String mailbox, @NonNull List<? extends Message> messages)
+            throws IOException, MessagingException {
+        if (messages.isEmpty()) return Collections.emptyList();
+        if (LOCAL_LOGV) Log.v(TAG, "MULTIAPPEND " + messages.size() + " message(s) to " + mailbox);
+
+        final long[] sizes = calculateSizes(messages);
+        final String tag = connection.sendCommand("APPEND " + mailbox + " " + appendData(messages.get(0), sizes[0]));
+        for (int i = 0; i < messages.size(); i++) {
+            if (!capabilities.allowsNonSyncLiteral(sizes[i]) && !awaitContinuation(tag)) {
+                throw new MessagingException("APPEND failed: " + completed.remove(tag));
+            }
+            final OutputStream out = writeLiteral(messages.get(i));
+            if (i < messages.size() - 1) {
+                out.write((" " + appendData(messages.get(i + 1), sizes[i + 1])).getBytes(ASCII));
+            }
+            out.write(CRLF);
+            out.flush();
+        }
+
+        final Response response = awaitTagged(tag);
+        if (!response.isOk()) {
+            throw new MessagingException("APPEND failed: " + response);
+        }
+        final List<String> uids = getAppendedUids(response, messages.size());
+        if (!uids.isEmpty()) {
+            uidValidity = getUidValidity(response);
+        }
+        return uids;
+    }
+
+    /**
+     * Appends each message with its own APPEND command. Commands using non-synchronizing
+     * literals are pipelined back to back, and their tagged responses are collected
+     * afterwards, so a batch only costs one round trip instead of two per message.
+     * Unlike {@link #append(String, List)} this is not atomic, some messages might have been
+     * stored if an exception is thrown.
+     *
+     * @param mailbox the quoted mailbox name, see {@link #quote(String)}
+     * @return the UIDs assigned to the messages, in the same order, if reported by the server
+     *         for all messages (UIDPLUS), otherwise an empty list
+     * @throws MessagingException if the server rejected any of the commands
+     */
+    @NonNull List<String> appendEach(@NonNull String mailbox, @NonNull List<? extends Message> messages)
+            throws IOException, MessagingException {
+        if (LOCAL_LOGV) Log.v(TAG, "APPEND " + messages.size() + " message(s) to " + mailbox);
+
+        final long[] sizes = calculateSizes(messages);
+        final List<String> tags = new ArrayList<String>(messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            final String tag = connection.sendCommand("APPEND " + mailbox + " " + appendData(messages.get(i), sizes[i]));
+            tags.add(tag);
+            if (!capabilities.allowsNonSyncLiteral(sizes[i]) && !awaitContinuation(tag)) {
+                break;
+            }
+            final OutputStream out = writeLiteral(messages.get(i));
+            out.write(CRLF);
+            out.flush();
+        }
+
+        MessagingException failure = null;
+        final List<String> uids = new ArrayList<String>(messages.size());
+        final Set<Long> validities = new HashSet<Long>();
+        for (String tag : tags) {
+            final Response response = awaitTagged(tag);
+            if (!response.isOk()) {
+                if (failure == null) {
+                    failure = new MessagingException("APPEND failed: " + response);
+                }
+            } else {
+                final List<String> appended = getAppendedUids(response, 1);
+                if (!appended.isEmpty()) {
+                    uids.addAll(appended);
+                    validities.add(getUidValidity(response));
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        if (uids.size() == messages.size() && validities.size() == 1) {
+            uidValidity = validities.iterator().next();
+            return uids;
+        } else {
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * @return the UIDVALIDITY of the mailbox reported with the UIDs of the last append,
+     *         or -1 if no UIDs were reported
+     */
+    long getUidValidity() {
+        return uidValidity;
+    }
+
+    /**
+     * @return the mailbox name as a quoted string, or null if the name would need to be
+     *         encoded first (non-ASCII characters)
+     */
+    static @Nullable String quote(String name) {
+        StringBuilder sb = new StringBuilder(name.length() + 2).append('"');
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c < 0x20 || c > 0x7e) {
+                return null;
+            } else if (c == '"' || c == '\\') {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+
+    static String flags(Message message) {
+        StringBuilder sb = new StringBuilder("(");
+        for (Flag flag : message.getFlags()) {
+            String name = systemFlag(flag);
+            if (name != null) {
+                if (sb.length() > 1) sb.append(' ');
+                sb.append(name);
+            }
+        }
+        return sb.append(')').toString();
+    }
+
+    /**
+     * Parses the message UIDs out of an APPENDUID response code (RFC 4315), e.g.
+     * <code>[APPENDUID 38505 3955:3957]</code>.
+     */
+    static @NonNull List<String> getAppendedUids(Response response, int expected) {
+        if (response.code.size() < 3 || !"APPENDUID".equalsIgnoreCase(response.code.get(0))) {
+            return Collections.emptyList();
+        }
+        final List<String> uids;
+        try {
+            uids = ImapSearchResults.parseSequenceSet(response.code.get(2));
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "invalid APPENDUID response: " + response);
+            return Collections.emptyList();
+        }
+        if (uids.size() != expected) {
+            Log.w(TAG, "unexpected number of uids in APPENDUID response: " + response);
+            return Collections.emptyList();
+        }
+        return uids;
+    }
+
+    /**
+     * @return the UIDVALIDITY from an APPENDUID response code, or -1
+     */
+    static long getUidValidity(Response response) {
+        if (response.code.size() < 3 || !"APPENDUID".equalsIgnoreCase(response.code.get(0))) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(response.code.get(1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private String appendData(Message message, long size) {
+        return String.format(Locale.ENGLISH, capabilities.allowsNonSyncLiteral(size) ? "%s {%d+}" : "%s {%d}",
+                flags(message), size);
+    }
+
+    private static long[] calculateSizes(List<? extends Message> messages) throws IOException, MessagingException {
+        final long[] sizes = new long[messages.size()];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = messages.get(i).calculateSize();
+        }
+        return sizes;
+    }
+
+    private OutputStream writeLiteral(Message message) throws IOException, MessagingException {
+        final OutputStream out = connection.getOutputStream();
+        final EOLConvertingOutputStream eolOut = new EOLConvertingOutputStream(out);
+        message.writeTo(eolOut);
+        eolOut.flush();
+        return out;
+    }
+
+    /**
+     * @return true if the server asked for the literal, false if it rejected the command
+     */
+    private boolean awaitContinuation(String tag) throws IOException, MessagingException {
+        while (true) {
+            final Response response = connection.readResponse();
+            if (response.continuation) {
+                return true;
+            } else if (response.tag != null) {
+                completed.put(response.tag, response);
+                if (tag.equals(response.tag)) {
+                    return false;
+                }
+            }
+        }
+    }
+
+    private Response awaitTagged(String tag) throws IOException, MessagingException {
+        Response response = completed.remove(tag);
+        while (response == null) {
+            final Response next = connection.readResponse();
+            if (next.continuation) {
+                throw new MessagingException("unexpected continuation request");
+            } else if (tag.equals(next.tag)) {
+                response = next;
+            } else if (next.tag != null) {
+                completed.put(next.tag, next);
+            }
+        }
+        return response;
+    }
+
+    private static @Nullable String systemFlag(Flag flag) {
+        switch (flag) {
+            case SEEN: return "\\Seen";
+            case FLAGGED: return "\\Flagged";
+            case ANSWERED: return "\\Answered";
+            case DELETED: return "\\Deleted";
+            case DRAFT: return "\\Draft";
+            default: return null;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.zegoggles.smssync.mail;
+
+import android.support.annotation.NonNull;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Capabilities advertised by an IMAP server in response to the CAPABILITY command
+ * (RFC 3501, section 7.2.1).
+ */
+class ImapCapabilities {
+    static final ImapCapabilities NONE = new ImapCapabilities(Collections.<String>emptySet());
+
+    static final String MULTIAPPEND = "MULTIAPPEND";
+    static final String UIDPLUS = "UIDPLUS";
+    static final String LITERAL_PLUS = "LITERAL+";
+    static final String LITERAL_MINUS = "LITERAL-";
+    static final String SORT = "SORT";
+    static final String ESEARCH = "ESEARCH";
+
+    /**
+     * Max size of a non-synchronizing literal if the server only supports LITERAL-.
+     */
+    static final long LITERAL_MINUS_MAX_SIZE = 4096;
+
+    private static final String CAPABILITY = "CAPABILITY";
+
+    private final Set<String> capabilities;
+
+    private ImapCapabilities(Set<String> capabilities) {
+        this.capabilities = capabilities;
+    }
+
+    /**
+     * @param responses the responses to a CAPABILITY command, as returned by k9
+     *                  (each response is a list of its parsed tokens)
+     */
+    static @NonNull ImapCapabilities parse(@NonNull List<? extends List<?>> responses) {
+        final Set<String> capabilities = new HashSet<String>();
+        for (List<?> response : responses) {
+            if (response.isEmpty() || !CAPABILITY.equalsIgnoreCase(String.valueOf(response.get(0)))) {
+                continue;
+            }
+            for (Object token : response.subList(1, response.size())) {
+                if (token instanceof String) {
+                    capabilities.add(((String) token).toUpperCase(Locale.ENGLISH));
+                }
+            }
+        }
+        return new ImapCapabilities(capabilities);
+    }
+
+    static @NonNull ImapCapabilities of(String... capabilities) {
+        final Set<String> set = new HashSet<String>();
+        for (String capability : capabilities) {
+            set.add(capability.toUpperCase(Locale.ENGLISH));
+        }
+        return new ImapCapabilities(set);
+    }
+
+    boolean has(String capability) {
+        return capabilities.contains(capability.toUpperCase(Locale.ENGLISH));
+    }
+
+    /**
+     * @return if multiple messages can be sent with a single APPEND command (RFC 3502)
+     */
+    boolean isMultiAppend() {
+        return has(MULTIAPPEND);
+    }
+
+    /**
+     * @return if the server reports the UIDs of appended messages (RFC 4315)
+     */
+    boolean isUidPlus() {
+        return has(UIDPLUS);
+    }
+
+    /**
+     * @return if the server can sort search results (RFC 5256)
+     */
+    boolean isSort() {
+        return has(SORT);
+    }
+
+    /**
+     * @return if the server can return search results as compact UID sets (RFC 4731)
+     */
+    boolean isESearch() {
+        return has(ESEARCH);
+    }
+
+    /**
+     * @return if a literal of the given size can be sent without waiting for a continuation
+     *         request from the server (RFC 7888)
+     */
+    boolean allowsNonSyncLiteral(long size) {
+        return has(LITERAL_PLUS) || (has(LITERAL_MINUS) && size <= LITERAL_MINUS_MAX_SIZE);
+    }
+
+    /**
+     * @return if the server supports non-synchronizing literals, at least for small messages
+     */
+    boolean hasNonSyncLiterals() {
+        return has(LITERAL_PLUS) || has(LITERAL_MINUS);
+    }
+
+    @Override public String toString() {
+        return "ImapCapabilities{" + capabilities + '}';
+    }
+}
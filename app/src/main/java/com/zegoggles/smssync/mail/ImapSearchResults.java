@@ -0,0 +1,145 @@
+package com.zegoggles.smssync.mail;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Parses the UIDs out of SEARCH related untagged responses, as returned by k9
+ * (each response is a list of its parsed tokens).
+ */
+final class ImapSearchResults {
+    private static final String SEARCH = "SEARCH";
+    private static final String SORT = "SORT";
+    private static final String ESEARCH = "ESEARCH";
+    private static final String ALL = "ALL";
+    private static final String COUNT = "COUNT";
+    private static final String OK = "OK";
+
+    private ImapSearchResults() {}
+
+    /**
+     * @return the UIDs of a UID SEARCH command, in ascending order
+     * @throws NumberFormatException if a UID is not valid
+     */
+    static @NonNull long[] parseSearch(@NonNull List<? extends List<?>> responses) {
+        int count = 0;
+        for (List<?> response : responses) {
+            if (isSearch(response)) count += response.size() - 1;
+        }
+        final long[] uids = new long[count];
+        int i = 0;
+        for (List<?> response : responses) {
+            if (!isSearch(response)) continue;
+            for (int j = 1; j < response.size(); j++) {
+                uids[i++] = Long.parseLong(String.valueOf(response.get(j)));
+            }
+        }
+        Arrays.sort(uids);
+        return uids;
+    }
+
+    /**
+     * @return the result of a UID SEARCH RETURN (COUNT) command (RFC 4731), or -1 if the
+     *         response did not contain a count
+     * @throws NumberFormatException if the count is not valid
+     */
+    static int parseESearchCount(@NonNull List<? extends List<?>> responses) {
+        for (List<?> response : responses) {
+            if (response.isEmpty() || !ESEARCH.equalsIgnoreCase(String.valueOf(response.get(0)))) {
+                continue;
+            }
+            for (int i = 1; i < response.size() - 1; i++) {
+                if (COUNT.equalsIgnoreCase(String.valueOf(response.get(i)))) {
+                    return Integer.parseInt(String.valueOf(response.get(i + 1)));
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param code the response code, like UIDNEXT
+     * @return the value of the code in the untagged OK responses of a SELECT command
+     *         (<code>* OK [UIDNEXT 4392] Predicted next UID</code>), or -1 if the
+     *         responses did not contain it
+     * @throws NumberFormatException if the value is not valid
+     */
+    static long parseResponseCode(@NonNull List<? extends List<?>> responses, @NonNull String code) {
+        for (List<?> response : responses) {
+            if (response.size() < 2 || !OK.equalsIgnoreCase(String.valueOf(response.get(0)))) {
+                continue;
+            }
+            final Object responseCode = response.get(1);
+            if (!(responseCode instanceof List)) continue;
+
+            final List<?> list = (List<?>) responseCode;
+            if (list.size() >= 2 && code.equalsIgnoreCase(String.valueOf(list.get(0)))) {
+                return Long.parseLong(String.valueOf(list.get(1)));
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the UIDs of a UID SORT command (RFC 5256), in the order returned by the server
+     */
+    static @NonNull List<String> parseSort(@NonNull List<? extends List<?>> responses) {
+        final List<String> uids = new ArrayList<String>();
+        for (List<?> response : responses) {
+            if (response.isEmpty() || !SORT.equalsIgnoreCase(String.valueOf(response.get(0)))) {
+                continue;
+            }
+            for (Object token : response.subList(1, response.size())) {
+                uids.add(String.valueOf(token));
+            }
+        }
+        return uids;
+    }
+
+    /**
+     * @return the UIDs of a UID SEARCH RETURN (ALL) command (RFC 4731), in ascending order
+     */
+    static @NonNull List<String> parseESearch(@NonNull List<? extends List<?>> responses) {
+        final List<String> uids = new ArrayList<String>();
+        for (List<?> response : responses) {
+            if (response.isEmpty() || !ESEARCH.equalsIgnoreCase(String.valueOf(response.get(0)))) {
+                continue;
+            }
+            for (int i = 1; i < response.size() - 1; i++) {
+                if (ALL.equalsIgnoreCase(String.valueOf(response.get(i)))) {
+                    uids.addAll(parseSequenceSet(String.valueOf(response.get(i + 1))));
+                }
+            }
+        }
+        return uids;
+    }
+
+    private static boolean isSearch(List<?> response) {
+        return !response.isEmpty() && SEARCH.equalsIgnoreCase(String.valueOf(response.get(0)));
+    }
+
+    /**
+     * Expands a sequence set like <code>4,7:9</code>.
+     *
+     * @throws NumberFormatException if the set is not valid
+     */
+    static @NonNull List<String> parseSequenceSet(@NonNull String set) {
+        final List<String> uids = new ArrayList<String>();
+        for (String range : set.split(",")) {
+            int colon = range.indexOf(':');
+            if (colon == -1) {
+                uids.add(String.valueOf(Long.parseLong(range)));
+            } else {
+                long first = Long.parseLong(range.substring(0, colon));
+                long last = Long.parseLong(range.substring(colon + 1));
+                for (long uid = Math.min(first, last); uid <= Math.max(first, last); uid++) {
+                    uids.add(String.valueOf(uid));
+                }
+            }
+        }
+        return uids;
+    }
+}
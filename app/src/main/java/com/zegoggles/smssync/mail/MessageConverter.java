@@ -19,7 +19,6 @@ package com.zegoggles.smssync.mail;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.provider.CallLog;
 import android.provider.Telephony;
@@ -42,10 +41,12 @@ import org.apache.commons.io.IOUtils;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 
 import static com.zegoggles.smssync.App.LOCAL_LOGV;
 import static com.zegoggles.smssync.App.TAG;
@@ -60,8 +61,10 @@ public class MessageConverter {
 
     private final MarkAsReadTypes mMarkAsReadType;
     private final PersonLookup mPersonLookup;
+    private final MmsSupport mMmsSupport;
     private final MessageGenerator mMessageGenerator;
     private final boolean mMarkAsReadOnRestore;
+    private MessageRecord.Reader mReader;
 
     public MessageConverter(Context context,
                             Preferences preferences,
@@ -71,6 +74,8 @@ public class MessageConverter {
         mContext = context;
         mMarkAsReadType = preferences.getMarkAsReadType();
         mPersonLookup = personLookup;
+        mMmsSupport = new MmsSupport(context.getContentResolver(), personLookup,
+                new BodySpool(context.getCacheDir(), BodySpool.MAX_SIZE));
         mMarkAsReadOnRestore = preferences.getMarkAsReadOnRestore();
 
         String referenceUid = preferences.getReferenceUid();
@@ -90,22 +95,15 @@ public class MessageConverter {
                 mPersonLookup,
                 preferences.getMailSubjectPrefix(),
                 allowedIds,
-                new MmsSupport(mContext.getContentResolver(), mPersonLookup),
+                mMmsSupport,
                 preferences.getCallLogType(),
                 preferences.getDataTypePreferences());
     }
 
-    private boolean markAsSeen(DataType dataType, Map<String, String> msgMap) {
+    private boolean markAsSeen(MessageRecord record) {
         switch (mMarkAsReadType) {
             case MESSAGE_STATUS:
-                switch (dataType) {
-                    case SMS:
-                        return "1".equals(msgMap.get(Telephony.TextBasedSmsColumns.READ));
-                    case MMS:
-                        return "1".equals(msgMap.get(Telephony.BaseMmsColumns.READ));
-                    default:
-                        return true;
-                }
+                return record.isRead();
             case UNREAD:
                 return false;
             case READ:
@@ -117,18 +115,54 @@ public class MessageConverter {
     public @NonNull ConversionResult convertMessages(final Cursor cursor, DataType dataType)
             throws MessagingException {
 
-        final Map<String, String> msgMap = getMessageMap(cursor);
-        final Message m = mMessageGenerator.messageForDataType(msgMap, dataType);
+        if (mReader == null || !mReader.isFor(cursor, dataType)) {
+            mReader = MessageRecord.Reader.forType(dataType, cursor);
+        }
+        final MessageRecord record = mReader.read();
+        final Message m = mMessageGenerator.messageForRecord(record);
         final ConversionResult result = new ConversionResult(dataType);
         if (m != null) {
-            m.setFlag(Flag.SEEN, markAsSeen(dataType, msgMap));
-            result.add(m, msgMap);
+            m.setFlag(Flag.SEEN, markAsSeen(record));
+            result.add(m, record);
         }
 
         return result;
     }
 
 
+    /**
+     * Loads the data needed to convert all rows of the cursor in bulk: the contacts of all
+     * addresses, and for MMS the addresses and parts of all messages. This saves the queries
+     * which would otherwise be made for each row. The position of the cursor is not changed.
+     */
+    public void preload(final Cursor cursor, DataType dataType) {
+        final int index;
+        switch (dataType) {
+            case SMS:     index = cursor.getColumnIndex(Telephony.TextBasedSmsColumns.ADDRESS); break;
+            case MMS:     index = cursor.getColumnIndex(Telephony.BaseMmsColumns._ID); break;
+            case CALLLOG: index = cursor.getColumnIndex(CallLog.Calls.NUMBER); break;
+            default:      return;
+        }
+        if (index == -1) return;
+
+        final int position = cursor.getPosition();
+        final Set<String> addresses = new LinkedHashSet<String>();
+        final List<Long> ids = new ArrayList<Long>();
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            if (dataType == DataType.MMS) {
+                ids.add(cursor.getLong(index));
+            } else {
+                addresses.add(cursor.getString(index));
+            }
+        }
+        cursor.moveToPosition(position);
+        if (dataType == DataType.MMS) {
+            addresses.addAll(mMmsSupport.preload(ids));
+        }
+        mPersonLookup.preload(addresses);
+    }
+
     public @NonNull ContentValues messageToContentValues(final Message message)
             throws IOException, MessagingException {
         if (message == null) throw new MessagingException("message is null");
@@ -196,28 +230,6 @@ public class MessageConverter {
         }
     }
 
-    private Map<String, String> getMessageMap(Cursor cursor) {
-        final String[] columns = cursor.getColumnNames();
-        final Map<String, String> msgMap = new HashMap<String, String>(columns.length);
-        for (String column : columns) {
-            String value;
-            try {
-                final int index = cursor.getColumnIndex(column);
-                if (index != -1) {
-                    value = cursor.getString(index);
-                } else {
-                    continue;
-                }
-            } catch (SQLiteException ignored) {
-                // this can happen in case of BLOBS in the DB
-                // column type checking is API level >= 11
-                value = "[BLOB]";
-            }
-            msgMap.put(column, value);
-        }
-        return msgMap;
-    }
-
     private static String generateReferenceValue() {
         final StringBuilder sb = new StringBuilder();
         final Random random = new Random();
@@ -1,7 +1,6 @@
 package com.zegoggles.smssync.mail;
 
 import android.content.Context;
-import android.net.Uri;
 import android.provider.CallLog;
 import android.provider.Telephony;
 import android.support.annotation.NonNull;
@@ -15,7 +14,6 @@ import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.internet.MimeMessage;
 import com.fsck.k9.mail.internet.MimeMultipart;
 import com.fsck.k9.mail.internet.TextBody;
-import com.zegoggles.smssync.Consts;
 import com.zegoggles.smssync.contacts.ContactGroupIds;
 import com.zegoggles.smssync.preferences.AddressStyle;
 import com.zegoggles.smssync.preferences.CallLogTypes;
@@ -23,12 +21,10 @@ import com.zegoggles.smssync.preferences.DataTypePreferences;
 
 import java.util.Date;
 import java.util.Locale;
-import java.util.Map;
 
 import static com.fsck.k9.mail.internet.MimeMessageHelper.setBody;
 import static com.zegoggles.smssync.App.LOCAL_LOGV;
 import static com.zegoggles.smssync.App.TAG;
-import static com.zegoggles.smssync.Consts.MMS_PART;
 
 class MessageGenerator {
     private static final String ERROR_PARSING_DATE = "error parsing date";
@@ -67,27 +63,27 @@ class MessageGenerator {
         this.callLogTypes = callLogTypes;
     }
 
-    public  @Nullable Message messageForDataType(Map<String, String> msgMap, DataType dataType) throws MessagingException {
-        switch (dataType) {
-            case SMS: return messageFromMapSms(msgMap);
-            case MMS: return messageFromMapMms(msgMap);
-            case CALLLOG: return messageFromMapCallLog(msgMap);
+    public  @Nullable Message messageForRecord(MessageRecord record) throws MessagingException {
+        switch (record.type) {
+            case SMS: return messageFromSms((SmsRecord) record);
+            case MMS: return messageFromMms((MmsRecord) record);
+            case CALLLOG: return messageFromCallLog((CallLogRecord) record);
             default: return null;
         }
     }
 
-    private @Nullable Message messageFromMapSms(Map<String, String> msgMap) throws MessagingException {
-        final String address = msgMap.get(Telephony.TextBasedSmsColumns.ADDRESS);
+    private @Nullable Message messageFromSms(SmsRecord sms) throws MessagingException {
+        final String address = sms.address;
         if (TextUtils.isEmpty(address)) return null;
 
         PersonRecord record = personLookup.lookupPerson(address);
         if (!includePersonInBackup(record, DataType.SMS)) return null;
 
-        final Message msg = new MimeMessage();
+        final Message msg = new CachingMimeMessage();
         msg.setSubject(getSubject(DataType.SMS, record));
-        setBody(msg, new TextBody(msgMap.get(Telephony.TextBasedSmsColumns.BODY)));
+        setBody(msg, new TextBody(sms.body));
 
-        final int messageType = toInt(msgMap.get(Telephony.TextBasedSmsColumns.TYPE));
+        final int messageType = sms.messageType;
         if (Telephony.TextBasedSmsColumns.MESSAGE_TYPE_INBOX == messageType) {
             // Received message
             msg.setFrom(record.getAddress(addressStyle));
@@ -98,22 +94,15 @@ class MessageGenerator {
             msg.setFrom(userAddress);
         }
 
-        Date sentDate;
-        try {
-            sentDate = new Date(Long.valueOf(msgMap.get(Telephony.TextBasedSmsColumns.DATE)));
-        } catch (NumberFormatException n) {
-            Log.e(TAG, ERROR_PARSING_DATE, n);
-            sentDate = new Date();
-        }
-        headerGenerator.setHeaders(msg, msgMap, DataType.SMS, address, record, sentDate, messageType);
+        final Date sentDate = getSentDate(sms.date);
+        headerGenerator.setHeaders(msg, sms, address, record, sentDate, messageType);
         return msg;
     }
 
-    private @Nullable Message messageFromMapMms(Map<String, String> msgMap) throws MessagingException {
-        if (LOCAL_LOGV) Log.v(TAG, "messageFromMapMms(" + msgMap + ")");
+    private @Nullable Message messageFromMms(MmsRecord mms) throws MessagingException {
+        if (LOCAL_LOGV) Log.v(TAG, "messageFromMms(" + mms + ")");
 
-        final Uri mmsUri = Uri.withAppendedPath(Consts.MMS_PROVIDER, msgMap.get(Telephony.BaseMmsColumns._ID));
-        MmsSupport.MmsDetails details = mmsSupport.getDetails(mmsUri, addressStyle);
+        MmsSupport.MmsDetails details = mmsSupport.getDetails(mms.id, addressStyle);
 
         if (details.isEmpty()) {
             Log.w(TAG, "no recipients found");
@@ -135,18 +124,11 @@ class MessageGenerator {
             msg.setFrom(userAddress);
         }
 
-        Date sentDate;
-        try {
-            sentDate = new Date(1000 * Long.valueOf(msgMap.get(Telephony.BaseMmsColumns.DATE)));
-        } catch (NumberFormatException n) {
-            Log.e(TAG, ERROR_PARSING_DATE, n);
-            sentDate = new Date();
-        }
-        final int msg_box = toInt(msgMap.get("msg_box"));
-        headerGenerator.setHeaders(msg, msgMap, DataType.MMS, details.address, details.getRecipient(), sentDate, msg_box);
+        final Date sentDate = getSentDate(mms.date == MessageRecord.UNKNOWN ? mms.date : 1000 * mms.date);
+        headerGenerator.setHeaders(msg, mms, details.address, details.getRecipient(), sentDate, mms.messageBox);
         MimeMultipart body = MimeMultipart.newInstance();
 
-        for (BodyPart p : mmsSupport.getMMSBodyParts(Uri.withAppendedPath(mmsUri, MMS_PART))) {
+        for (BodyPart p : mmsSupport.getMMSBodyParts(mms.id)) {
             body.addBodyPart(p);
         }
 
@@ -154,18 +136,18 @@ class MessageGenerator {
         return msg;
     }
 
-    private  @Nullable Message messageFromMapCallLog(Map<String, String> msgMap) throws MessagingException {
-        final String address = msgMap.get(CallLog.Calls.NUMBER);
-        final int callType = toInt(msgMap.get(CallLog.Calls.TYPE));
+    private  @Nullable Message messageFromCallLog(CallLogRecord call) throws MessagingException {
+        final String address = call.number;
+        final int callType = call.callType;
 
         if (!callLogTypes.isTypeEnabled(callType)) {
-            if (LOCAL_LOGV) Log.v(TAG, "ignoring call log entry: " + msgMap);
+            if (LOCAL_LOGV) Log.v(TAG, "ignoring call log entry: " + call);
             return null;
         }
         PersonRecord record = personLookup.lookupPerson(address);
         if (!includePersonInBackup(record, DataType.CALLLOG)) return null;
 
-        final Message msg = new MimeMessage();
+        final Message msg = new CachingMimeMessage();
         msg.setSubject(getSubject(DataType.CALLLOG, record));
 
         switch (callType) {
@@ -188,18 +170,11 @@ class MessageGenerator {
                 return null;
         }
 
-        final int duration = msgMap.get(CallLog.Calls.DURATION) == null ? 0 :
-                toInt(msgMap.get(CallLog.Calls.DURATION));
+        final int duration = call.duration == MessageRecord.UNKNOWN ? 0 : (int) call.duration;
 
         setBody(msg, new TextBody(callFormatter.format(callType, record.getNumber(), duration)));
-        Date sentDate;
-        try {
-            sentDate = new Date(Long.valueOf(msgMap.get(CallLog.Calls.DATE)));
-        } catch (NumberFormatException n) {
-            Log.e(TAG, ERROR_PARSING_DATE, n);
-            sentDate = new Date();
-        }
-        headerGenerator.setHeaders(msg, msgMap, DataType.CALLLOG, address, record, sentDate, callType);
+        final Date sentDate = getSentDate(call.date);
+        headerGenerator.setHeaders(msg, call, address, record, sentDate, callType);
         return msg;
     }
 
@@ -225,11 +200,12 @@ class MessageGenerator {
         return backup;
     }
 
-    private static int toInt(String s) {
-        try {
-             return Integer.valueOf(s);
-        } catch (NumberFormatException e) {
-            return -1;
+    private static Date getSentDate(long date) {
+        if (date == MessageRecord.UNKNOWN) {
+            Log.e(TAG, ERROR_PARSING_DATE);
+            return new Date();
+        } else {
+            return new Date(date);
         }
     }
 }
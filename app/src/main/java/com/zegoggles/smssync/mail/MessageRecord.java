@@ -0,0 +1,93 @@
+package com.zegoggles.smssync.mail;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * A single row read from the SMS, MMS or call log provider, with just the columns needed
+ * to generate a backup message.
+ */
+public abstract class MessageRecord {
+    /**
+     * Value of numeric fields which are not present (or null) in the provider row.
+     */
+    public static final long UNKNOWN = -1;
+
+    public final DataType type;
+    public final long id;
+    /**
+     * The date as stored by the provider: in milliseconds, except for MMS (seconds).
+     */
+    public final long date;
+
+    MessageRecord(DataType type, long id, long date) {
+        this.type = type;
+        this.id = id;
+        this.date = date;
+    }
+
+    /**
+     * @return if the provider marked this message as read
+     */
+    public abstract boolean isRead();
+
+    /**
+     * @return the value as it should appear in a header, or null if it is unknown
+     */
+    static @Nullable String headerValue(long value) {
+        return value == UNKNOWN ? null : Long.toString(value);
+    }
+
+    /**
+     * Reads records from a cursor. The column indexes are resolved once when the reader
+     * is created, so a reader should be reused for all rows of a cursor.
+     */
+    abstract static class Reader {
+        final Cursor cursor;
+
+        Reader(Cursor cursor) {
+            this.cursor = cursor;
+        }
+
+        static @NonNull Reader forType(DataType type, Cursor cursor) {
+            switch (type) {
+                case SMS: return new SmsRecord.Reader(cursor);
+                case MMS: return new MmsRecord.Reader(cursor);
+                case CALLLOG: return new CallLogRecord.Reader(cursor);
+                default: throw new IllegalArgumentException("unknown type " + type);
+            }
+        }
+
+        boolean isFor(Cursor cursor, DataType type) {
+            return this.cursor == cursor && getType() == type;
+        }
+
+        /**
+         * @return the record for the current row of the cursor
+         */
+        abstract @NonNull MessageRecord read();
+
+        abstract DataType getType();
+
+        long getLong(int index) {
+            return index == -1 || cursor.isNull(index) ? UNKNOWN : cursor.getLong(index);
+        }
+
+        int getInt(int index) {
+            return index == -1 || cursor.isNull(index) ? (int) UNKNOWN : cursor.getInt(index);
+        }
+
+        @Nullable String getString(int index) {
+            if (index == -1) return null;
+            try {
+                return cursor.getString(index);
+            } catch (SQLiteException ignored) {
+                // this can happen in case of BLOBS in the DB
+                // column type checking is API level >= 11
+                return "[BLOB]";
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.zegoggles.smssync.mail;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.store.imap.ImapMessage;
+
+import java.util.List;
+
+/**
+ * The messages of a folder to restore, handed out a window at a time so that they
+ * don't have to be held in memory all at once.
+ *
+ * @see BackupImapStore.BackupFolder#getMessageWindows(int, boolean, java.util.Date)
+ * @see BackupImapStore.BackupFolder#getMessageWindowsAfter(long, long)
+ */
+public interface MessageWindows {
+    /**
+     * @return the folder the messages belong to
+     */
+    @NonNull BackupImapStore.BackupFolder getFolder();
+
+    /**
+     * @return the total number of messages, or -1 if it can't be determined without
+     *         searching the whole folder
+     */
+    int count() throws MessagingException;
+
+    /**
+     * @param max the max number of messages to return
+     * @return the next messages, or null if all messages have been returned
+     */
+    @Nullable List<ImapMessage> next(int max) throws MessagingException;
+
+    /**
+     * @return the UIDVALIDITY of the folder, or -1 if not known
+     */
+    long getUidValidity() throws MessagingException;
+
+    /**
+     * @return the highest UID which has been searched, once all messages have been
+     *         returned, or -1 if the messages were not searched by UID
+     */
+    long getLastUid() throws MessagingException;
+}
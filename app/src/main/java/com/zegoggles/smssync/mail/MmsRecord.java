@@ -0,0 +1,67 @@
+package com.zegoggles.smssync.mail;
+
+import android.database.Cursor;
+import android.provider.Telephony;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+public class MmsRecord extends MessageRecord {
+    static final String MSG_BOX = "msg_box";
+
+    public final @Nullable String messageType;
+    public final @Nullable String threadId;
+    public final @Nullable String read;
+    public final int messageBox;
+
+    /**
+     * @param date the date in seconds
+     */
+    public MmsRecord(long id,
+                     long date,
+                     @Nullable String messageType,
+                     @Nullable String threadId,
+                     @Nullable String read,
+                     int messageBox) {
+        super(DataType.MMS, id, date);
+        this.messageType = messageType;
+        this.threadId = threadId;
+        this.read = read;
+        this.messageBox = messageBox;
+    }
+
+    @Override public boolean isRead() {
+        return "1".equals(read);
+    }
+
+    @Override public String toString() {
+        return "MmsRecord{id=" + id + ", type=" + messageType + ", date=" + date + ", msg_box=" + messageBox + '}';
+    }
+
+    static class Reader extends MessageRecord.Reader {
+        private final int id, date, messageType, threadId, read, messageBox;
+
+        Reader(Cursor cursor) {
+            super(cursor);
+            id = cursor.getColumnIndex(Telephony.BaseMmsColumns._ID);
+            date = cursor.getColumnIndex(Telephony.BaseMmsColumns.DATE);
+            messageType = cursor.getColumnIndex(Telephony.BaseMmsColumns.MESSAGE_TYPE);
+            threadId = cursor.getColumnIndex(Telephony.BaseMmsColumns.THREAD_ID);
+            read = cursor.getColumnIndex(Telephony.BaseMmsColumns.READ);
+            messageBox = cursor.getColumnIndex(MSG_BOX);
+        }
+
+        @Override @NonNull MmsRecord read() {
+            return new MmsRecord(
+                getLong(id),
+                getLong(date),
+                getString(messageType),
+                getString(threadId),
+                getString(read),
+                getInt(messageBox));
+        }
+
+        @Override DataType getType() {
+            return DataType.MMS;
+        }
+    }
+}
@@ -2,8 +2,10 @@ package com.zegoggles.smssync.mail;
 
 import android.content.ContentResolver;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
 import com.fsck.k9.mail.Address;
@@ -17,21 +19,49 @@ import com.zegoggles.smssync.preferences.AddressStyle;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 import static com.zegoggles.smssync.App.LOCAL_LOGV;
 import static com.zegoggles.smssync.App.TAG;
 import static com.zegoggles.smssync.Consts.MMS_PART;
 
 class MmsSupport {
+    private static final String ADDR = "addr";
+    private static final String ADDR_MSG_ID = "msg_id";
+    private static final String ADDR_ADDRESS = "address";
+    private static final String PART_MSG_ID = "mid";
+    private static final String[] PART_PROJECTION = { "_id", PART_MSG_ID, "ct", "cl", "text" };
 
     private final PersonLookup personLookup;
     private final ContentResolver resolver;
+    private final @Nullable BodySpool spool;
+
+    // rows preloaded for the last two pages, by message id: the next page is preloaded
+    // before the last row of the current one has been converted
+    private Map<Long, List<String>> preloadedAddresses = new HashMap<Long, List<String>>();
+    private Map<Long, List<Part>> preloadedParts = new HashMap<Long, List<Part>>();
+    private Map<Long, List<String>> previousAddresses = new HashMap<Long, List<String>>();
+    private Map<Long, List<Part>> previousParts = new HashMap<Long, List<Part>>();
+    // not all versions of the MMS provider support querying addresses of multiple messages
+    private boolean batchAddressesSupported = true;
 
     MmsSupport(ContentResolver resolver, PersonLookup personLookup) {
+        this(resolver, personLookup, null);
+    }
+
+    /**
+     * @param spool used for the attachments, optional
+     */
+    MmsSupport(ContentResolver resolver, PersonLookup personLookup, @Nullable BodySpool spool) {
         this.resolver = resolver;
         this.personLookup = personLookup;
+        this.spool = spool;
     }
 
     static class MmsDetails {
@@ -84,23 +114,113 @@ class MmsSupport {
         }
     }
 
-    public MmsDetails getDetails(Uri mmsUri, AddressStyle style) {
+    /**
+     * A row of the MMS part table, without the content.
+     */
+    private static class Part {
+        final String id, contentType, fileName, text;
+
+        Part(Cursor cursor) {
+            id = cursor.getString(cursor.getColumnIndex("_id"));
+            contentType = cursor.getString(cursor.getColumnIndex("ct"));
+            fileName = cursor.getString(cursor.getColumnIndex("cl"));
+            text = cursor.getString(cursor.getColumnIndex("text"));
+        }
+    }
+
+    /**
+     * Loads the addresses and parts of the given messages with a query per table, instead
+     * of two queries per message in {@link #getDetails(long, AddressStyle)} and
+     * {@link #getMMSBodyParts(long)}. The rows of the previous call are kept as well, rows
+     * loaded before that are dropped.
+     *
+     * @return the addresses of all messages
+     */
+    public @NonNull Set<String> preload(Collection<Long> ids) {
+        final Map<Long, List<String>> oldAddresses = previousAddresses;
+        final Map<Long, List<Part>> oldParts = previousParts;
+        previousAddresses = preloadedAddresses;
+        previousParts = preloadedParts;
+        oldAddresses.clear();
+        oldParts.clear();
+        preloadedAddresses = oldAddresses;
+        preloadedParts = oldParts;
+        final Set<String> addresses = new LinkedHashSet<String>();
+        if (ids.isEmpty()) return addresses;
+
+        final String selection = " IN (" + TextUtils.join(",", ids) + ")";
+        if (batchAddressesSupported) {
+            final Cursor cursor = queryAll(Uri.withAppendedPath(Consts.MMS_PROVIDER, ADDR),
+                    new String[] { ADDR_MSG_ID, ADDR_ADDRESS }, ADDR_MSG_ID + selection, ADDR_MSG_ID + ", _id");
+            if (cursor != null) {
+                for (Long id : ids) {
+                    preloadedAddresses.put(id, new ArrayList<String>(2));
+                }
+                try {
+                    while (cursor.moveToNext()) {
+                        final String address = cursor.getString(1);
+                        final List<String> messageAddresses = preloadedAddresses.get(cursor.getLong(0));
+                        if (messageAddresses != null) {
+                            messageAddresses.add(address);
+                        }
+                        if (!TextUtils.isEmpty(address) && !MmsConsts.INSERT_ADDRESS_TOKEN.equals(address)) {
+                            addresses.add(address);
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+            } else {
+                Log.w(TAG, "could not query addresses of multiple messages, loading them separately");
+                batchAddressesSupported = false;
+            }
+        }
+
+        final Cursor cursor = queryAll(Uri.withAppendedPath(Consts.MMS_PROVIDER, MMS_PART),
+                PART_PROJECTION, PART_MSG_ID + selection, PART_MSG_ID + ", _id");
+        if (cursor != null) {
+            for (Long id : ids) {
+                preloadedParts.put(id, new ArrayList<Part>(2));
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    final List<Part> parts = preloadedParts.get(cursor.getLong(cursor.getColumnIndex(PART_MSG_ID)));
+                    if (parts != null) {
+                        parts.add(new Part(cursor));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        if (LOCAL_LOGV) {
+            Log.v(TAG, String.format(Locale.ENGLISH, "preloaded %d message(s): addresses=%s, parts=%s",
+                    ids.size(), !preloadedAddresses.isEmpty(), !preloadedParts.isEmpty()));
+        }
+        return addresses;
+    }
 
-        Cursor cursor = resolver.query(Uri.withAppendedPath(mmsUri, "addr"), null, null, null, null);
+    public MmsDetails getDetails(long mmsId, AddressStyle style) {
+        List<String> rows = getPreloaded(preloadedAddresses, previousAddresses, mmsId);
+        if (rows == null) {
+            rows = new ArrayList<String>();
+            Cursor cursor = resolver.query(Uri.withAppendedPath(getMmsUri(mmsId), ADDR), null, null, null, null);
+            while (cursor != null && cursor.moveToNext()) {
+                rows.add(cursor.getString(cursor.getColumnIndex(ADDR_ADDRESS)));
+            }
+            if (cursor != null) cursor.close();
+        }
 
         // TODO: this is probably not the best way to determine if a message is inbound or outbound
         boolean inbound = true;
         final List<String> recipients = new ArrayList<String>();
-        while (cursor != null && cursor.moveToNext()) {
-            final String address = cursor.getString(cursor.getColumnIndex("address"));
-            //final int type       = addresses.getInt(addresses.getColumnIndex("type"));
+        for (String address : rows) {
             if (MmsConsts.INSERT_ADDRESS_TOKEN.equals(address)) {
                 inbound = false;
             } else {
                 recipients.add(address);
             }
         }
-        if (cursor != null) cursor.close();
 
         List<PersonRecord> records = new ArrayList<PersonRecord>(recipients.size());
         List<Address> addresses = new ArrayList<Address>(recipients.size());
@@ -114,36 +234,62 @@ class MmsSupport {
         return new MmsDetails(inbound, recipients, records, addresses);
     }
 
-    public List<BodyPart> getMMSBodyParts(final Uri uriPart) throws MessagingException {
-        final List<BodyPart> parts = new ArrayList<BodyPart>();
-        Cursor curPart = resolver.query(uriPart, null, null, null, null);
+    public List<BodyPart> getMMSBodyParts(final long mmsId) throws MessagingException {
+        List<Part> rows = getPreloaded(preloadedParts, previousParts, mmsId);
+        if (rows == null) {
+            rows = new ArrayList<Part>();
+            Cursor curPart = resolver.query(Uri.withAppendedPath(getMmsUri(mmsId), MMS_PART), null, null, null, null);
 
-        // _id, mid, seq, ct, name, chset, cd, fn, cid, cl, ctt_s, ctt_t, _data, text
-        while (curPart != null && curPart.moveToNext()) {
-            final String id = curPart.getString(curPart.getColumnIndex("_id"));
-            final String contentType = curPart.getString(curPart.getColumnIndex("ct"));
-            final String fileName = curPart.getString(curPart.getColumnIndex("cl"));
-            final String text = curPart.getString(curPart.getColumnIndex("text"));
+            // _id, mid, seq, ct, name, chset, cd, fn, cid, cl, ctt_s, ctt_t, _data, text
+            while (curPart != null && curPart.moveToNext()) {
+                rows.add(new Part(curPart));
+            }
+            if (curPart != null) curPart.close();
+        }
 
+        final List<BodyPart> parts = new ArrayList<BodyPart>(rows.size());
+        for (Part part : rows) {
+            final String contentType = part.contentType;
             if (LOCAL_LOGV) {
-                Log.v(TAG, String.format(Locale.ENGLISH, "processing part %s, name=%s (%s)", id,
-                        fileName, contentType));
+                Log.v(TAG, String.format(Locale.ENGLISH, "processing part %s, name=%s (%s)", part.id,
+                        part.fileName, contentType));
             }
 
-            if (!TextUtils.isEmpty(contentType) && contentType.startsWith("text/") && !TextUtils.isEmpty(text)) {
+            if (!TextUtils.isEmpty(contentType) && contentType.startsWith("text/") && !TextUtils.isEmpty(part.text)) {
                 // text
-                parts.add(new MimeBodyPart(new TextBody(text), contentType));
+                parts.add(new MimeBodyPart(new TextBody(part.text), contentType));
             } else //noinspection StatementWithEmptyBody
                 if ("application/smil".equalsIgnoreCase(contentType)) {
                     // silently ignore SMIL stuff
                 } else {
                     // attach everything else
-                    final Uri partUri = Uri.withAppendedPath(Consts.MMS_PROVIDER, MMS_PART + "/" + id);
-                    parts.add(Attachment.createPartFromUri(resolver, partUri, fileName, contentType));
+                    final Uri partUri = Uri.withAppendedPath(Consts.MMS_PROVIDER, MMS_PART + "/" + part.id);
+                    parts.add(spool != null ?
+                        Attachment.createSpooledPartFromUri(spool, resolver, partUri, part.fileName, contentType) :
+                        Attachment.createPartFromUri(resolver, partUri, part.fileName, contentType));
                 }
         }
-
-        if (curPart != null) curPart.close();
         return parts;
     }
+
+    private static @Nullable <T> List<T> getPreloaded(Map<Long, List<T>> current, Map<Long, List<T>> previous, long mmsId) {
+        final List<T> rows = current.get(mmsId);
+        return rows != null ? rows : previous.get(mmsId);
+    }
+
+    private @Nullable Cursor queryAll(Uri uri, String[] projection, String selection, String sortOrder) {
+        try {
+            return resolver.query(uri, projection, selection, null, sortOrder);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "error querying " + uri, e);
+            return null;
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error querying " + uri, e);
+            return null;
+        }
+    }
+
+    private static Uri getMmsUri(long mmsId) {
+        return Uri.withAppendedPath(Consts.MMS_PROVIDER, String.valueOf(mmsId));
+    }
 }
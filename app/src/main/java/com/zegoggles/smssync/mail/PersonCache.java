@@ -0,0 +1,264 @@
+package com.zegoggles.smssync.mail;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.ContactsContract;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Keeps the results of {@link PersonLookup} across backups, so that the addresses of
+ * frequent correspondents don't need to be looked up again every time.
+ * <p>
+ * Entries are invalidated using the change tracking of the contacts provider (API 18+):
+ * addresses of contacts which were changed or deleted since the last sync are removed, as
+ * well as all addresses without contact, since a new contact might match them now.
+ * Addresses without contact also expire after {@link PersonLookup#UNKNOWN_TTL}, like in
+ * the lookup's own cache.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class PersonCache extends SQLiteOpenHelper {
+    private static final String DATABASE_NAME = "person_cache.db";
+    private static final int DATABASE_VERSION = 1;
+
+    static final int MAX_ENTRIES = 5000;
+    private static final int MAX_ARGS = 500;
+
+    private static final String PERSONS = "persons";
+    private static final String ADDRESS = "address";
+    private static final String CONTACT_ID = "contact_id";
+    private static final String NAME = "name";
+    private static final String EMAIL = "email";
+    private static final String CACHED = "cached";
+
+    private static final String META = "meta";
+    private static final String KEY = "key";
+    private static final String VALUE = "value";
+    private static final String LAST_SYNC = "last_sync";
+
+    private static PersonCache instance;
+
+    /**
+     * @return the cache, or null if the contacts provider does not support change tracking
+     */
+    public static synchronized @Nullable PersonCache get(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            return null;
+        }
+        if (instance == null) {
+            instance = new PersonCache(context.getApplicationContext(), DATABASE_NAME);
+        }
+        return instance;
+    }
+
+    /**
+     * @param name the name of the database, or null for an in-memory database
+     */
+    PersonCache(Context context, @Nullable String name) {
+        super(context, name, null, DATABASE_VERSION);
+    }
+
+    @Override public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + PERSONS + " (" +
+                ADDRESS + " TEXT PRIMARY KEY, " +
+                CONTACT_ID + " INTEGER NOT NULL, " +
+                NAME + " TEXT, " +
+                EMAIL + " TEXT, " +
+                CACHED + " INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX " + PERSONS + "_" + CONTACT_ID + " ON " + PERSONS + " (" + CONTACT_ID + ")");
+        db.execSQL("CREATE TABLE " + META + " (" + KEY + " TEXT PRIMARY KEY, " + VALUE + " INTEGER)");
+    }
+
+    @Override public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // it's only a cache
+        db.execSQL("DROP TABLE IF EXISTS " + PERSONS);
+        db.execSQL("DROP TABLE IF EXISTS " + META);
+        onCreate(db);
+    }
+
+    /**
+     * Removes all entries which might have become stale since the last call.
+     */
+    public synchronized void sync(ContentResolver resolver) {
+        final long now = System.currentTimeMillis();
+        try {
+            final SQLiteDatabase db = getWritableDatabase();
+            final long lastSync = getLastSync(db);
+            if (lastSync > 0 && now - lastSync < ContactsContract.DeletedContacts.DAYS_KEPT_MILLISECONDS) {
+                final Set<Long> changed = new HashSet<Long>();
+                changed.addAll(getContactIds(resolver, ContactsContract.Contacts.CONTENT_URI,
+                        ContactsContract.Contacts._ID,
+                        ContactsContract.Contacts.CONTACT_LAST_UPDATED_TIMESTAMP, lastSync));
+                changed.addAll(getContactIds(resolver, ContactsContract.DeletedContacts.CONTENT_URI,
+                        ContactsContract.DeletedContacts.CONTACT_ID,
+                        ContactsContract.DeletedContacts.CONTACT_DELETED_TIMESTAMP, lastSync));
+                if (!changed.isEmpty()) {
+                    invalidate(db, changed);
+                }
+            } else {
+                // deleted contacts are only tracked for a limited time
+                db.delete(PERSONS, null, null);
+            }
+            setLastSync(db, now);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error syncing person cache", e);
+        }
+    }
+
+    /**
+     * @return the cached records of the given addresses, if any, without unknown
+     *         addresses cached longer than {@link PersonLookup#UNKNOWN_TTL} ago
+     */
+    synchronized @NonNull Map<String, PersonRecord> get(Collection<String> addresses) {
+        final Map<String, PersonRecord> records = new HashMap<String, PersonRecord>();
+        final List<String> batch = new ArrayList<String>();
+        final long unknownSince = System.currentTimeMillis() - PersonLookup.UNKNOWN_TTL;
+        try {
+            final SQLiteDatabase db = getReadableDatabase();
+            for (String address : addresses) {
+                batch.add(address);
+                if (batch.size() == MAX_ARGS) {
+                    query(db, batch, unknownSince, records);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                query(db, batch, unknownSince, records);
+            }
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error reading person cache", e);
+        }
+        return records;
+    }
+
+    /**
+     * Stores the given records, keyed by the address they were looked up with.
+     */
+    synchronized void put(Map<String, PersonRecord> records) {
+        if (records.isEmpty()) return;
+        try {
+            final SQLiteDatabase db = getWritableDatabase();
+            final long now = System.currentTimeMillis();
+            final ContentValues values = new ContentValues();
+            db.beginTransaction();
+            try {
+                for (Map.Entry<String, PersonRecord> entry : records.entrySet()) {
+                    values.put(ADDRESS, entry.getKey());
+                    values.put(CONTACT_ID, Math.max(0, entry.getValue().getContactId()));
+                    values.put(NAME, entry.getValue().getContactName());
+                    values.put(EMAIL, entry.getValue().getContactEmail());
+                    values.put(CACHED, now);
+                    db.insertWithOnConflict(PERSONS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            trim(db);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error writing person cache", e);
+        }
+    }
+
+    private void query(SQLiteDatabase db, List<String> addresses, long unknownSince,
+                       Map<String, PersonRecord> records) {
+        final String[] args = addresses.toArray(new String[addresses.size() + 1]);
+        args[addresses.size()] = String.valueOf(unknownSince);
+        final Cursor c = db.query(PERSONS,
+                new String[] { ADDRESS, CONTACT_ID, NAME, EMAIL },
+                ADDRESS + " IN (" + placeholders(addresses.size()) + ") AND " +
+                        "(" + CONTACT_ID + " != 0 OR " + CACHED + " > ?)",
+                args,
+                null, null, null);
+        try {
+            while (c.moveToNext()) {
+                final String address = c.getString(0);
+                records.put(address, new PersonRecord(c.getLong(1), c.getString(2), c.getString(3), address));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private void invalidate(SQLiteDatabase db, Set<Long> contactIds) {
+        if (LOCAL_LOGV) Log.v(TAG, "invalidating cached persons of " + contactIds.size() + " contact(s)");
+        db.beginTransaction();
+        try {
+            // a changed contact might match any of the unknown addresses now
+            db.delete(PERSONS, CONTACT_ID + " = 0", null);
+            db.delete(PERSONS, CONTACT_ID + " IN (" + TextUtils.join(",", contactIds) + ")", null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private void trim(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + PERSONS + " WHERE " + ADDRESS + " NOT IN (" +
+                "SELECT " + ADDRESS + " FROM " + PERSONS + " ORDER BY " + CACHED + " DESC LIMIT " + MAX_ENTRIES + ")");
+    }
+
+    private static Set<Long> getContactIds(ContentResolver resolver, Uri uri, String idColumn,
+                                           String timestampColumn, long since) {
+        final Set<Long> ids = new HashSet<Long>();
+        final Cursor c = resolver.query(uri, new String[] { idColumn },
+                timestampColumn + " > ?", new String[] { String.valueOf(since) }, null);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    ids.add(c.getLong(0));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return ids;
+    }
+
+    private static long getLastSync(SQLiteDatabase db) {
+        final Cursor c = db.query(META, new String[] { VALUE }, KEY + " = ?", new String[] { LAST_SYNC },
+                null, null, null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    private static void setLastSync(SQLiteDatabase db, long time) {
+        final ContentValues values = new ContentValues();
+        values.put(KEY, LAST_SYNC);
+        values.put(VALUE, time);
+        db.insertWithOnConflict(META, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    private static String placeholders(int count) {
+        final StringBuilder sb = new StringBuilder(count * 2);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) sb.append(',');
+            sb.append('?');
+        }
+        return sb.toString();
+    }
+}
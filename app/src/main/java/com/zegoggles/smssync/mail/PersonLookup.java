@@ -6,13 +6,26 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 import static com.zegoggles.smssync.App.LOCAL_LOGV;
 import static com.zegoggles.smssync.App.TAG;
@@ -26,32 +39,50 @@ public class PersonLookup {
 
 
     private static final int MAX_PEOPLE_CACHE_SIZE = 500;
+    private static final int MAX_UNKNOWN_CACHE_SIZE = 2000;
+    // how long unknown addresses are remembered
+    static final long UNKNOWN_TTL = 60 * 60 * 1000L;
 
-    // simple LRU cache
-    private final Map<String, PersonRecord> mPeopleCache =
-            new LinkedHashMap<String, PersonRecord>(MAX_PEOPLE_CACHE_SIZE + 1, .75F, true) {
-                @Override
-                public boolean removeEldestEntry(Map.Entry<String, PersonRecord> eldest) {
-                    return size() > MAX_PEOPLE_CACHE_SIZE;
-                }
-            };
+    // number of addresses resolved per query in preload()
+    static final int PRELOAD_BATCH_SIZE = 50;
+    // number of trailing digits used to find candidate numbers, like PhoneNumberUtils' "min match"
+    private static final int MIN_MATCH = 7;
+
+    private final NumberCache mPeopleCache = new NumberCache(MAX_PEOPLE_CACHE_SIZE);
+    private final NumberCache mUnknownCache = new NumberCache(MAX_UNKNOWN_CACHE_SIZE);
+    private int mLookups, mHits, mUnknownHits, mMisses;
 
     private final ContentResolver mResolver;
+    private final @Nullable PersonCache mPersonCache;
+    private boolean mPersonCacheSynced;
 
     public PersonLookup(ContentResolver resolver) {
+        this(resolver, null);
+    }
+
+    /**
+     * @param personCache keeps the looked up records across instances, optional
+     */
+    public PersonLookup(ContentResolver resolver, @Nullable PersonCache personCache) {
         mResolver = resolver;
+        mPersonCache = personCache;
     }
 
     /* Look up a person */
     @SuppressWarnings("deprecation")
-    public @NonNull PersonRecord lookupPerson(final String address) {
+    public synchronized @NonNull PersonRecord lookupPerson(final String address) {
         if (TextUtils.isEmpty(address)) {
             return new PersonRecord(0, null, null, "-1");
-        } else if (!mPeopleCache.containsKey(address)) {
+        }
+        mLookups++;
+        PersonRecord record = getCached(address);
+        if (record == null && loadFromPersonCache(Collections.singleton(address))) {
+            record = getCached(address);
+        }
+        if (record == null) {
             Uri personUri = Uri.withAppendedPath(ECLAIR_CONTENT_FILTER_URI, Uri.encode(address));
 
             Cursor c = mResolver.query(personUri, PHONE_PROJECTION, null, null, null);
-            final PersonRecord record;
             if (c != null && c.moveToFirst()) {
                 long id = c.getLong(c.getColumnIndex(PHONE_PROJECTION[0]));
 
@@ -66,11 +97,206 @@ public class PersonLookup {
                 if (LOCAL_LOGV) Log.v(TAG, "Looked up unknown address: " + address);
                 record = new PersonRecord(0, null, null, address);
             }
-            mPeopleCache.put(address, record);
+            mMisses++;
+            cache(address, record);
+            if (mPersonCache != null) {
+                mPersonCache.put(Collections.singletonMap(address, record));
+            }
 
             if (c != null) c.close();
+        } else if (record.isUnknown()) {
+            mUnknownHits++;
+        } else {
+            mHits++;
+        }
+        return record;
+    }
+
+    /**
+     * @return a summary of the lookups so far, for debugging
+     */
+    public synchronized String getStats() {
+        return String.format(Locale.ENGLISH,
+                "%d lookup(s), %d hit(s), %d unknown hit(s), %d miss(es), hit ratio %.1f%%",
+                mLookups, mHits, mUnknownHits, mMisses,
+                mLookups == 0 ? 0f : (mHits + mUnknownHits) * 100f / mLookups);
+    }
+
+    /**
+     * Resolves the given addresses with a few batched queries and caches the contacts found, so
+     * that subsequent {@link #lookupPerson(String)} calls for them do not need to query the provider.
+     * Candidates are found by the trailing digits of the normalized number and then compared
+     * with {@link PhoneNumberUtils#compare(String, String)}. Addresses which are not matched
+     * this way (no digits, too short, or no normalized number stored) are left for
+     * {@link #lookupPerson(String)}, which can still find them with a phone lookup.
+     * <p>
+     * Requires the normalized number column (Jelly Bean), does nothing on older versions.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    public synchronized void preload(final Collection<String> addresses) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) return;
+
+        final Set<String> pending = new LinkedHashSet<String>();
+        for (String address : addresses) {
+            if (pending.size() < MAX_PEOPLE_CACHE_SIZE &&
+                !TextUtils.isEmpty(address) &&
+                getCached(address) == null) {
+                pending.add(address);
+            }
+        }
+        loadFromPersonCache(pending);
+        for (Iterator<String> it = pending.iterator(); it.hasNext(); ) {
+            final String address = it.next();
+            if (getCached(address) != null || getMinMatch(address) == null) {
+                it.remove();
+            }
+        }
+        if (LOCAL_LOGV) Log.v(TAG, "preload: " + pending.size() + " of " + addresses.size() + " address(es)");
+        if (pending.isEmpty()) return;
+
+        final Map<String, Long> contactIds = new HashMap<String, Long>();
+        final Map<Long, String> names = new HashMap<Long, String>();
+        final List<String> batch = new ArrayList<String>(PRELOAD_BATCH_SIZE);
+        for (String address : pending) {
+            batch.add(address);
+            if (batch.size() == PRELOAD_BATCH_SIZE) {
+                resolvePhones(batch, contactIds, names);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            resolvePhones(batch, contactIds, names);
+        }
+
+        final Map<Long, String> emails = getPrimaryEmails(names.keySet());
+        final Map<String, PersonRecord> records = new HashMap<String, PersonRecord>(contactIds.size());
+        for (Map.Entry<String, Long> entry : contactIds.entrySet()) {
+            final long id = entry.getValue();
+            records.put(entry.getKey(), new PersonRecord(id, names.get(id), emails.get(id), entry.getKey()));
+        }
+        mMisses += records.size();
+        for (Map.Entry<String, PersonRecord> entry : records.entrySet()) {
+            cache(entry.getKey(), entry.getValue());
+        }
+        if (mPersonCache != null) {
+            mPersonCache.put(records);
+        }
+    }
+
+    /**
+     * @return the cached record of the address or an equivalent number, or null
+     */
+    private @Nullable PersonRecord getCached(String address) {
+        final long now = System.currentTimeMillis();
+        PersonRecord record = mPeopleCache.get(address, now);
+        if (record == null) {
+            record = mUnknownCache.get(address, now);
+        }
+        return record == null ? null : record.withNumber(address);
+    }
+
+    private void cache(String address, PersonRecord record) {
+        if (record.isUnknown()) {
+            mUnknownCache.put(address, record, System.currentTimeMillis() + UNKNOWN_TTL);
+        } else {
+            mPeopleCache.put(address, record, Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Copies the records of the given addresses from the person cache, if there is one.
+     * The person cache is synced with the contacts provider before its first use.
+     *
+     * @return true if all addresses were found
+     */
+    private boolean loadFromPersonCache(Collection<String> addresses) {
+        if (mPersonCache == null || addresses.isEmpty()) {
+            return false;
+        }
+        if (!mPersonCacheSynced) {
+            mPersonCache.sync(mResolver);
+            mPersonCacheSynced = true;
+        }
+        final Map<String, PersonRecord> records = mPersonCache.get(addresses);
+        for (Map.Entry<String, PersonRecord> entry : records.entrySet()) {
+            cache(entry.getKey(), entry.getValue());
+        }
+        return records.size() == addresses.size();
+    }
+
+    /**
+     * Finds the contacts of the given addresses, with a single query.
+     *
+     * @param contactIds receives the contact id of each matched address
+     * @param names receives the display name of each matched contact
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void resolvePhones(List<String> addresses, Map<String, Long> contactIds, Map<Long, String> names) {
+        final StringBuilder selection = new StringBuilder();
+        final List<String> args = new ArrayList<String>();
+        for (String address : addresses) {
+            if (selection.length() > 0) selection.append(" OR ");
+            selection.append(Phone.NORMALIZED_NUMBER).append(" LIKE ? OR ").append(Phone.NUMBER).append(" = ?");
+            args.add("%" + getMinMatch(address));
+            args.add(address);
+        }
+
+        final Cursor c = mResolver.query(Phone.CONTENT_URI,
+                new String[] { Phone.CONTACT_ID, Phone.DISPLAY_NAME, Phone.NUMBER },
+                selection.toString(),
+                args.toArray(new String[args.size()]),
+                null);
+        if (c == null) return;
+        try {
+            while (c.moveToNext()) {
+                final long id = c.getLong(0);
+                final String number = c.getString(2);
+                for (String address : addresses) {
+                    if (!contactIds.containsKey(address) &&
+                        (address.equals(number) || PhoneNumberUtils.compare(address, number))) {
+                        contactIds.put(address, id);
+                        names.put(id, c.getString(1));
+                    }
+                }
+            }
+        } finally {
+            c.close();
         }
-        return mPeopleCache.get(address);
+    }
+
+    /**
+     * @return the preferred email address of each contact, see {@link #getPrimaryEmail(long)}
+     */
+    @TargetApi(Build.VERSION_CODES.ECLAIR)
+    private Map<Long, String> getPrimaryEmails(Set<Long> ids) {
+        final Map<Long, String> emails = new HashMap<Long, String>();
+        if (ids.isEmpty()) return emails;
+
+        final Cursor c = mResolver.query(
+            ECLAIR_CONTENT_URI,
+                new String[]{ Email.CONTACT_ID, Email.DATA },
+                Email.CONTACT_ID + " IN (" + TextUtils.join(",", ids) + ")", null,
+                Email.CONTACT_ID + ", " + Email.IS_PRIMARY + " DESC");
+        if (c == null) return emails;
+        try {
+            final Set<Long> gmail = new HashSet<Long>();
+            while (c.moveToNext()) {
+                final long id = c.getLong(0);
+                final String email = c.getString(1);
+                if (gmail.contains(id)) {
+                    continue;
+                }
+                if (!emails.containsKey(id) || isGmailAddress(email)) {
+                    emails.put(id, email);
+                }
+                if (isGmailAddress(email)) {
+                    gmail.add(id);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return emails;
     }
 
     @TargetApi(Build.VERSION_CODES.ECLAIR)
@@ -106,6 +332,37 @@ public class PersonLookup {
         return primaryEmail;
     }
 
+    /**
+     * @return the last {@link #MIN_MATCH} digits of the address, or null if it has fewer digits
+     */
+    static @Nullable String getMinMatch(String address) {
+        final StringBuilder digits = new StringBuilder(MIN_MATCH);
+        for (int i = address.length() - 1; i >= 0 && digits.length() < MIN_MATCH; i--) {
+            final char c = address.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits.append(c);
+            }
+        }
+        return digits.length() == MIN_MATCH ? digits.reverse().toString() : null;
+    }
+
+    /**
+     * Removes the formatting from a phone number, e.g. <code>+1 (555) 010-0100</code> becomes
+     * <code>+15550100100</code>. Addresses containing letters are returned unchanged.
+     */
+    static String normalize(String address) {
+        final StringBuilder sb = new StringBuilder(address.length());
+        for (int i = 0; i < address.length(); i++) {
+            final char c = address.charAt(i);
+            if ((c >= '0' && c <= '9') || c == '*' || c == '#' || (c == '+' && sb.length() == 0)) {
+                sb.append(c);
+            } else if (Character.isLetter(c)) {
+                return address.trim();
+            }
+        }
+        return sb.length() > 0 ? sb.toString() : address.trim();
+    }
+
     // Returns whether the given e-mail address is a Gmail address or not.
     private static boolean isGmailAddress(String email) {
         return email != null &&
@@ -118,4 +375,84 @@ public class PersonLookup {
     private static String[] getPhoneProjection() {
         return new String[]{ContactsContract.Contacts._ID, ContactsContract.Contacts.DISPLAY_NAME};
     }
+
+    /**
+     * An LRU cache of records keyed by phone number. Numbers are normalized and compared
+     * with {@link PhoneNumberUtils#compare(String, String)}, so that different notations of the
+     * same number (with or without country code, formatting) share one entry.
+     */
+    static class NumberCache {
+        private final Map<String, List<Entry>> buckets;
+
+        private static class Entry {
+            final String number;
+            final PersonRecord record;
+            final long expires;
+
+            Entry(String number, PersonRecord record, long expires) {
+                this.number = number;
+                this.record = record;
+                this.expires = expires;
+            }
+        }
+
+        NumberCache(final int maxSize) {
+            buckets = new LinkedHashMap<String, List<Entry>>(maxSize + 1, .75F, true) {
+                @Override
+                public boolean removeEldestEntry(Map.Entry<String, List<Entry>> eldest) {
+                    return size() > maxSize;
+                }
+            };
+        }
+
+        @Nullable PersonRecord get(String address, long now) {
+            final String number = normalize(address);
+            final String minMatch = getMinMatchOfNumber(number);
+            final String key = minMatch != null ? minMatch : number;
+            final List<Entry> bucket = buckets.get(key);
+            if (bucket == null) return null;
+
+            for (Iterator<Entry> it = bucket.iterator(); it.hasNext(); ) {
+                final Entry entry = it.next();
+                if (entry.expires <= now) {
+                    it.remove();
+                } else if (entry.number.equals(number) ||
+                          (minMatch != null && PhoneNumberUtils.compare(entry.number, number))) {
+                    return entry.record;
+                }
+            }
+            if (bucket.isEmpty()) {
+                buckets.remove(key);
+            }
+            return null;
+        }
+
+        void put(String address, PersonRecord record, long expires) {
+            final String number = normalize(address);
+            final String minMatch = getMinMatchOfNumber(number);
+            final String key = minMatch != null ? minMatch : number;
+            List<Entry> bucket = buckets.get(key);
+            if (bucket == null) {
+                bucket = new ArrayList<Entry>(1);
+                buckets.put(key, bucket);
+            }
+            for (Iterator<Entry> it = bucket.iterator(); it.hasNext(); ) {
+                if (it.next().number.equals(number)) {
+                    it.remove();
+                }
+            }
+            bucket.add(new Entry(number, record, expires));
+        }
+
+        /**
+         * @return the trailing digits of a phone number, or null for short numbers and
+         *         alphanumeric addresses, which are only matched exactly
+         */
+        private static @Nullable String getMinMatchOfNumber(String normalized) {
+            for (int i = 0; i < normalized.length(); i++) {
+                if (Character.isLetter(normalized.charAt(i))) return null;
+            }
+            return getMinMatch(normalized);
+        }
+    }
 }
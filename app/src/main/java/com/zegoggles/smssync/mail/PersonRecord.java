@@ -1,5 +1,6 @@
 package com.zegoggles.smssync.mail;
 
+import android.support.annotation.NonNull;
 import android.text.TextUtils;
 import com.fsck.k9.mail.Address;
 import com.zegoggles.smssync.preferences.AddressStyle;
@@ -72,6 +73,27 @@ public class PersonRecord {
         return String.format(Locale.ENGLISH, "[name=%s email=%s id=%d]", getName(), email, _id);
     }
 
+    /**
+     * @return this record, or a copy of it if the number is different
+     */
+    PersonRecord withNumber(@NonNull String number) {
+        return sanitize(number).equals(this.number) ? this : new PersonRecord(_id, name, email, number);
+    }
+
+    /**
+     * @return the name of the contact, without fallback
+     */
+    String getContactName() {
+        return name;
+    }
+
+    /**
+     * @return the email address of the contact, without fallback
+     */
+    String getContactEmail() {
+        return email;
+    }
+
     private boolean isEmailUnknown() {
         return isUnknown() || TextUtils.isEmpty(email);
     }
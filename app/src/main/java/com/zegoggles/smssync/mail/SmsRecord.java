@@ -0,0 +1,83 @@
+package com.zegoggles.smssync.mail;
+
+import android.database.Cursor;
+import android.provider.Telephony;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+public class SmsRecord extends MessageRecord {
+    public final @Nullable String address;
+    public final @Nullable String body;
+    /** one of the Telephony.TextBasedSmsColumns.MESSAGE_TYPE_* constants */
+    public final int messageType;
+    public final @Nullable String threadId;
+    public final @Nullable String read;
+    public final @Nullable String status;
+    public final @Nullable String protocol;
+    public final @Nullable String serviceCenter;
+
+    public SmsRecord(long id,
+                     @Nullable String address,
+                     @Nullable String body,
+                     int messageType,
+                     long date,
+                     @Nullable String threadId,
+                     @Nullable String read,
+                     @Nullable String status,
+                     @Nullable String protocol,
+                     @Nullable String serviceCenter) {
+        super(DataType.SMS, id, date);
+        this.address = address;
+        this.body = body;
+        this.messageType = messageType;
+        this.threadId = threadId;
+        this.read = read;
+        this.status = status;
+        this.protocol = protocol;
+        this.serviceCenter = serviceCenter;
+    }
+
+    @Override public boolean isRead() {
+        return "1".equals(read);
+    }
+
+    @Override public String toString() {
+        return "SmsRecord{id=" + id + ", type=" + messageType + ", date=" + date + '}';
+    }
+
+    static class Reader extends MessageRecord.Reader {
+        private final int id, address, body, type, date, threadId, read, status, protocol, serviceCenter;
+
+        Reader(Cursor cursor) {
+            super(cursor);
+            id = cursor.getColumnIndex(Telephony.TextBasedSmsColumns._ID);
+            address = cursor.getColumnIndex(Telephony.TextBasedSmsColumns.ADDRESS);
+            body = cursor.getColumnIndex(Telephony.TextBasedSmsColumns.BODY);
+            type = cursor.getColumnIndex(Telephony.TextBasedSmsColumns.TYPE);
+            date = cursor.getColumnIndex(Telephony.TextBasedSmsColumns.DATE);
+            threadId = cursor.getColumnIndex(Telephony.TextBasedSmsColumns.THREAD_ID);
+            read = cursor.getColumnIndex(Telephony.TextBasedSmsColumns.READ);
+            status = cursor.getColumnIndex(Telephony.TextBasedSmsColumns.STATUS);
+            protocol = cursor.getColumnIndex(Telephony.TextBasedSmsColumns.PROTOCOL);
+            serviceCenter = cursor.getColumnIndex(Telephony.TextBasedSmsColumns.SERVICE_CENTER);
+        }
+
+        @Override @NonNull SmsRecord read() {
+            return new SmsRecord(
+                getLong(id),
+                getString(address),
+                getString(body),
+                getInt(type),
+                getLong(date),
+                getString(threadId),
+                getString(read),
+                getString(status),
+                getString(protocol),
+                getString(serviceCenter));
+        }
+
+        @Override DataType getType() {
+            return DataType.SMS;
+        }
+    }
+}
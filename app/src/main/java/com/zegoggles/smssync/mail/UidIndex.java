@@ -0,0 +1,179 @@
+package com.zegoggles.smssync.mail;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import com.fsck.k9.mail.Message;
+
+import java.util.List;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Maps backed up items (type and provider id) to the UIDs the server assigned to them, as
+ * reported by UIDPLUS (RFC 4315) when they were appended.
+ * <p>
+ * UIDs are only valid together with the UIDVALIDITY of their folder. When a folder reports
+ * a new UIDVALIDITY (e.g. because it was deleted and created again), all of its old entries
+ * are dropped.
+ */
+public class UidIndex extends SQLiteOpenHelper {
+    /**
+     * Returned if no UID is known.
+     */
+    public static final long UNKNOWN = -1;
+
+    private static final String DATABASE_NAME = "uid_index.db";
+    private static final int DATABASE_VERSION = 2;
+
+    private static final String UIDS = "uids";
+    private static final String TYPE = "type";
+    private static final String ID = "id";
+    private static final String DATE = "date";
+    private static final String FOLDER = "folder";
+    private static final String UID_VALIDITY = "uid_validity";
+    private static final String UID = "uid";
+
+    private static UidIndex instance;
+
+    public static synchronized UidIndex get(Context context) {
+        if (instance == null) {
+            instance = new UidIndex(context.getApplicationContext(), DATABASE_NAME);
+        }
+        return instance;
+    }
+
+    /**
+     * @param name the name of the database, or null for an in-memory database
+     */
+    UidIndex(Context context, @Nullable String name) {
+        super(context, name, null, DATABASE_VERSION);
+    }
+
+    @Override public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + UIDS + " (" +
+                TYPE + " TEXT NOT NULL, " +
+                ID + " INTEGER NOT NULL, " +
+                DATE + " INTEGER NOT NULL, " +
+                FOLDER + " TEXT NOT NULL, " +
+                UID_VALIDITY + " INTEGER NOT NULL, " +
+                UID + " INTEGER NOT NULL, " +
+                "PRIMARY KEY (" + TYPE + ", " + ID + "))");
+        db.execSQL("CREATE INDEX " + UIDS + "_" + FOLDER + " ON " + UIDS + " (" + FOLDER + ", " + UID + ")");
+    }
+
+    @Override public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS " + UIDS);
+        onCreate(db);
+    }
+
+    /**
+     * Stores the UIDs of appended messages, which the folder set as their {@link Message#getUid() uid}.
+     *
+     * @param folder the folder the messages were appended to
+     * @param uidValidity the UIDVALIDITY reported with the UIDs
+     * @param result the appended messages
+     */
+    public synchronized void put(@NonNull String folder, long uidValidity, @NonNull ConversionResult result) {
+        final List<Message> messages = result.getMessages();
+        final List<MessageRecord> records = result.getRecords();
+        try {
+            final SQLiteDatabase db = getWritableDatabase();
+            final ContentValues values = new ContentValues();
+            db.beginTransaction();
+            try {
+                db.delete(UIDS, FOLDER + " = ? AND " + UID_VALIDITY + " != ?",
+                        new String[] { folder, String.valueOf(uidValidity) });
+
+                for (int i = 0; i < messages.size(); i++) {
+                    final long uid = parseUid(messages.get(i).getUid());
+                    final MessageRecord record = records.get(i);
+                    if (uid == UNKNOWN || record.id == MessageRecord.UNKNOWN) continue;
+
+                    values.put(TYPE, record.type.name());
+                    values.put(ID, record.id);
+                    values.put(DATE, record.date);
+                    values.put(FOLDER, folder);
+                    values.put(UID_VALIDITY, uidValidity);
+                    values.put(UID, uid);
+                    db.insertWithOnConflict(UIDS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            if (LOCAL_LOGV) Log.v(TAG, "stored " + messages.size() + " uid(s) of " + folder);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error writing uid index", e);
+        }
+    }
+
+    /**
+     * @param date the date of the item, as the provider may reuse the ids of deleted items
+     * @return the UID of the given item, or {@link #UNKNOWN} if it is not known for the
+     *         given folder and UIDVALIDITY
+     */
+    public synchronized long getUid(@NonNull DataType type, long id, long date, @NonNull String folder, long uidValidity) {
+        try {
+            final Cursor c = getReadableDatabase().query(UIDS, new String[] { UID },
+                    TYPE + " = ? AND " + ID + " = ? AND " + DATE + " = ? AND " + FOLDER + " = ? AND " + UID_VALIDITY + " = ?",
+                    new String[] { type.name(), String.valueOf(id), String.valueOf(date), folder, String.valueOf(uidValidity) },
+                    null, null, null);
+            try {
+                return c.moveToFirst() ? c.getLong(0) : UNKNOWN;
+            } finally {
+                c.close();
+            }
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error reading uid index", e);
+            return UNKNOWN;
+        }
+    }
+
+    /**
+     * @return the highest known UID in the given folder, or {@link #UNKNOWN}
+     */
+    public synchronized long getMaxUid(@NonNull String folder, long uidValidity) {
+        try {
+            final Cursor c = getReadableDatabase().query(UIDS, new String[] { "MAX(" + UID + ")" },
+                    FOLDER + " = ? AND " + UID_VALIDITY + " = ?",
+                    new String[] { folder, String.valueOf(uidValidity) },
+                    null, null, null);
+            try {
+                return c.moveToFirst() && !c.isNull(0) ? c.getLong(0) : UNKNOWN;
+            } finally {
+                c.close();
+            }
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error reading uid index", e);
+            return UNKNOWN;
+        }
+    }
+
+    /**
+     * Removes all entries, e.g. when a different account is used.
+     */
+    public synchronized void clear() {
+        try {
+            getWritableDatabase().delete(UIDS, null, null);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error clearing uid index", e);
+        }
+    }
+
+    private static long parseUid(@Nullable String uid) {
+        if (uid == null) return UNKNOWN;
+        try {
+            return Long.parseLong(uid);
+        } catch (NumberFormatException e) {
+            return UNKNOWN;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.zegoggles.smssync.mail;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.store.imap.ImapMessage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Pages through a folder in UID ranges, searching one range at a time, so that only the
+ * UIDs of the current range are held in memory, regardless of the size of the folder.
+ * Messages are returned in ascending UID order.
+ * <p>
+ * Ranges start at {@link #MIN_SEARCH_WIDTH} UIDs and get wider in sparse parts of the folder,
+ * up to {@link #MAX_SEARCH_WIDTH}. If the UIDNEXT of the folder is not known the whole folder
+ * is searched at once.
+ * <p>
+ * An incremental restore only searches the UIDs after the last one seen by the previous
+ * restore, unless the UIDVALIDITY of the folder has changed in the meantime.
+ */
+class UidWindows implements MessageWindows {
+    static final int MIN_SEARCH_WIDTH = 1000;
+    static final int MAX_SEARCH_WIDTH = 10000;
+    private static final long[] EMPTY = new long[0];
+
+    interface Searcher {
+        /**
+         * @return the UIDNEXT of the folder, or -1 if not known
+         */
+        long getUidNext() throws MessagingException;
+
+        /**
+         * @return the UIDVALIDITY of the folder, or -1 if not known
+         */
+        long getUidValidity() throws MessagingException;
+
+        /**
+         * @param uids a UID set, like <code>1:1000</code>
+         * @return the UIDs of the matching messages in the set, in ascending order
+         */
+        @NonNull long[] search(String uids) throws MessagingException;
+
+        /**
+         * @param uids a UID set, like <code>1:*</code>
+         * @return the number of matching messages in the set, or -1 if it can't be
+         *         determined without a search
+         */
+        int count(String uids) throws MessagingException;
+
+        @NonNull ImapMessage getMessage(String uid) throws MessagingException;
+    }
+
+    private final BackupImapStore.BackupFolder folder;
+    private final Searcher searcher;
+    private final long expectedUidValidity;
+    private final long lastUid;
+    private Ranges ranges;
+    private int count = -1;
+    private boolean counted;
+    private long[] uids = EMPTY;
+    private int position;
+
+    UidWindows(@NonNull BackupImapStore.BackupFolder folder, @NonNull Searcher searcher) {
+        this(folder, searcher, -1, 0);
+    }
+
+    /**
+     * Only returns messages with a UID greater than <code>lastUid</code>, as long as the
+     * UIDVALIDITY of the folder is still <code>uidValidity</code>.
+     */
+    UidWindows(@NonNull BackupImapStore.BackupFolder folder, @NonNull Searcher searcher, long uidValidity, long lastUid) {
+        this.folder = folder;
+        this.searcher = searcher;
+        this.expectedUidValidity = uidValidity;
+        this.lastUid = lastUid;
+    }
+
+    @Override @NonNull public BackupImapStore.BackupFolder getFolder() {
+        return folder;
+    }
+
+    /**
+     * @return the number of matching messages, or -1 if the server can't count them
+     *         without returning all of them (no ESEARCH)
+     */
+    @Override public int count() throws MessagingException {
+        if (!counted) {
+            counted = true;
+            final Ranges counting = newRanges();
+            if (counting.uidNext < 0) {
+                count = searcher.count(counting.first + ":*");
+            } else if (counting.first < counting.uidNext) {
+                count = searcher.count(counting.first + ":" + (counting.uidNext - 1));
+            } else {
+                count = 0;
+            }
+        }
+        return count;
+    }
+
+    @Override @Nullable public List<ImapMessage> next(int max) throws MessagingException {
+        if (ranges == null) {
+            ranges = newRanges();
+        }
+        while (position == uids.length) {
+            final long[] range = ranges.next();
+            if (range == null) return null;
+            uids = range;
+            position = 0;
+        }
+        final int end = Math.min(uids.length, position + Math.max(1, max));
+        final List<ImapMessage> messages = new ArrayList<ImapMessage>(end - position);
+        for (; position < end; position++) {
+            messages.add(searcher.getMessage(String.valueOf(uids[position])));
+        }
+        return messages;
+    }
+
+    @Override public long getUidValidity() throws MessagingException {
+        return searcher.getUidValidity();
+    }
+
+    /**
+     * @return the highest UID up to which all matching messages have been returned,
+     *         or -1 if no messages have been returned yet
+     */
+    @Override public long getLastUid() {
+        if (ranges == null) {
+            return -1;
+        } else if (position < uids.length) {
+            return uids[position] - 1;
+        } else {
+            return ranges.searchedUpTo;
+        }
+    }
+
+    private Ranges newRanges() throws MessagingException {
+        long first = 1;
+        if (lastUid > 0) {
+            final long uidValidity = searcher.getUidValidity();
+            if (uidValidity != -1 && uidValidity == expectedUidValidity) {
+                first = lastUid + 1;
+            } else {
+                Log.i(TAG, "UIDVALIDITY changed (" + expectedUidValidity + " -> " + uidValidity + "), searching all messages");
+            }
+        }
+        return new Ranges(searcher, first, searcher.getUidNext());
+    }
+
+    private static class Ranges {
+        private final Searcher searcher;
+        private final long uidNext;
+        private long first;
+        private long searchedUpTo;
+        private int width = MIN_SEARCH_WIDTH;
+        private boolean done;
+
+        Ranges(Searcher searcher, long first, long uidNext) {
+            this.searcher = searcher;
+            this.first = first;
+            this.uidNext = uidNext;
+            this.searchedUpTo = first - 1;
+            if (LOCAL_LOGV) Log.v(TAG, "searching UIDs " + first + " to " + uidNext);
+        }
+
+        /**
+         * @return the UIDs found in the next range, or null if the whole folder has been searched
+         */
+        @Nullable long[] next() throws MessagingException {
+            if (done) return null;
+            if (uidNext < 0) {
+                Log.w(TAG, "UIDNEXT unknown, searching all messages");
+                done = true;
+                // n:* always includes the message with the highest UID, even if lower than n
+                final long[] found = atLeast(searcher.search(first + ":*"), first);
+                if (found.length > 0) {
+                    searchedUpTo = found[found.length - 1];
+                }
+                return found;
+            }
+            if (first >= uidNext) {
+                done = true;
+                return null;
+            }
+            final long last = Math.min(uidNext - 1, first + width - 1);
+            final long[] found = searcher.search(first + ":" + last);
+            if (LOCAL_LOGV) Log.v(TAG, "found " + found.length + " msgs in " + first + ":" + last);
+
+            first = last + 1;
+            searchedUpTo = last;
+            if (found.length < width / 2) {
+                width = Math.min(MAX_SEARCH_WIDTH, width * 2);
+            }
+            return found;
+        }
+
+        private static long[] atLeast(long[] uids, long first) {
+            int start = 0;
+            while (start < uids.length && uids[start] < first) start++;
+            return start == 0 ? uids : Arrays.copyOfRange(uids, start, uids.length);
+        }
+    }
+}
@@ -166,6 +166,13 @@ public class AuthPreferences {
         }
     }
 
+    /**
+     * @return the user and server messages are backed up to, without any credentials
+     */
+    public String getAccountId() {
+        return getUserEmail() + ' ' + serverPreferences.getServerAddress();
+    }
+
     public boolean isLoginInformationSet() {
         switch (getAuthMode()) {
             case PLAIN:
@@ -2,15 +2,18 @@ package com.zegoggles.smssync.preferences;
 
 import android.content.SharedPreferences;
 import android.os.Build;
+import android.support.annotation.Nullable;
 import com.zegoggles.smssync.mail.DataType;
 
 import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.Locale;
 
 import static com.zegoggles.smssync.mail.DataType.MMS;
 
 public class DataTypePreferences {
+    private static final String RESTORE_MARK_PREFIX = "restore_mark_";
     private final SharedPreferences sharedPreferences;
 
     DataTypePreferences(SharedPreferences sharedPreferences) {
@@ -75,11 +78,28 @@ public class DataTypePreferences {
             getMaxSyncedDate(DataType.MMS));
     }
 
+    /**
+     * @return how far the data type has been restored, or null if it has not been restored
+     *         completely yet
+     */
+    public @Nullable RestoreMark getRestoreMark(DataType dataType) {
+        return RestoreMark.parse(sharedPreferences.getString(restoreMarkKey(dataType), null));
+    }
+
+    public boolean setRestoreMark(DataType dataType, RestoreMark mark) {
+        return sharedPreferences.edit().putString(restoreMarkKey(dataType), mark.serialize()).commit();
+    }
+
     public void clearLastSyncData() {
         SharedPreferences.Editor editor = sharedPreferences.edit();
         for (DataType type : DataType.values()) {
             editor.remove(type.maxSyncedPreference);
+            editor.remove(restoreMarkKey(type));
         }
         editor.commit();
     }
+
+    private static String restoreMarkKey(DataType dataType) {
+        return RESTORE_MARK_PREFIX + dataType.name().toLowerCase(Locale.ENGLISH);
+    }
 }
@@ -23,6 +23,26 @@ class Defaults {
     public static final int MAX_ITEMS_PER_SYNC = -1;
     public static final int MAX_ITEMS_PER_RESTORE = -1;
     public static final boolean MARK_AS_READ_ON_RESTORE = true;
+    /**
+     * Default value for {@link Preferences.Keys#MAX_MESSAGES_PER_APPEND}.
+     */
+    public static final int MAX_MESSAGES_PER_APPEND = 50;
+    /**
+     * Default value for {@link Preferences.Keys#MAX_BYTES_PER_APPEND}.
+     */
+    public static final int MAX_BYTES_PER_APPEND = 1024 * 1024;
+    /**
+     * Default value for {@link Preferences.Keys#BACKUP_PIPELINE}.
+     */
+    public static final boolean BACKUP_PIPELINE = true;
+    /**
+     * Default value for {@link Preferences.Keys#IMAP_COMPRESSION}.
+     */
+    public static final boolean IMAP_COMPRESSION = true;
+    /**
+     * Default value for {@link Preferences.Keys#CONNECTION_PER_TYPE}.
+     */
+    public static final boolean CONNECTION_PER_TYPE = false;
 
     private Defaults() {}
 }
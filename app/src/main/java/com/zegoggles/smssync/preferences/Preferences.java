@@ -33,6 +33,7 @@ import static com.zegoggles.smssync.App.TAG;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.APP_LOG;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.APP_LOG_DEBUG;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.BACKUP_CONTACT_GROUP;
+import static com.zegoggles.smssync.preferences.Preferences.Keys.BACKUP_PIPELINE;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.CALLLOG_BACKUP_AFTER_CALL;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.CALLLOG_SYNC_CALENDAR;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.CALLLOG_SYNC_CALENDAR_ENABLED;
@@ -46,8 +47,12 @@ import static com.zegoggles.smssync.preferences.Preferences.Keys.MARK_AS_READ;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.MARK_AS_READ_ON_RESTORE;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.MARK_AS_READ_TYPES;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.MAX_ITEMS_PER_RESTORE;
+import static com.zegoggles.smssync.preferences.Preferences.Keys.IMAP_COMPRESSION;
+import static com.zegoggles.smssync.preferences.Preferences.Keys.MAX_BYTES_PER_APPEND;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.MAX_ITEMS_PER_SYNC;
+import static com.zegoggles.smssync.preferences.Preferences.Keys.MAX_MESSAGES_PER_APPEND;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.NOTIFICATIONS;
+import static com.zegoggles.smssync.preferences.Preferences.Keys.CONNECTION_PER_TYPE;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.REFERENCE_UID;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.REGULAR_TIMEOUT_SECONDS;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.RESTORE_STARRED_ONLY;
@@ -104,6 +109,11 @@ public class Preferences {
         SMS_DEFAULT_PACKAGE("sms_default_package"),
         SMS_DEFAULT_PACKAGE_CHANGE_SEEN("sms_default_package_change_seen"),
         USE_OLD_SCHEDULER("use_old_scheduler"),
+        MAX_MESSAGES_PER_APPEND("max_messages_per_append"),
+        MAX_BYTES_PER_APPEND("max_bytes_per_append"),
+        BACKUP_PIPELINE("backup_pipeline"),
+        IMAP_COMPRESSION("imap_compression"),
+        CONNECTION_PER_TYPE("connection_per_type"),
         ;
 
         public final String key;
@@ -174,6 +184,44 @@ public class Preferences {
         return getStringAsInt(MAX_ITEMS_PER_RESTORE, Defaults.MAX_ITEMS_PER_RESTORE);
     }
 
+    /**
+     * @return the maximum number of messages sent to the server with a single append,
+     * values &lt;= 1 disable batching
+     */
+    public int getMaxMessagesPerAppend() {
+        return getStringAsInt(MAX_MESSAGES_PER_APPEND, Defaults.MAX_MESSAGES_PER_APPEND);
+    }
+
+    /**
+     * @return the maximum size in bytes of a single append batch, values &lt;= 0 mean no limit
+     */
+    public int getMaxBytesPerAppend() {
+        return getStringAsInt(MAX_BYTES_PER_APPEND, Defaults.MAX_BYTES_PER_APPEND);
+    }
+
+    /**
+     * @return whether messages should be uploaded on a separate thread while the next ones
+     * are being converted
+     */
+    public boolean isBackupPipelineEnabled() {
+        return preferences.getBoolean(BACKUP_PIPELINE.key, Defaults.BACKUP_PIPELINE);
+    }
+
+    /**
+     * @return whether IMAP traffic should be compressed (COMPRESS=DEFLATE), if the server supports it
+     */
+    public boolean isImapCompressionEnabled() {
+        return preferences.getBoolean(IMAP_COMPRESSION.key, Defaults.IMAP_COMPRESSION);
+    }
+
+    /**
+     * @return whether each data type should be uploaded with its own connection. Messages
+     *         are still converted one type after the other, see BackupUploads.
+     */
+    public boolean isConnectionPerTypeEnabled() {
+        return preferences.getBoolean(CONNECTION_PER_TYPE.key, Defaults.CONNECTION_PER_TYPE);
+    }
+
     public boolean isWifiOnly() {
         return preferences.getBoolean(WIFI_ONLY.key, false);
     }
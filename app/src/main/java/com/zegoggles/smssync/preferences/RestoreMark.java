@@ -0,0 +1,62 @@
+package com.zegoggles.smssync.preferences;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * How far a data type has been restored from its folder: all messages up to
+ * {@link #lastUid} have been processed, as long as the folder still has the same
+ * UIDVALIDITY.
+ * <p>
+ * Also records how many rows the provider contained at the time, so that a restore onto a
+ * device where messages have since been deleted can search the whole folder again.
+ */
+public class RestoreMark {
+    private static final char SEPARATOR = ':';
+
+    public final long uidValidity;
+    public final long lastUid;
+    /** when the restore finished */
+    public final long time;
+    /** the number of rows in the provider dated up to {@link #time} */
+    public final int rows;
+    public final @NonNull String folder;
+
+    public RestoreMark(@NonNull String folder, long uidValidity, long lastUid, long time, int rows) {
+        this.folder = folder;
+        this.uidValidity = uidValidity;
+        this.lastUid = lastUid;
+        this.time = time;
+        this.rows = rows;
+    }
+
+    String serialize() {
+        return String.valueOf(uidValidity) + SEPARATOR + lastUid + SEPARATOR + time + SEPARATOR + rows + SEPARATOR + folder;
+    }
+
+    static @Nullable RestoreMark parse(@Nullable String value) {
+        if (value == null) return null;
+        // the folder comes last, it may contain the separator
+        final String[] parts = value.split(String.valueOf(SEPARATOR), 5);
+        if (parts.length != 5) return null;
+        try {
+            return new RestoreMark(parts[4],
+                Long.parseLong(parts[0]),
+                Long.parseLong(parts[1]),
+                Long.parseLong(parts[2]),
+                Integer.parseInt(parts[3]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override public String toString() {
+        return "RestoreMark{" +
+                "folder='" + folder + '\'' +
+                ", uidValidity=" + uidValidity +
+                ", lastUid=" + lastUid +
+                ", time=" + time +
+                ", rows=" + rows +
+                '}';
+    }
+}
@@ -0,0 +1,92 @@
+package com.zegoggles.smssync.service;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import com.fsck.k9.mail.Message;
+import com.zegoggles.smssync.mail.ConversionResult;
+import com.zegoggles.smssync.mail.DataType;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Accumulates converted messages per {@link DataType} so that they can be sent to the
+ * server with a single append instead of one round trip per message.
+ */
+class BackupBatches {
+    private final int maxMessages;
+    private final long maxBytes;
+    private final Map<DataType, Batch> pending = new EnumMap<DataType, Batch>(DataType.class);
+
+    /**
+     * Messages which get sent to the server together.
+     */
+    static class Batch extends ConversionResult {
+        private long bytes;
+
+        Batch(DataType type) {
+            super(type);
+        }
+
+        /**
+         * @return the size of all messages in this batch, or 0 if it has not been calculated
+         */
+        long getBytes() {
+            return bytes;
+        }
+    }
+
+    /**
+     * @param maxMessages max number of messages per batch, values &lt;= 1 disable batching
+     * @param maxBytes max size of a batch in bytes, values &lt;= 0 mean no limit
+     */
+    BackupBatches(int maxMessages, long maxBytes) {
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+    }
+
+    boolean isEnabled() {
+        return maxMessages > 1;
+    }
+
+    /**
+     * @param result the newly converted messages
+     * @return a batch which is ready to be sent, or null if more messages can be added
+     */
+    @Nullable Batch add(@NonNull ConversionResult result) {
+        Batch batch = pending.get(result.type);
+        if (batch == null) {
+            batch = new Batch(result.type);
+            pending.put(result.type, batch);
+        }
+        batch.addAll(result);
+        batch.bytes += getSize(result);
+
+        if (!isEnabled() || batch.size() >= maxMessages || (maxBytes > 0 && batch.bytes >= maxBytes)) {
+            return pending.remove(result.type);
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * @return all batches which have not been sent yet, leaving this instance empty.
+     */
+    @NonNull List<Batch> drain() {
+        List<Batch> batches = new ArrayList<Batch>(pending.values());
+        pending.clear();
+        return batches;
+    }
+
+    private long getSize(ConversionResult result) {
+        if (maxBytes <= 0) return 0;
+
+        long size = 0;
+        for (Message message : result.getMessages()) {
+            size += message.calculateSize();
+        }
+        return size;
+    }
+}
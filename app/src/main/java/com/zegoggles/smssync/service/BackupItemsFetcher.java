@@ -15,21 +15,62 @@ import static com.zegoggles.smssync.App.LOCAL_LOGV;
 import static com.zegoggles.smssync.App.TAG;
 
 public class BackupItemsFetcher {
+    static final int PAGE_SIZE = 500;
+
+    interface PageListener {
+        /**
+         * Called with every page of items, before any of its rows are returned.
+         */
+        void onPage(DataType dataType, Cursor page);
+    }
+
     private final ContentResolver resolver;
     private final BackupQueryBuilder queryBuilder;
+    private final int pageSize;
+    private final @Nullable PageListener pageListener;
 
     BackupItemsFetcher(@NonNull ContentResolver resolver,
                        @NonNull BackupQueryBuilder queryBuilder) {
+        this(resolver, queryBuilder, PAGE_SIZE, null);
+    }
+
+    BackupItemsFetcher(@NonNull ContentResolver resolver,
+                       @NonNull BackupQueryBuilder queryBuilder,
+                       int pageSize,
+                       @Nullable PageListener pageListener) {
         if (resolver == null) throw new IllegalArgumentException("resolver cannot be null");
         if (queryBuilder == null) throw new IllegalArgumentException("queryBuilder cannot be null");
 
         this.queryBuilder = queryBuilder;
         this.resolver = resolver;
+        this.pageSize = pageSize;
+        this.pageListener = pageListener;
     }
 
-    public @NonNull Cursor getItemsForDataType(DataType dataType, ContactGroupIds group, int max) {
+    /**
+     * @return a cursor which fetches the items in pages, its count is determined upfront
+     */
+    public @NonNull Cursor getItemsForDataType(final DataType dataType, ContactGroupIds group, int max) {
         if (LOCAL_LOGV) Log.v(TAG, "getItemsForDataType(type=" + dataType + ", max=" + max + ")");
-        return performQuery(queryBuilder.buildQueryForDataType(dataType, group, max));
+        final BackupQueryBuilder.Query query = queryBuilder.buildQueryForDataType(dataType, group, max);
+        if (query == null) return emptyCursor();
+
+        int count = getCount(query.count());
+        if (max > 0) {
+            count = Math.min(count, max);
+        }
+        if (LOCAL_LOGV) Log.v(TAG, "items to fetch: " + count);
+        if (count == 0) return emptyCursor();
+
+        return new PagedCursor(new PagedCursor.PageLoader() {
+            @Override public @NonNull Cursor loadPage(long afterDate, long afterId, int limit) {
+                final Cursor page = performQuery(query.page(afterDate, afterId, limit));
+                if (pageListener != null) {
+                    pageListener.onPage(dataType, page);
+                }
+                return page;
+            }
+        }, count, pageSize);
     }
 
     public long getMostRecentTimestamp(DataType dataType) {
@@ -49,6 +90,20 @@ public class BackupItemsFetcher {
         }
     }
 
+    private int getCount(@Nullable BackupQueryBuilder.Query countQuery) {
+        Cursor cursor = performQuery(countQuery);
+        try {
+            final int index = cursor.getColumnIndex(BackupQueryBuilder.Query.COUNT);
+            if (index == -1) {
+                return cursor.getCount();
+            } else {
+                return cursor.moveToFirst() ? cursor.getInt(index) : 0;
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
     @SuppressLint("Recycle")
     private @NonNull Cursor performQuery(@Nullable BackupQueryBuilder.Query query) {
         if (query == null) return emptyCursor();
@@ -62,14 +117,28 @@ public class BackupItemsFetcher {
             );
             return cursor == null ? emptyCursor() : cursor;
         } catch (SQLiteException e) {
+            if (query.fallback != null) {
+                return performFallbackQuery(query, e);
+            }
             Log.w(TAG, "error querying DB", e);
             return emptyCursor();
+        } catch (IllegalArgumentException e) {
+            // thrown by providers with a strict projection map for unknown columns
+            if (query.fallback != null) {
+                return performFallbackQuery(query, e);
+            }
+            throw e;
         } catch (NullPointerException e) {
             Log.w(TAG, "error querying DB", e);
             return emptyCursor();
         }
     }
 
+    private @NonNull Cursor performFallbackQuery(BackupQueryBuilder.Query query, Exception e) {
+        Log.w(TAG, "error querying DB, retrying with all columns", e);
+        return performQuery(query.fallback);
+    }
+
     static Cursor emptyCursor() {
         return new MatrixCursor(new String[]{});
     }
@@ -0,0 +1,191 @@
+package com.zegoggles.smssync.service;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+import com.zegoggles.smssync.mail.ConversionResult;
+import com.zegoggles.smssync.mail.DataType;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Append-only log of batches sent to the server. A batch is written before its upload
+ * starts, and marked as committed once the server has accepted it. If the process dies
+ * before the max synced date could be updated, the next backup {@link #replay() replays}
+ * the journal and continues after the committed batches, instead of uploading them again.
+ * <p>
+ * Each line is one entry, prefixed with its checksum so that a partially written last
+ * line is ignored:
+ * <pre>
+ * &lt;crc32&gt; B &lt;seq&gt; &lt;type&gt; &lt;maxDate&gt; &lt;messages&gt;
+ * &lt;crc32&gt; C &lt;seq&gt;
+ * </pre>
+ * Messages are picked by date, so the max date of a batch is all that's needed to skip it.
+ */
+class BackupJournal {
+    static final String FILE_NAME = "backup.journal";
+
+    private static final String BEGIN = "B";
+    private static final String COMMIT = "C";
+    private static final String UTF_8 = "UTF-8";
+
+    private final File file;
+    private long sequence;
+
+    BackupJournal(File directory) {
+        this.file = new File(directory, FILE_NAME);
+    }
+
+    /**
+     * A batch which was committed, but possibly not recorded in the max synced date.
+     */
+    static class Entry {
+        final DataType type;
+        final long maxDate;
+        final int messages;
+
+        Entry(DataType type, long maxDate, int messages) {
+            this.type = type;
+            this.maxDate = maxDate;
+            this.messages = messages;
+        }
+
+        @Override public String toString() {
+            return "Entry{type=" + type + ", maxDate=" + maxDate + ", messages=" + messages + '}';
+        }
+    }
+
+    /**
+     * Reads all entries of a previous run and clears the journal.
+     *
+     * @return the most recent committed batch per type
+     */
+    synchronized @NonNull Map<DataType, Entry> replay() {
+        final Map<Long, Entry> begun = new HashMap<Long, Entry>();
+        final Map<DataType, Entry> committed = new EnumMap<DataType, Entry>(DataType.class);
+        if (file.exists()) {
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final String[] fields = parse(line);
+                    if (fields == null) {
+                        Log.w(TAG, "ignoring invalid journal entry: " + line);
+                        continue;
+                    }
+                    if (BEGIN.equals(fields[0]) && fields.length >= 4) {
+                        final int messages = fields.length > 4 ? Integer.parseInt(fields[4]) : 0;
+                        begun.put(Long.valueOf(fields[1]),
+                                new Entry(DataType.valueOf(fields[2]), Long.parseLong(fields[3]), messages));
+                    } else if (COMMIT.equals(fields[0]) && fields.length >= 2) {
+                        final Entry entry = begun.remove(Long.valueOf(fields[1]));
+                        if (entry != null) {
+                            final Entry previous = committed.get(entry.type);
+                            if (previous == null || previous.maxDate < entry.maxDate) {
+                                committed.put(entry.type, entry);
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "error reading journal", e);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "error reading journal", e);
+            } finally {
+                close(reader);
+            }
+        }
+        if (LOCAL_LOGV) Log.v(TAG, "replayed journal, committed=" + committed + ", incomplete=" + begun.size());
+        clear();
+        return committed;
+    }
+
+    /**
+     * Records a batch before it gets sent.
+     *
+     * @return the sequence number to pass to {@link #commit(long)}
+     */
+    synchronized long begin(@NonNull ConversionResult batch) {
+        final long seq = ++sequence;
+        final StringBuilder sb = new StringBuilder()
+                .append(BEGIN).append(' ')
+                .append(seq).append(' ')
+                .append(batch.type.name()).append(' ')
+                .append(batch.getMaxDate()).append(' ')
+                .append(batch.size());
+        append(sb.toString());
+        return seq;
+    }
+
+    /**
+     * Records that the server has accepted the batch.
+     */
+    synchronized void commit(long seq) {
+        append(COMMIT + " " + seq);
+    }
+
+    /**
+     * Removes all entries, once they are covered by the max synced dates.
+     */
+    synchronized void clear() {
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "could not delete " + file);
+        }
+    }
+
+    private void append(String entry) {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file, true);
+            out.write((checksum(entry) + " " + entry + "\n").getBytes(UTF_8));
+            out.flush();
+            out.getFD().sync();
+        } catch (FileNotFoundException e) {
+            Log.w(TAG, "could not open journal", e);
+        } catch (IOException e) {
+            Log.w(TAG, "error writing journal", e);
+        } finally {
+            close(out);
+        }
+    }
+
+    private static String[] parse(String line) {
+        final int separator = line.indexOf(' ');
+        if (separator <= 0) return null;
+        final String entry = line.substring(separator + 1);
+        if (!line.substring(0, separator).equals(checksum(entry))) return null;
+        return entry.split(" ");
+    }
+
+    private static String checksum(String entry) {
+        final CRC32 crc = new CRC32();
+        try {
+            crc.update(entry.getBytes(UTF_8));
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        return Long.toHexString(crc.getValue());
+    }
+
+    private static void close(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
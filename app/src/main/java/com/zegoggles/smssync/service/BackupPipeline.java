@@ -0,0 +1,194 @@
+package com.zegoggles.smssync.service;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+import com.fsck.k9.mail.MessagingException;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Uploads batches on a separate thread so that converting the next messages overlaps
+ * with sending the previous ones to the server.
+ * <p>
+ * The hand-over queue is bounded both by the number of batches and by their size so that
+ * a slow network does not cause the whole backup to be buffered in memory. Batches are
+ * uploaded in the order they were submitted; once an upload fails the remaining batches
+ * are dropped and the failure is reported back to the submitting thread. Dropped batches
+ * are kept until {@link #drainDropped()}, so that their resources can be released.
+ */
+class BackupPipeline {
+    static final int MAX_QUEUED_BATCHES = 4;
+    static final long MAX_QUEUED_BYTES = 4 * 1024 * 1024;
+
+    interface Uploader {
+        /**
+         * Called on the upload thread for each batch, in submission order.
+         */
+        void upload(BackupBatches.Batch batch) throws MessagingException;
+    }
+
+    private final Uploader uploader;
+    private final int maxBatches;
+    private final long maxBytes;
+    private final LinkedList<BackupBatches.Batch> queue = new LinkedList<BackupBatches.Batch>();
+    private final List<BackupBatches.Batch> dropped = new ArrayList<BackupBatches.Batch>();
+    private final Thread worker;
+
+    private long queuedBytes;
+    private boolean finished;
+    private boolean canceled;
+    private MessagingException failure;
+
+    BackupPipeline(@NonNull Uploader uploader) {
+        this(uploader, MAX_QUEUED_BATCHES, MAX_QUEUED_BYTES);
+    }
+
+    /**
+     * @param maxBatches max number of batches waiting to be uploaded
+     * @param maxBytes max size of all batches waiting to be uploaded, values &lt;= 0 mean no limit
+     */
+    BackupPipeline(@NonNull Uploader uploader, int maxBatches, long maxBytes) {
+        this.uploader = uploader;
+        this.maxBatches = Math.max(1, maxBatches);
+        this.maxBytes = maxBytes;
+        this.worker = new Thread(new Runnable() {
+            @Override public void run() {
+                uploadBatches();
+            }
+        }, "BackupUpload");
+    }
+
+    void start() {
+        worker.start();
+    }
+
+    /**
+     * Queues a batch for upload, blocking while the queue is full. A batch larger than the
+     * byte limit is still accepted once the queue is empty.
+     *
+     * @throws MessagingException if a previous upload failed
+     * @throws InterruptedException if interrupted while waiting for space in the queue
+     */
+    synchronized void submit(@NonNull BackupBatches.Batch batch) throws MessagingException, InterruptedException {
+        while (failure == null && !canceled && isFull(batch)) {
+            wait();
+        }
+        if (failure != null || canceled) {
+            dropped.add(batch);
+        }
+        checkFailure();
+        if (canceled) return;
+
+        queue.add(batch);
+        queuedBytes += batch.getBytes();
+        notifyAll();
+    }
+
+    /**
+     * Signals that no more batches will be submitted and waits for the queued ones to be uploaded.
+     *
+     * @throws MessagingException if an upload failed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void finish() throws MessagingException, InterruptedException {
+        synchronized (this) {
+            finished = true;
+            notifyAll();
+        }
+        worker.join();
+        synchronized (this) {
+            checkFailure();
+        }
+    }
+
+    /**
+     * Drops all batches which have not been uploaded yet and waits for the current upload
+     * to complete, so that callers can safely close the store afterwards.
+     */
+    void cancel() {
+        synchronized (this) {
+            canceled = true;
+            dropped.addAll(queue);
+            queue.clear();
+            queuedBytes = 0;
+            notifyAll();
+        }
+        boolean interrupted = false;
+        while (worker.isAlive()) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the batches which were not uploaded because an upload failed or the pipeline
+     *         was canceled, including the failed one
+     */
+    synchronized @NonNull List<BackupBatches.Batch> drainDropped() {
+        final List<BackupBatches.Batch> batches = new ArrayList<BackupBatches.Batch>(dropped);
+        dropped.clear();
+        return batches;
+    }
+
+    private boolean isFull(BackupBatches.Batch batch) {
+        if (queue.isEmpty()) return false;
+        return queue.size() >= maxBatches || (maxBytes > 0 && queuedBytes + batch.getBytes() > maxBytes);
+    }
+
+    private void checkFailure() throws MessagingException {
+        if (failure != null) throw failure;
+    }
+
+    private void uploadBatches() {
+        BackupBatches.Batch batch;
+        while ((batch = take()) != null) {
+            try {
+                uploader.upload(batch);
+            } catch (MessagingException e) {
+                Log.w(TAG, "upload failed", e);
+                fail(batch, e);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "upload failed", e);
+                fail(batch, new MessagingException("upload failed", e));
+            }
+        }
+        if (LOCAL_LOGV) Log.v(TAG, "upload thread finished");
+    }
+
+    private synchronized BackupBatches.Batch take() {
+        while (queue.isEmpty() && !finished && !canceled && failure == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                canceled = true;
+            }
+        }
+        if (canceled || failure != null || queue.isEmpty()) {
+            return null;
+        }
+        BackupBatches.Batch batch = queue.removeFirst();
+        queuedBytes -= batch.getBytes();
+        notifyAll();
+        return batch;
+    }
+
+    private synchronized void fail(BackupBatches.Batch batch, MessagingException e) {
+        failure = e;
+        dropped.add(batch);
+        dropped.addAll(queue);
+        queue.clear();
+        queuedBytes = 0;
+        notifyAll();
+    }
+}
@@ -1,6 +1,7 @@
 package com.zegoggles.smssync.service;
 
 import android.net.Uri;
+import android.provider.BaseColumns;
 import android.provider.CallLog;
 import android.provider.Telephony;
 import android.support.annotation.Nullable;
@@ -33,6 +34,31 @@ class BackupQueryBuilder {
         CallLog.Calls.DATE,
         CallLog.Calls.TYPE
     };
+
+    // the columns read by SmsRecord / MmsRecord, everything else would just be copied
+    // across process boundaries and dropped
+    static final String[] SMS_PROJECTION = {
+        Telephony.TextBasedSmsColumns._ID,
+        Telephony.TextBasedSmsColumns.ADDRESS,
+        Telephony.TextBasedSmsColumns.BODY,
+        Telephony.TextBasedSmsColumns.TYPE,
+        Telephony.TextBasedSmsColumns.DATE,
+        Telephony.TextBasedSmsColumns.THREAD_ID,
+        Telephony.TextBasedSmsColumns.READ,
+        Telephony.TextBasedSmsColumns.STATUS,
+        Telephony.TextBasedSmsColumns.PROTOCOL,
+        Telephony.TextBasedSmsColumns.SERVICE_CENTER
+    };
+
+    static final String[] MMS_PROJECTION = {
+        Telephony.BaseMmsColumns._ID,
+        Telephony.BaseMmsColumns.DATE,
+        Telephony.BaseMmsColumns.MESSAGE_TYPE,
+        Telephony.BaseMmsColumns.THREAD_ID,
+        Telephony.BaseMmsColumns.READ,
+        Telephony.BaseMmsColumns.MESSAGE_BOX
+    };
+
     private final DataTypePreferences preferences;
 
     BackupQueryBuilder(DataTypePreferences preferences) {
@@ -40,24 +66,85 @@ class BackupQueryBuilder {
     }
 
     static class Query {
+        static final String COUNT = "count";
+        private static final String DATE = Telephony.TextBasedSmsColumns.DATE;
+
         final Uri      uri;
         final String[] projection;
         final String   selection;
         final String[] selectionArgs;
         final String   sortOrder;
+        /** query to use instead if the provider rejects this one */
+        final @Nullable Query fallback;
 
         Query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+            this(uri, projection, selection, selectionArgs, sortOrder, null);
+        }
+
+        private Query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder,
+                      @Nullable Query fallback) {
             this.uri = uri;
             this.projection = projection;
             this.selection = selection;
             this.selectionArgs = selectionArgs;
             this.sortOrder = sortOrder;
+            this.fallback = fallback;
         }
 
         Query(Uri uri, String[] projection, String selection, String[] selectionArgs, int max) {
             this(uri, projection, selection, selectionArgs,
                     max > 0 ? Telephony.TextBasedSmsColumns.DATE + " LIMIT "+max : Telephony.TextBasedSmsColumns.DATE);
         }
+
+        /**
+         * @return a query for the number of rows matched by this query, ignoring its limit.
+         *         The count is returned in the {@link #COUNT} column, or as the number of
+         *         rows if the provider does not support aggregate projections.
+         */
+        Query count() {
+            return new Query(uri, new String[] { "count(*) AS " + COUNT }, selection, selectionArgs, null,
+                    new Query(uri, new String[] { BaseColumns._ID }, selection, selectionArgs, null));
+        }
+
+        /**
+         * @param afterDate the date of the last row of the previous page, or {@link PagedCursor#NONE}
+         * @param afterId the id of the last row of the previous page, or {@link PagedCursor#NONE}
+         * @return a query for the next <code>limit</code> rows, ordered by date and id
+         */
+        Query page(long afterDate, long afterId, int limit) {
+            String pageSelection = selection;
+            String[] pageSelectionArgs = selectionArgs;
+            if (afterDate != PagedCursor.NONE && afterId != PagedCursor.NONE) {
+                pageSelection = String.format(Locale.ENGLISH, "%s(%s > ? OR (%s = ? AND %s > ?))",
+                        selection == null ? "" : "(" + selection + ") AND ",
+                        DATE, DATE, BaseColumns._ID);
+                final String[] keyset = {
+                        String.valueOf(afterDate),
+                        String.valueOf(afterDate),
+                        String.valueOf(afterId)
+                };
+                if (selectionArgs == null) {
+                    pageSelectionArgs = keyset;
+                } else {
+                    pageSelectionArgs = new String[selectionArgs.length + keyset.length];
+                    System.arraycopy(selectionArgs, 0, pageSelectionArgs, 0, selectionArgs.length);
+                    System.arraycopy(keyset, 0, pageSelectionArgs, selectionArgs.length, keyset.length);
+                }
+            }
+            return new Query(uri, projection, pageSelection, pageSelectionArgs,
+                    DATE + ", " + BaseColumns._ID + " LIMIT " + limit,
+                    fallback == null ? null : fallback.page(afterDate, afterId, limit));
+        }
+
+        /**
+         * @return this query with a fallback which asks for all columns, in case the provider
+         *         of some device does not know one of the projected columns
+         */
+        Query withAllColumnsFallback() {
+            if (projection == null) return this;
+            return new Query(uri, projection, selection, selectionArgs, sortOrder,
+                    new Query(uri, null, selection, selectionArgs, sortOrder));
+        }
     }
 
     public @Nullable Query buildQueryForDataType(DataType type, @Nullable ContactGroupIds groupIds, int max) {
@@ -99,7 +186,7 @@ class BackupQueryBuilder {
 
     private Query getQueryForSMS(@Nullable ContactGroupIds groupIds, int max) {
         return new Query(Consts.SMS_PROVIDER,
-            null,
+            SMS_PROJECTION,
             String.format(Locale.ENGLISH,
                 "%s > ? AND %s <> ? %s",
                     Telephony.TextBasedSmsColumns.DATE,
@@ -109,7 +196,7 @@ class BackupQueryBuilder {
                 String.valueOf(preferences.getMaxSyncedDate(SMS)),
                 String.valueOf(Telephony.TextBasedSmsColumns.MESSAGE_TYPE_DRAFT)
             },
-            max);
+            max).withAllColumnsFallback();
     }
 
     private Query getQueryForMMS(@Nullable ContactGroupIds group, int max) {
@@ -120,7 +207,7 @@ class BackupQueryBuilder {
         }
         return new Query(
             Consts.MMS_PROVIDER,
-            null,
+            MMS_PROJECTION,
             String.format(Locale.ENGLISH, "%s > ? AND %s <> ? %s",
                     Telephony.BaseMmsColumns.DATE,
                     Telephony.BaseMmsColumns.MESSAGE_TYPE,
@@ -129,7 +216,7 @@ class BackupQueryBuilder {
                 String.valueOf(maxSynced),
                 MmsConsts.DELIVERY_REPORT
             },
-            max);
+            max).withAllColumnsFallback();
     }
 
     private Query getQueryForCallLog(int max) {
@@ -1,8 +1,10 @@
 package com.zegoggles.smssync.service;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.os.AsyncTask;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 import com.fsck.k9.mail.AuthenticationFailedException;
 import com.fsck.k9.mail.Message;
@@ -18,18 +20,24 @@ import com.zegoggles.smssync.calendar.CalendarAccessor;
 import com.zegoggles.smssync.contacts.ContactAccessor;
 import com.zegoggles.smssync.contacts.ContactGroupIds;
 import com.zegoggles.smssync.mail.BackupImapStore;
+import com.zegoggles.smssync.mail.BodySpool;
 import com.zegoggles.smssync.mail.CallFormatter;
 import com.zegoggles.smssync.mail.ConversionResult;
 import com.zegoggles.smssync.mail.DataType;
 import com.zegoggles.smssync.mail.MessageConverter;
+import com.zegoggles.smssync.mail.MessageRecord;
+import com.zegoggles.smssync.mail.PersonCache;
 import com.zegoggles.smssync.mail.PersonLookup;
+import com.zegoggles.smssync.mail.UidIndex;
 import com.zegoggles.smssync.preferences.AuthPreferences;
 import com.zegoggles.smssync.preferences.Preferences;
 import com.zegoggles.smssync.service.state.BackupState;
 import com.zegoggles.smssync.service.state.SmsSyncState;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.zegoggles.smssync.App.LOCAL_LOGV;
 import static com.zegoggles.smssync.App.TAG;
@@ -48,6 +56,10 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
     private final SmsBackupService service;
     private final BackupItemsFetcher fetcher;
     private final MessageConverter converter;
+    private final @Nullable PersonLookup personLookup;
+    private final @Nullable BackupJournal journal;
+    private final @Nullable UploadedMessages uploadedMessages;
+    private final @Nullable UidIndex uidIndex;
     private final CalendarSyncer calendarSyncer;
     private final AuthPreferences authPreferences;
     private final Preferences preferences;
@@ -60,13 +72,21 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
         this.authPreferences = service.getAuthPreferences();
         this.preferences = service.getPreferences();
 
-        this.fetcher = new BackupItemsFetcher(
-                context.getContentResolver(),
-                new BackupQueryBuilder(preferences.getDataTypePreferences()));
-
-        PersonLookup personLookup = new PersonLookup(service.getContentResolver());
+        this.personLookup = new PersonLookup(service.getContentResolver(), PersonCache.get(context));
+        this.journal = new BackupJournal(context.getFilesDir());
+        this.uploadedMessages = new UploadedMessages(context.getFilesDir());
+        this.uidIndex = UidIndex.get(context);
 
         this.converter = new MessageConverter(context, service.getPreferences(), authPreferences.getUserEmail(), personLookup, ContactAccessor.Get.instance());
+        this.fetcher = new BackupItemsFetcher(
+                context.getContentResolver(),
+                new BackupQueryBuilder(preferences.getDataTypePreferences()),
+                BackupItemsFetcher.PAGE_SIZE,
+                new BackupItemsFetcher.PageListener() {
+                    @Override public void onPage(DataType dataType, Cursor page) {
+                        converter.preload(page, dataType);
+                    }
+                });
         this.contactAccessor = ContactAccessor.Get.instance();
 
         if (preferences.isCallLogCalendarSyncEnabled()) {
@@ -91,9 +111,29 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
                Preferences preferences,
                ContactAccessor accessor,
                TokenRefresher refresher) {
+        this(service, fetcher, messageConverter, syncer, authPreferences, preferences, accessor, refresher,
+                null, null, null, null);
+    }
+
+    BackupTask(SmsBackupService service,
+               BackupItemsFetcher fetcher,
+               MessageConverter messageConverter,
+               CalendarSyncer syncer,
+               AuthPreferences authPreferences,
+               Preferences preferences,
+               ContactAccessor accessor,
+               TokenRefresher refresher,
+               @Nullable BackupJournal journal,
+               @Nullable UploadedMessages uploadedMessages,
+               @Nullable PersonLookup personLookup,
+               @Nullable UidIndex uidIndex) {
         this.service = service;
         this.fetcher = fetcher;
         this.converter = messageConverter;
+        this.personLookup = personLookup;
+        this.journal = journal;
+        this.uploadedMessages = uploadedMessages;
+        this.uidIndex = uidIndex;
         this.calendarSyncer = syncer;
         this.authPreferences = authPreferences;
         this.preferences = preferences;
@@ -135,6 +175,7 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
     private BackupState fetchAndBackupItems(BackupConfig config) {
         BackupCursors cursors = null;
         try {
+            replayJournal();
             final ContactGroupIds groupIds = contactAccessor.getGroupContactIds(service.getContentResolver(), config.groupToBackup);
 
             cursors = new BulkFetcher(fetcher).fetch(config.typesToBackup, groupIds, config.maxItemsPerSync);
@@ -172,6 +213,21 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
         }
     }
 
+    /**
+     * Moves the max synced dates past batches which the server accepted in a previous
+     * run which did not get to record them.
+     */
+    private void replayJournal() {
+        if (journal == null) return;
+
+        for (BackupJournal.Entry entry : journal.replay().values()) {
+            if (entry.maxDate > preferences.getDataTypePreferences().getMaxSyncedDate(entry.type)) {
+                appLogDebug("skipping %s messages up to %d, already backed up", entry.type, entry.maxDate);
+                preferences.getDataTypePreferences().setMaxSyncedDate(entry.type, entry.maxDate);
+            }
+        }
+    }
+
     private BackupState handleAuthError(BackupConfig config, XOAuth2AuthenticationFailedException e) {
         if (e.getStatus() == 400) {
             appLogDebug("need to perform xoauth2 token refresh");
@@ -243,52 +299,186 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
         App.bus.post(state);
     }
 
-    private BackupState backupCursors(BackupCursors cursors, BackupImapStore store, BackupType backupType, int itemsToSync)
-            throws MessagingException {
+    private BackupState backupCursors(BackupCursors cursors,
+                                      final BackupImapStore store,
+                                      final BackupType backupType,
+                                      int itemsToSync) throws MessagingException {
         Log.i(TAG, String.format(Locale.ENGLISH, "Starting backup (%d messages)", itemsToSync));
         publish(LOGIN);
         store.checkSettings();
 
         try {
             publish(CALC);
-            int backedUpItems = 0;
-            while (!isCancelled() && cursors.hasNext()) {
-                BackupCursors.CursorAndType cursor = cursors.next();
-                if (LOCAL_LOGV) Log.v(TAG, "backing up: " + cursor);
-
-                ConversionResult result = converter.convertMessages(cursor.cursor, cursor.type);
-                if (!result.isEmpty()) {
-                    List<Message> messages = result.getMessages();
-
-                    if (LOCAL_LOGV) {
-                        Log.v(TAG, String.format(Locale.ENGLISH, "sending %d %s message(s) to server.",
-                                messages.size(), cursor.type));
+            final BackupBatches batches = new BackupBatches(
+                    preferences.getMaxMessagesPerAppend(),
+                    preferences.getMaxBytesPerAppend());
+            final AtomicInteger backedUpItems = new AtomicInteger();
+            final AtomicInteger totalItems = new AtomicInteger(itemsToSync);
+            int skippedItems = 0;
+            final BackupUploads uploads = new BackupUploads(getUploadMode(), store,
+                new BackupUploads.StoreFactory() {
+                    @Override public BackupImapStore create() throws MessagingException {
+                        return service.getBackupImapStore();
+                    }
+                },
+                new BackupUploads.Sender() {
+                    @Override public void send(BackupImapStore uploadStore, BackupBatches.Batch batch) throws MessagingException {
+                        final int stored = removeStored(uploadStore, batch);
+                        if (stored > 0) {
+                            totalItems.addAndGet(-stored);
+                        }
+                        backedUpItems.addAndGet(appendBatch(uploadStore, batch));
+                        publishProgress(new BackupState(BACKUP, backedUpItems.get(), totalItems.get(), backupType, batch.type, null));
+                    }
+                });
+            try {
+                while (!isCancelled() && cursors.hasNext()) {
+                    BackupCursors.CursorAndType cursor = cursors.next();
+                    if (LOCAL_LOGV) Log.v(TAG, "backing up: " + cursor);
+
+                    ConversionResult result = converter.convertMessages(cursor.cursor, cursor.type);
+                    if (!result.isEmpty()) {
+                        final int skipped = uploadedMessages != null ? uploadedMessages.removeUploaded(result, getUploadScope(cursor.type)) : 0;
+                        if (skipped > 0) {
+                            skippedItems += skipped;
+                            totalItems.addAndGet(-skipped);
+                        }
+                        // batched even if all messages were skipped, to update the max synced date
+                        BackupBatches.Batch batch = batches.add(result);
+                        if (batch != null) {
+                            uploads.upload(batch);
+                        }
+                    } else {
+                        Log.w(TAG, "no messages converted");
+                        totalItems.decrementAndGet();
                     }
 
-                    store.getFolder(cursor.type, preferences.getDataTypePreferences()).appendMessages(messages);
+                    publishProgress(new BackupState(BACKUP, backedUpItems.get(), totalItems.get(), backupType, cursor.type, null));
+                }
 
-                    if (cursor.type == CALLLOG && calendarSyncer != null) {
-                        calendarSyncer.syncCalendar(result);
+                if (!isCancelled()) {
+                    for (BackupBatches.Batch batch : batches.drain()) {
+                        uploads.upload(batch);
+                    }
+                    uploads.finish();
+                    if (journal != null) {
+                        journal.clear();
                     }
-                    preferences.getDataTypePreferences().setMaxSyncedDate(cursor.type, result.getMaxDate());
-                    backedUpItems += messages.size();
-                } else {
-                    Log.w(TAG, "no messages converted");
-                    itemsToSync -= 1;
                 }
-
-                publishProgress(new BackupState(BACKUP, backedUpItems, itemsToSync, backupType, cursor.type, null));
+            } catch (InterruptedException e) {
+                Log.w(TAG, "interrupted while waiting for upload");
+                Thread.currentThread().interrupt();
+            } finally {
+                uploads.close();
+                for (BackupBatches.Batch batch : batches.drain()) {
+                    BodySpool.release(batch.getMessages());
+                }
+            }
+            if (personLookup != null) {
+                appLogDebug("contact lookups: %s", personLookup.getStats());
+            }
+            if (skippedItems > 0) {
+                appLogDebug("skipped %d message(s) which were uploaded before", skippedItems);
             }
 
             return new BackupState(FINISHED_BACKUP,
-                    backedUpItems,
-                    itemsToSync,
+                    backedUpItems.get(),
+                    totalItems.get(),
                     backupType, null, null);
         } finally {
             store.closeFolders();
         }
     }
 
+    private BackupUploads.Mode getUploadMode() {
+        if (preferences.isConnectionPerTypeEnabled()) {
+            return BackupUploads.Mode.CONNECTION_PER_TYPE;
+        } else if (preferences.isBackupPipelineEnabled()) {
+            return BackupUploads.Mode.PIPELINED;
+        } else {
+            return BackupUploads.Mode.DIRECT;
+        }
+    }
+
+    /**
+     * @return the account and folder messages of the given type are uploaded to
+     */
+    private String getUploadScope(DataType type) {
+        return authPreferences.getAccountId() + ' ' + preferences.getDataTypePreferences().getFolder(type);
+    }
+
+    /**
+     * Removes messages which the server already stored in their folder, according to the
+     * UIDs it reported when they were appended before. Entries of another UIDVALIDITY are
+     * not used, the folder has been created again since.
+     *
+     * @return the number of messages removed
+     */
+    private int removeStored(BackupImapStore store, ConversionResult batch) throws MessagingException {
+        if (uidIndex == null || batch.isEmpty()) return 0;
+
+        final BackupImapStore.BackupFolder folder = store.getFolder(batch.type, preferences.getDataTypePreferences());
+        final long uidValidity = folder.getUidValidity();
+        if (uidValidity == -1 || uidIndex.getMaxUid(folder.getName(), uidValidity) == UidIndex.UNKNOWN) {
+            return 0;
+        }
+        final List<Message> stored = new ArrayList<Message>();
+        final List<MessageRecord> records = batch.getRecords();
+        for (int i = records.size() - 1; i >= 0; i--) {
+            final MessageRecord record = records.get(i);
+            if (uidIndex.getUid(record.type, record.id, record.date, folder.getName(), uidValidity) != UidIndex.UNKNOWN) {
+                stored.add(batch.getMessages().get(i));
+                batch.remove(i);
+            }
+        }
+        if (!stored.isEmpty()) {
+            BodySpool.release(stored);
+            appLogDebug("skipped %d %s message(s) already stored in %s", stored.size(), batch.type, folder.getName());
+        }
+        return stored.size();
+    }
+
+    /**
+     * Sends a batch of converted messages to the server. The max synced date only gets
+     * updated once the server has accepted the whole batch, which is recorded in the
+     * journal first. Batches of skipped messages only update the max synced date.
+     *
+     * @return the number of messages backed up
+     */
+    private int appendBatch(BackupImapStore store, ConversionResult batch) throws MessagingException {
+        List<Message> messages = batch.getMessages();
+
+        if (LOCAL_LOGV) {
+            Log.v(TAG, String.format(Locale.ENGLISH, "sending %d %s message(s) to server.",
+                    messages.size(), batch.type));
+        }
+
+        if (!messages.isEmpty()) {
+            final BackupImapStore.BackupFolder folder = store.getFolder(batch.type, preferences.getDataTypePreferences());
+            final long seq = journal != null ? journal.begin(batch) : 0;
+            try {
+                folder.appendMessages(messages);
+            } finally {
+                BodySpool.release(messages);
+            }
+            if (journal != null) {
+                journal.commit(seq);
+            }
+            if (uploadedMessages != null) {
+                uploadedMessages.add(messages, getUploadScope(batch.type));
+            }
+            if (uidIndex != null && folder.getAppendUidValidity() != -1) {
+                uidIndex.put(folder.getName(), folder.getAppendUidValidity(), batch);
+            }
+
+            if (batch.type == CALLLOG && calendarSyncer != null) {
+                calendarSyncer.syncCalendar(batch);
+            }
+        }
+        preferences.getDataTypePreferences().setMaxSyncedDate(batch.type, batch.getMaxDate());
+        return messages.size();
+    }
+
     private void publish(SmsSyncState state) {
         publishProgress(service.transition(state, null));
     }
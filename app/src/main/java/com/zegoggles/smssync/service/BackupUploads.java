@@ -0,0 +1,152 @@
+package com.zegoggles.smssync.service;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+import com.fsck.k9.mail.MessagingException;
+import com.zegoggles.smssync.mail.BackupImapStore;
+import com.zegoggles.smssync.mail.BodySpool;
+import com.zegoggles.smssync.mail.DataType;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Sends batches to the server, either directly on the calling thread, through a single
+ * {@link BackupPipeline}, or with one pipeline and store connection per {@link DataType}.
+ * <p>
+ * Messages are still converted on the calling thread, one type after the other, so with a
+ * connection per type the uploads of two types only overlap while the last batches of one
+ * type are being sent and the next type is already converted. It does not convert or upload
+ * the types in parallel.
+ */
+class BackupUploads {
+    enum Mode {
+        DIRECT,
+        PIPELINED,
+        CONNECTION_PER_TYPE
+    }
+
+    interface Sender {
+        /**
+         * Called for each batch, on an upload thread unless in {@link Mode#DIRECT} mode.
+         * Batches of the same type are always sent in order.
+         */
+        void send(BackupImapStore store, BackupBatches.Batch batch) throws MessagingException;
+    }
+
+    interface StoreFactory {
+        BackupImapStore create() throws MessagingException;
+    }
+
+    private final Mode mode;
+    private final BackupImapStore store;
+    private final StoreFactory storeFactory;
+    private final Sender sender;
+    private final Map<DataType, BackupPipeline> pipelines = new EnumMap<DataType, BackupPipeline>(DataType.class);
+    private final List<BackupImapStore> additionalStores = new ArrayList<BackupImapStore>();
+    private BackupPipeline pipeline;
+
+    /**
+     * @param store the store to use for the first (or only) upload stream
+     * @param storeFactory creates stores for additional streams, in {@link Mode#CONNECTION_PER_TYPE} mode
+     */
+    BackupUploads(@NonNull Mode mode,
+                  @NonNull BackupImapStore store,
+                  @NonNull StoreFactory storeFactory,
+                  @NonNull Sender sender) {
+        this.mode = mode;
+        this.store = store;
+        this.storeFactory = storeFactory;
+        this.sender = sender;
+    }
+
+    /**
+     * @throws MessagingException if this or a previous upload failed
+     * @throws InterruptedException if interrupted while waiting for an upload queue
+     */
+    void upload(@NonNull BackupBatches.Batch batch) throws MessagingException, InterruptedException {
+        switch (mode) {
+            case DIRECT:
+                try {
+                    sender.send(store, batch);
+                } catch (MessagingException e) {
+                    BodySpool.release(batch.getMessages());
+                    throw e;
+                }
+                break;
+            case PIPELINED:
+                if (pipeline == null) {
+                    pipeline = start(store);
+                }
+                pipeline.submit(batch);
+                break;
+            case CONNECTION_PER_TYPE:
+                BackupPipeline typePipeline = pipelines.get(batch.type);
+                if (typePipeline == null) {
+                    typePipeline = start(pipelines.isEmpty() ? store : newStore());
+                    pipelines.put(batch.type, typePipeline);
+                }
+                typePipeline.submit(batch);
+                break;
+        }
+    }
+
+    /**
+     * Waits for all submitted batches to be uploaded.
+     *
+     * @throws MessagingException if any of the uploads failed
+     */
+    void finish() throws MessagingException, InterruptedException {
+        for (BackupPipeline pipeline : getPipelines()) {
+            pipeline.finish();
+        }
+    }
+
+    /**
+     * Stops all uploads still in progress, releases the spooled bodies of batches which were
+     * dropped and closes the additional store connections. The store passed in the
+     * constructor is left open.
+     */
+    void close() {
+        for (BackupPipeline pipeline : getPipelines()) {
+            pipeline.cancel();
+            for (BackupBatches.Batch dropped : pipeline.drainDropped()) {
+                BodySpool.release(dropped.getMessages());
+            }
+        }
+        for (BackupImapStore additional : additionalStores) {
+            additional.closeFolders();
+        }
+        additionalStores.clear();
+    }
+
+    private List<BackupPipeline> getPipelines() {
+        final List<BackupPipeline> all = new ArrayList<BackupPipeline>(pipelines.values());
+        if (pipeline != null) {
+            all.add(pipeline);
+        }
+        return all;
+    }
+
+    private BackupImapStore newStore() throws MessagingException {
+        final BackupImapStore additional = storeFactory.create();
+        additionalStores.add(additional);
+        if (LOCAL_LOGV) Log.v(TAG, "opened additional store connection (" + additionalStores.size() + ")");
+        return additional;
+    }
+
+    private BackupPipeline start(final BackupImapStore uploadStore) {
+        final BackupPipeline started = new BackupPipeline(new BackupPipeline.Uploader() {
+            @Override public void upload(BackupBatches.Batch batch) throws MessagingException {
+                sender.send(uploadStore, batch);
+            }
+        });
+        started.start();
+        return started;
+    }
+}
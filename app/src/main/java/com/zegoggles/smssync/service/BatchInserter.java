@@ -0,0 +1,149 @@
+package com.zegoggles.smssync.service;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Collects rows to insert into a provider and writes them with a single
+ * {@link ContentResolver#applyBatch(String, ArrayList)} call, instead of one binder
+ * transaction per row. Falls back to single inserts if the batch fails, skipping rows which
+ * had already been inserted by the failed batch.
+ */
+class BatchInserter {
+    static final int MAX_BATCH_SIZE = 100;
+
+    interface Callback {
+        /**
+         * Called for each inserted row, once the batch has been written.
+         */
+        void inserted(ContentValues values, Uri uri);
+
+        /**
+         * Called for each row which could not be inserted, neither in a batch nor on its own.
+         */
+        void failed(ContentValues values);
+
+        /**
+         * @return if the row is already stored in the provider
+         */
+        boolean exists(ContentValues values);
+    }
+
+    private final ContentResolver resolver;
+    private final Uri uri;
+    private final int maxBatchSize;
+    private final String[] keyColumns;
+    private final Callback callback;
+    private final List<ContentValues> pending = new ArrayList<ContentValues>();
+
+    /**
+     * @param keyColumns columns which identify a row, see {@link #isPending(ContentValues)}
+     */
+    BatchInserter(@NonNull ContentResolver resolver, @NonNull Uri uri, int maxBatchSize,
+                  @NonNull Callback callback, String... keyColumns) {
+        this.resolver = resolver;
+        this.uri = uri;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.callback = callback;
+        this.keyColumns = keyColumns;
+    }
+
+    /**
+     * Adds a row, and writes all pending rows if the batch is full.
+     */
+    void add(@NonNull ContentValues values) {
+        pending.add(values);
+        if (pending.size() >= maxBatchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * @return if a row with the same key columns is waiting to be inserted
+     */
+    boolean isPending(@NonNull ContentValues values) {
+        for (ContentValues row : pending) {
+            if (sameKey(row, values)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes all pending rows.
+     */
+    void flush() {
+        if (pending.isEmpty()) return;
+        if (LOCAL_LOGV) Log.v(TAG, "inserting " + pending.size() + " row(s) into " + uri);
+
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(pending.size());
+        for (ContentValues values : pending) {
+            operations.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
+        }
+        try {
+            final ContentProviderResult[] results = resolver.applyBatch(uri.getAuthority(), operations);
+            for (int i = 0; i < pending.size(); i++) {
+                inserted(pending.get(i), i < results.length ? results[i].uri : null);
+            }
+        } catch (RemoteException e) {
+            Log.w(TAG, "error inserting batch, inserting rows separately", e);
+            insertEach();
+        } catch (OperationApplicationException e) {
+            Log.w(TAG, "error inserting batch, inserting rows separately", e);
+            insertEach();
+        } catch (RuntimeException e) {
+            // providers report invalid rows, database and permission errors unchecked
+            Log.w(TAG, "error inserting batch, inserting rows separately", e);
+            insertEach();
+        }
+        // only drop the rows once the batch or the fallback has dealt with them
+        pending.clear();
+    }
+
+    private void insertEach() {
+        for (ContentValues values : pending) {
+            try {
+                if (callback.exists(values)) continue;
+                inserted(values, resolver.insert(uri, values));
+            } catch (RuntimeException e) {
+                Log.e(TAG, "error inserting " + values, e);
+                callback.failed(values);
+            }
+        }
+    }
+
+    private void inserted(ContentValues values, @Nullable Uri inserted) {
+        if (inserted != null) {
+            callback.inserted(values, inserted);
+        } else {
+            Log.w(TAG, "row not inserted: " + values);
+            callback.failed(values);
+        }
+    }
+
+    private boolean sameKey(ContentValues a, ContentValues b) {
+        for (String column : keyColumns) {
+            final String valueA = a.getAsString(column);
+            final String valueB = b.getAsString(column);
+            if (valueA == null ? valueB != null : !valueA.equals(valueB)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
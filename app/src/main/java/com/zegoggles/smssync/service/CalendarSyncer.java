@@ -1,16 +1,16 @@
 package com.zegoggles.smssync.service;
 
-import android.provider.CallLog;
 import android.util.Log;
 import com.zegoggles.smssync.calendar.CalendarAccessor;
 import com.zegoggles.smssync.mail.CallFormatter;
+import com.zegoggles.smssync.mail.CallLogRecord;
 import com.zegoggles.smssync.mail.ConversionResult;
 import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.mail.MessageRecord;
 import com.zegoggles.smssync.mail.PersonLookup;
 import com.zegoggles.smssync.mail.PersonRecord;
 
 import java.util.Date;
-import java.util.Map;
 
 import static com.zegoggles.smssync.App.TAG;
 
@@ -35,24 +35,25 @@ class CalendarSyncer {
         enableSync();
 
         if (result.type != DataType.CALLLOG) return;
-        for (Map<String, String> m : result.getMapList()) {
-            try {
-                final int duration = Integer.parseInt(m.get(CallLog.Calls.DURATION));
-                final int callType = Integer.parseInt(m.get(CallLog.Calls.TYPE));
-                final String number = m.get(CallLog.Calls.NUMBER);
-                final Date then = new Date(Long.valueOf(m.get(CallLog.Calls.DATE)));
-                final PersonRecord record = personLookup.lookupPerson(number);
-
-                // insert into calendar
-                calendarAccessor.addEntry(
-                        calendarId,
-                        then,
-                        duration,
-                        callFormatter.callTypeString(callType, record.getName()),
-                        callFormatter.formatForCalendar(callType, record.getNumber(), duration));
-            } catch (NumberFormatException e) {
-                Log.w(TAG, "error", e);
+        for (MessageRecord m : result.getRecords()) {
+            final CallLogRecord call = (CallLogRecord) m;
+            if (call.duration == MessageRecord.UNKNOWN ||
+                call.callType == MessageRecord.UNKNOWN ||
+                call.date == MessageRecord.UNKNOWN) {
+                Log.w(TAG, "incomplete call log entry: " + call);
+                continue;
             }
+            final int duration = (int) call.duration;
+            final Date then = new Date(call.date);
+            final PersonRecord record = personLookup.lookupPerson(call.number);
+
+            // insert into calendar
+            calendarAccessor.addEntry(
+                    calendarId,
+                    then,
+                    duration,
+                    callFormatter.callTypeString(call.callType, record.getName()),
+                    callFormatter.formatForCalendar(call.callType, record.getNumber(), duration));
         }
     }
 
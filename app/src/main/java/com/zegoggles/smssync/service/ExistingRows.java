@@ -0,0 +1,120 @@
+package com.zegoggles.smssync.service;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * The rows stored in a provider, identified by a 64 bit hash of their key columns. Loaded
+ * with a single query, so that checking for duplicates during a restore does not need a
+ * query per message.
+ * <p>
+ * Two different rows could in theory hash to the same key, in which case the second one
+ * would not be restored. With 64 bits and the number of rows in a phone's providers this
+ * is negligible.
+ */
+class ExistingRows {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final String[] keyColumns;
+    private final LongHashSet keys;
+
+    private ExistingRows(String[] keyColumns, LongHashSet keys) {
+        this.keyColumns = keyColumns;
+        this.keys = keys;
+    }
+
+    /**
+     * @return the rows of the provider, or null if they could not be queried
+     */
+    static @Nullable ExistingRows load(@NonNull ContentResolver resolver, @NonNull Uri uri, String... keyColumns) {
+        try {
+            return query(resolver, uri, keyColumns);
+        } catch (SecurityException e) {
+            Log.w(TAG, "could not query " + uri, e);
+            return null;
+        } catch (SQLiteException e) {
+            Log.w(TAG, "could not query " + uri, e);
+            return null;
+        }
+    }
+
+    private static @Nullable ExistingRows query(ContentResolver resolver, Uri uri, String[] keyColumns) {
+        final long start = System.currentTimeMillis();
+        final Cursor cursor = resolver.query(uri, keyColumns, null, null, null);
+        if (cursor == null) {
+            Log.w(TAG, "could not query " + uri);
+            return null;
+        }
+        try {
+            final LongHashSet keys = new LongHashSet(cursor.getCount());
+            final String[] row = new String[keyColumns.length];
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < keyColumns.length; i++) {
+                    row[i] = cursor.getString(i);
+                }
+                keys.add(key(row));
+            }
+            if (LOCAL_LOGV) {
+                Log.v(TAG, "loaded " + keys.size() + " keys of " + uri + " in " +
+                        (System.currentTimeMillis() - start) + "ms");
+            }
+            return new ExistingRows(keyColumns, keys);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    boolean contains(@NonNull ContentValues values) {
+        return keys.contains(key(values));
+    }
+
+    /**
+     * Records a row which has been inserted.
+     */
+    void add(@NonNull ContentValues values) {
+        keys.add(key(values));
+    }
+
+    int size() {
+        return keys.size();
+    }
+
+    private long key(ContentValues values) {
+        final String[] row = new String[keyColumns.length];
+        for (int i = 0; i < keyColumns.length; i++) {
+            row[i] = values.getAsString(keyColumns[i]);
+        }
+        return key(row);
+    }
+
+    /**
+     * 64 bit FNV-1a hash over the column values.
+     */
+    static long key(String[] row) {
+        long hash = FNV_OFFSET;
+        for (String value : row) {
+            if (value == null) {
+                // distinguish null from an empty string
+                hash = (hash ^ 0xff) * FNV_PRIME;
+            } else {
+                for (int i = 0; i < value.length(); i++) {
+                    final char c = value.charAt(i);
+                    hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+                    hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+                }
+            }
+            hash = (hash ^ 0xfe) * FNV_PRIME;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,87 @@
+package com.zegoggles.smssync.service;
+
+/**
+ * A set of primitive longs with open addressing, avoiding the boxing and entry
+ * objects of a {@link java.util.HashSet}.
+ */
+class LongHashSet {
+    private static final int MIN_CAPACITY = 16;
+    private static final long EMPTY = 0;
+
+    private long[] table;
+    private int size;
+    // 0 is used to mark free slots and is tracked separately
+    private boolean containsEmpty;
+
+    LongHashSet() {
+        this(MIN_CAPACITY);
+    }
+
+    LongHashSet(int expectedSize) {
+        table = new long[capacityFor(expectedSize)];
+    }
+
+    /**
+     * @return true if the value was not contained yet
+     */
+    boolean add(long value) {
+        if (value == EMPTY) {
+            if (containsEmpty) return false;
+            containsEmpty = true;
+            size++;
+            return true;
+        }
+        int slot = slot(value, table.length);
+        while (table[slot] != EMPTY) {
+            if (table[slot] == value) return false;
+            slot = (slot + 1) & (table.length - 1);
+        }
+        table[slot] = value;
+        size++;
+        if (size * 2 > table.length) {
+            rehash(table.length * 2);
+        }
+        return true;
+    }
+
+    boolean contains(long value) {
+        if (value == EMPTY) return containsEmpty;
+        int slot = slot(value, table.length);
+        while (table[slot] != EMPTY) {
+            if (table[slot] == value) return true;
+            slot = (slot + 1) & (table.length - 1);
+        }
+        return false;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void rehash(int capacity) {
+        final long[] old = table;
+        table = new long[capacity];
+        for (long value : old) {
+            if (value == EMPTY) continue;
+            int slot = slot(value, capacity);
+            while (table[slot] != EMPTY) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            table[slot] = value;
+        }
+    }
+
+    private static int slot(long value, int capacity) {
+        // spread the bits, keys are not necessarily well distributed in the low bits
+        long hash = value * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & (capacity - 1);
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2 && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+}
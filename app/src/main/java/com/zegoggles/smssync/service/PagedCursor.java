@@ -0,0 +1,188 @@
+package com.zegoggles.smssync.service;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.provider.BaseColumns;
+import android.provider.Telephony;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * A cursor over all items of a data type which only ever holds one or two pages of rows.
+ * <p>
+ * Pages are fetched with keyset pagination: each page query asks for the rows following
+ * the <code>(date, _id)</code> of the last row of the previous page, so the provider never
+ * has to fill a window for the whole result. The number of rows is known upfront (from a
+ * count query) and is only corrected downwards if the provider runs out of rows early, so
+ * {@link #getCount()} and {@link #isLast()} are cheap.
+ * <p>
+ * The next page is loaded as soon as the last row of the current page is reached, moving
+ * backwards restarts from the first page.
+ */
+class PagedCursor extends AbstractCursor {
+    /**
+     * Marks the absence of a previous page.
+     */
+    static final long NONE = -1;
+
+    interface PageLoader {
+        /**
+         * @param afterDate the date of the last row of the previous page, or {@link #NONE}
+         * @param afterId the id of the last row of the previous page, or {@link #NONE}
+         * @param limit max number of rows to return
+         * @return the rows, ordered by date and id
+         */
+        @NonNull Cursor loadPage(long afterDate, long afterId, int limit);
+    }
+
+    private final PageLoader loader;
+    private final int total;
+    private final int pageSize;
+
+    private int count;
+    private int loaded;
+    private boolean complete;
+    private long lastDate = NONE, lastId = NONE;
+
+    private Cursor page;
+    private int pageStart;
+    private Cursor nextPage;
+
+    /**
+     * @param count the number of rows to read, at most
+     * @param pageSize the number of rows to fetch per query
+     */
+    PagedCursor(@NonNull PageLoader loader, int count, int pageSize) {
+        if (pageSize <= 0) throw new IllegalArgumentException("invalid page size: " + pageSize);
+
+        this.loader = loader;
+        this.total = count;
+        this.count = count;
+        this.pageSize = pageSize;
+    }
+
+    @Override public int getCount() {
+        return count;
+    }
+
+    @Override public String[] getColumnNames() {
+        return getPage().getColumnNames();
+    }
+
+    @Override public boolean onMove(int oldPosition, int newPosition) {
+        if (page == null || newPosition < pageStart) {
+            restart();
+        }
+        while (newPosition >= pageStart + page.getCount()) {
+            if (!advance()) return false;
+        }
+        page.moveToPosition(newPosition - pageStart);
+
+        if (newPosition == pageStart + page.getCount() - 1 && nextPage == null && !complete) {
+            // fetch the next page now so that isLast() is accurate
+            nextPage = load();
+        }
+        return true;
+    }
+
+    @Override public String getString(int column) {
+        return page.getString(column);
+    }
+
+    @Override public short getShort(int column) {
+        return page.getShort(column);
+    }
+
+    @Override public int getInt(int column) {
+        return page.getInt(column);
+    }
+
+    @Override public long getLong(int column) {
+        return page.getLong(column);
+    }
+
+    @Override public float getFloat(int column) {
+        return page.getFloat(column);
+    }
+
+    @Override public double getDouble(int column) {
+        return page.getDouble(column);
+    }
+
+    @Override public byte[] getBlob(int column) {
+        return page.getBlob(column);
+    }
+
+    @Override public boolean isNull(int column) {
+        return page.isNull(column);
+    }
+
+    @Override public void close() {
+        super.close();
+        closePages();
+    }
+
+    private Cursor getPage() {
+        if (page == null) {
+            restart();
+        }
+        return page;
+    }
+
+    private void restart() {
+        closePages();
+        count = total;
+        loaded = 0;
+        complete = false;
+        lastDate = lastId = NONE;
+        pageStart = 0;
+        page = load();
+    }
+
+    private boolean advance() {
+        if (nextPage == null) {
+            if (complete) return false;
+            nextPage = load();
+        }
+        if (nextPage.getCount() == 0) return false;
+
+        pageStart += page.getCount();
+        page.close();
+        page = nextPage;
+        nextPage = null;
+        return true;
+    }
+
+    private Cursor load() {
+        final int limit = Math.min(pageSize, total - loaded);
+        final Cursor cursor = loader.loadPage(lastDate, lastId, limit);
+        final int rows = cursor.getCount();
+        if (LOCAL_LOGV) Log.v(TAG, "loaded page after (" + lastDate + ", " + lastId + "): " + rows + " rows");
+
+        loaded += rows;
+        if (rows > 0 && cursor.moveToLast()) {
+            lastDate = cursor.getLong(cursor.getColumnIndexOrThrow(Telephony.TextBasedSmsColumns.DATE));
+            lastId = cursor.getLong(cursor.getColumnIndexOrThrow(BaseColumns._ID));
+            cursor.moveToPosition(-1);
+        }
+        if (rows < limit || loaded >= total) {
+            complete = true;
+            count = loaded;
+        }
+        return cursor;
+    }
+
+    private void closePages() {
+        if (page != null) {
+            page.close();
+            page = null;
+        }
+        if (nextPage != null) {
+            nextPage.close();
+            nextPage = null;
+        }
+    }
+}
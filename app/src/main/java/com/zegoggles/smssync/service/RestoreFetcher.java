@@ -0,0 +1,242 @@
+package com.zegoggles.smssync.service;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import com.fsck.k9.mail.FetchProfile;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.store.imap.ImapMessage;
+import com.zegoggles.smssync.mail.BackupImapStore;
+import com.zegoggles.smssync.mail.MessageWindows;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Fetches the bodies of the messages to restore in windows, with one FETCH command per
+ * window instead of one per message. The next window is searched and fetched on a separate
+ * thread while the current one is being imported, so that only the messages of two windows
+ * are held in memory.
+ * <p>
+ * Bodies are stored in temporary files in the directory set up with
+ * {@link com.fsck.k9.mail.internet.BinaryTempFileBody#setTempDirectory(File)}. The files
+ * created while fetching a window are deleted once the window has been
+ * {@link Window#release() released}, so at most two windows take up space at any time.
+ */
+class RestoreFetcher {
+    static final int WINDOW_SIZE = 100;
+    private static final int MAX_PREFETCHED = 1;
+    static final String BODY_PREFIX = "body";
+
+    /**
+     * Messages with fetched bodies.
+     */
+    static class Window {
+        final List<ImapMessage> messages;
+        private final Set<Message> failed;
+        private final List<File> files;
+
+        Window(List<ImapMessage> messages, Set<Message> failed, List<File> files) {
+            this.messages = messages;
+            this.failed = failed;
+            this.files = files;
+        }
+
+        /**
+         * @return if the body of the message could not be fetched
+         */
+        boolean isFailed(Message message) {
+            return failed.contains(message);
+        }
+
+        /**
+         * Deletes the temporary files of this window, bodies can't be read afterwards.
+         */
+        void release() {
+            for (File file : files) {
+                if (file.exists() && !file.delete()) Log.w(TAG, "error deleting " + file);
+            }
+            files.clear();
+        }
+    }
+
+    private final List<MessageWindows> sources;
+    private final int skip;
+    private final int limit;
+    private final int windowSize;
+    private final @Nullable File tempDirectory;
+    private final LinkedList<Window> fetched = new LinkedList<Window>();
+    private final Thread worker;
+    private boolean finished;
+    private boolean closed;
+    private MessagingException error;
+
+    /**
+     * @param sources the messages to fetch, one source per folder
+     * @param skip the number of messages to skip, when resuming a restore
+     * @param limit the max number of messages to return, including the skipped ones
+     * @param tempDirectory the temp directory of k9, to delete the bodies of released windows,
+     *                      or null to keep them
+     */
+    RestoreFetcher(@NonNull List<MessageWindows> sources, int skip, int limit, int windowSize,
+                   @Nullable File tempDirectory) {
+        this.sources = sources;
+        this.skip = skip;
+        this.limit = limit;
+        this.windowSize = Math.max(1, windowSize);
+        this.tempDirectory = tempDirectory;
+        this.worker = new Thread(new Runnable() {
+            @Override public void run() {
+                fetchWindows();
+            }
+        }, "RestoreFetch");
+    }
+
+    void start() {
+        worker.start();
+    }
+
+    /**
+     * @return the next window of messages, blocking until it has been fetched, or null if
+     *         all messages have been returned
+     * @throws InterruptedException if interrupted while waiting
+     * @throws MessagingException if the messages could not be searched
+     */
+    synchronized @Nullable Window next() throws InterruptedException, MessagingException {
+        while (fetched.isEmpty() && !finished) {
+            wait();
+        }
+        final Window window = fetched.poll();
+        if (window == null && error != null) {
+            throw error;
+        }
+        notifyAll();
+        return window;
+    }
+
+    /**
+     * Stops fetching, waits for a running fetch to complete and releases all windows
+     * which have not been returned.
+     */
+    void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (Window window : fetched) {
+                window.release();
+            }
+            fetched.clear();
+        }
+    }
+
+    private void fetchWindows() {
+        try {
+            int position = 0;
+            for (MessageWindows source : sources) {
+                while (position < limit) {
+                    synchronized (this) {
+                        while (!closed && fetched.size() >= MAX_PREFETCHED) {
+                            wait();
+                        }
+                        if (closed) return;
+                    }
+                    // skipped messages are searched in windows ending where the restore resumes
+                    final int max = position < skip ? Math.min(windowSize, skip - position) :
+                                                      Math.min(windowSize, limit - position);
+                    final List<ImapMessage> messages = source.next(max);
+                    if (messages == null) break;
+
+                    final int start = position;
+                    position += messages.size();
+                    if (start < skip) continue;
+
+                    final Window window = fetch(source.getFolder(), start, messages);
+                    synchronized (this) {
+                        if (closed) {
+                            window.release();
+                            return;
+                        }
+                        fetched.add(window);
+                        notifyAll();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "interrupted while fetching");
+            Thread.currentThread().interrupt();
+        } catch (MessagingException e) {
+            Log.w(TAG, "error searching messages", e);
+            synchronized (this) {
+                error = e;
+            }
+        } finally {
+            synchronized (this) {
+                finished = true;
+                notifyAll();
+            }
+        }
+    }
+
+    private Window fetch(BackupImapStore.BackupFolder folder, int start, List<ImapMessage> messages) {
+        if (LOCAL_LOGV) Log.v(TAG, "fetching messages " + start + "-" + (start + messages.size()));
+
+        final Set<String> existing = new HashSet<String>(Arrays.asList(listBodies()));
+        final Set<Message> failed = new HashSet<Message>();
+        try {
+            fetchBodies(folder, messages);
+        } catch (MessagingException e) {
+            Log.w(TAG, "error fetching messages, fetching one by one", e);
+            for (ImapMessage message : messages) {
+                try {
+                    fetchBodies(folder, Collections.singletonList(message));
+                } catch (MessagingException e1) {
+                    Log.e(TAG, "error fetching message " + message.getUid(), e1);
+                    failed.add(message);
+                }
+            }
+        }
+        final List<File> created = new ArrayList<File>();
+        for (String name : listBodies()) {
+            if (!existing.contains(name)) {
+                created.add(new File(tempDirectory, name));
+            }
+        }
+        return new Window(messages, failed, created);
+    }
+
+    /**
+     * @return the names of the body files currently in the temp directory
+     */
+    private String[] listBodies() {
+        final String[] names = tempDirectory == null ? null : tempDirectory.list(new FilenameFilter() {
+            @Override public boolean accept(File dir, String name) {
+                return name.startsWith(BODY_PREFIX);
+            }
+        });
+        return names == null ? new String[0] : names;
+    }
+
+    private static void fetchBodies(BackupImapStore.BackupFolder folder, List<ImapMessage> messages) throws MessagingException {
+        final FetchProfile fp = new FetchProfile();
+        fp.add(FetchProfile.Item.BODY);
+        folder.fetch(messages, fp, null);
+    }
+}
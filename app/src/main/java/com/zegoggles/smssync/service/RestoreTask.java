@@ -8,9 +8,9 @@ import android.os.AsyncTask;
 import android.provider.CallLog;
 import android.provider.Telephony;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 import com.fsck.k9.mail.AuthenticationFailedException;
-import com.fsck.k9.mail.FetchProfile;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.store.imap.XOAuth2AuthenticationFailedException;
@@ -22,15 +22,17 @@ import com.zegoggles.smssync.auth.TokenRefresher;
 import com.zegoggles.smssync.mail.BackupImapStore;
 import com.zegoggles.smssync.mail.DataType;
 import com.zegoggles.smssync.mail.MessageConverter;
+import com.zegoggles.smssync.mail.MessageWindows;
 import com.zegoggles.smssync.preferences.Preferences;
+import com.zegoggles.smssync.preferences.RestoreMark;
 import com.zegoggles.smssync.service.state.RestoreState;
 import com.zegoggles.smssync.service.state.SmsSyncState;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashSet;
-import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import static com.zegoggles.smssync.App.LOCAL_LOGV;
@@ -46,6 +48,8 @@ import static com.zegoggles.smssync.service.state.SmsSyncState.UPDATING_THREADS;
 
 class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
     private static final String ERROR = "error";
+    /** the number of items to restore, if the server can't count them upfront */
+    static final int UNKNOWN_COUNT = -1;
     private Set<String> smsIds = new HashSet<String>();
     private Set<String> callLogIds = new HashSet<String>();
     private Set<String> uids = new HashSet<String>();
@@ -55,6 +59,12 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
     private final MessageConverter converter;
     private final TokenRefresher tokenRefresher;
     private final Preferences preferences;
+    private final BatchInserter smsInserter;
+    private final BatchInserter callLogInserter;
+    private @Nullable ExistingRows existingSms;
+    private @Nullable ExistingRows existingCallLog;
+    /** if messages have been skipped because of errors */
+    private boolean incomplete;
 
     RestoreTask(SmsRestoreService service,
                 MessageConverter converter,
@@ -65,6 +75,50 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
         this.resolver = resolver;
         this.tokenRefresher = tokenRefresher;
         this.preferences = service.getPreferences();
+        this.smsInserter = new BatchInserter(resolver, Consts.SMS_PROVIDER, BatchInserter.MAX_BATCH_SIZE,
+            new BatchInserter.Callback() {
+                @Override public void inserted(ContentValues values, Uri uri) {
+                    smsIds.add(uri.getLastPathSegment());
+                    if (existingSms != null) existingSms.add(values);
+                    Long timestamp = values.getAsLong(Telephony.TextBasedSmsColumns.DATE);
+
+                    if (timestamp != null && preferences.getDataTypePreferences().getMaxSyncedDate(SMS) < timestamp) {
+                        preferences.getDataTypePreferences().setMaxSyncedDate(SMS, timestamp);
+                    }
+
+                    if (LOCAL_LOGV) Log.v(TAG, "inserted " + uri);
+                }
+
+                @Override public void failed(ContentValues values) {
+                    incomplete = true;
+                }
+
+                @Override public boolean exists(ContentValues values) {
+                    return smsExists(values);
+                }
+            },
+            Telephony.TextBasedSmsColumns.DATE,
+            Telephony.TextBasedSmsColumns.ADDRESS,
+            Telephony.TextBasedSmsColumns.TYPE);
+        this.callLogInserter = new BatchInserter(resolver, Consts.CALLLOG_PROVIDER, BatchInserter.MAX_BATCH_SIZE,
+            new BatchInserter.Callback() {
+                @Override public void inserted(ContentValues values, Uri uri) {
+                    callLogIds.add(uri.getLastPathSegment());
+                    if (existingCallLog != null) existingCallLog.add(values);
+                }
+
+                @Override public void failed(ContentValues values) {
+                    incomplete = true;
+                }
+
+                @Override public boolean exists(ContentValues values) {
+                    return callLogExists(values);
+                }
+            },
+            CallLog.Calls.DATE,
+            CallLog.Calls.NUMBER,
+            CallLog.Calls.DURATION,
+            CallLog.Calls.TYPE);
     }
 
     @Override
@@ -102,29 +156,67 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
 
             publishProgress(CALC);
 
-            final List<Message> msgs = new ArrayList<Message>();
+            final Map<DataType, MessageWindows> sources = new EnumMap<DataType, MessageWindows>(DataType.class);
 
             if (config.restoreSms) {
-                msgs.addAll(imapStore.getFolder(SMS, preferences.getDataTypePreferences()).getMessages(config.maxRestore, config.restoreOnlyStarred, null));
+                sources.put(SMS, getMessageWindows(imapStore, SMS, config));
             }
             if (config.restoreCallLog) {
-                msgs.addAll(imapStore.getFolder(CALLLOG, preferences.getDataTypePreferences()).getMessages(config.maxRestore, config.restoreOnlyStarred, null));
+                sources.put(CALLLOG, getMessageWindows(imapStore, CALLLOG, config));
             }
 
-            final int itemsToRestoreCount = config.maxRestore <= 0 ? msgs.size() : Math.min(msgs.size(), config.maxRestore);
-
-            if (itemsToRestoreCount > 0) {
-                for (; currentRestoredItem < itemsToRestoreCount && !isCancelled(); currentRestoredItem++) {
-                    DataType dataType = importMessage(msgs.get(currentRestoredItem));
-
-                    msgs.set(currentRestoredItem, null); // help gc
-                    publishProgress(new RestoreState(RESTORE, currentRestoredItem, itemsToRestoreCount, 0, 0, dataType, null));
-                    if (currentRestoredItem % 50 == 0) {
-                        //clear cache periodically otherwise SD card fills up
-                        service.clearCache();
+            int count = 0;
+            for (MessageWindows source : sources.values()) {
+                final int sourceCount = source.count();
+                if (sourceCount < 0) {
+                    // only known once all messages have been searched, progress is indeterminate
+                    count = UNKNOWN_COUNT;
+                    break;
+                }
+                count += sourceCount;
+            }
+            final int itemsToRestoreCount = config.maxRestore <= 0 || count == UNKNOWN_COUNT ? count :
+                                            Math.min(count, config.maxRestore);
+            final int limit = itemsToRestoreCount != UNKNOWN_COUNT ? itemsToRestoreCount :
+                              config.maxRestore > 0 ? config.maxRestore : Integer.MAX_VALUE;
+
+            if (itemsToRestoreCount != 0) {
+                loadExistingRows(config);
+                final RestoreFetcher fetcher = new RestoreFetcher(
+                        new ArrayList<MessageWindows>(sources.values()),
+                        currentRestoredItem,
+                        limit,
+                        RestoreFetcher.WINDOW_SIZE,
+                        service.getCacheDir());
+                fetcher.start();
+                try {
+                    RestoreFetcher.Window window;
+                    while (!isCancelled() && (window = fetcher.next()) != null) {
+                        try {
+                            for (Message message : window.messages) {
+                                if (isCancelled()) break;
+                                final DataType dataType = window.isFailed(message) ? skipMessage(message) : importMessage(message);
+                                publishProgress(new RestoreState(RESTORE, currentRestoredItem, itemsToRestoreCount, 0, 0, dataType, null));
+                                currentRestoredItem++;
+                            }
+                        } finally {
+                            // otherwise SD card fills up
+                            window.release();
+                        }
                     }
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "interrupted while waiting for messages");
+                    incomplete = true;
+                } finally {
+                    fetcher.close();
+                    smsInserter.flush();
+                    callLogInserter.flush();
                 }
                 updateAllThreadsIfAnySmsRestored();
+
+                if (isIncremental(config) && !isCancelled() && !incomplete) {
+                    saveRestoreMarks(sources);
+                }
             } else {
                 Log.d(TAG, "nothing to restore");
             }
@@ -132,7 +224,7 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
             final int restoredCount = smsIds.size() + callLogIds.size();
             return new RestoreState(isCancelled() ? CANCELED_RESTORE : FINISHED_RESTORE,
                     currentRestoredItem,
-                    itemsToRestoreCount,
+                    itemsToRestoreCount == UNKNOWN_COUNT ? currentRestoredItem : itemsToRestoreCount,
                     restoredCount,
                     uids.size() - restoredCount, null, null);
         } catch (XOAuth2AuthenticationFailedException e) {
@@ -210,15 +302,20 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
         App.bus.post(changed);
     }
 
+    private DataType skipMessage(Message message) {
+        uids.add(message.getUid());
+        incomplete = true;
+        return null;
+    }
+
+    /**
+     * @param message a message with its body already fetched
+     */
     private DataType importMessage(Message message) {
         uids.add(message.getUid());
 
-        FetchProfile fp = new FetchProfile();
-        fp.add(FetchProfile.Item.BODY);
         DataType dataType = null;
         try {
-            if (LOCAL_LOGV) Log.v(TAG, "fetching message uid " + message.getUid());
-            message.getFolder().fetch(Collections.singletonList(message), fp, null);
             dataType = converter.getDataType(message);
             //only restore sms+call log for now
             switch (dataType) {
@@ -234,11 +331,14 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
 
         } catch (MessagingException e) {
             Log.e(TAG, ERROR, e);
+            incomplete = true;
         } catch (IllegalArgumentException e) {
             // http://code.google.com/p/android/issues/detail?id=2916
             Log.e(TAG, ERROR, e);
+            incomplete = true;
         } catch (IOException e) {
             Log.e(TAG, ERROR, e);
+            incomplete = true;
         }
         return dataType;
     }
@@ -249,19 +349,9 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
         final Integer type = values.getAsInteger(Telephony.TextBasedSmsColumns.TYPE);
 
         // only restore inbox messages and sent messages - otherwise sms might get sent on restore
-        if (type != null && (type == Telephony.TextBasedSmsColumns.MESSAGE_TYPE_INBOX || type == Telephony.TextBasedSmsColumns.MESSAGE_TYPE_SENT) && !smsExists(values)) {
-
-            final Uri uri = resolver.insert(Consts.SMS_PROVIDER, values);
-            if (uri != null) {
-                smsIds.add(uri.getLastPathSegment());
-                Long timestamp = values.getAsLong(Telephony.TextBasedSmsColumns.DATE);
-
-                if (timestamp != null && preferences.getDataTypePreferences().getMaxSyncedDate(SMS) < timestamp) {
-                    preferences.getDataTypePreferences().setMaxSyncedDate(SMS, timestamp);
-                }
-
-                if (LOCAL_LOGV) Log.v(TAG, "inserted " + uri);
-            }
+        if (type != null && (type == Telephony.TextBasedSmsColumns.MESSAGE_TYPE_INBOX || type == Telephony.TextBasedSmsColumns.MESSAGE_TYPE_SENT)
+                && !smsInserter.isPending(values) && !isExistingSms(values)) {
+            smsInserter.add(values);
         } else {
             if (LOCAL_LOGV) Log.d(TAG, "ignoring sms");
         }
@@ -270,14 +360,106 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
     private void importCallLog(final Message message) throws MessagingException, IOException {
         if (LOCAL_LOGV) Log.v(TAG, "importCallLog(" + message + ")");
         final ContentValues values = converter.messageToContentValues(message);
-        if (!callLogExists(values)) {
-            final Uri uri = resolver.insert(Consts.CALLLOG_PROVIDER, values);
-            if (uri != null) callLogIds.add(uri.getLastPathSegment());
+        if (!callLogInserter.isPending(values) && !isExistingCallLog(values)) {
+            callLogInserter.add(values);
         } else {
             if (LOCAL_LOGV) Log.d(TAG, "ignoring call log");
         }
     }
 
+    /**
+     * Only complete restores of all messages are incremental, limited or starred-only
+     * restores search the whole folder.
+     */
+    private static boolean isIncremental(RestoreConfig config) {
+        return config.maxRestore <= 0 && !config.restoreOnlyStarred;
+    }
+
+    private MessageWindows getMessageWindows(BackupImapStore imapStore, DataType dataType, RestoreConfig config)
+            throws MessagingException {
+        final BackupImapStore.BackupFolder folder = imapStore.getFolder(dataType, preferences.getDataTypePreferences());
+        final RestoreMark mark = isIncremental(config) ? getRestoreMark(dataType) : null;
+        if (mark != null) {
+            Log.d(TAG, "restoring " + dataType + " after " + mark);
+            return folder.getMessageWindowsAfter(mark.uidValidity, mark.lastUid);
+        } else {
+            return folder.getMessageWindows(config.maxRestore, config.restoreOnlyStarred, null);
+        }
+    }
+
+    /**
+     * @return the mark of the last restore, if it can still be used
+     */
+    private @Nullable RestoreMark getRestoreMark(DataType dataType) {
+        final RestoreMark mark = preferences.getDataTypePreferences().getRestoreMark(dataType);
+        if (mark == null) {
+            return null;
+        } else if (!mark.folder.equals(preferences.getDataTypePreferences().getFolder(dataType))) {
+            Log.d(TAG, "folder of " + dataType + " changed since last restore");
+            return null;
+        } else if (countRows(dataType, mark.time) < mark.rows) {
+            Log.i(TAG, dataType + " deleted since last restore, restoring all messages");
+            return null;
+        } else {
+            return mark;
+        }
+    }
+
+    private void saveRestoreMarks(Map<DataType, MessageWindows> sources) throws MessagingException {
+        final long now = System.currentTimeMillis();
+        for (Map.Entry<DataType, MessageWindows> entry : sources.entrySet()) {
+            final DataType dataType = entry.getKey();
+            final long uidValidity = entry.getValue().getUidValidity();
+            final long lastUid = entry.getValue().getLastUid();
+            final int rows = countRows(dataType, now);
+            if (uidValidity < 0 || lastUid < 0 || rows < 0) continue;
+
+            final RestoreMark mark = new RestoreMark(preferences.getDataTypePreferences().getFolder(dataType),
+                    uidValidity, lastUid, now, rows);
+            if (LOCAL_LOGV) Log.v(TAG, "saving " + mark + " for " + dataType);
+            preferences.getDataTypePreferences().setRestoreMark(dataType, mark);
+        }
+    }
+
+    /**
+     * @return the number of rows dated up to <code>time</code>, or -1 if the provider can't be queried
+     */
+    private int countRows(DataType dataType, long time) {
+        final Uri uri = dataType == CALLLOG ? Consts.CALLLOG_PROVIDER : Consts.SMS_PROVIDER;
+        final Cursor c = resolver.query(uri,
+            new String[] { "_id" },
+            "date <= ?",
+            new String[] { String.valueOf(time) },
+            null
+        );
+        int rows = -1;
+        if (c != null) {
+            rows = c.getCount();
+            c.close();
+        }
+        return rows;
+    }
+
+    private void loadExistingRows(RestoreConfig config) {
+        existingSms = config.restoreSms ? ExistingRows.load(resolver, Consts.SMS_PROVIDER,
+            Telephony.TextBasedSmsColumns.DATE,
+            Telephony.TextBasedSmsColumns.ADDRESS,
+            Telephony.TextBasedSmsColumns.TYPE) : null;
+        existingCallLog = config.restoreCallLog ? ExistingRows.load(resolver, Consts.CALLLOG_PROVIDER,
+            CallLog.Calls.DATE,
+            CallLog.Calls.NUMBER,
+            CallLog.Calls.DURATION,
+            CallLog.Calls.TYPE) : null;
+    }
+
+    private boolean isExistingSms(ContentValues values) {
+        return existingSms == null ? smsExists(values) : existingSms.contains(values);
+    }
+
+    private boolean isExistingCallLog(ContentValues values) {
+        return existingCallLog == null ? callLogExists(values) : existingCallLog.contains(values);
+    }
+
     private boolean callLogExists(ContentValues values) {
         Cursor c = resolver.query(Consts.CALLLOG_PROVIDER,
             new String[] { "_id" },
@@ -110,7 +110,7 @@ public abstract class ServiceBase extends Service {
         if (!BackupImapStore.isValidUri(uri)) {
             throw new MessagingException("No valid IMAP URI: "+uri);
         }
-        return new BackupImapStore(getApplicationContext(), uri);
+        return new BackupImapStore(getApplicationContext(), uri, getPreferences().isImapCompressionEnabled());
     }
 
     protected AuthPreferences getAuthPreferences() {
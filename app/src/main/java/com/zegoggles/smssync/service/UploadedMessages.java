@@ -0,0 +1,160 @@
+package com.zegoggles.smssync.service;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import com.fsck.k9.mail.Message;
+import com.zegoggles.smssync.mail.BodySpool;
+import com.zegoggles.smssync.mail.ConversionResult;
+import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.mail.Headers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Remembers which messages have been uploaded, so that messages are not sent again
+ * if they are converted a second time, e.g. after an interrupted backup.
+ * <p>
+ * Messages are identified by their Message-ID, which is an MD5 digest of date, address and
+ * type, together with the account and folder they were uploaded to. MMS dates only have a
+ * resolution of seconds, so their provider id is included as well. A 64 bit hash of these is
+ * appended to a file after each upload, and loaded into a sorted array for lookups.
+ */
+public class UploadedMessages {
+    static final String FILE_NAME = "uploaded.idx";
+    private static final long[] EMPTY = new long[0];
+
+    private final File file;
+    private long[] uploaded;
+
+    public UploadedMessages(File directory) {
+        this.file = new File(directory, FILE_NAME);
+    }
+
+    /**
+     * Removes all messages which have been uploaded before from the result, and releases
+     * their spooled bodies. Its max date still includes them, so the max synced date moves
+     * past them.
+     *
+     * @param scope the account and folder the messages are uploaded to
+     * @return the number of messages removed
+     */
+    synchronized int removeUploaded(@NonNull ConversionResult result, @NonNull String scope) {
+        final long[] digests = getUploaded();
+        if (digests.length == 0) return 0;
+
+        int removed = 0;
+        final List<Message> messages = result.getMessages();
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            final Long digest = getDigest(messages.get(i), scope);
+            if (digest != null && Arrays.binarySearch(digests, digest) >= 0) {
+                BodySpool.release(Collections.singletonList(messages.get(i)));
+                result.remove(i);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Records messages which have been accepted by the server.
+     *
+     * @param scope the account and folder the messages were uploaded to
+     */
+    synchronized void add(@NonNull List<? extends Message> messages, @NonNull String scope) {
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            for (Message message : messages) {
+                final Long digest = getDigest(message, scope);
+                if (digest != null) {
+                    out.writeLong(digest);
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "error writing " + file, e);
+        } finally {
+            close(out);
+        }
+    }
+
+    /**
+     * Forgets all uploaded messages, e.g. when the sync state is reset or a different
+     * account or folder is used.
+     */
+    public synchronized void clear() {
+        uploaded = null;
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "could not delete " + file);
+        }
+    }
+
+    private long[] getUploaded() {
+        if (uploaded == null) {
+            uploaded = load();
+            if (LOCAL_LOGV) Log.v(TAG, "loaded " + uploaded.length + " uploaded message digests");
+        }
+        return uploaded;
+    }
+
+    private long[] load() {
+        if (!file.exists()) return EMPTY;
+
+        long[] digests = new long[(int) (file.length() / 8)];
+        int count = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            while (count < digests.length) {
+                digests[count] = in.readLong();
+                count++;
+            }
+        } catch (EOFException ignored) {
+        } catch (IOException e) {
+            Log.w(TAG, "error reading " + file, e);
+        } finally {
+            close(in);
+        }
+        if (count < digests.length) {
+            digests = Arrays.copyOf(digests, count);
+        }
+        Arrays.sort(digests);
+        return digests;
+    }
+
+    /**
+     * @return a hash of the Message-ID and the scope, or null if the message has no Message-ID
+     */
+    static @Nullable Long getDigest(Message message, @NonNull String scope) {
+        final String messageId = Headers.get(message, Headers.MESSAGE_ID);
+        if (messageId == null) {
+            return null;
+        }
+        final String id = DataType.MMS.name().equals(Headers.get(message, Headers.DATATYPE)) ?
+                Headers.get(message, Headers.ID) : null;
+        return ExistingRows.key(new String[] { scope, messageId, id });
+    }
+
+    private static void close(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
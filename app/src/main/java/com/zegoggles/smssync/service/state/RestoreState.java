@@ -59,9 +59,9 @@ public class RestoreState extends State {
         if (label != null) return label;
         switch (state) {
             case RESTORE:
-                label = resources.getString(R.string.status_restore_details,
-                        currentRestoredCount,
-                        itemsToRestore);
+                label = itemsToRestore < 0 ?
+                        resources.getString(R.string.status_restore_details_unknown_total, currentRestoredCount) :
+                        resources.getString(R.string.status_restore_details, currentRestoredCount, itemsToRestore);
                 if (dataType != null) {
                     label += " ("+resources.getString(dataType.resId)+")";
                 }
@@ -6,11 +6,35 @@ public final class Sanitizer {
 
     private Sanitizer() {}
 
+    /**
+     * Removes control characters, i.e. what {@code \p{Cntrl}} matches: [\x00-\x1F\x7F].
+     */
     public static String sanitize(String s) {
-        return s != null ? s.replaceAll("\\p{Cntrl}", "") : null;
+        if (s == null) return null;
+
+        final int length = s.length();
+        int i = 0;
+        while (i < length && !isControl(s.charAt(i))) {
+            i++;
+        }
+        if (i == length) {
+            return s;
+        }
+        final StringBuilder sb = new StringBuilder(length - 1).append(s, 0, i);
+        for (; i < length; i++) {
+            final char c = s.charAt(i);
+            if (!isControl(c)) {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
     }
 
     public static String encodeLocal(String s) {
         return (s != null ? EncoderUtil.encodeAddressLocalPart(sanitize(s)) : null);
     }
+
+    private static boolean isControl(char c) {
+        return c < 0x20 || c == 0x7f;
+    }
 }
@@ -10,6 +10,9 @@ import org.robolectric.Robolectric;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.RuntimeEnvironment;
 
+import java.io.File;
+import java.io.FileOutputStream;
+
 import static org.fest.assertions.api.Assertions.assertThat;
 
 @RunWith(RobolectricTestRunner.class)
@@ -33,4 +36,16 @@ public class MainActivityTest {
             activity.getString(R.string.ui_enable_auto_sync_no_enabled_summary)
         );
     }
+
+    @Test public void shouldKeepUploadedMessagesWhenReset() throws Exception {
+        File index = new File(activity.getFilesDir(), "uploaded.idx");
+        FileOutputStream out = new FileOutputStream(index);
+        out.write(new byte[8]);
+        out.close();
+
+        activity.reset();
+
+        // entries are scoped to account and folder, and let a full backup skip what is on the server
+        assertThat(index.exists()).isTrue();
+    }
 }
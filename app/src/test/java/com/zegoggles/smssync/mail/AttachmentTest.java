@@ -1,18 +1,156 @@
 package com.zegoggles.smssync.mail;
 
+import android.content.ContentResolver;
+import android.net.Uri;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.internet.MimeBodyPart;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mail.internet.MimeMultipart;
+import com.fsck.k9.mail.internet.TextBody;
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static com.fsck.k9.mail.internet.MimeMessageHelper.setBody;
 import static com.zegoggles.smssync.mail.Attachment.encodeRFC2231;
 import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 @RunWith(RobolectricTestRunner.class)
 public class AttachmentTest {
+    private static final Uri PART_URI = Uri.parse("content://mms/part/1");
+
+    private ContentResolver resolver;
+    private File cacheDir;
+    private byte[] content;
+
+    @Before
+    public void before() throws Exception {
+        cacheDir = RuntimeEnvironment.application.getCacheDir();
+        content = new byte[100 * 1024];
+        new Random(42).nextBytes(content);
+        resolver = resolverFor(content);
+    }
 
     @Test
     public void shouldEncodeRFC2231() throws Exception {
         assertThat(encodeRFC2231("key", "value")).isEqualTo("; key=value");
         assertThat(encodeRFC2231("key", "\"*über*")).isEqualTo("; key*=UTF-8''%22%2A%C3%BCber%2A");
     }
+
+    @Test
+    public void shouldOnlyReadSpooledBodyOnce() throws Exception {
+        BodySpool spool = new BodySpool(cacheDir, BodySpool.MAX_SIZE);
+        MimeBodyPart spooled = Attachment.createSpooledPartFromUri(spool, resolver, PART_URI, "image.jpg", "image/jpeg");
+        byte[] expected = write(Attachment.createPartFromUri(resolverFor(content), PART_URI, "image.jpg", "image/jpeg"));
+
+        for (int i = 0; i < 3; i++) {
+            assertThat(write(spooled)).isEqualTo(expected);
+        }
+        verify(resolver, times(1)).openInputStream(any(Uri.class));
+
+        assertThat(spool.getUsed()).isEqualTo((long) expected.length);
+    }
+
+    @Test
+    public void shouldWriteBodyDirectlyIfSpoolIsFull() throws Exception {
+        BodySpool spool = new BodySpool(cacheDir, 1024);
+        MimeBodyPart spooled = Attachment.createSpooledPartFromUri(spool, resolver, PART_URI, "image.jpg", "image/jpeg");
+        byte[] expected = write(Attachment.createPartFromUri(resolverFor(content), PART_URI, "image.jpg", "image/jpeg"));
+
+        assertThat(write(spooled)).isEqualTo(expected);
+        assertThat(write(spooled)).isEqualTo(expected);
+
+        assertThat(spool.getUsed()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldReleaseSpooledBodiesOfMessages() throws Exception {
+        BodySpool spool = new BodySpool(cacheDir, BodySpool.MAX_SIZE);
+        MimeBodyPart part = Attachment.createSpooledPartFromUri(spool, resolver, PART_URI, "image.jpg", "image/jpeg");
+        Message message = mmsMessage(part);
+        message.calculateSize();
+        assertThat(spool.getUsed()).isGreaterThan(0L);
+
+        BodySpool.release(Collections.singletonList(message));
+
+        assertThat(spool.getUsed()).isEqualTo(0L);
+    }
+
+    /**
+     * Batching a message (which calculates its size) and appending it needs to encode each
+     * attachment three times without the spool, and only once with it.
+     */
+    @Test
+    public void shouldEncodeAttachmentOnceWhenAppending() throws Exception {
+        final ContentResolver direct = resolverFor(content);
+        final ContentResolver spooled = resolverFor(content);
+        final BodySpool spool = new BodySpool(cacheDir, BodySpool.MAX_SIZE);
+
+        final List<byte[]> directStored = append(mmsMessage(
+                Attachment.createPartFromUri(direct, PART_URI, "image.jpg", "image/jpeg")));
+        final Message spooledMessage = mmsMessage(
+                Attachment.createSpooledPartFromUri(spool, spooled, PART_URI, "image.jpg", "image/jpeg"));
+        final List<byte[]> spooledStored = append(spooledMessage);
+        BodySpool.release(Collections.singletonList(spooledMessage));
+
+        // the messages only differ in their MIME boundaries
+        assertThat(spooledStored.get(0).length).isEqualTo(directStored.get(0).length);
+        verify(direct, times(3)).openInputStream(any(Uri.class));
+        verify(spooled, times(1)).openInputStream(any(Uri.class));
+        assertThat(spool.getUsed()).isEqualTo(0L);
+    }
+
+    /**
+     * Does what a backup does with a message: calculate its size for the batch, then append.
+     */
+    private static List<byte[]> append(Message message) throws Exception {
+        message.calculateSize();
+        final ImapStandInServer server = new ImapStandInServer();
+        new ImapAppender(server, ImapCapabilities.of("MULTIAPPEND", "LITERAL+"))
+                .append("\"MMS\"", Collections.singletonList(message));
+        return server.getStoredMessages();
+    }
+
+    private static Message mmsMessage(MimeBodyPart attachment) throws Exception {
+        final MimeMessage message = new MimeMessage();
+        message.setSubject("MMS");
+        final MimeMultipart body = MimeMultipart.newInstance();
+        body.addBodyPart(new MimeBodyPart(new TextBody("Look at this"), "text/plain"));
+        body.addBodyPart(attachment);
+        setBody(message, body);
+        return message;
+    }
+
+    private static byte[] write(MimeBodyPart part) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        part.getBody().writeTo(out);
+        return out.toByteArray();
+    }
+
+    private static ContentResolver resolverFor(final byte[] data) throws Exception {
+        final ContentResolver resolver = mock(ContentResolver.class);
+        when(resolver.openInputStream(any(Uri.class))).thenAnswer(new Answer<InputStream>() {
+            @Override public InputStream answer(InvocationOnMock invocation) {
+                return new ByteArrayInputStream(data);
+            }
+        });
+        return resolver;
+    }
 }
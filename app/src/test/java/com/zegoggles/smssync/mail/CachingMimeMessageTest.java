@@ -0,0 +1,117 @@
+package com.zegoggles.smssync.mail;
+
+import com.fsck.k9.mail.Address;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.filter.EOLConvertingOutputStream;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mail.internet.TextBody;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Date;
+
+import static com.fsck.k9.mail.internet.MimeMessageHelper.setBody;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class CachingMimeMessageTest {
+    private static final Date SENT = new Date(1500000000000L);
+
+    @Test public void shouldWriteSameBytesAsMimeMessage() throws Exception {
+        Message expected = populate(new MimeMessage(), 1);
+        Message cached = populate(new CachingMimeMessage(), 1);
+
+        assertThat(write(cached)).isEqualTo(write(expected));
+        assertThat(write(cached)).isEqualTo(write(expected));
+        assertThat(cached.calculateSize()).isEqualTo(expected.calculateSize());
+    }
+
+    @Test public void shouldRenderAgainAfterChanges() throws Exception {
+        Message cached = populate(new CachingMimeMessage(), 1);
+        final long size = cached.calculateSize();
+        write(cached);
+
+        cached.setHeader(Headers.THREAD_ID, "123456789");
+
+        assertThat(new String(write(cached), "UTF-8")).contains(Headers.THREAD_ID + ": 123456789");
+        assertThat(cached.calculateSize()).isGreaterThan(size);
+    }
+
+    /**
+     * A backup writes each message three times: size for the batch, size for the APPEND
+     * literal, the literal itself. The message should only be rendered the first time.
+     */
+    @Test public void shouldRenderOnlyOnceWhenWrittenLikeBackup() throws Exception {
+        CountingBody plainBody = new CountingBody();
+        CountingBody cachedBody = new CountingBody();
+        Message plain = populate(new MimeMessage(), 1);
+        Message cached = populate(new CachingMimeMessage(), 1);
+        setBody(plain, plainBody);
+        setBody(cached, cachedBody);
+
+        writeLikeBackup(plain);
+        writeLikeBackup(cached);
+
+        assertThat(plainBody.writes).isEqualTo(3);
+        assertThat(cachedBody.writes).isEqualTo(1);
+    }
+
+    private static void writeLikeBackup(Message message) throws Exception {
+        final OutputStream sink = new OutputStream() {
+            @Override public void write(int b) { }
+            @Override public void write(byte[] b, int off, int len) { }
+        };
+        message.calculateSize();
+        message.calculateSize();
+        final EOLConvertingOutputStream out = new EOLConvertingOutputStream(sink);
+        message.writeTo(out);
+        out.flush();
+    }
+
+    private static class CountingBody extends TextBody {
+        int writes;
+
+        CountingBody() {
+            super("Hi! Are we still on for tonight?");
+        }
+
+        @Override public void writeTo(OutputStream out) throws IOException, MessagingException {
+            writes++;
+            super.writeTo(out);
+        }
+    }
+
+    private static Message populate(Message message, int i) throws Exception {
+        message.setSubject("SMS with Jürgen Test");
+        setBody(message, new TextBody("Hi! Are we still on for tonight? Let me know when you are at the station. " + i));
+        message.setFrom(new Address("+491234567" + i + "@unknown.email", "Jürgen Test"));
+        message.setRecipient(Message.RecipientType.TO, new Address("me@example.com"));
+        message.setHeader(Headers.REFERENCES, "<3f8a1b.12@sms-backup-plus.local>");
+        message.setHeader(Headers.MESSAGE_ID, "<0cc175b9c0f1b6a831c399e269772661@sms-backup-plus.local>");
+        message.setHeader(Headers.ADDRESS, "+491234567" + i);
+        message.setHeader(Headers.DATATYPE, DataType.SMS.toString());
+        message.setHeader(Headers.BACKUP_TIME, "14 Jul 2017 02:40:00 GMT");
+        message.setHeader(Headers.VERSION, "1.5.11");
+        message.setSentDate(SENT, false);
+        message.setHeader(Headers.ID, String.valueOf(i));
+        message.setHeader(Headers.TYPE, "1");
+        message.setHeader(Headers.DATE, String.valueOf(SENT.getTime()));
+        message.setHeader(Headers.THREAD_ID, "7");
+        message.setHeader(Headers.READ, "1");
+        message.setHeader(Headers.STATUS, "-1");
+        message.setHeader(Headers.PROTOCOL, "0");
+        message.setHeader(Headers.SERVICE_CENTER, "+491770610000");
+        return message;
+    }
+
+    private static byte[] write(Message message) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        return out.toByteArray();
+    }
+}
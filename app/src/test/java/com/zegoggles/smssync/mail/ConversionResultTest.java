@@ -5,13 +5,8 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 
-import java.util.HashMap;
-import java.util.Map;
-
 import static org.fest.assertions.api.Assertions.assertThat;
-import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.when;
 
 @RunWith(RobolectricTestRunner.class)
 public class ConversionResultTest {
@@ -23,47 +18,55 @@ public class ConversionResultTest {
 
     @Test public void shouldAddMessage() throws Exception {
         ConversionResult result = new ConversionResult(DataType.SMS);
-        Message message = mock(Message.class);
-        when(message.getHeader(anyString())).thenReturn(new String[] {});
-        Map<String, String> map = new HashMap<String, String>();
-        result.add(message, map);
+        result.add(mock(Message.class), sms(MessageRecord.UNKNOWN));
         assertThat(result.isEmpty()).isFalse();
         assertThat(result.getMaxDate()).isEqualTo(-1);
     }
 
     @Test public void shouldAddMessageWithValidDate() throws Exception {
         ConversionResult result = new ConversionResult(DataType.SMS);
-        Message message = mock(Message.class);
-        when(message.getHeader(Headers.DATE)).thenReturn(new String[] { "12345" });
-        Map<String, String> map = new HashMap<String, String>();
-        result.add(message, map);
+        result.add(mock(Message.class), sms(12345));
         assertThat(result.isEmpty()).isFalse();
         assertThat(result.getMaxDate()).isEqualTo(12345);
     }
 
-    @Test public void shouldAddMessageWithInvalidDate() throws Exception {
+    @Test public void shouldAddMessageAndRememberMaxDate() throws Exception {
         ConversionResult result = new ConversionResult(DataType.SMS);
-        Message message = mock(Message.class);
-        when(message.getHeader(Headers.DATE)).thenReturn(new String[] { "foo" });
-        Map<String, String> map = new HashMap<String, String>();
-        result.add(message, map);
+        result.add(mock(Message.class), sms(12345));
         assertThat(result.isEmpty()).isFalse();
-        assertThat(result.getMaxDate()).isEqualTo(-1);
+        assertThat(result.getMaxDate()).isEqualTo(12345);
+
+        result.add(mock(Message.class), sms(123456789));
+        assertThat(result.getMaxDate()).isEqualTo(123456789);
+
+        result.add(mock(Message.class), sms(1234));
+        assertThat(result.getMaxDate()).isEqualTo(123456789);
     }
 
-    @Test public void shouldAddMessageAndRememberMaxDate() throws Exception {
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNotAddRecordOfDifferentType() throws Exception {
+        new ConversionResult(DataType.SMS).add(mock(Message.class),
+                new CallLogRecord(1, "1234", 1, 12345, 10));
+    }
+
+    @Test public void shouldAddAllMessagesFromOtherResult() throws Exception {
         ConversionResult result = new ConversionResult(DataType.SMS);
-        Message message = mock(Message.class);
-        when(message.getHeader(Headers.DATE)).thenReturn(new String[] { "12345" });
+        ConversionResult other = new ConversionResult(DataType.SMS);
+        other.add(mock(Message.class), sms(12345));
 
-        Map<String, String> map = new HashMap<String, String>();
-        result.add(message, map);
-        assertThat(result.isEmpty()).isFalse();
+        result.addAll(other);
+
+        assertThat(result.size()).isEqualTo(1);
+        assertThat(result.getRecords()).hasSize(1);
         assertThat(result.getMaxDate()).isEqualTo(12345);
+    }
 
-        Message newerMessage = mock(Message.class);
-        when(newerMessage.getHeader(Headers.DATE)).thenReturn(new String[]{"123456789"});
-        result.add(newerMessage, map);
-        assertThat(result.getMaxDate()).isEqualTo(123456789);
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNotAddAllMessagesOfDifferentType() throws Exception {
+        new ConversionResult(DataType.SMS).addAll(new ConversionResult(DataType.CALLLOG));
+    }
+
+    private static SmsRecord sms(long date) {
+        return new SmsRecord(1, "1234", "body", 1, date, null, null, null, null, null);
     }
 }
@@ -0,0 +1,96 @@
+package com.zegoggles.smssync.mail;
+
+import com.fsck.k9.mail.store.imap.ImapMessage;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+public class FolderSearcherTest {
+    private static final String CRITERIA = "1:* (HEADER X-SMSSYNC-DATATYPE \"SMS\") UNDELETED";
+
+    @Mock BackupImapStore.BackupFolder folder;
+    private ImapStandInServer server;
+
+    @Before public void before() {
+        initMocks(this);
+        server = new ImapStandInServer();
+    }
+
+    @Test public void shouldTakeUidNextAndUidValidityFromSelect() throws Exception {
+        server.setUidValidity(3857529045L);
+        server.addMessages(10);
+        FolderSearcher searcher = new FolderSearcher(server, "\"SMS\"", CRITERIA, false);
+
+        assertThat(searcher.getUidNext()).isEqualTo(11L);
+        assertThat(searcher.getUidValidity()).isEqualTo(3857529045L);
+        assertThat(server.getCommands()).containsExactly("SELECT \"SMS\"");
+    }
+
+    @Test public void shouldSearchFolderInUidWindows() throws Exception {
+        server.addMessages(25000);
+        for (long uid = 3; uid <= 25000; uid += 3) {
+            server.expunge(uid);
+        }
+        MessageWindows windows = new UidWindows(folder, new FolderSearcher(server, "\"SMS\"", CRITERIA, false));
+
+        assertThat(windows.count()).isEqualTo(-1);
+        int count = 0;
+        long previous = 0;
+        List<ImapMessage> messages;
+        while ((messages = windows.next(100)) != null) {
+            for (ImapMessage message : messages) {
+                long uid = Long.parseLong(message.getUid());
+                assertThat(uid).isGreaterThan(previous);
+                assertThat(uid % 3).isNotEqualTo(0L);
+                previous = uid;
+                count++;
+            }
+        }
+        assertThat(count).isEqualTo(25000 - 25000 / 3);
+        assertThat(server.getCommands().get(0)).isEqualTo("SELECT \"SMS\"");
+        assertThat(server.getCommands().get(1)).isEqualTo("UID SEARCH UID 1:" + UidWindows.MIN_SEARCH_WIDTH + " " + CRITERIA);
+        assertThat(server.getCommands().size()).isGreaterThan(3);
+        assertThat(server.getMaxSearchResults()).isLessThanOrEqualTo(UidWindows.MAX_SEARCH_WIDTH);
+    }
+
+    @Test public void shouldCountWithESearch() throws Exception {
+        server.addMessages(1500);
+        server.expunge(1);
+        MessageWindows windows = new UidWindows(folder, new FolderSearcher(server, "\"SMS\"", CRITERIA, true));
+
+        assertThat(windows.count()).isEqualTo(1499);
+        assertThat(server.getCommands()).containsExactly(
+                "SELECT \"SMS\"",
+                "UID SEARCH RETURN (COUNT) UID 1:1500 " + CRITERIA);
+    }
+
+    @Test public void shouldOnlySearchMessagesAddedSinceLastRestore() throws Exception {
+        server.setUidValidity(7);
+        server.addMessages(5000);
+        server.addMessages(20);
+        MessageWindows windows = new UidWindows(folder, new FolderSearcher(server, "\"SMS\"", CRITERIA, false), 7, 5000);
+
+        List<ImapMessage> messages = windows.next(100);
+        assertThat(messages).hasSize(20);
+        assertThat(messages.get(0).getUid()).isEqualTo("5001");
+        assertThat(windows.next(100)).isNull();
+        assertThat(server.getCommands()).contains("UID SEARCH UID 5001:5020 " + CRITERIA);
+    }
+
+    @Test public void shouldSearchWholeFolderIfMailboxCannotBeSelected() throws Exception {
+        server.addMessages(10);
+        FolderSearcher searcher = new FolderSearcher(server, null, CRITERIA, false);
+
+        assertThat(searcher.getUidNext()).isEqualTo(-1L);
+        assertThat(searcher.getUidValidity()).isEqualTo(-1L);
+        assertThat(server.getCommands()).isEmpty();
+    }
+}
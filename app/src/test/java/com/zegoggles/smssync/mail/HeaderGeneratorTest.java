@@ -1,7 +1,5 @@
 package com.zegoggles.smssync.mail;
 
-import android.provider.CallLog;
-import android.provider.Telephony;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.internet.MimeMessage;
 import org.junit.Before;
@@ -9,11 +7,17 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.GregorianCalendar;
+import java.util.Locale;
+import java.util.TimeZone;
 
+import static com.zegoggles.smssync.mail.HeaderGenerator.createMessageId;
+import static com.zegoggles.smssync.mail.HeaderGenerator.toGMTString;
 import static com.zegoggles.smssync.mail.Headers.get;
+import static com.zegoggles.smssync.utils.Sanitizer.sanitize;
 import static org.fest.assertions.api.Assertions.assertThat;
 
 @RunWith(RobolectricTestRunner.class)
@@ -28,12 +32,11 @@ public class HeaderGeneratorTest {
 
     @Test public void testShouldGenerateStandardHeaders() throws Exception {
         Message message = new MimeMessage();
-        Map<String, String> map = new HashMap<String, String>();
         Date sent = new Date();
 
         PersonRecord person = new PersonRecord(0, null, null, null);
 
-        generator.setHeaders(message, map, DataType.SMS, "1234", person, sent, 0);
+        generator.setHeaders(message, sms(), "1234", person, sent, 0);
 
         assertThat(get(message, Headers.ADDRESS)).isEqualTo("1234");
         assertThat(get(message, Headers.DATATYPE)).isEqualTo("SMS");
@@ -49,25 +52,17 @@ public class HeaderGeneratorTest {
 
     @Test public void testShouldGenerateSMSHeaders() throws Exception {
         Message message = new MimeMessage();
-        Map<String, String> map = new HashMap<String, String>();
         Date sent = new Date();
 
         PersonRecord person = new PersonRecord(0, null, null, null);
 
-        map.put(android.provider.BaseColumns._ID, "someId");
-        map.put(Telephony.TextBasedSmsColumns.TYPE, "type");
-        map.put(Telephony.TextBasedSmsColumns.DATE, "date");
-        map.put(Telephony.TextBasedSmsColumns.THREAD_ID, "tid");
-        map.put(Telephony.TextBasedSmsColumns.READ, "read");
-        map.put(Telephony.TextBasedSmsColumns.STATUS, "status");
-        map.put(Telephony.TextBasedSmsColumns.PROTOCOL, "protocol");
-        map.put(Telephony.TextBasedSmsColumns.SERVICE_CENTER, "svc");
+        SmsRecord sms = new SmsRecord(42, "1234", "body", 2, 1234567890L, "tid", "read", "status", "protocol", "svc");
 
-        generator.setHeaders(message, map, DataType.SMS, "1234", person, sent, 0);
+        generator.setHeaders(message, sms, "1234", person, sent, 0);
 
-        assertThat(get(message, Headers.ID)).isEqualTo("someId");
-        assertThat(get(message, Headers.TYPE)).isEqualTo("type");
-        assertThat(get(message, Headers.DATE)).isEqualTo("date");
+        assertThat(get(message, Headers.ID)).isEqualTo("42");
+        assertThat(get(message, Headers.TYPE)).isEqualTo("2");
+        assertThat(get(message, Headers.DATE)).isEqualTo("1234567890");
         assertThat(get(message, Headers.THREAD_ID)).isEqualTo("tid");
         assertThat(get(message, Headers.READ)).isEqualTo("read");
         assertThat(get(message, Headers.STATUS)).isEqualTo("status");
@@ -77,52 +72,131 @@ public class HeaderGeneratorTest {
 
     @Test public void testShouldGenerateCallLogHeaders() throws Exception {
         Message message = new MimeMessage();
-        Map<String, String> map = new HashMap<String, String>();
         Date sent = new Date();
 
         PersonRecord person = new PersonRecord(0, null, null, null);
 
-        map.put(CallLog.Calls._ID, "id");
-        map.put(CallLog.Calls.TYPE, "type");
-        map.put(CallLog.Calls.DURATION, "duration");
-        map.put(CallLog.Calls.DATE, "date");
+        CallLogRecord call = new CallLogRecord(42, "1234", 3, 1234567890L, 60);
 
-        generator.setHeaders(message, map, DataType.CALLLOG, "1234", person, sent, 0);
+        generator.setHeaders(message, call, "1234", person, sent, 0);
 
-        assertThat(get(message, Headers.ID)).isEqualTo("id");
-        assertThat(get(message, Headers.TYPE)).isEqualTo("type");
-        assertThat(get(message, Headers.DURATION)).isEqualTo("duration");
-        assertThat(get(message, Headers.DATE)).isEqualTo("date");
+        assertThat(get(message, Headers.ID)).isEqualTo("42");
+        assertThat(get(message, Headers.TYPE)).isEqualTo("3");
+        assertThat(get(message, Headers.DURATION)).isEqualTo("60");
+        assertThat(get(message, Headers.DATE)).isEqualTo("1234567890");
     }
 
     @Test public void testShouldGenerateMMSHeaders() throws Exception {
         Message message = new MimeMessage();
-        Map<String, String> map = new HashMap<String, String>();
         Date sent = new Date();
 
         PersonRecord person = new PersonRecord(0, null, null, null);
 
-        map.put(Telephony.BaseMmsColumns._ID, "id");
-        map.put(Telephony.BaseMmsColumns.MESSAGE_TYPE, "type");
-        map.put(Telephony.BaseMmsColumns.THREAD_ID, "tid");
-        map.put(Telephony.BaseMmsColumns.DATE, "date");
-        map.put(Telephony.BaseMmsColumns.READ, "read");
+        MmsRecord mms = new MmsRecord(42, 1234567890L, "type", "tid", "read", 1);
 
-        generator.setHeaders(message, map, DataType.MMS, "1234", person, sent, 0);
+        generator.setHeaders(message, mms, "1234", person, sent, 0);
 
-        assertThat(get(message, Headers.ID)).isEqualTo("id");
+        assertThat(get(message, Headers.ID)).isEqualTo("42");
         assertThat(get(message, Headers.TYPE)).isEqualTo("type");
         assertThat(get(message, Headers.THREAD_ID)).isEqualTo("tid");
         assertThat(get(message, Headers.READ)).isEqualTo("read");
-        assertThat(get(message, Headers.DATE)).isEqualTo("date");
+        assertThat(get(message, Headers.DATE)).isEqualTo("1234567890");
     }
 
     @Test public void testShouldSetHeadersWithNullAddress() throws Exception {
         Message message = new MimeMessage();
-        Map<String, String> map = new HashMap<String, String>();
         Date sent = new Date();
         PersonRecord person = new PersonRecord(0, null, null, null);
 
-        generator.setHeaders(message, map, DataType.SMS, null, person, sent, 0);
+        generator.setHeaders(message, sms(), null, person, sent, 0);
+    }
+
+    @Test public void testShouldOmitUnknownNumericHeaders() throws Exception {
+        Message message = new MimeMessage();
+        PersonRecord person = new PersonRecord(0, null, null, null);
+
+        generator.setHeaders(message, sms(), "1234", person, new Date(), 0);
+
+        assertThat(get(message, Headers.ID)).isNull();
+        assertThat(get(message, Headers.TYPE)).isNull();
+        assertThat(get(message, Headers.DATE)).isNull();
+    }
+
+    @Test public void testShouldGenerateMessageId() throws Exception {
+        Date sent = new Date(1234567890000L);
+
+        assertThat(createMessageId(sent, "+49 123 456", 1)).isEqualTo("<4dea824dc3d63f8e8da285029eaea716@sms-backup-plus.local>");
+        assertThat(createMessageId(sent, null, 1)).isEqualTo("<0f8cd72979eacc4d8675eeb14d3772a9@sms-backup-plus.local>");
+    }
+
+    @Test public void testShouldUseSameBackupTimeForAllMessages() throws Exception {
+        final long[] now = { 1234567890000L };
+        HeaderGenerator generator = new HeaderGenerator("ref", "1.0") {
+            @Override Date now() {
+                return new Date(now[0]);
+            }
+        };
+        PersonRecord person = new PersonRecord(0, null, null, null);
+        Message first = new MimeMessage();
+        Message second = new MimeMessage();
+
+        generator.setHeaders(first, sms(), "1234", person, new Date(), 0);
+        now[0] += 60 * 1000;
+        generator.setHeaders(second, sms(), "1234", person, new Date(), 0);
+
+        assertThat(get(first, Headers.BACKUP_TIME)).isEqualTo(toGMTString(new Date(1234567890000L)));
+        assertThat(get(second, Headers.BACKUP_TIME)).isEqualTo(get(first, Headers.BACKUP_TIME));
+    }
+
+    /**
+     * Compares the generated values with what the previous implementation (regex sanitizer,
+     * formatter and digest per message, String.format hex encoding) produced.
+     */
+    @Test public void shouldGenerateSameValuesAsBefore() throws Exception {
+        final int count = 1000;
+        final String[] addresses = new String[count];
+        final Date[] dates = new Date[count];
+        for (int i = 0; i < count; i++) {
+            addresses[i] = (i % 10 == 0 ? "+49\t123\u0000" : "+49 123 ") + i + (i % 7 == 0 ? "\u007f\u00fc" : "");
+            dates[i] = new Date(1234567890000L + i * 61000L);
+        }
+
+        for (int i = 0; i < count; i++) {
+            assertThat(sanitize(addresses[i])).isEqualTo(legacySanitize(addresses[i]));
+            assertThat(createMessageId(dates[i], addresses[i], i % 3)).isEqualTo(legacyMessageId(dates[i], addresses[i], i % 3));
+            assertThat(toGMTString(dates[i])).isEqualTo(legacyGMTString(dates[i]));
+        }
+    }
+
+    private static String legacySanitize(String s) {
+        return s != null ? s.replaceAll("\\p{Cntrl}", "") : null;
+    }
+
+    private static String legacyGMTString(Date date) {
+        SimpleDateFormat sdf = new SimpleDateFormat("d MMM y HH:mm:ss 'GMT'", Locale.US);
+        TimeZone gmtZone = TimeZone.getTimeZone("GMT");
+        sdf.setTimeZone(gmtZone);
+        GregorianCalendar gc = new GregorianCalendar(gmtZone);
+        gc.setTimeInMillis(date.getTime());
+        return sdf.format(date);
+    }
+
+    private static String legacyMessageId(Date sent, String address, int type) throws Exception {
+        final MessageDigest digest = MessageDigest.getInstance("MD5");
+        digest.update(Long.toString(sent.getTime()).getBytes("UTF-8"));
+        if (address != null) {
+            digest.update(address.getBytes("UTF-8"));
+        }
+        digest.update(Integer.toString(type).getBytes("UTF-8"));
+        final StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format(Locale.ENGLISH, "%02x", b));
+        }
+        return String.format(Locale.ENGLISH, "<%s@sms-backup-plus.local>", sb.toString());
+    }
+
+    private static SmsRecord sms() {
+        return new SmsRecord(MessageRecord.UNKNOWN, null, null, (int) MessageRecord.UNKNOWN, MessageRecord.UNKNOWN,
+                null, null, null, null, null);
     }
 }
@@ -0,0 +1,164 @@
+package com.zegoggles.smssync.mail;
+
+import com.fsck.k9.mail.Flag;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mail.internet.TextBody;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import static com.fsck.k9.mail.internet.MimeMessageHelper.setBody;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+
+@RunWith(RobolectricTestRunner.class)
+public class ImapAppenderTest {
+    private FakeConnection connection;
+    private ImapAppender appender;
+
+    @Before public void before() {
+        connection = new FakeConnection();
+        appender = new ImapAppender(connection, ImapCapabilities.NONE);
+    }
+
+    @Test public void shouldSendAllMessagesWithSingleCommand() throws Exception {
+        List<Message> messages = Arrays.asList(message("one"), message("two"), message("three"));
+        connection.respond(continuation(), continuation(), continuation(),
+                ImapAppender.Response.from("1", Arrays.asList("OK", Arrays.asList("APPENDUID", "38505", "3955:3957"), "done")));
+
+        List<String> uids = appender.append("\"SMS\"", messages);
+
+        assertThat(connection.commands).hasSize(1);
+        assertThat(connection.commands.get(0)).startsWith("APPEND \"SMS\" (\\Seen) {");
+        assertThat(uids).containsExactly("3955", "3956", "3957");
+
+        String sent = connection.out.toString("US-ASCII");
+        assertThat(sent).contains("one");
+        assertThat(sent).contains("two");
+        assertThat(sent).contains("three");
+        assertThat(sent.split("\\(\\\\Seen\\) \\{", -1)).hasSize(3);
+        assertThat(sent).endsWith("\r\n");
+    }
+
+    @Test public void shouldSendLiteralsWithAnnouncedSize() throws Exception {
+        Message first = message("first");
+        Message second = message("second message");
+        connection.respond(continuation(), continuation(), ok("1"));
+
+        appender.append("\"SMS\"", Arrays.asList(first, second));
+
+        String command = connection.commands.get(0);
+        assertThat(command).endsWith("{" + first.calculateSize() + "}");
+        String sent = connection.out.toString("US-ASCII");
+        int announce = sent.lastIndexOf(" (\\Seen) {" + second.calculateSize() + "}\r\n");
+        assertThat(announce).isEqualTo((int) first.calculateSize());
+        assertThat(sent.length()).isEqualTo(announce + (" (\\Seen) {" + second.calculateSize() + "}\r\n").length()
+                + (int) second.calculateSize() + 2);
+    }
+
+    @Test public void shouldFailIfServerRejectsCommand() throws Exception {
+        connection.respond(ImapAppender.Response.from("1", Arrays.asList("NO", "too big")));
+        try {
+            appender.append("\"SMS\"", Arrays.asList(message("one"), message("two")));
+            fail("expected exception");
+        } catch (MessagingException e) {
+            assertThat(e.getMessage()).contains("too big");
+        }
+    }
+
+    @Test public void shouldFailIfServerRejectsMessages() throws Exception {
+        connection.respond(continuation(), continuation(),
+                ImapAppender.Response.from("1", Arrays.asList("NO", "quota exceeded")));
+        try {
+            appender.append("\"SMS\"", Arrays.asList(message("one"), message("two")));
+            fail("expected exception");
+        } catch (MessagingException e) {
+            assertThat(e.getMessage()).contains("quota exceeded");
+        }
+    }
+
+    @Test public void shouldIgnoreUntaggedResponses() throws Exception {
+        connection.respond(continuation(), continuation(),
+                ImapAppender.Response.from(null, Arrays.asList("3", "EXISTS")),
+                ok("1"));
+
+        List<String> uids = appender.append("\"SMS\"", Arrays.asList(message("one"), message("two")));
+
+        assertThat(uids).isEmpty();
+    }
+
+    @Test public void shouldQuoteMailboxNames() throws Exception {
+        assertThat(ImapAppender.quote("SMS")).isEqualTo("\"SMS\"");
+        assertThat(ImapAppender.quote("foo \"bar\"\\baz")).isEqualTo("\"foo \\\"bar\\\"\\\\baz\"");
+        assertThat(ImapAppender.quote("Anrufe\u00fc")).isNull();
+    }
+
+    @Test public void shouldParseAppendUids() throws Exception {
+        assertThat(ImapAppender.getAppendedUids(ImapAppender.Response.from("1",
+                Arrays.asList("OK", Arrays.asList("APPENDUID", "1", "4,7:9"), "done")), 4))
+                .containsExactly("4", "7", "8", "9");
+        assertThat(ImapAppender.getAppendedUids(ImapAppender.Response.from("1",
+                Arrays.asList("OK", Arrays.asList("APPENDUID", "1", "4"), "done")), 2)).isEmpty();
+        assertThat(ImapAppender.getAppendedUids(ok("1"), 1)).isEmpty();
+    }
+
+    @Test public void shouldParseUidValidity() throws Exception {
+        assertThat(ImapAppender.getUidValidity(ImapAppender.Response.from("1",
+                Arrays.asList("OK", Arrays.asList("APPENDUID", "38505", "3955:3957"), "done")))).isEqualTo(38505L);
+        assertThat(ImapAppender.getUidValidity(ImapAppender.Response.from("1",
+                Arrays.asList("OK", Arrays.asList("APPENDUID", "x", "3955"), "done")))).isEqualTo(-1L);
+        assertThat(ImapAppender.getUidValidity(ok("1"))).isEqualTo(-1L);
+    }
+
+    private static ImapAppender.Response continuation() {
+        return ImapAppender.Response.continuation();
+    }
+
+    private static ImapAppender.Response ok(String tag) {
+        return ImapAppender.Response.from(tag, Arrays.asList("OK", "done"));
+    }
+
+    private static Message message(String text) throws MessagingException {
+        MimeMessage message = new MimeMessage();
+        message.setSubject(text);
+        setBody(message, new TextBody(text));
+        message.setFlag(Flag.SEEN, true);
+        return message;
+    }
+
+    private static class FakeConnection implements ImapAppender.Connection {
+        final List<String> commands = new ArrayList<String>();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final LinkedList<ImapAppender.Response> responses = new LinkedList<ImapAppender.Response>();
+
+        void respond(ImapAppender.Response... responses) {
+            Collections.addAll(this.responses, responses);
+        }
+
+        @Override public String sendCommand(String command) {
+            commands.add(command);
+            return String.valueOf(commands.size());
+        }
+
+        @Override public OutputStream getOutputStream() {
+            return out;
+        }
+
+        @Override public ImapAppender.Response readResponse() throws IOException {
+            if (responses.isEmpty()) throw new IOException("no more responses");
+            return responses.removeFirst();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.zegoggles.smssync.mail;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class ImapCapabilitiesTest {
+
+    @Test public void shouldParseCapabilityResponse() throws Exception {
+        List<List<?>> responses = new ArrayList<List<?>>();
+        responses.add(Arrays.asList("CAPABILITY", "IMAP4rev1", "LITERAL+", "MultiAppend", "UIDPLUS"));
+        responses.add(Arrays.asList("OK", "Capability completed."));
+
+        ImapCapabilities capabilities = ImapCapabilities.parse(responses);
+
+        assertThat(capabilities.has("IMAP4REV1")).isTrue();
+        assertThat(capabilities.has("literal+")).isTrue();
+        assertThat(capabilities.isMultiAppend()).isTrue();
+        assertThat(capabilities.isUidPlus()).isTrue();
+        assertThat(capabilities.has("COMPLETED.")).isFalse();
+    }
+
+    @Test public void shouldDetectSearchExtensions() throws Exception {
+        assertThat(ImapCapabilities.of("SORT", "ESEARCH").isSort()).isTrue();
+        assertThat(ImapCapabilities.of("SORT", "ESEARCH").isESearch()).isTrue();
+        assertThat(ImapCapabilities.of("SORT=DISPLAY").isSort()).isFalse();
+        assertThat(ImapCapabilities.NONE.isESearch()).isFalse();
+    }
+
+    @Test public void shouldHandleMissingCapabilities() throws Exception {
+        List<List<?>> responses = new ArrayList<List<?>>();
+        responses.add(Arrays.asList("OK", "Capability completed."));
+
+        ImapCapabilities capabilities = ImapCapabilities.parse(responses);
+
+        assertThat(capabilities.isMultiAppend()).isFalse();
+        assertThat(capabilities.isUidPlus()).isFalse();
+        assertThat(ImapCapabilities.NONE.isMultiAppend()).isFalse();
+    }
+}
@@ -0,0 +1,122 @@
+package com.zegoggles.smssync.mail;
+
+import com.fsck.k9.mail.store.imap.ImapMessage;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.mockito.Mockito.RETURNS_DEFAULTS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Stand-in for the searches an IMAP server answers during a restore, for a folder whose
+ * messages have the UIDs <code>step, 2 * step, ... messages * step</code>. Each message
+ * handed out carries a payload of the given size, to make holding on to messages costly.
+ */
+public class ImapFolderStandIn implements UidWindows.Searcher {
+    private final BackupImapStore.BackupFolder folder;
+    private final int messages;
+    private final int step;
+    private final int payloadSize;
+    private boolean uidNextKnown = true;
+    private long uidValidity = 1;
+    private boolean countSupported;
+    private int searches;
+    private int maxSearchResults;
+
+    public ImapFolderStandIn(BackupImapStore.BackupFolder folder, int messages, int step, int payloadSize) {
+        this.folder = folder;
+        this.messages = messages;
+        this.step = step;
+        this.payloadSize = payloadSize;
+    }
+
+    public MessageWindows getMessageWindows() {
+        return new UidWindows(folder, this);
+    }
+
+    MessageWindows getMessageWindowsAfter(long uidValidity, long lastUid) {
+        return new UidWindows(folder, this, uidValidity, lastUid);
+    }
+
+    void setUidNextKnown(boolean uidNextKnown) {
+        this.uidNextKnown = uidNextKnown;
+    }
+
+    void setUidValidity(long uidValidity) {
+        this.uidValidity = uidValidity;
+    }
+
+    void setCountSupported(boolean countSupported) {
+        this.countSupported = countSupported;
+    }
+
+    int getSearches() {
+        return searches;
+    }
+
+    public int getMaxSearchResults() {
+        return maxSearchResults;
+    }
+
+    @Override public long getUidNext() {
+        return uidNextKnown ? (long) messages * step + 1 : -1;
+    }
+
+    @Override public long getUidValidity() {
+        return uidValidity;
+    }
+
+    @Override public long[] search(String uids) {
+        searches++;
+        final long[] found = find(uids);
+        maxSearchResults = Math.max(maxSearchResults, found.length);
+        return found;
+    }
+
+    @Override public int count(String uids) {
+        return countSupported ? find(uids).length : -1;
+    }
+
+    private long[] find(String uids) {
+        final int colon = uids.indexOf(':');
+        final long first = Long.parseLong(uids.substring(0, colon));
+        final String end = uids.substring(colon + 1);
+        final long last = "*".equals(end) ? Long.MAX_VALUE : Long.parseLong(end);
+
+        long from = Math.max(1, (first + step - 1) / step);
+        final long to = Math.min(messages, last / step);
+        if ("*".equals(end) && from > to && messages > 0) {
+            // n:* matches the message with the highest UID, even if lower than n
+            from = to;
+        }
+        final long[] found = new long[(int) Math.max(0, to - from + 1)];
+        for (int i = 0; i < found.length; i++) {
+            found[i] = (from + i) * step;
+        }
+        return found;
+    }
+
+    @Override public ImapMessage getMessage(String uid) {
+        // stubOnly: mocks which record their invocations would keep all messages reachable
+        return mock(ImapMessage.class, withSettings().stubOnly().defaultAnswer(new Payload(uid, payloadSize)));
+    }
+
+    private static class Payload implements Answer<Object> {
+        private final String uid;
+        @SuppressWarnings({"unused", "MismatchedReadAndWriteOfArray"})
+        private final byte[] payload;
+
+        Payload(String uid, int size) {
+            this.uid = uid;
+            this.payload = new byte[size];
+        }
+
+        @Override public Object answer(InvocationOnMock invocation) throws Throwable {
+            if ("getUid".equals(invocation.getMethod().getName())) {
+                return uid;
+            }
+            return RETURNS_DEFAULTS.answer(invocation);
+        }
+    }
+}
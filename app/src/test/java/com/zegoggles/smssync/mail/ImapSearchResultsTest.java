@@ -0,0 +1,95 @@
+package com.zegoggles.smssync.mail;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class ImapSearchResultsTest {
+
+    @Test public void shouldParseSortResponse() throws Exception {
+        List<List<?>> responses = new ArrayList<List<?>>();
+        responses.add(Arrays.asList("SORT", "84", "882", "2"));
+        responses.add(Arrays.asList("OK", "Sort completed."));
+
+        assertThat(ImapSearchResults.parseSort(responses)).containsExactly("84", "882", "2");
+    }
+
+    @Test public void shouldParseEmptySortResponse() throws Exception {
+        List<List<?>> responses = new ArrayList<List<?>>();
+        responses.add(Arrays.asList("SORT"));
+        responses.add(Arrays.asList("OK", "Sort completed."));
+
+        assertThat(ImapSearchResults.parseSort(responses)).isEmpty();
+    }
+
+    @Test public void shouldParseESearchResponse() throws Exception {
+        List<List<?>> responses = new ArrayList<List<?>>();
+        responses.add(Arrays.asList("ESEARCH", Arrays.asList("TAG", "A282"), "UID", "ALL", "2,10:12"));
+        responses.add(Arrays.asList("OK", "Search completed."));
+
+        assertThat(ImapSearchResults.parseESearch(responses)).containsExactly("2", "10", "11", "12");
+    }
+
+    @Test public void shouldParseEmptyESearchResponse() throws Exception {
+        List<List<?>> responses = new ArrayList<List<?>>();
+        responses.add(Arrays.asList("ESEARCH", Arrays.asList("TAG", "A282"), "UID"));
+
+        assertThat(ImapSearchResults.parseESearch(responses)).isEmpty();
+    }
+
+    @Test public void shouldParseSearchResponse() throws Exception {
+        List<List<?>> responses = new ArrayList<List<?>>();
+        responses.add(Arrays.asList("SEARCH", "12", "3"));
+        responses.add(Arrays.asList("SEARCH", "7"));
+        responses.add(Arrays.asList("OK", "Search completed."));
+
+        assertThat(ImapSearchResults.parseSearch(responses)).containsOnly(3L, 7L, 12L);
+        assertThat(ImapSearchResults.parseSearch(responses)[0]).isEqualTo(3L);
+        assertThat(ImapSearchResults.parseSearch(responses)[2]).isEqualTo(12L);
+    }
+
+    @Test public void shouldParseESearchCount() throws Exception {
+        List<List<?>> responses = new ArrayList<List<?>>();
+        responses.add(Arrays.asList("ESEARCH", Arrays.asList("TAG", "A283"), "UID", "COUNT", "17"));
+
+        assertThat(ImapSearchResults.parseESearchCount(responses)).isEqualTo(17);
+        assertThat(ImapSearchResults.parseESearchCount(new ArrayList<List<?>>())).isEqualTo(-1);
+    }
+
+    @Test public void shouldParseSelectResponseCodes() throws Exception {
+        List<List<?>> responses = new ArrayList<List<?>>();
+        responses.add(Arrays.asList("172", "EXISTS"));
+        responses.add(Arrays.asList("OK", Arrays.asList("UIDVALIDITY", "3857529045"), "UIDs valid"));
+        responses.add(Arrays.asList("OK", Arrays.asList("UIDNEXT", "4392"), "Predicted next UID"));
+        responses.add(Arrays.asList("OK", Arrays.asList("READ-WRITE"), "SELECT completed"));
+
+        assertThat(ImapSearchResults.parseResponseCode(responses, "UIDNEXT")).isEqualTo(4392L);
+        assertThat(ImapSearchResults.parseResponseCode(responses, "UIDVALIDITY")).isEqualTo(3857529045L);
+        assertThat(ImapSearchResults.parseResponseCode(responses, "HIGHESTMODSEQ")).isEqualTo(-1L);
+        assertThat(ImapSearchResults.parseResponseCode(responses.subList(3, 4), "UIDNEXT")).isEqualTo(-1L);
+    }
+
+    @Test public void shouldNotParseStatusAsResponseCode() throws Exception {
+        List<List<?>> responses = new ArrayList<List<?>>();
+        responses.add(Arrays.asList("STATUS", "SMS", Arrays.asList("UIDNEXT", "44292", "UIDVALIDITY", "3857529045")));
+
+        assertThat(ImapSearchResults.parseResponseCode(responses, "UIDNEXT")).isEqualTo(-1L);
+    }
+
+    @Test public void shouldParseSequenceSet() throws Exception {
+        assertThat(ImapSearchResults.parseSequenceSet("4,7:9")).containsExactly("4", "7", "8", "9");
+        assertThat(ImapSearchResults.parseSequenceSet("3:1")).containsExactly("1", "2", "3");
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void shouldRejectInvalidSequenceSet() throws Exception {
+        ImapSearchResults.parseSequenceSet("4,*");
+    }
+}
@@ -0,0 +1,227 @@
+package com.zegoggles.smssync.mail;
+
+import android.support.annotation.NonNull;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.store.imap.ImapMessage;
+import com.zegoggles.smssync.mail.ImapAppender.Response;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Minimal in-process stand-in for an IMAP server which understands APPEND (including
+ * MULTIAPPEND and non-synchronizing literals) and counts the round trips a client
+ * has to wait for. Any response produced after the client last waited only becomes
+ * visible after another round trip.
+ * <p>
+ * Also answers SELECT and UID searches of a UID range (<code>UID SEARCH UID 1:1000 ...</code>,
+ * optionally with <code>RETURN (COUNT)</code>) as a selected folder, one round trip each.
+ * Search criteria other than the UID range are ignored, all stored messages match.
+ */
+public class ImapStandInServer implements ImapAppender.Connection, FolderSearcher.SelectedFolder {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Pattern LITERAL = Pattern.compile("\\{(\\d+)(\\+?)\\}$");
+    private static final Pattern SELECT = Pattern.compile("SELECT \\S+");
+    private static final Pattern UID_SEARCH = Pattern.compile("UID SEARCH (RETURN \\(COUNT\\) )?UID (\\d+):(\\d+|\\*)( .*)?");
+
+    private final LinkedList<Response> inFlight = new LinkedList<Response>();
+    private final LinkedList<Response> arrived = new LinkedList<Response>();
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    private final List<byte[]> stored = new ArrayList<byte[]>();
+    private final Set<Long> expunged = new HashSet<Long>();
+    private final List<String> commands = new ArrayList<String>();
+    private final OutputStream input = new OutputStream() {
+        @Override public void write(int b) {
+            receive((byte) b);
+        }
+    };
+
+    private ByteArrayOutputStream literal;
+    private long literalRemaining;
+    private String currentTag;
+    private int messagesInCommand;
+    private int tags;
+    private int nextUid = 1;
+    private int roundTrips;
+    private long uidValidity = 1;
+    private boolean selected;
+    private int maxSearchResults;
+
+    int getRoundTrips() {
+        return roundTrips;
+    }
+
+    List<byte[]> getStoredMessages() {
+        return stored;
+    }
+
+    /**
+     * @return the commands sent to the selected folder
+     */
+    public List<String> getCommands() {
+        return commands;
+    }
+
+    int getMaxSearchResults() {
+        return maxSearchResults;
+    }
+
+    public void setUidValidity(long uidValidity) {
+        this.uidValidity = uidValidity;
+    }
+
+    /**
+     * Stores empty messages, as if they had been appended.
+     */
+    public void addMessages(int count) {
+        for (int i = 0; i < count; i++) {
+            stored.add(new byte[0]);
+        }
+        nextUid += count;
+    }
+
+    void expunge(long uid) {
+        expunged.add(uid);
+    }
+
+    /**
+     * @return all stored messages, searched in UID ranges like a restore does
+     */
+    public MessageWindows getMessageWindows(BackupImapStore.BackupFolder folder) {
+        return new UidWindows(folder, new FolderSearcher(this, "\"SMS\"", "1:* UNDELETED", false));
+    }
+
+    @Override public String sendCommand(String command) throws IOException {
+        final String tag = String.valueOf(++tags);
+        input.write((tag + " " + command + "\r\n").getBytes(ASCII));
+        return tag;
+    }
+
+    @Override public OutputStream getOutputStream() {
+        return input;
+    }
+
+    @Override public Response readResponse() throws IOException {
+        if (arrived.isEmpty()) {
+            if (inFlight.isEmpty()) throw new IOException("client waits for a response which never comes");
+            roundTrips++;
+            arrived.addAll(inFlight);
+            inFlight.clear();
+        }
+        return arrived.removeFirst();
+    }
+
+    private void receive(byte b) {
+        if (literal != null) {
+            literal.write(b);
+            if (--literalRemaining == 0) {
+                stored.add(literal.toByteArray());
+                messagesInCommand++;
+                literal = null;
+            }
+        } else {
+            line.write(b);
+            final byte[] bytes = line.toByteArray();
+            if (bytes.length >= 2 && bytes[bytes.length - 2] == '\r' && bytes[bytes.length - 1] == '\n') {
+                line.reset();
+                receiveLine(new String(bytes, 0, bytes.length - 2, ASCII));
+            }
+        }
+    }
+
+    private void receiveLine(String text) {
+        if (currentTag == null) {
+            currentTag = text.substring(0, text.indexOf(' '));
+            messagesInCommand = 0;
+        }
+        final Matcher matcher = LITERAL.matcher(text);
+        if (matcher.find()) {
+            literalRemaining = Long.parseLong(matcher.group(1));
+            literal = new ByteArrayOutputStream();
+            if (matcher.group(2).isEmpty()) {
+                inFlight.add(Response.continuation());
+            }
+        } else {
+            final int first = nextUid;
+            nextUid += messagesInCommand;
+            final String uids = messagesInCommand == 1 ? String.valueOf(first) : first + ":" + (nextUid - 1);
+            inFlight.add(Response.from(currentTag,
+                    Arrays.asList("OK", Arrays.asList("APPENDUID", "1", uids), "APPEND completed")));
+            currentTag = null;
+        }
+    }
+
+    @Override @NonNull public List<List<?>> execute(String command) throws MessagingException {
+        roundTrips++;
+        commands.add(command);
+        final String tag = String.valueOf(++tags);
+        final List<List<?>> responses = new ArrayList<List<?>>();
+
+        if (SELECT.matcher(command).matches()) {
+            selected = true;
+            responses.add(Arrays.asList(String.valueOf(stored.size() - expunged.size()), "EXISTS"));
+            responses.add(Arrays.asList("OK", Arrays.asList("UIDVALIDITY", String.valueOf(uidValidity)), "UIDs valid"));
+            responses.add(Arrays.asList("OK", Arrays.asList("UIDNEXT", String.valueOf(nextUid)), "Predicted next UID"));
+            responses.add(Arrays.asList("OK", Arrays.asList("READ-WRITE"), "SELECT completed"));
+            return responses;
+        }
+        final Matcher search = UID_SEARCH.matcher(command);
+        if (!search.matches()) {
+            throw new MessagingException(tag + " BAD command unknown: " + command);
+        } else if (!selected) {
+            throw new MessagingException(tag + " NO no mailbox selected");
+        }
+        final long first = Long.parseLong(search.group(2));
+        final long last = "*".equals(search.group(3)) ? Long.MAX_VALUE : Long.parseLong(search.group(3));
+        final List<String> found = find(first, last);
+        if (search.group(1) != null) {
+            responses.add(Arrays.asList("ESEARCH", Arrays.asList("TAG", tag), "UID", "COUNT", String.valueOf(found.size())));
+        } else {
+            maxSearchResults = Math.max(maxSearchResults, found.size());
+            final List<String> response = new ArrayList<String>(found.size() + 1);
+            response.add("SEARCH");
+            response.addAll(found);
+            responses.add(response);
+        }
+        responses.add(Arrays.asList("OK", "SEARCH completed"));
+        return responses;
+    }
+
+    @Override @NonNull public ImapMessage getMessage(String uid) {
+        // stubOnly: mocks which record their invocations would keep all messages reachable
+        final ImapMessage message = mock(ImapMessage.class, withSettings().stubOnly());
+        when(message.getUid()).thenReturn(uid);
+        return message;
+    }
+
+    private List<String> find(long first, long last) {
+        final List<String> found = new ArrayList<String>();
+        for (long uid = first; uid <= Math.min(last, nextUid - 1); uid++) {
+            if (!expunged.contains(uid)) found.add(String.valueOf(uid));
+        }
+        if (found.isEmpty() && last == Long.MAX_VALUE) {
+            // n:* matches the message with the highest UID, even if lower than n
+            for (long uid = nextUid - 1; uid > 0; uid--) {
+                if (!expunged.contains(uid)) {
+                    found.add(String.valueOf(uid));
+                    break;
+                }
+            }
+        }
+        return found;
+    }
+}
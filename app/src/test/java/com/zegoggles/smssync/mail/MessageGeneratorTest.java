@@ -1,8 +1,5 @@
 package com.zegoggles.smssync.mail;
 
-import android.net.Uri;
-import android.provider.CallLog;
-import android.provider.Telephony;
 import com.fsck.k9.mail.Address;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.internet.MimeHeader;
@@ -20,15 +17,13 @@ import org.robolectric.RobolectricTestRunner;
 import org.robolectric.RuntimeEnvironment;
 
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
 
 import static android.provider.CallLog.Calls.INCOMING_TYPE;
 import static android.provider.CallLog.Calls.MISSED_TYPE;
 import static android.provider.CallLog.Calls.OUTGOING_TYPE;
-import static com.zegoggles.smssync.mail.DataType.CALLLOG;
 import static org.fest.assertions.api.Assertions.assertThat;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.verify;
@@ -63,21 +58,20 @@ public class MessageGeneratorTest {
     }
 
     @Test public void testShouldReturnNullIfMessageHasNoAddress() throws Exception {
-        Map<String, String> map = new HashMap<String, String>();
-        Message msg = generator.messageForDataType(map, DataType.SMS);
+        Message msg = generator.messageForRecord(sms(null, MessageRecord.UNKNOWN, (int) MessageRecord.UNKNOWN));
         assertThat(msg).isNull();
     }
 
     @Test public void testShouldGenerateSubjectWithNameForSMS() throws Exception {
         PersonRecord record = new PersonRecord(1, "Test Testor", null, null);
-        Message msg = generator.messageForDataType(mockMessage("1234", record), DataType.SMS);
+        Message msg = generator.messageForRecord(mockMessage("1234", record));
         assertThat(msg).isNotNull();
         assertThat(msg.getSubject()).isEqualTo("SMS with Test Testor");
     }
 
     @Test public void testShouldGenerateSMSMessageWithCorrectEncoding() throws Exception {
         PersonRecord record = new PersonRecord(1, "Test Testor", null, null);
-        Message msg = generator.messageForDataType(mockMessage("1234", record), DataType.SMS);
+        Message msg = generator.messageForRecord(mockMessage("1234", record));
         assertThat(msg.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING)).isEqualTo(new String[] {
                 MimeUtil.ENC_QUOTED_PRINTABLE
         });
@@ -90,8 +84,8 @@ public class MessageGeneratorTest {
                 personRecord,
                 new Address("foo@bar.com"));
 
-        when(mmsSupport.getDetails(any(Uri.class), any(AddressStyle.class))).thenReturn(details);
-        Message msg = generator.messageForDataType(mockMessage("1234", personRecord), DataType.MMS);
+        when(mmsSupport.getDetails(anyLong(), any(AddressStyle.class))).thenReturn(details);
+        Message msg = generator.messageForRecord(mockMmsMessage("1234", personRecord));
 
         assertThat(msg).isNotNull();
         assertThat(msg.getSubject()).isEqualTo("SMS with Foo Bar");
@@ -103,8 +97,8 @@ public class MessageGeneratorTest {
                 personRecord,
                 new Address("foo@bar.com"));
 
-        when(mmsSupport.getDetails(any(Uri.class), any(AddressStyle.class))).thenReturn(details);
-        Message msg = generator.messageForDataType(mockMessage("1234", personRecord), DataType.MMS);
+        when(mmsSupport.getDetails(anyLong(), any(AddressStyle.class))).thenReturn(details);
+        Message msg = generator.messageForRecord(mockMmsMessage("1234", personRecord));
         assertThat(msg.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING)).isEqualTo(new String[] {
                 MimeUtil.ENC_7BIT
         });
@@ -112,7 +106,7 @@ public class MessageGeneratorTest {
 
     @Test public void testShouldGenerateMessageForCallLogOutgoing() throws Exception {
         PersonRecord record = new PersonRecord(-1, "Test Testor", null, null);
-        Message msg = generator.messageForDataType(mockCalllogMessage("1234", OUTGOING_TYPE, record), CALLLOG);
+        Message msg = generator.messageForRecord(mockCalllogMessage("1234", OUTGOING_TYPE, record));
         assertThat(msg).isNotNull();
         assertThat(msg.getSubject()).isEqualTo("Call with Test Testor");
         assertThat(msg.getFrom()[0]).isEqualTo(me);
@@ -121,13 +115,13 @@ public class MessageGeneratorTest {
 
     @Test public void testShouldGenerateMessageForCallLogIncoming() throws Exception {
         PersonRecord record = new PersonRecord(-1, "Test Testor", null, null);
-        Message message = generator.messageForDataType(mockCalllogMessage("1234", INCOMING_TYPE, record), CALLLOG);
+        Message message = generator.messageForRecord(mockCalllogMessage("1234", INCOMING_TYPE, record));
         assertMessage(message);
     }
 
     @Test public void testShouldGenerateMessageForCallLogMissed() throws Exception {
         PersonRecord record = new PersonRecord(-1, "Test Testor", null, null);
-        Message message = generator.messageForDataType(mockCalllogMessage("1234", MISSED_TYPE, record), CALLLOG);
+        Message message = generator.messageForRecord(mockCalllogMessage("1234", MISSED_TYPE, record));
         assertMessage(message);
     }
 
@@ -140,7 +134,7 @@ public class MessageGeneratorTest {
 
     @Test public void testShouldGenerateMessageForCallLogIncomingUnknown() throws Exception {
         PersonRecord record = new PersonRecord(0, null, null, "-1");
-        Message msg = generator.messageForDataType(mockCalllogMessage("", INCOMING_TYPE, record), CALLLOG);
+        Message msg = generator.messageForRecord(mockCalllogMessage("", INCOMING_TYPE, record));
         assertThat(msg).isNotNull();
         assertThat(msg.getSubject()).isEqualTo("Call with Unknown");
         assertThat(msg.getFrom()[0].toString()).isEqualTo("Unknown <unknown.number@unknown.email>");
@@ -149,7 +143,7 @@ public class MessageGeneratorTest {
 
     @Test public void testShouldGenerateCallLogMessageWithCorrectEncoding() throws Exception {
         PersonRecord record = new PersonRecord(-1, "Test Testor", null, null);
-        Message msg = generator.messageForDataType(mockCalllogMessage("1234", OUTGOING_TYPE, record), CALLLOG);
+        Message msg = generator.messageForRecord(mockCalllogMessage("1234", OUTGOING_TYPE, record));
         assertThat(msg.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING)).isEqualTo(new String[] {
                 MimeUtil.ENC_QUOTED_PRINTABLE
         });
@@ -157,21 +151,21 @@ public class MessageGeneratorTest {
 
     @Test public void testShouldGenerateSubjectWithNameAndNumberForSMS() throws Exception {
         PersonRecord record = new PersonRecord(1, "Test Testor", "test@test.com", "1234");
-        Message msg = generator.messageForDataType(mockMessage("1234", record), DataType.SMS);
+        Message msg = generator.messageForRecord(mockMessage("1234", record));
         assertThat(msg).isNotNull();
         assertThat(msg.getSubject()).isEqualTo("SMS with Test Testor");
     }
 
     @Test public void shouldGenerateCorrectFromHeaderWithUsersEmailAddress() throws Exception {
         PersonRecord record = new PersonRecord(1, "Test Testor", "test@test.com", "1234");
-        Message msg = generator.messageForDataType(mockMessage("1234", record), DataType.SMS);
+        Message msg = generator.messageForRecord(mockMessage("1234", record));
         assertThat(msg).isNotNull();
         assertThat(msg.getFrom()[0]).isEqualTo(me);
     }
 
     @Test public void shouldGenerateCorrectToHeader() throws Exception {
         PersonRecord record = new PersonRecord(1, "Test Testor", "test@test.com", "1234");
-        Message msg = generator.messageForDataType(mockMessage("1234", record), DataType.SMS);
+        Message msg = generator.messageForRecord(mockMessage("1234", record));
         assertThat(msg).isNotNull();
 
         assertThat(msg.getRecipients(Message.RecipientType.TO)[0].toString())
@@ -180,18 +174,14 @@ public class MessageGeneratorTest {
 
     @Test public void shouldGenerateCorrectHeaders() throws Exception {
         PersonRecord record = new PersonRecord(1, "Test Testor", "test@test.com", "1234");
-        Map<String, String> map = mockMessage("1234", record);
-
         Date date = new Date();
-        map.put(Telephony.TextBasedSmsColumns.DATE, String.valueOf(date.getTime()));
-        map.put(Telephony.TextBasedSmsColumns.TYPE, "0");
+        SmsRecord sms = mockMessage("1234", record, date.getTime(), 0);
 
-        Message msg = generator.messageForDataType(map, DataType.SMS);
+        Message msg = generator.messageForRecord(sms);
         assertThat(msg).isNotNull();
 
         verify(headerGenerator).setHeaders(any(Message.class),
-                any(Map.class),
-                eq(DataType.SMS),
+                eq(sms),
                 anyString(),
                 eq(record),
                 eq(date),
@@ -200,10 +190,9 @@ public class MessageGeneratorTest {
 
     @Test public void shouldGenerateCorrectToHeaderWhenUserisRecipient() throws Exception {
         PersonRecord record = new PersonRecord(1, "Test Testor", "test@test.com", "1234");
-        Map<String, String> map = mockMessage("1234", record);
-        map.put(Telephony.TextBasedSmsColumns.TYPE, "1");
+        SmsRecord sms = mockMessage("1234", record, new Date().getTime(), 1);
 
-        Message msg = generator.messageForDataType(map, DataType.SMS);
+        Message msg = generator.messageForRecord(sms);
         assertThat(msg).isNotNull();
 
         assertThat(msg.getFrom()[0].toString())
@@ -214,7 +203,7 @@ public class MessageGeneratorTest {
 
     @Test public void testShouldUseNumberIfNameIsUnknown() throws Exception {
         PersonRecord record = new PersonRecord(-1, null, null, "1234");
-        Message msg = generator.messageForDataType(mockMessage("1234", record), DataType.SMS);
+        Message msg = generator.messageForRecord(mockMessage("1234", record));
         assertThat(msg).isNotNull();
         assertThat(msg.getSubject()).isEqualTo("SMS with 1234");
     }
@@ -232,27 +221,34 @@ public class MessageGeneratorTest {
                 dataTypePreferences
         );
         PersonRecord record = new PersonRecord(1, "Test Testor", "test@test.com", "1234");
-        Map<String, String> map = mockMessage("1234", record);
-        map.put(Telephony.TextBasedSmsColumns.TYPE, "1");
+        SmsRecord sms = mockMessage("1234", record, new Date().getTime(), 1);
 
         when(groupIds.contains(record)).thenReturn(false);
-        assertThat(generator.messageForDataType(map, DataType.SMS)).isNull();
+        assertThat(generator.messageForRecord(sms)).isNull();
         when(groupIds.contains(record)).thenReturn(true);
-        assertThat(generator.messageForDataType(map, DataType.SMS)).isNotNull();
+        assertThat(generator.messageForRecord(sms)).isNotNull();
+    }
+
+    private SmsRecord mockMessage(String address, PersonRecord record) {
+        return mockMessage(address, record, MessageRecord.UNKNOWN, (int) MessageRecord.UNKNOWN);
+    }
+
+    private SmsRecord mockMessage(String address, PersonRecord record, long date, int type) {
+        when(personLookup.lookupPerson(eq(address))).thenReturn(record);
+        return sms(address, date, type);
     }
 
-    private Map<String, String> mockMessage(String address, PersonRecord record) {
-        Map<String, String> map = new HashMap<String, String>();
-        map.put(Telephony.TextBasedSmsColumns.ADDRESS, address);
+    private MmsRecord mockMmsMessage(String address, PersonRecord record) {
         when(personLookup.lookupPerson(eq(address))).thenReturn(record);
-        return map;
+        return new MmsRecord(1, MessageRecord.UNKNOWN, null, null, null, (int) MessageRecord.UNKNOWN);
     }
 
-    private Map<String, String> mockCalllogMessage(String address, int type, PersonRecord record) {
-        Map<String, String> map = new HashMap<String, String>();
-        map.put(CallLog.Calls.NUMBER, address);
-        map.put(CallLog.Calls.TYPE, String.valueOf(type));
+    private CallLogRecord mockCalllogMessage(String address, int type, PersonRecord record) {
         when(personLookup.lookupPerson(eq(address))).thenReturn(record);
-        return map;
+        return new CallLogRecord(1, address, type, MessageRecord.UNKNOWN, MessageRecord.UNKNOWN);
+    }
+
+    private static SmsRecord sms(String address, long date, int type) {
+        return new SmsRecord(1, address, null, type, date, null, null, null, null, null);
     }
 }
@@ -0,0 +1,225 @@
+package com.zegoggles.smssync.mail;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.provider.CallLog;
+import android.provider.Telephony;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class MessageRecordTest {
+    private static final String[] SMS_COLUMNS = {
+        Telephony.TextBasedSmsColumns._ID,
+        Telephony.TextBasedSmsColumns.THREAD_ID,
+        Telephony.TextBasedSmsColumns.ADDRESS,
+        Telephony.TextBasedSmsColumns.PERSON,
+        Telephony.TextBasedSmsColumns.DATE,
+        Telephony.TextBasedSmsColumns.DATE_SENT,
+        Telephony.TextBasedSmsColumns.PROTOCOL,
+        Telephony.TextBasedSmsColumns.READ,
+        Telephony.TextBasedSmsColumns.STATUS,
+        Telephony.TextBasedSmsColumns.TYPE,
+        Telephony.TextBasedSmsColumns.REPLY_PATH_PRESENT,
+        Telephony.TextBasedSmsColumns.SUBJECT,
+        Telephony.TextBasedSmsColumns.BODY,
+        Telephony.TextBasedSmsColumns.SERVICE_CENTER,
+        Telephony.TextBasedSmsColumns.LOCKED,
+        Telephony.TextBasedSmsColumns.ERROR_CODE,
+        Telephony.TextBasedSmsColumns.SEEN,
+    };
+
+    @Test public void shouldReadSmsRecord() throws Exception {
+        MatrixCursor cursor = smsCursor(1);
+        cursor.moveToFirst();
+
+        SmsRecord sms = (SmsRecord) MessageRecord.Reader.forType(DataType.SMS, cursor).read();
+
+        assertThat(sms.type).isEqualTo(DataType.SMS);
+        assertThat(sms.id).isEqualTo(1000);
+        assertThat(sms.address).isEqualTo("+4912345678");
+        assertThat(sms.body).isEqualTo("See you at the station?");
+        assertThat(sms.messageType).isEqualTo(1);
+        assertThat(sms.date).isEqualTo(1500000000000L);
+        assertThat(sms.threadId).isEqualTo("7");
+        assertThat(sms.read).isEqualTo("1");
+        assertThat(sms.isRead()).isTrue();
+        assertThat(sms.status).isEqualTo("-1");
+        assertThat(sms.protocol).isEqualTo("0");
+        assertThat(sms.serviceCenter).isEqualTo("+491770610000");
+    }
+
+    @Test public void shouldReadMmsRecord() throws Exception {
+        MatrixCursor cursor = new MatrixCursor(new String[] {
+            Telephony.BaseMmsColumns._ID,
+            Telephony.BaseMmsColumns.DATE,
+            Telephony.BaseMmsColumns.MESSAGE_TYPE,
+            Telephony.BaseMmsColumns.THREAD_ID,
+            Telephony.BaseMmsColumns.READ,
+            MmsRecord.MSG_BOX
+        });
+        cursor.addRow(new Object[] { 12L, 1500000000L, "128", "7", "0", 2 });
+        cursor.moveToFirst();
+
+        MmsRecord mms = (MmsRecord) MessageRecord.Reader.forType(DataType.MMS, cursor).read();
+
+        assertThat(mms.id).isEqualTo(12);
+        assertThat(mms.date).isEqualTo(1500000000L);
+        assertThat(mms.messageType).isEqualTo("128");
+        assertThat(mms.threadId).isEqualTo("7");
+        assertThat(mms.isRead()).isFalse();
+        assertThat(mms.messageBox).isEqualTo(2);
+    }
+
+    @Test public void shouldReadCallLogRecord() throws Exception {
+        MatrixCursor cursor = new MatrixCursor(new String[] {
+            CallLog.Calls._ID,
+            CallLog.Calls.NUMBER,
+            CallLog.Calls.TYPE,
+            CallLog.Calls.DATE,
+            CallLog.Calls.DURATION
+        });
+        cursor.addRow(new Object[] { 3L, "+4912345678", CallLog.Calls.OUTGOING_TYPE, 1500000000000L, 61L });
+        cursor.moveToFirst();
+
+        CallLogRecord call = (CallLogRecord) MessageRecord.Reader.forType(DataType.CALLLOG, cursor).read();
+
+        assertThat(call.id).isEqualTo(3);
+        assertThat(call.number).isEqualTo("+4912345678");
+        assertThat(call.callType).isEqualTo(CallLog.Calls.OUTGOING_TYPE);
+        assertThat(call.date).isEqualTo(1500000000000L);
+        assertThat(call.duration).isEqualTo(61);
+    }
+
+    @Test public void shouldUseUnknownForMissingOrNullColumns() throws Exception {
+        MatrixCursor cursor = new MatrixCursor(new String[] {
+            Telephony.TextBasedSmsColumns.ADDRESS,
+            Telephony.TextBasedSmsColumns.DATE
+        });
+        cursor.addRow(new Object[] { "+4912345678", null });
+        cursor.moveToFirst();
+
+        SmsRecord sms = (SmsRecord) MessageRecord.Reader.forType(DataType.SMS, cursor).read();
+
+        assertThat(sms.address).isEqualTo("+4912345678");
+        assertThat(sms.id).isEqualTo(MessageRecord.UNKNOWN);
+        assertThat(sms.date).isEqualTo(MessageRecord.UNKNOWN);
+        assertThat(sms.messageType).isEqualTo((int) MessageRecord.UNKNOWN);
+        assertThat(sms.body).isNull();
+        assertThat(sms.isRead()).isFalse();
+    }
+
+    @Test public void shouldOnlyBeReusedForSameCursorAndType() throws Exception {
+        MatrixCursor cursor = smsCursor(1);
+        MessageRecord.Reader reader = MessageRecord.Reader.forType(DataType.SMS, cursor);
+
+        assertThat(reader.isFor(cursor, DataType.SMS)).isTrue();
+        assertThat(reader.isFor(cursor, DataType.MMS)).isFalse();
+        assertThat(reader.isFor(smsCursor(1), DataType.SMS)).isFalse();
+    }
+
+    /**
+     * Compares the memory allocated while reading the rows of a full SMS projection with
+     * the previous approach (a map of all columns as strings per row, parsed again later).
+     */
+    @Test public void shouldAllocateLessThanMapPerRow() throws Exception {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled());
+
+        final int rows = 5000;
+        final MatrixCursor cursor = smsCursor(rows);
+        final long threadId = Thread.currentThread().getId();
+
+        // warm up both code paths
+        readMaps(cursor);
+        readRecords(cursor);
+
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        readMaps(cursor);
+        final long mapBytes = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        before = threadBean.getThreadAllocatedBytes(threadId);
+        readRecords(cursor);
+        final long recordBytes = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertThat(recordBytes).isLessThan(mapBytes / 2);
+    }
+
+    @Test public void shouldResolveColumnIndexesOnlyOnce() throws Exception {
+        final int[] lookups = new int[1];
+        MatrixCursor cursor = new MatrixCursor(SMS_COLUMNS) {
+            @Override public int getColumnIndex(String columnName) {
+                lookups[0]++;
+                return super.getColumnIndex(columnName);
+            }
+        };
+        addSmsRows(cursor, 100);
+
+        final MessageRecord.Reader reader = MessageRecord.Reader.forType(DataType.SMS, cursor);
+        final int perReader = lookups[0];
+        int read = 0;
+        while (cursor.moveToNext()) {
+            reader.read();
+            read++;
+        }
+
+        assertThat(read).isEqualTo(100);
+        assertThat(lookups[0]).isEqualTo(perReader);
+    }
+
+    private static long readRecords(Cursor cursor) {
+        long sum = 0;
+        cursor.moveToPosition(-1);
+        final MessageRecord.Reader reader = MessageRecord.Reader.forType(DataType.SMS, cursor);
+        while (cursor.moveToNext()) {
+            SmsRecord sms = (SmsRecord) reader.read();
+            sum += sms.date + sms.messageType;
+        }
+        return sum;
+    }
+
+    /**
+     * How rows used to be read by {@link MessageConverter}.
+     */
+    private static long readMaps(Cursor cursor) {
+        long sum = 0;
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            final String[] columns = cursor.getColumnNames();
+            final Map<String, String> map = new HashMap<String, String>(columns.length);
+            for (String column : columns) {
+                final int index = cursor.getColumnIndex(column);
+                if (index != -1) {
+                    map.put(column, cursor.getString(index));
+                }
+            }
+            sum += Long.valueOf(map.get(Telephony.TextBasedSmsColumns.DATE)) +
+                   Integer.valueOf(map.get(Telephony.TextBasedSmsColumns.TYPE));
+        }
+        return sum;
+    }
+
+    private static MatrixCursor smsCursor(int rows) {
+        return addSmsRows(new MatrixCursor(SMS_COLUMNS), rows);
+    }
+
+    private static MatrixCursor addSmsRows(MatrixCursor cursor, int rows) {
+        for (int i = 0; i < rows; i++) {
+            cursor.addRow(new Object[] {
+                1000L + i, 7L, "+4912345678", null, 1500000000000L + i, 1500000000000L + i, 0,
+                1, -1, 1, 0, null, "See you at the station?", "+491770610000", 0, 0, 1
+            });
+        }
+        return cursor;
+    }
+}
@@ -0,0 +1,167 @@
+package com.zegoggles.smssync.mail;
+
+import android.content.ContentResolver;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import com.fsck.k9.mail.BodyPart;
+import com.zegoggles.smssync.MmsConsts;
+import com.zegoggles.smssync.preferences.AddressStyle;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+public class MmsSupportTest {
+    private static final Uri ADDR = Uri.parse("content://mms/addr");
+    private static final Uri PART = Uri.parse("content://mms/part");
+
+    private MmsSupport mmsSupport;
+    @Mock private ContentResolver resolver;
+    @Mock private PersonLookup personLookup;
+
+    @Before public void before() {
+        initMocks(this);
+        mmsSupport = new MmsSupport(resolver, personLookup);
+        when(personLookup.lookupPerson(anyString())).thenReturn(new PersonRecord(1, "Foo Bar", "foo@bar.com", "123"));
+    }
+
+    @Test public void shouldPreloadAddressesAndPartsOfAllMessages() throws Exception {
+        when(resolver.query(eq(ADDR), any(String[].class), eq("msg_id IN (1,2,3)"), (String[]) isNull(), anyString()))
+            .thenReturn(addresses(
+                new Object[] { 1L, "+491234" },
+                new Object[] { 2L, MmsConsts.INSERT_ADDRESS_TOKEN },
+                new Object[] { 2L, "+495678" },
+                new Object[] { 2L, "+491234" }
+            ));
+        when(resolver.query(eq(PART), any(String[].class), eq("mid IN (1,2,3)"), (String[]) isNull(), anyString()))
+            .thenReturn(parts(
+                new Object[] { 10L, 1L, "text/plain", null, "Hello" },
+                new Object[] { 11L, 1L, "application/smil", null, null },
+                new Object[] { 12L, 2L, "text/plain", null, "World" }
+            ));
+
+        Set<String> addresses = mmsSupport.preload(Arrays.asList(1L, 2L, 3L));
+
+        assertThat(addresses).containsOnly("+491234", "+495678");
+
+        MmsSupport.MmsDetails first = mmsSupport.getDetails(1, AddressStyle.NAME);
+        assertThat(first.inbound).isTrue();
+        assertThat(first.recipients).containsExactly("+491234");
+
+        MmsSupport.MmsDetails second = mmsSupport.getDetails(2, AddressStyle.NAME);
+        assertThat(second.inbound).isFalse();
+        assertThat(second.recipients).containsExactly("+495678", "+491234");
+
+        assertThat(mmsSupport.getDetails(3, AddressStyle.NAME).isEmpty()).isTrue();
+
+        List<BodyPart> parts = mmsSupport.getMMSBodyParts(1);
+        assertThat(parts).hasSize(1);
+        assertThat(parts.get(0).getMimeType()).isEqualTo("text/plain");
+        assertThat(mmsSupport.getMMSBodyParts(2)).hasSize(1);
+        assertThat(mmsSupport.getMMSBodyParts(3)).isEmpty();
+
+        verify(resolver, times(2)).query(any(Uri.class), any(String[].class), anyString(), (String[]) isNull(), anyString());
+        verifyNoMoreInteractions(resolver);
+    }
+
+    @Test public void shouldKeepPreloadedRowsOfPreviousPage() throws Exception {
+        when(resolver.query(eq(ADDR), any(String[].class), eq("msg_id IN (1,2)"), (String[]) isNull(), anyString()))
+            .thenReturn(addresses(new Object[] { 1L, "+491234" }, new Object[] { 2L, "+495678" }));
+        when(resolver.query(eq(PART), any(String[].class), eq("mid IN (1,2)"), (String[]) isNull(), anyString()))
+            .thenReturn(parts(new Object[] { 12L, 2L, "text/plain", null, "Hello" }));
+        when(resolver.query(eq(ADDR), any(String[].class), eq("msg_id IN (3)"), (String[]) isNull(), anyString()))
+            .thenReturn(addresses(new Object[] { 3L, "+491234" }));
+        when(resolver.query(eq(PART), any(String[].class), eq("mid IN (3)"), (String[]) isNull(), anyString()))
+            .thenReturn(parts(new Object[] { 13L, 3L, "text/plain", null, "World" }));
+
+        mmsSupport.preload(Arrays.asList(1L, 2L));
+        mmsSupport.getDetails(1, AddressStyle.NAME);
+        mmsSupport.getMMSBodyParts(1);
+        // the next page is loaded when the cursor reaches the last row of the current one
+        mmsSupport.preload(Arrays.asList(3L));
+
+        assertThat(mmsSupport.getDetails(2, AddressStyle.NAME).recipients).containsExactly("+495678");
+        assertThat(mmsSupport.getMMSBodyParts(2)).hasSize(1);
+        assertThat(mmsSupport.getDetails(3, AddressStyle.NAME).recipients).containsExactly("+491234");
+        assertThat(mmsSupport.getMMSBodyParts(3)).hasSize(1);
+
+        verify(resolver, times(4)).query(any(Uri.class), any(String[].class), anyString(), (String[]) isNull(), anyString());
+        verifyNoMoreInteractions(resolver);
+    }
+
+    @Test public void shouldDropPreloadedRowsOfOlderPages() throws Exception {
+        when(resolver.query(eq(ADDR), any(String[].class), anyString(), (String[]) isNull(), anyString()))
+            .thenReturn(addresses(new Object[] { 1L, "+491234" }), addresses(), addresses());
+        when(resolver.query(eq(PART), any(String[].class), anyString(), (String[]) isNull(), anyString()))
+            .thenReturn(parts(), parts(), parts());
+        when(resolver.query(eq(Uri.parse("content://mms/1/addr")), (String[]) isNull(), (String) isNull(),
+                (String[]) isNull(), (String) isNull()))
+            .thenReturn(addresses(new Object[] { 1L, "+491234" }));
+
+        mmsSupport.preload(Arrays.asList(1L));
+        mmsSupport.preload(Arrays.asList(2L));
+        mmsSupport.preload(Arrays.asList(3L));
+
+        assertThat(mmsSupport.getDetails(1, AddressStyle.NAME).recipients).containsExactly("+491234");
+        verify(resolver).query(eq(Uri.parse("content://mms/1/addr")), (String[]) isNull(), (String) isNull(),
+                (String[]) isNull(), (String) isNull());
+    }
+
+    @Test public void shouldQueryAddressesSeparatelyIfNotSupported() throws Exception {
+        when(resolver.query(eq(ADDR), any(String[].class), anyString(), (String[]) isNull(), anyString()))
+            .thenThrow(new IllegalArgumentException("Unknown URL"));
+        when(resolver.query(eq(Uri.parse("content://mms/1/addr")), (String[]) isNull(), (String) isNull(),
+                (String[]) isNull(), (String) isNull()))
+            .thenReturn(addresses(new Object[] { 1L, "+491234" }));
+
+        mmsSupport.preload(Arrays.asList(1L));
+        mmsSupport.preload(Arrays.asList(1L));
+
+        assertThat(mmsSupport.getDetails(1, AddressStyle.NAME).recipients).containsExactly("+491234");
+        verify(resolver, times(1)).query(eq(ADDR), any(String[].class), anyString(), (String[]) isNull(), anyString());
+    }
+
+    @Test public void shouldQueryMessagesWhichWereNotPreloaded() throws Exception {
+        when(resolver.query(eq(Uri.parse("content://mms/4/addr")), (String[]) isNull(), (String) isNull(),
+                (String[]) isNull(), (String) isNull()))
+            .thenReturn(addresses(new Object[] { 4L, "+491234" }));
+
+        MmsSupport.MmsDetails details = mmsSupport.getDetails(4, AddressStyle.NAME);
+
+        assertThat(details.recipients).containsExactly("+491234");
+        assertThat(details.getRecipient().getName()).isEqualTo("Foo Bar");
+    }
+
+    private static MatrixCursor addresses(Object[]... rows) {
+        MatrixCursor cursor = new MatrixCursor(new String[] { "msg_id", "address" });
+        for (Object[] row : rows) {
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    private static MatrixCursor parts(Object[]... rows) {
+        MatrixCursor cursor = new MatrixCursor(new String[] { "_id", "mid", "ct", "cl", "text" });
+        for (Object[] row : rows) {
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+}
@@ -0,0 +1,127 @@
+package com.zegoggles.smssync.mail;
+
+import android.content.ContentResolver;
+import android.database.MatrixCursor;
+import android.os.Build;
+import android.provider.ContactsContract;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.LOLLIPOP)
+public class PersonCacheTest {
+    private PersonCache cache;
+    @Mock private ContentResolver resolver;
+
+    @Before public void before() {
+        initMocks(this);
+        cache = new PersonCache(RuntimeEnvironment.application, null);
+    }
+
+    @After public void after() {
+        cache.close();
+    }
+
+    @Test public void shouldStoreRecords() throws Exception {
+        cache.put(records(
+            new PersonRecord(12, "Testor Test", "test@example.com", "+491512345678"),
+            new PersonRecord(0, null, null, "1234")
+        ));
+
+        Map<String, PersonRecord> records = cache.get(Arrays.asList("+491512345678", "1234", "5678"));
+
+        assertThat(records).hasSize(2);
+        PersonRecord known = records.get("+491512345678");
+        assertThat(known.getContactId()).isEqualTo(12);
+        assertThat(known.getName()).isEqualTo("Testor Test");
+        assertThat(known.getEmail()).isEqualTo("test@example.com");
+        assertThat(records.get("1234").isUnknown()).isTrue();
+        assertThat(records.get("1234").getEmail()).isEqualTo("1234@unknown.email");
+    }
+
+    @Test public void shouldExpireUnknownAddresses() throws Exception {
+        cache.put(records(
+            new PersonRecord(12, "Testor Test", null, "+491512345678"),
+            new PersonRecord(0, null, null, "1234")
+        ));
+        cache.getWritableDatabase().execSQL("UPDATE persons SET cached = ?",
+                new Object[] { System.currentTimeMillis() - PersonLookup.UNKNOWN_TTL - 1 });
+
+        Map<String, PersonRecord> records = cache.get(Arrays.asList("+491512345678", "1234"));
+
+        assertThat(records).hasSize(1);
+        assertThat(records).containsKey("+491512345678");
+    }
+
+    @Test public void shouldNotQueryProviderOnFirstSync() throws Exception {
+        cache.sync(resolver);
+
+        verify(resolver, never()).query(any(android.net.Uri.class), any(String[].class), anyString(),
+                any(String[].class), anyString());
+    }
+
+    @Test public void shouldInvalidateChangedContactsAndUnknownAddresses() throws Exception {
+        cache.sync(resolver);
+        cache.put(records(
+            new PersonRecord(1, "Changed", null, "111"),
+            new PersonRecord(2, "Unchanged", null, "222"),
+            new PersonRecord(3, "Deleted", null, "333"),
+            new PersonRecord(0, null, null, "444")
+        ));
+        when(resolver.query(eq(ContactsContract.Contacts.CONTENT_URI), any(String[].class),
+                eq(ContactsContract.Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + " > ?"),
+                any(String[].class), anyString())).thenReturn(ids(1));
+        when(resolver.query(eq(ContactsContract.DeletedContacts.CONTENT_URI), any(String[].class),
+                eq(ContactsContract.DeletedContacts.CONTACT_DELETED_TIMESTAMP + " > ?"),
+                any(String[].class), anyString())).thenReturn(ids(3));
+
+        cache.sync(resolver);
+
+        assertThat(cache.get(Arrays.asList("111", "222", "333", "444")).keySet()).containsOnly("222");
+    }
+
+    @Test public void shouldKeepEntriesIfNothingChanged() throws Exception {
+        cache.sync(resolver);
+        cache.put(records(new PersonRecord(0, null, null, "444")));
+
+        cache.sync(resolver);
+
+        assertThat(cache.get(Collections.singleton("444"))).hasSize(1);
+    }
+
+    private static Map<String, PersonRecord> records(PersonRecord... records) {
+        Map<String, PersonRecord> map = new HashMap<String, PersonRecord>();
+        for (PersonRecord record : records) {
+            map.put(record.getNumber(), record);
+        }
+        return map;
+    }
+
+    private static MatrixCursor ids(long... ids) {
+        MatrixCursor cursor = new MatrixCursor(new String[] { ContactsContract.Contacts._ID });
+        for (long id : ids) {
+            cursor.addRow(new Object[] { id });
+        }
+        return cursor;
+    }
+}
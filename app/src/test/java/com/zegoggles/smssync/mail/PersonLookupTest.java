@@ -1,21 +1,35 @@
 package com.zegoggles.smssync.mail;
 
+import android.content.ContentProvider;
 import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Build;
 import android.provider.ContactsContract;
+import android.support.annotation.NonNull;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
 
 import static org.fest.assertions.api.Assertions.assertThat;
 import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
@@ -100,6 +114,157 @@ public class PersonLookupTest {
         assertThat(record.getEmail()).isEqualTo("foo@gmail.com");
     }
 
+    @Test @Config(sdk = Build.VERSION_CODES.LOLLIPOP)
+    public void shouldUsePersonCacheAcrossInstances() throws Exception {
+        when(resolver.query( eq(Uri.parse("content://com.android.contacts/phone_lookup/1234")), any(String[].class),
+                (String) isNull(),
+                (String[]) isNull(),
+                (String) isNull()
+        )).thenReturn(name("Testor Test"));
+        PersonCache cache = new PersonCache(RuntimeEnvironment.application, null);
+
+        new PersonLookup(resolver, cache).lookupPerson("1234");
+        PersonRecord record = new PersonLookup(resolver, cache).lookupPerson("1234");
+
+        assertThat(record.getName()).isEqualTo("Testor Test");
+        verify(resolver, times(1)).query(eq(Uri.parse("content://com.android.contacts/phone_lookup/1234")),
+                any(String[].class), (String) isNull(), (String[]) isNull(), (String) isNull());
+        cache.close();
+    }
+
+    @Test
+    public void shouldShareCacheEntryBetweenNotationsOfSameNumber() throws Exception {
+        when(resolver.query(eq(Uri.parse("content://com.android.contacts/phone_lookup/%2B1%20555%20010-0100")),
+                any(String[].class),
+                (String) isNull(),
+                (String[]) isNull(),
+                (String) isNull()
+        )).thenReturn(name("Testor Test"));
+
+        PersonRecord first = lookup.lookupPerson("+1 555 010-0100");
+        PersonRecord second = lookup.lookupPerson("5550100100");
+
+        assertThat(first.getName()).isEqualTo("Testor Test");
+        assertThat(second.getName()).isEqualTo("Testor Test");
+        assertThat(second.getNumber()).isEqualTo("5550100100");
+        verify(resolver, times(1)).query(any(Uri.class), any(String[].class),
+                (String) isNull(), (String[]) isNull(), (String) isNull());
+    }
+
+    @Test
+    public void shouldRememberUnknownAddresses() throws Exception {
+        lookup.lookupPerson("12345");
+        PersonRecord record = lookup.lookupPerson("12345");
+
+        assertThat(record.isUnknown()).isTrue();
+        verify(resolver, times(1)).query(any(Uri.class), any(String[].class),
+                (String) isNull(), (String[]) isNull(), (String) isNull());
+        assertThat(lookup.getStats()).startsWith("2 lookup(s), 0 hit(s), 1 unknown hit(s), 1 miss(es)");
+    }
+
+    @Test
+    public void shouldExpireCacheEntries() throws Exception {
+        PersonLookup.NumberCache cache = new PersonLookup.NumberCache(10);
+        cache.put("12345", new PersonRecord(0, null, null, "12345"), 1000);
+
+        assertThat(cache.get("12345", 999)).isNotNull();
+        assertThat(cache.get("12345", 1000)).isNull();
+    }
+
+    @Test
+    public void shouldOnlyMatchShortAndAlphanumericAddressesExactly() throws Exception {
+        PersonLookup.NumberCache cache = new PersonLookup.NumberCache(10);
+        cache.put("1234", new PersonRecord(0, null, null, "1234"), Long.MAX_VALUE);
+        cache.put("Vodafone", new PersonRecord(0, null, null, "Vodafone"), Long.MAX_VALUE);
+
+        assertThat(cache.get("01234", 0)).isNull();
+        assertThat(cache.get("12 34", 0)).isNotNull();
+        assertThat(cache.get("Vodafone", 0)).isNotNull();
+        assertThat(cache.get("vodafone", 0)).isNull();
+    }
+
+    @Test
+    public void shouldNormalize() throws Exception {
+        assertThat(PersonLookup.normalize("+1 (555) 010-0100")).isEqualTo("+15550100100");
+        assertThat(PersonLookup.normalize("555.010.0100")).isEqualTo("5550100100");
+        assertThat(PersonLookup.normalize("*100#")).isEqualTo("*100#");
+        assertThat(PersonLookup.normalize(" Vodafone ")).isEqualTo("Vodafone");
+    }
+
+    @Test
+    public void shouldGetMinMatch() throws Exception {
+        assertThat(PersonLookup.getMinMatch("+49 (151) 234-5678")).isEqualTo("2345678");
+        assertThat(PersonLookup.getMinMatch("1234567")).isEqualTo("1234567");
+        assertThat(PersonLookup.getMinMatch("123456")).isNull();
+        assertThat(PersonLookup.getMinMatch("Vodafone")).isNull();
+    }
+
+    @Test @Config(sdk = Build.VERSION_CODES.LOLLIPOP)
+    public void shouldLookUpUnmatchedAddressesAfterPreloading() throws Exception {
+        lookup.preload(Arrays.asList("+491512345678", "", "Vodafone"));
+
+        verify(resolver).query(eq(ContactsContract.CommonDataKinds.Phone.CONTENT_URI), any(String[].class),
+                anyString(), eq(new String[] { "%2345678", "+491512345678" }), (String) isNull());
+
+        PersonRecord record = lookup.lookupPerson("+491512345678");
+        assertThat(record.isUnknown()).isTrue();
+        // not matched by the preload (the query failed), so looked up separately
+        verify(resolver).query(eq(Uri.withAppendedPath(ContactsContract.PhoneLookup.CONTENT_FILTER_URI,
+                Uri.encode("+491512345678"))), any(String[].class), (String) isNull(), (String[]) isNull(),
+                (String) isNull());
+        verifyNoMoreInteractions(resolver);
+    }
+
+    /**
+     * Compares the number of provider queries needed to resolve the addresses of a first
+     * backup one by one with the batched preload.
+     */
+    @Test @Config(sdk = Build.VERSION_CODES.LOLLIPOP)
+    public void shouldUseFewerQueriesWhenPreloading() throws Exception {
+        final ContactsProvider provider = new ContactsProvider();
+        ShadowContentResolver.registerProviderInternal(ContactsContract.AUTHORITY, provider);
+        final List<String> addresses = new ArrayList<String>();
+        for (int i = 0; i < 200; i++) {
+            final String number = String.format(Locale.ENGLISH, "+4915100000%03d", i);
+            if (i < 50) {
+                // stored in a different format than used in the messages
+                provider.addContact(i + 1, "Contact " + i, String.format(Locale.ENGLISH, "0151 00000%03d", i), number,
+                        i % 2 == 0 ? new String[] { "contact" + i + "@example.com", "contact" + i + "@gmail.com" } :
+                                     new String[] { "contact" + i + "@example.com" });
+            }
+            addresses.add(number);
+        }
+        final ContentResolver contentResolver = RuntimeEnvironment.application.getContentResolver();
+
+        final PersonLookup single = new PersonLookup(contentResolver);
+        final List<PersonRecord> expected = new ArrayList<PersonRecord>();
+        for (String address : addresses) {
+            expected.add(single.lookupPerson(address));
+        }
+        final int singleQueries = provider.queries;
+
+        provider.queries = 0;
+        final PersonLookup batched = new PersonLookup(contentResolver);
+        batched.preload(addresses);
+        final int preloadQueries = provider.queries;
+        provider.queries = 0;
+        for (int i = 0; i < addresses.size(); i++) {
+            final PersonRecord record = batched.lookupPerson(addresses.get(i));
+            assertThat(record.getId()).isEqualTo(expected.get(i).getId());
+            assertThat(record.getName()).isEqualTo(expected.get(i).getName());
+            assertThat(record.getEmail()).isEqualTo(expected.get(i).getEmail());
+        }
+
+        assertThat(preloadQueries + provider.queries).isLessThan(singleQueries);
+        assertThat(singleQueries).isEqualTo(250);
+        assertThat(preloadQueries).isEqualTo(200 / PersonLookup.PRELOAD_BATCH_SIZE + 1);
+        // addresses without contact are still looked up one by one
+        assertThat(provider.queries).isEqualTo(150);
+        assertThat(expected.get(0).getEmail()).isEqualTo("contact0@gmail.com");
+        assertThat(expected.get(1).getEmail()).isEqualTo("contact1@example.com");
+        assertThat(expected.get(50).isUnknown()).isTrue();
+    }
+
     private Cursor name(String... names) {
         MatrixCursor cursor = new MatrixCursor(new String[] {
             ContactsContract.Contacts._ID,
@@ -121,4 +286,62 @@ public class PersonLookupTest {
         }
         return cursor;
     }
+
+    /**
+     * A contacts provider backed by an in-memory database, supporting phone lookups and
+     * queries of phone numbers and email addresses.
+     */
+    private static class ContactsProvider extends ContentProvider {
+        private final SQLiteDatabase db = SQLiteDatabase.create(null);
+        int queries;
+
+        ContactsProvider() {
+            db.execSQL("CREATE TABLE phones (contact_id INTEGER, display_name TEXT, data1 TEXT, data4 TEXT)");
+            db.execSQL("CREATE TABLE emails (contact_id INTEGER, data1 TEXT, is_primary INTEGER)");
+        }
+
+        void addContact(long id, String name, String number, String normalizedNumber, String... emails) {
+            db.execSQL("INSERT INTO phones VALUES (?, ?, ?, ?)", new Object[] { id, name, number, normalizedNumber });
+            for (int i = 0; i < emails.length; i++) {
+                db.execSQL("INSERT INTO emails VALUES (?, ?, ?)", new Object[] { id, emails[i], i == 0 ? 1 : 0 });
+            }
+        }
+
+        @Override public boolean onCreate() {
+            return true;
+        }
+
+        @Override public Cursor query(@NonNull Uri uri, String[] projection, String selection,
+                                      String[] selectionArgs, String sortOrder) {
+            queries++;
+            final List<String> segments = uri.getPathSegments();
+            if ("phone_lookup".equals(segments.get(0))) {
+                final String number = segments.get(1);
+                return db.rawQuery("SELECT contact_id AS _id, display_name FROM phones WHERE data1 = ? OR data4 = ?",
+                        new String[] { number, number });
+            } else if ("phones".equals(segments.get(1))) {
+                return db.query("phones", projection, selection, selectionArgs, null, null, sortOrder);
+            } else if ("emails".equals(segments.get(1))) {
+                return db.query("emails", projection, selection, selectionArgs, null, null, sortOrder);
+            } else {
+                throw new IllegalArgumentException("unsupported uri: " + uri);
+            }
+        }
+
+        @Override public String getType(@NonNull Uri uri) {
+            return null;
+        }
+
+        @Override public Uri insert(@NonNull Uri uri, ContentValues values) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override public int delete(@NonNull Uri uri, String selection, String[] selectionArgs) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override public int update(@NonNull Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+            throw new UnsupportedOperationException();
+        }
+    }
 }
@@ -0,0 +1,81 @@
+package com.zegoggles.smssync.mail;
+
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.internet.MimeMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class UidIndexTest {
+    private UidIndex index;
+
+    @Before public void before() {
+        index = new UidIndex(RuntimeEnvironment.application, null);
+    }
+
+    @After public void after() {
+        index.close();
+    }
+
+    @Test public void shouldStoreUidsOfAppendedMessages() throws Exception {
+        index.put("SMS", 38505L, result(DataType.SMS, 1, "3955", 2, "3956", 3, null));
+
+        assertThat(index.getUid(DataType.SMS, 1, 1000L, "SMS", 38505L)).isEqualTo(3955L);
+        assertThat(index.getUid(DataType.SMS, 2, 1000L, "SMS", 38505L)).isEqualTo(3956L);
+        assertThat(index.getUid(DataType.SMS, 3, 1000L, "SMS", 38505L)).isEqualTo(UidIndex.UNKNOWN);
+        assertThat(index.getUid(DataType.CALLLOG, 1, 1000L, "SMS", 38505L)).isEqualTo(UidIndex.UNKNOWN);
+        assertThat(index.getMaxUid("SMS", 38505L)).isEqualTo(3956L);
+    }
+
+    @Test public void shouldNotReturnUidsOfItemsWithReusedId() throws Exception {
+        index.put("SMS", 38505L, result(DataType.SMS, 1, "3955"));
+
+        assertThat(index.getUid(DataType.SMS, 1, 2000L, "SMS", 38505L)).isEqualTo(UidIndex.UNKNOWN);
+    }
+
+    @Test public void shouldNotReturnUidsOfOtherUidValidity() throws Exception {
+        index.put("SMS", 38505L, result(DataType.SMS, 1, "3955"));
+
+        assertThat(index.getUid(DataType.SMS, 1, 1000L, "SMS", 1L)).isEqualTo(UidIndex.UNKNOWN);
+        assertThat(index.getMaxUid("SMS", 1L)).isEqualTo(UidIndex.UNKNOWN);
+    }
+
+    @Test public void shouldDropEntriesIfUidValidityChanges() throws Exception {
+        index.put("SMS", 38505L, result(DataType.SMS, 1, "3955"));
+        index.put("Call log", 100L, result(DataType.CALLLOG, 1, "10"));
+        index.put("SMS", 40000L, result(DataType.SMS, 2, "1"));
+
+        assertThat(index.getUid(DataType.SMS, 1, 1000L, "SMS", 38505L)).isEqualTo(UidIndex.UNKNOWN);
+        assertThat(index.getUid(DataType.SMS, 2, 1000L, "SMS", 40000L)).isEqualTo(1L);
+        assertThat(index.getUid(DataType.CALLLOG, 1, 1000L, "Call log", 100L)).isEqualTo(10L);
+    }
+
+    @Test public void shouldClear() throws Exception {
+        index.put("SMS", 38505L, result(DataType.SMS, 1, "3955"));
+        index.clear();
+
+        assertThat(index.getUid(DataType.SMS, 1, 1000L, "SMS", 38505L)).isEqualTo(UidIndex.UNKNOWN);
+    }
+
+    /**
+     * @param idsAndUids pairs of provider id and server uid
+     */
+    private static ConversionResult result(DataType type, Object... idsAndUids) throws Exception {
+        ConversionResult result = new ConversionResult(type);
+        for (int i = 0; i < idsAndUids.length; i += 2) {
+            Message message = new MimeMessage();
+            message.setUid((String) idsAndUids[i + 1]);
+            long id = ((Integer) idsAndUids[i]).longValue();
+            result.add(message, type == DataType.SMS ?
+                new SmsRecord(id, "1234", "body", 1, 1000L, null, null, null, null, null) :
+                new CallLogRecord(id, "1234", 1, 1000L, 10));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,147 @@
+package com.zegoggles.smssync.mail;
+
+import com.fsck.k9.mail.store.imap.ImapMessage;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+public class UidWindowsTest {
+    @Mock BackupImapStore.BackupFolder folder;
+
+    @Before public void before() {
+        initMocks(this);
+    }
+
+    @Test public void shouldReturnMessagesInAscendingUidOrder() throws Exception {
+        ImapFolderStandIn server = new ImapFolderStandIn(folder, 2500, 1, 0);
+        MessageWindows windows = server.getMessageWindows();
+
+        assertThat(windows.getFolder()).isSameAs(folder);
+        long expected = 1;
+        List<ImapMessage> messages;
+        while ((messages = windows.next(100)) != null) {
+            assertThat(messages.size()).isLessThanOrEqualTo(100);
+            for (ImapMessage message : messages) {
+                assertThat(message.getUid()).isEqualTo(String.valueOf(expected++));
+            }
+        }
+        assertThat(expected).isEqualTo(2501);
+        assertThat(server.getMaxSearchResults()).isLessThanOrEqualTo(UidWindows.MAX_SEARCH_WIDTH);
+    }
+
+    @Test public void shouldWidenRangesInSparseFolders() throws Exception {
+        ImapFolderStandIn server = new ImapFolderStandIn(folder, 1000, 1000, 0);
+        MessageWindows windows = server.getMessageWindows();
+
+        int count = 0;
+        List<ImapMessage> messages;
+        while ((messages = windows.next(100)) != null) {
+            count += messages.size();
+        }
+        assertThat(count).isEqualTo(1000);
+        // 1M UIDs, searched in ranges of up to 10k UIDs
+        assertThat(server.getSearches()).isLessThan(110);
+        assertThat(server.getMaxSearchResults()).isLessThanOrEqualTo(UidWindows.MAX_SEARCH_WIDTH);
+    }
+
+    @Test public void shouldSearchAllMessagesIfUidNextIsUnknown() throws Exception {
+        ImapFolderStandIn server = new ImapFolderStandIn(folder, 150, 1, 0);
+        server.setUidNextKnown(false);
+        MessageWindows windows = server.getMessageWindows();
+
+        assertThat(windows.next(100)).hasSize(100);
+        assertThat(windows.next(100)).hasSize(50);
+        assertThat(windows.next(100)).isNull();
+        assertThat(server.getSearches()).isEqualTo(1);
+    }
+
+    @Test public void shouldUseCountReportedByServer() throws Exception {
+        ImapFolderStandIn server = new ImapFolderStandIn(folder, 12345, 1, 0);
+        server.setCountSupported(true);
+
+        assertThat(server.getMessageWindows().count()).isEqualTo(12345);
+        assertThat(server.getSearches()).isEqualTo(0);
+    }
+
+    @Test public void shouldNotSearchToCountWithoutServerSupport() throws Exception {
+        ImapFolderStandIn server = new ImapFolderStandIn(folder, 12345, 3, 0);
+        MessageWindows windows = server.getMessageWindows();
+
+        assertThat(windows.count()).isEqualTo(-1);
+        assertThat(windows.count()).isEqualTo(-1);
+        assertThat(server.getSearches()).isEqualTo(0);
+        assertThat(windows.next(1).get(0).getUid()).isEqualTo("3");
+    }
+
+    @Test public void shouldOnlyReturnMessagesAfterLastUid() throws Exception {
+        ImapFolderStandIn server = new ImapFolderStandIn(folder, 5000, 1, 0);
+        server.setCountSupported(true);
+        MessageWindows windows = server.getMessageWindowsAfter(1, 4900);
+
+        assertThat(windows.count()).isEqualTo(100);
+        assertThat(windows.next(1000).get(0).getUid()).isEqualTo("4901");
+        assertThat(windows.next(1000)).isNull();
+        assertThat(server.getSearches()).isEqualTo(1);
+        assertThat(windows.getLastUid()).isEqualTo(5000L);
+        assertThat(windows.getUidValidity()).isEqualTo(1L);
+    }
+
+    @Test public void shouldReturnNothingIfNoMessagesWereAdded() throws Exception {
+        ImapFolderStandIn server = new ImapFolderStandIn(folder, 5000, 1, 0);
+        server.setCountSupported(true);
+        MessageWindows windows = server.getMessageWindowsAfter(1, 5000);
+
+        assertThat(windows.count()).isEqualTo(0);
+        assertThat(windows.next(100)).isNull();
+        assertThat(server.getSearches()).isEqualTo(0);
+    }
+
+    @Test public void shouldReturnAllMessagesIfUidValidityChanged() throws Exception {
+        ImapFolderStandIn server = new ImapFolderStandIn(folder, 5000, 1, 0);
+        server.setUidValidity(2);
+        MessageWindows windows = server.getMessageWindowsAfter(1, 4900);
+
+        assertThat(windows.count()).isEqualTo(5000);
+        assertThat(windows.next(1).get(0).getUid()).isEqualTo("1");
+    }
+
+    @Test public void shouldNotReturnLowerUidsIfUidNextIsUnknown() throws Exception {
+        ImapFolderStandIn server = new ImapFolderStandIn(folder, 5000, 1, 0);
+        server.setUidNextKnown(false);
+        MessageWindows windows = server.getMessageWindowsAfter(1, 5000);
+
+        assertThat(windows.next(100)).isNull();
+        assertThat(windows.getLastUid()).isEqualTo(5000L);
+    }
+
+    @Test public void shouldReportLastUidOfReturnedMessages() throws Exception {
+        ImapFolderStandIn server = new ImapFolderStandIn(folder, 100, 10, 0);
+        MessageWindows windows = server.getMessageWindows();
+
+        assertThat(windows.getLastUid()).isEqualTo(-1L);
+        windows.next(10);
+        // everything below the next message to return
+        assertThat(windows.getLastUid()).isEqualTo(109L);
+        while (windows.next(100) != null) {
+            // drain
+        }
+        assertThat(windows.getLastUid()).isEqualTo(1000L);
+    }
+
+    @Test public void shouldHandleEmptyFolder() throws Exception {
+        ImapFolderStandIn server = new ImapFolderStandIn(folder, 0, 1, 0);
+        MessageWindows windows = server.getMessageWindows();
+
+        assertThat(windows.count()).isEqualTo(0);
+        assertThat(windows.next(100)).isNull();
+        assertThat(server.getSearches()).isEqualTo(0);
+    }
+}
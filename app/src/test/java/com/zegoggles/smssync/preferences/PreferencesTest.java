@@ -44,6 +44,23 @@ public class PreferencesTest {
         assertThat(preferences.isFirstBackup()).isFalse();
     }
 
+    @Test public void shouldStoreRestoreMark() throws Exception {
+        DataTypePreferences dataTypePreferences = preferences.getDataTypePreferences();
+        assertThat(dataTypePreferences.getRestoreMark(SMS)).isNull();
+
+        dataTypePreferences.setRestoreMark(SMS, new RestoreMark("Backup:SMS", 3857529045L, 44291, 1234567890000L, 42));
+        RestoreMark mark = dataTypePreferences.getRestoreMark(SMS);
+        assertThat(mark.folder).isEqualTo("Backup:SMS");
+        assertThat(mark.uidValidity).isEqualTo(3857529045L);
+        assertThat(mark.lastUid).isEqualTo(44291L);
+        assertThat(mark.time).isEqualTo(1234567890000L);
+        assertThat(mark.rows).isEqualTo(42);
+        assertThat(dataTypePreferences.getRestoreMark(CALLLOG)).isNull();
+
+        dataTypePreferences.clearLastSyncData();
+        assertThat(dataTypePreferences.getRestoreMark(SMS)).isNull();
+    }
+
     @Ignore @Test public void shouldGetVersion() throws Exception {
         assertThat(preferences.getVersion(false)).matches("\\d+\\.\\d+\\.\\d+(-\\w+)?");
     }
@@ -2,6 +2,7 @@ package com.zegoggles.smssync.service;
 
 import android.content.ContentResolver;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteException;
 import android.net.Uri;
@@ -20,7 +21,10 @@ import static com.zegoggles.smssync.mail.DataType.SMS;
 import static org.fest.assertions.api.Assertions.assertThat;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
@@ -68,6 +72,70 @@ public class BackupItemsFetcherTest {
         assertThat(fetcher.getItemsForDataType(SMS, null, -1).getCount()).isEqualTo(0);
     }
 
+    @Test public void shouldRetryWithFallbackQueryIfProjectionIsRejected() throws Exception {
+        fetcher = new BackupItemsFetcher(resolver, new BackupQueryBuilder(preferences.getDataTypePreferences()));
+        mockCount(1);
+
+        MatrixCursor cursor = new MatrixCursor(new String[] { "_id", "date" });
+        cursor.addRow(new Object[] { 1L, 1000L });
+        when(resolver.query(any(Uri.class), eq(BackupQueryBuilder.SMS_PROJECTION), anyString(), any(String[].class), anyString()))
+                .thenThrow(new IllegalArgumentException("Invalid column service_center"));
+        when(resolver.query(any(Uri.class), (String[]) isNull(), anyString(), any(String[].class), anyString()))
+                .thenReturn(cursor);
+
+        Cursor items = fetcher.getItemsForDataType(SMS, null, -1);
+        assertThat(items.getCount()).isEqualTo(1);
+        assertThat(items.moveToFirst()).isTrue();
+        assertThat(items.getLong(0)).isEqualTo(1L);
+    }
+
+    @Test public void shouldFetchItemsInPages() throws Exception {
+        fetcher = new BackupItemsFetcher(resolver, new BackupQueryBuilder(preferences.getDataTypePreferences()), 2, null);
+        mockCount(3);
+
+        MatrixCursor firstPage = new MatrixCursor(new String[] { "_id", "date" });
+        firstPage.addRow(new Object[] { 1L, 1000L });
+        firstPage.addRow(new Object[] { 2L, 1000L });
+        MatrixCursor secondPage = new MatrixCursor(new String[] { "_id", "date" });
+        secondPage.addRow(new Object[] { 3L, 2000L });
+        when(resolver.query(any(Uri.class), eq(BackupQueryBuilder.SMS_PROJECTION), anyString(), any(String[].class), eq("date, _id LIMIT 2")))
+                .thenReturn(firstPage);
+        when(resolver.query(any(Uri.class), eq(BackupQueryBuilder.SMS_PROJECTION), anyString(), any(String[].class), eq("date, _id LIMIT 1")))
+                .thenReturn(secondPage);
+
+        Cursor items = fetcher.getItemsForDataType(SMS, null, -1);
+        assertThat(items.getCount()).isEqualTo(3);
+        int rows = 0;
+        while (items.moveToNext()) {
+            assertThat(items.getLong(0)).isEqualTo(++rows);
+        }
+        assertThat(rows).isEqualTo(3);
+        verify(resolver).query(any(Uri.class), eq(BackupQueryBuilder.SMS_PROJECTION),
+                eq("(date > ? AND type <> ?) AND (date > ? OR (date = ? AND _id > ?))"),
+                eq(new String[] { "-1", "3", "1000", "1000", "2" }),
+                eq("date, _id LIMIT 1"));
+    }
+
+    @Test public void shouldLimitCountToMaxItems() throws Exception {
+        fetcher = new BackupItemsFetcher(resolver, new BackupQueryBuilder(preferences.getDataTypePreferences()));
+        mockCount(1000);
+
+        assertThat(fetcher.getItemsForDataType(SMS, null, 50).getCount()).isEqualTo(50);
+    }
+
+    @Test public void shouldCountRowsIfCountQueryIsRejected() throws Exception {
+        fetcher = new BackupItemsFetcher(resolver, new BackupQueryBuilder(preferences.getDataTypePreferences()));
+        when(resolver.query(any(Uri.class), eq(new String[] { "count(*) AS count" }), anyString(), any(String[].class), anyString()))
+                .thenThrow(new IllegalArgumentException("Invalid column count(*) AS count"));
+        MatrixCursor ids = new MatrixCursor(new String[] { "_id" });
+        ids.addRow(new Object[] { 1L });
+        ids.addRow(new Object[] { 2L });
+        when(resolver.query(any(Uri.class), eq(new String[] { "_id" }), anyString(), any(String[].class), anyString()))
+                .thenReturn(ids);
+
+        assertThat(fetcher.getItemsForDataType(SMS, null, -1).getCount()).isEqualTo(2);
+    }
+
     @Test public void shouldReturnDefaultIfDataTypeCannotBeRead() throws Exception {
         for (DataType type : DataType.values()) {
             assertThat(fetcher.getMostRecentTimestamp(type)).isEqualTo(-1);
@@ -103,6 +171,13 @@ public class BackupItemsFetcherTest {
                 any(String.class))).thenReturn(cursor);
     }
 
+    private void mockCount(int count) {
+        MatrixCursor cursor = new MatrixCursor(new String[] { "count" });
+        cursor.addRow(new Object[] { count });
+        when(resolver.query(any(Uri.class), eq(new String[] { "count(*) AS count" }), anyString(), any(String[].class), anyString()))
+                .thenReturn(cursor);
+    }
+
     private void mockEmptyQuery() {
         BackupQueryBuilder.Query query = mock(BackupQueryBuilder.Query.class);
         when(queryBuilder.buildQueryForDataType(SMS, null, -1)).thenReturn(query);
@@ -0,0 +1,77 @@
+package com.zegoggles.smssync.service;
+
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.zegoggles.smssync.mail.ConversionResult;
+import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.mail.Headers;
+import com.zegoggles.smssync.mail.SmsRecord;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Map;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class BackupJournalTest {
+    private File directory;
+    private BackupJournal journal;
+
+    @Before public void before() {
+        directory = RuntimeEnvironment.application.getFilesDir();
+        new File(directory, BackupJournal.FILE_NAME).delete();
+        journal = new BackupJournal(directory);
+    }
+
+    @Test public void shouldReplayCommittedBatches() throws Exception {
+        journal.commit(journal.begin(batch(1, 1000L)));
+        journal.commit(journal.begin(batch(2, 2000L)));
+        journal.begin(batch(3, 3000L));
+
+        Map<DataType, BackupJournal.Entry> committed = new BackupJournal(directory).replay();
+
+        assertThat(committed).hasSize(1);
+        assertThat(committed.get(DataType.SMS).maxDate).isEqualTo(2000L);
+        assertThat(committed.get(DataType.SMS).messages).isEqualTo(1);
+    }
+
+    @Test public void shouldClearJournalAfterReplay() throws Exception {
+        journal.commit(journal.begin(batch(1, 1000L)));
+
+        assertThat(journal.replay()).hasSize(1);
+        assertThat(journal.replay()).isEmpty();
+        assertThat(new File(directory, BackupJournal.FILE_NAME).exists()).isFalse();
+    }
+
+    @Test public void shouldIgnoreIncompleteEntries() throws Exception {
+        journal.commit(journal.begin(batch(1, 1000L)));
+        final long seq = journal.begin(batch(2, 2000L));
+
+        FileOutputStream out = new FileOutputStream(new File(directory, BackupJournal.FILE_NAME), true);
+        out.write(("deadbeef C " + seq + "\n").getBytes("UTF-8"));
+        out.write("12ab C".getBytes("UTF-8"));
+        out.close();
+
+        Map<DataType, BackupJournal.Entry> committed = journal.replay();
+
+        assertThat(committed.get(DataType.SMS).maxDate).isEqualTo(1000L);
+    }
+
+    @Test public void shouldReplayEmptyJournal() throws Exception {
+        assertThat(journal.replay()).isEmpty();
+    }
+
+    private static ConversionResult batch(long id, long date) throws Exception {
+        ConversionResult result = new ConversionResult(DataType.SMS);
+        Message message = new MimeMessage();
+        message.setHeader(Headers.MESSAGE_ID, "<0cc175b9c0f1b6a831c399e269772661@sms-backup-plus.local>");
+        result.add(message, new SmsRecord(id, "1234", "body", 1, date, null, null, null, null, null));
+        return result;
+    }
+}
@@ -0,0 +1,171 @@
+package com.zegoggles.smssync.service;
+
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.mail.SmsRecord;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+
+@RunWith(RobolectricTestRunner.class)
+public class BackupPipelineTest {
+
+    @Test public void shouldUploadBatchesInOrder() throws Exception {
+        final List<BackupBatches.Batch> uploaded = Collections.synchronizedList(new ArrayList<BackupBatches.Batch>());
+        BackupPipeline pipeline = new BackupPipeline(new BackupPipeline.Uploader() {
+            @Override public void upload(BackupBatches.Batch batch) {
+                uploaded.add(batch);
+            }
+        });
+        pipeline.start();
+
+        List<BackupBatches.Batch> submitted = new ArrayList<BackupBatches.Batch>();
+        for (int i = 0; i < 10; i++) {
+            BackupBatches.Batch batch = batch();
+            submitted.add(batch);
+            pipeline.submit(batch);
+        }
+        pipeline.finish();
+
+        assertThat(uploaded).isEqualTo(submitted);
+    }
+
+    @Test public void shouldBlockSubmitWhileQueueIsFull() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final BackupPipeline pipeline = new BackupPipeline(new BackupPipeline.Uploader() {
+            @Override public void upload(BackupBatches.Batch batch) {
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }, 1, 0);
+        pipeline.start();
+
+        pipeline.submit(batch()); // taken by the upload thread, which then blocks
+        final AtomicBoolean submitted = new AtomicBoolean();
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread producer = new Thread(new Runnable() {
+            @Override public void run() {
+                try {
+                    pipeline.submit(batch());
+                    pipeline.submit(batch());
+                    submitted.set(true);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        producer.start();
+
+        assertThat(done.await(200, TimeUnit.MILLISECONDS)).isFalse();
+        assertThat(submitted.get()).isFalse();
+
+        release.countDown();
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(submitted.get()).isTrue();
+        pipeline.finish();
+    }
+
+    @Test public void shouldReportUploadFailureToSubmitter() throws Exception {
+        final MessagingException exception = new MessagingException("failed");
+        final List<BackupBatches.Batch> uploaded = Collections.synchronizedList(new ArrayList<BackupBatches.Batch>());
+        BackupPipeline pipeline = new BackupPipeline(new BackupPipeline.Uploader() {
+            @Override public void upload(BackupBatches.Batch batch) throws MessagingException {
+                uploaded.add(batch);
+                throw exception;
+            }
+        }, 1, 0);
+        pipeline.start();
+
+        try {
+            for (int i = 0; i < 10; i++) {
+                pipeline.submit(batch());
+            }
+            pipeline.finish();
+            fail("expected exception");
+        } catch (MessagingException e) {
+            assertThat(e).isSameAs(exception);
+        }
+        assertThat(uploaded).hasSize(1);
+    }
+
+    @Test public void shouldKeepBatchesDroppedAfterFailure() throws Exception {
+        BackupPipeline pipeline = new BackupPipeline(new BackupPipeline.Uploader() {
+            @Override public void upload(BackupBatches.Batch batch) throws MessagingException {
+                throw new MessagingException("failed");
+            }
+        }, 1, 0);
+        pipeline.start();
+
+        List<BackupBatches.Batch> submitted = new ArrayList<BackupBatches.Batch>();
+        try {
+            for (int i = 0; i < 10; i++) {
+                BackupBatches.Batch batch = batch();
+                submitted.add(batch);
+                pipeline.submit(batch);
+            }
+            pipeline.finish();
+            fail("expected exception");
+        } catch (MessagingException expected) {
+        }
+
+        assertThat(pipeline.drainDropped()).isEqualTo(submitted);
+        assertThat(pipeline.drainDropped()).isEmpty();
+    }
+
+    @Test public void shouldDropQueuedBatchesWhenCanceled() throws Exception {
+        final CountDownLatch uploading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<BackupBatches.Batch> uploaded = Collections.synchronizedList(new ArrayList<BackupBatches.Batch>());
+        final BackupPipeline pipeline = new BackupPipeline(new BackupPipeline.Uploader() {
+            @Override public void upload(BackupBatches.Batch batch) {
+                uploaded.add(batch);
+                uploading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }, 2, 0);
+        pipeline.start();
+        pipeline.submit(batch());
+        assertThat(uploading.await(5, TimeUnit.SECONDS)).isTrue();
+        pipeline.submit(batch());
+        pipeline.submit(batch());
+
+        Thread canceler = new Thread(new Runnable() {
+            @Override public void run() {
+                pipeline.cancel();
+            }
+        });
+        canceler.start();
+        // the queue is full, so this only returns once the pipeline has been canceled
+        pipeline.submit(batch());
+        release.countDown();
+        canceler.join(5000);
+
+        assertThat(canceler.isAlive()).isFalse();
+        assertThat(uploaded).hasSize(1);
+        assertThat(pipeline.drainDropped()).hasSize(3);
+    }
+
+    private static BackupBatches.Batch batch() {
+        BackupBatches.Batch batch = new BackupBatches.Batch(DataType.SMS);
+        batch.add(new MimeMessage(), new SmsRecord(1, "1234", "body", 1, 1, null, null, null, null, null));
+        return batch;
+    }
+}
@@ -35,7 +35,8 @@ public class BackupQueryBuilderTest {
         BackupQueryBuilder.Query query = builder.buildQueryForDataType(SMS, null, 200);
 
         assertThat(query.uri).isEqualTo(Uri.parse("content://sms"));
-        assertThat(query.projection).isNull();
+        assertThat(query.projection).containsExactly("_id", "address", "body", "type", "date",
+                "thread_id", "read", "status", "protocol", "service_center");
         assertThat(query.selection).isEqualTo("date > ? AND type <> ?");
         assertThat(query.selectionArgs).containsExactly("-1", "3");
         assertThat(query.sortOrder).isEqualTo("date LIMIT 200");
@@ -48,7 +49,7 @@ public class BackupQueryBuilderTest {
         BackupQueryBuilder.Query query = builder.buildQueryForDataType(SMS, ids, 200);
 
         assertThat(query.uri).isEqualTo(Uri.parse("content://sms"));
-        assertThat(query.projection).isNull();
+        assertThat(query.projection).isEqualTo(BackupQueryBuilder.SMS_PROJECTION);
         assertThat(query.selection).isEqualTo("date > ? AND type <> ?  AND (type = 2 OR person IN (20))");
         assertThat(query.selectionArgs).containsExactly("-1", "3");
         assertThat(query.sortOrder).isEqualTo("date LIMIT 200");
@@ -58,7 +59,7 @@ public class BackupQueryBuilderTest {
         BackupQueryBuilder.Query query = builder.buildQueryForDataType(MMS, null, 200);
 
         assertThat(query.uri).isEqualTo(Uri.parse("content://mms"));
-        assertThat(query.projection).isNull();
+        assertThat(query.projection).containsExactly("_id", "date", "m_type", "thread_id", "read", "msg_box");
         assertThat(query.selection).isEqualTo("date > ? AND m_type <> ?");
         assertThat(query.selectionArgs).containsExactly("-1", "134");
         assertThat(query.sortOrder).isEqualTo("date LIMIT 200");
@@ -71,12 +72,66 @@ public class BackupQueryBuilderTest {
         BackupQueryBuilder.Query query = builder.buildQueryForDataType(MMS, null, 200);
 
         assertThat(query.uri).isEqualTo(Uri.parse("content://mms"));
-        assertThat(query.projection).isNull();
+        assertThat(query.projection).containsExactly("_id", "date", "m_type", "thread_id", "read", "msg_box");
         assertThat(query.selection).isEqualTo("date > ? AND m_type <> ?");
         assertThat(query.selectionArgs).containsExactly(String.valueOf(nowInSecs / 1000L), "134");
         assertThat(query.sortOrder).isEqualTo("date LIMIT 200");
     }
 
+    @Test public void shouldBuildQueriesWithAllColumnsFallback() throws Exception {
+        for (DataType type : new DataType[] { SMS, MMS }) {
+            BackupQueryBuilder.Query query = builder.buildQueryForDataType(type, null, 200);
+
+            assertThat(query.fallback).isNotNull();
+            assertThat(query.fallback.projection).isNull();
+            assertThat(query.fallback.uri).isEqualTo(query.uri);
+            assertThat(query.fallback.selection).isEqualTo(query.selection);
+            assertThat(query.fallback.selectionArgs).isEqualTo(query.selectionArgs);
+            assertThat(query.fallback.sortOrder).isEqualTo(query.sortOrder);
+        }
+    }
+
+    @Test public void shouldBuildCountQuery() throws Exception {
+        BackupQueryBuilder.Query query = builder.buildQueryForDataType(SMS, null, 200).count();
+
+        assertThat(query.uri).isEqualTo(Uri.parse("content://sms"));
+        assertThat(query.projection).containsExactly("count(*) AS count");
+        assertThat(query.selection).isEqualTo("date > ? AND type <> ?");
+        assertThat(query.selectionArgs).containsExactly("-1", "3");
+        assertThat(query.sortOrder).isNull();
+        assertThat(query.fallback.projection).containsExactly("_id");
+    }
+
+    @Test public void shouldBuildFirstPageQuery() throws Exception {
+        BackupQueryBuilder.Query query = builder.buildQueryForDataType(SMS, null, 200)
+                .page(PagedCursor.NONE, PagedCursor.NONE, 50);
+
+        assertThat(query.projection).isEqualTo(BackupQueryBuilder.SMS_PROJECTION);
+        assertThat(query.selection).isEqualTo("date > ? AND type <> ?");
+        assertThat(query.selectionArgs).containsExactly("-1", "3");
+        assertThat(query.sortOrder).isEqualTo("date, _id LIMIT 50");
+    }
+
+    @Test public void shouldBuildNextPageQuery() throws Exception {
+        BackupQueryBuilder.Query query = builder.buildQueryForDataType(CALLLOG, null, 200)
+                .page(12345L, 17L, 50);
+
+        assertThat(query.uri).isEqualTo(Uri.parse("content://call_log/calls"));
+        assertThat(query.selection).isEqualTo("(date > ?) AND (date > ? OR (date = ? AND _id > ?))");
+        assertThat(query.selectionArgs).containsExactly("-1", "12345", "12345", "17");
+        assertThat(query.sortOrder).isEqualTo("date, _id LIMIT 50");
+    }
+
+    @Test public void shouldBuildNextPageQueryForFallback() throws Exception {
+        BackupQueryBuilder.Query query = builder.buildQueryForDataType(MMS, null, 200)
+                .page(12345L, 17L, 50);
+
+        assertThat(query.fallback.projection).isNull();
+        assertThat(query.fallback.selection).isEqualTo(query.selection);
+        assertThat(query.fallback.selectionArgs).isEqualTo(query.selectionArgs);
+        assertThat(query.fallback.sortOrder).isEqualTo("date, _id LIMIT 50");
+    }
+
     @Test public void shouldBuildQueryForCallLog() throws Exception {
         BackupQueryBuilder.Query query = builder.buildQueryForDataType(CALLLOG, null, 200);
 
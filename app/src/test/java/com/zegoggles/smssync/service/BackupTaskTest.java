@@ -5,6 +5,7 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.internet.MimeMessage;
 import com.fsck.k9.mail.store.imap.XOAuth2AuthenticationFailedException;
 import com.zegoggles.smssync.auth.TokenRefreshException;
@@ -13,9 +14,16 @@ import com.zegoggles.smssync.contacts.ContactAccessor;
 import com.zegoggles.smssync.contacts.ContactGroup;
 import com.zegoggles.smssync.contacts.ContactGroupIds;
 import com.zegoggles.smssync.mail.BackupImapStore;
+import com.zegoggles.smssync.mail.CallLogRecord;
 import com.zegoggles.smssync.mail.ConversionResult;
 import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.mail.Headers;
 import com.zegoggles.smssync.mail.MessageConverter;
+import com.zegoggles.smssync.mail.MessageRecord;
+import com.zegoggles.smssync.mail.MmsRecord;
+import com.zegoggles.smssync.mail.PersonLookup;
+import com.zegoggles.smssync.mail.SmsRecord;
+import com.zegoggles.smssync.mail.UidIndex;
 import com.zegoggles.smssync.preferences.AuthPreferences;
 import com.zegoggles.smssync.preferences.DataTypePreferences;
 import com.zegoggles.smssync.preferences.Preferences;
@@ -24,14 +32,18 @@ import com.zegoggles.smssync.service.state.SmsSyncState;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.RuntimeEnvironment;
 
+import java.io.File;
+import java.util.Collections;
 import java.util.EnumSet;
-import java.util.HashMap;
+import java.util.List;
 
 import static com.zegoggles.smssync.mail.DataType.CALLLOG;
 import static com.zegoggles.smssync.mail.DataType.MMS;
@@ -40,11 +52,13 @@ import static com.zegoggles.smssync.service.BackupItemsFetcher.emptyCursor;
 import static org.fest.assertions.api.Assertions.assertThat;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.notNull;
 import static org.mockito.Matchers.same;
 import static org.mockito.Mockito.anyListOf;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
@@ -140,6 +154,102 @@ public class BackupTaskTest {
         verify(folder, times(3)).appendMessages(anyListOf(Message.class));
     }
 
+    @Test public void shouldBatchAppendsToReduceRoundTrips() throws Exception {
+        when(preferences.getMaxMessagesPerAppend()).thenReturn(5);
+        mockFetch(SMS, 10);
+        mockConversion(SMS);
+        when(store.getFolder(notNull(DataType.class), same(dataTypePreferences))).thenReturn(folder);
+
+        BackupState finalState = task.doInBackground(config);
+
+        assertThat(finalState.currentSyncedItems).isEqualTo(10);
+        // 10 messages / batches of 5 => 2 round trips instead of 10
+        verify(folder, times(2)).appendMessages(anyListOf(Message.class));
+        verify(dataTypePreferences, times(2)).setMaxSyncedDate(eq(SMS), anyLong());
+    }
+
+    @Test public void shouldSendRemainingMessagesInLastBatch() throws Exception {
+        when(preferences.getMaxMessagesPerAppend()).thenReturn(5);
+        mockFetch(SMS, 7);
+        mockConversion(SMS);
+        when(store.getFolder(notNull(DataType.class), same(dataTypePreferences))).thenReturn(folder);
+
+        BackupState finalState = task.doInBackground(config);
+
+        assertThat(finalState.currentSyncedItems).isEqualTo(7);
+        verify(folder, times(2)).appendMessages(anyListOf(Message.class));
+    }
+
+    @Test public void shouldNotUpdateMaxSyncedDateIfBatchFails() throws Exception {
+        when(preferences.getMaxMessagesPerAppend()).thenReturn(5);
+        mockFetch(SMS, 5);
+        mockConversion(SMS);
+        when(store.getFolder(notNull(DataType.class), same(dataTypePreferences))).thenReturn(folder);
+        when(folder.appendMessages(anyListOf(Message.class))).thenThrow(new MessagingException("failed"));
+
+        task.doInBackground(config);
+
+        verify(dataTypePreferences, never()).setMaxSyncedDate(any(DataType.class), anyLong());
+    }
+
+    @Test public void shouldUploadBatchesOnSeparateThreadWhenPipelineEnabled() throws Exception {
+        when(preferences.isBackupPipelineEnabled()).thenReturn(true);
+        when(preferences.getMaxMessagesPerAppend()).thenReturn(5);
+        mockFetch(SMS, 12);
+        mockConversion(SMS);
+        when(store.getFolder(notNull(DataType.class), same(dataTypePreferences))).thenReturn(folder);
+
+        BackupState finalState = task.doInBackground(config);
+
+        assertThat(finalState.isFinished()).isTrue();
+        assertThat(finalState.currentSyncedItems).isEqualTo(12);
+        verify(folder, times(3)).appendMessages(anyListOf(Message.class));
+        verify(dataTypePreferences, times(3)).setMaxSyncedDate(eq(SMS), anyLong());
+        verify(store).closeFolders();
+    }
+
+    @Test public void shouldStopPipelineAndReportErrorIfUploadFails() throws Exception {
+        when(preferences.isBackupPipelineEnabled()).thenReturn(true);
+        when(preferences.getMaxMessagesPerAppend()).thenReturn(5);
+        mockFetch(SMS, 20);
+        mockConversion(SMS);
+        when(store.getFolder(notNull(DataType.class), same(dataTypePreferences))).thenReturn(folder);
+        MessagingException exception = new MessagingException("failed");
+        when(folder.appendMessages(anyListOf(Message.class))).thenThrow(exception);
+
+        task.doInBackground(config);
+
+        verify(service).transition(SmsSyncState.ERROR, exception);
+        verify(dataTypePreferences, never()).setMaxSyncedDate(any(DataType.class), anyLong());
+        verify(store).closeFolders();
+    }
+
+    @Test public void shouldUploadEachTypeWithItsOwnStoreWhenConnectionPerTypeEnabled() throws Exception {
+        BackupImapStore callLogStore = mock(BackupImapStore.class);
+        BackupImapStore.BackupFolder callLogFolder = mock(BackupImapStore.BackupFolder.class);
+        when(preferences.isConnectionPerTypeEnabled()).thenReturn(true);
+        when(preferences.getMaxMessagesPerAppend()).thenReturn(5);
+        when(service.getBackupImapStore()).thenReturn(callLogStore);
+        mockFetch(SMS, 10);
+        mockFetch(CALLLOG, 6);
+        mockConversion(SMS);
+        mockConversion(CALLLOG);
+        when(store.getFolder(notNull(DataType.class), same(dataTypePreferences))).thenReturn(folder);
+        when(callLogStore.getFolder(notNull(DataType.class), same(dataTypePreferences))).thenReturn(callLogFolder);
+
+        BackupState finalState = task.doInBackground(getBackupConfig(EnumSet.of(SMS, CALLLOG)));
+
+        assertThat(finalState.isFinished()).isTrue();
+        assertThat(finalState.currentSyncedItems).isEqualTo(16);
+        verify(folder, times(2)).appendMessages(anyListOf(Message.class));
+        verify(callLogFolder, times(2)).appendMessages(anyListOf(Message.class));
+        verify(store, never()).getFolder(CALLLOG, dataTypePreferences);
+        verify(dataTypePreferences, times(2)).setMaxSyncedDate(eq(SMS), anyLong());
+        verify(dataTypePreferences, times(2)).setMaxSyncedDate(eq(CALLLOG), anyLong());
+        verify(store).closeFolders();
+        verify(callLogStore).closeFolders();
+    }
+
     @Test public void shouldCreateFoldersLazilyOnlyForNeededTypes() throws Exception {
         mockFetch(SMS, 1);
 
@@ -231,11 +341,142 @@ public class BackupTaskTest {
     private ConversionResult result(DataType type, int n) {
         ConversionResult result = new ConversionResult(type);
         for (int i = 0; i<n; i++) {
-            result.add(new MimeMessage(), new HashMap<String, String>());
+            result.add(new MimeMessage(), record(type));
         }
         return result;
     }
 
+    private static MessageRecord record(DataType type) {
+        switch (type) {
+            case SMS: return new SmsRecord(1, "1234", "body", 1, 1, null, null, null, null, null);
+            case MMS: return new MmsRecord(1, 1, null, null, null, 1);
+            case CALLLOG: return new CallLogRecord(1, "1234", 1, 1, 10);
+            default: throw new IllegalArgumentException();
+        }
+    }
+
+    private void mockConversion(final DataType type) throws MessagingException {
+        when(converter.convertMessages(any(Cursor.class), eq(type))).then(new Answer<ConversionResult>() {
+            @Override public ConversionResult answer(InvocationOnMock invocation) throws Throwable {
+                return result(type, 1);
+            }
+        });
+    }
+
+    @Test public void shouldResumeAfterBatchesCommittedToJournal() throws Exception {
+        final File directory = RuntimeEnvironment.application.getFilesDir();
+        final BackupJournal journal = new BackupJournal(directory);
+        journal.clear();
+        journal.commit(journal.begin(result(SMS, 1)));
+        journal.begin(result(MMS, 1));
+        final long committedDate = result(SMS, 1).getMaxDate();
+
+        when(dataTypePreferences.getMaxSyncedDate(SMS)).thenReturn(committedDate - 1);
+        when(dataTypePreferences.getMaxSyncedDate(MMS)).thenReturn(-1L);
+        mockAllFetchEmpty();
+
+        task = new BackupTask(service, fetcher, converter, syncer, authPreferences, preferences, accessor, tokenRefresher, journal,
+                null, null, null);
+        task.doInBackground(config);
+
+        InOrder inOrder = inOrder(dataTypePreferences, fetcher);
+        inOrder.verify(dataTypePreferences).setMaxSyncedDate(SMS, committedDate);
+        inOrder.verify(fetcher).getItemsForDataType(eq(SMS), any(ContactGroupIds.class), anyInt());
+        verify(dataTypePreferences, never()).setMaxSyncedDate(eq(MMS), anyLong());
+        assertThat(new File(directory, BackupJournal.FILE_NAME).exists()).isFalse();
+    }
+
+    @Test public void shouldSkipMessagesUploadedBefore() throws Exception {
+        final UploadedMessages uploadedMessages = new UploadedMessages(RuntimeEnvironment.application.getFilesDir());
+        uploadedMessages.clear();
+        final MimeMessage uploaded = new MimeMessage();
+        uploaded.setHeader(Headers.MESSAGE_ID, "<uploaded@sms-backup-plus.local>");
+        final MimeMessage added = new MimeMessage();
+        added.setHeader(Headers.MESSAGE_ID, "<added@sms-backup-plus.local>");
+        when(authPreferences.getAccountId()).thenReturn("user@example.com imap.example.com:993");
+        when(dataTypePreferences.getFolder(SMS)).thenReturn("SMS");
+        uploadedMessages.add(Collections.singletonList(uploaded), "user@example.com imap.example.com:993 SMS");
+
+        final ConversionResult result = new ConversionResult(SMS);
+        result.add(uploaded, record(SMS));
+        result.add(added, record(SMS));
+        mockFetch(SMS, 1);
+        when(converter.convertMessages(any(Cursor.class), eq(SMS))).thenReturn(result);
+        when(store.getFolder(notNull(DataType.class), same(dataTypePreferences))).thenReturn(folder);
+
+        task = new BackupTask(service, fetcher, converter, syncer, authPreferences, preferences, accessor, tokenRefresher,
+                null, uploadedMessages, null, null);
+        BackupState finalState = task.doInBackground(config);
+
+        verify(folder).appendMessages(anyListOf(Message.class));
+        assertThat(finalState.currentSyncedItems).isEqualTo(1);
+        assertThat(result.getMessages()).containsExactly(added);
+        verify(dataTypePreferences).setMaxSyncedDate(eq(SMS), anyLong());
+    }
+
+    @Test public void shouldStoreUidsReportedForAppendedMessages() throws Exception {
+        final UidIndex uidIndex = mock(UidIndex.class);
+        mockFetch(SMS, 1);
+        when(converter.convertMessages(any(Cursor.class), eq(SMS))).thenReturn(result(SMS, 1));
+        when(store.getFolder(notNull(DataType.class), same(dataTypePreferences))).thenReturn(folder);
+        when(folder.getName()).thenReturn("SMS");
+        when(folder.getUidValidity()).thenReturn(38505L);
+        when(folder.getAppendUidValidity()).thenReturn(38505L);
+        when(uidIndex.getMaxUid("SMS", 38505L)).thenReturn(UidIndex.UNKNOWN);
+
+        task = new BackupTask(service, fetcher, converter, syncer, authPreferences, preferences, accessor, tokenRefresher,
+                null, null, null, uidIndex);
+        task.doInBackground(config);
+
+        InOrder inOrder = inOrder(folder, uidIndex);
+        inOrder.verify(folder).appendMessages(anyListOf(Message.class));
+        inOrder.verify(uidIndex).put(eq("SMS"), eq(38505L), any(ConversionResult.class));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test public void shouldSkipMessagesStoredBefore() throws Exception {
+        final UidIndex uidIndex = mock(UidIndex.class);
+        final MimeMessage stored = new MimeMessage();
+        final MimeMessage added = new MimeMessage();
+        final ConversionResult result = new ConversionResult(SMS);
+        result.add(stored, new SmsRecord(1, "1234", "body", 1, 1000L, null, null, null, null, null));
+        result.add(added, new SmsRecord(2, "1234", "body", 1, 2000L, null, null, null, null, null));
+        mockFetch(SMS, 1);
+        when(converter.convertMessages(any(Cursor.class), eq(SMS))).thenReturn(result);
+        when(store.getFolder(notNull(DataType.class), same(dataTypePreferences))).thenReturn(folder);
+        when(folder.getName()).thenReturn("SMS");
+        when(folder.getUidValidity()).thenReturn(38505L);
+        when(folder.getAppendUidValidity()).thenReturn(-1L);
+        when(uidIndex.getMaxUid("SMS", 38505L)).thenReturn(3955L);
+        when(uidIndex.getUid(SMS, 1, 1000L, "SMS", 38505L)).thenReturn(3955L);
+        when(uidIndex.getUid(SMS, 2, 2000L, "SMS", 38505L)).thenReturn(UidIndex.UNKNOWN);
+
+        task = new BackupTask(service, fetcher, converter, syncer, authPreferences, preferences, accessor, tokenRefresher,
+                null, null, null, uidIndex);
+        BackupState finalState = task.doInBackground(config);
+
+        ArgumentCaptor<List> appended = ArgumentCaptor.forClass(List.class);
+        verify(folder).appendMessages(appended.capture());
+        assertThat(appended.getValue()).containsExactly(added);
+        assertThat(finalState.currentSyncedItems).isEqualTo(1);
+        assertThat(finalState.itemsToSync).isEqualTo(1);
+        verify(dataTypePreferences).setMaxSyncedDate(SMS, 2000L);
+    }
+
+    @Test public void shouldLogContactLookupStats() throws Exception {
+        final PersonLookup personLookup = mock(PersonLookup.class);
+        when(personLookup.getStats()).thenReturn("2 lookup(s), 1 hit(s)");
+        mockFetch(SMS, 1);
+        when(converter.convertMessages(any(Cursor.class), eq(SMS))).thenReturn(result(SMS, 1));
+        when(store.getFolder(notNull(DataType.class), same(dataTypePreferences))).thenReturn(folder);
+
+        task = new BackupTask(service, fetcher, converter, syncer, authPreferences, preferences, accessor, tokenRefresher,
+                null, null, personLookup, null);
+        task.doInBackground(config);
+
+        verify(service).appLogDebug("contact lookups: %s", "2 lookup(s), 1 hit(s)");
+    }
+
     private void mockFetch(DataType type, final int n) {
         when(fetcher.getItemsForDataType(eq(type), any(ContactGroupIds.class), anyInt())).then(new Answer<Object>() {
             @Override public Object answer(InvocationOnMock invocationOnMock) throws Throwable {
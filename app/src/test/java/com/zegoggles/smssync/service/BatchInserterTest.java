@@ -0,0 +1,167 @@
+package com.zegoggles.smssync.service;
+
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+public class BatchInserterTest {
+    private static final Uri URI = Uri.parse("content://sms");
+
+    @Mock ContentResolver resolver;
+    private List<Uri> inserted;
+    private List<ContentValues> failed;
+    private List<ContentValues> existing;
+    private BatchInserter inserter;
+
+    @Before public void before() {
+        initMocks(this);
+        inserted = new ArrayList<Uri>();
+        failed = new ArrayList<ContentValues>();
+        existing = new ArrayList<ContentValues>();
+        inserter = new BatchInserter(resolver, URI, 2, new BatchInserter.Callback() {
+            @Override public void inserted(ContentValues values, Uri uri) {
+                inserted.add(uri);
+            }
+
+            @Override public void failed(ContentValues values) {
+                failed.add(values);
+            }
+
+            @Override public boolean exists(ContentValues values) {
+                return existing.contains(values);
+            }
+        }, "date", "address");
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test public void shouldInsertFullBatch() throws Exception {
+        when(resolver.applyBatch(eq("sms"), any(ArrayList.class))).thenReturn(new ContentProviderResult[] {
+            new ContentProviderResult(Uri.parse("content://sms/1")),
+            new ContentProviderResult(Uri.parse("content://sms/2"))
+        });
+
+        inserter.add(values(1, "a"));
+        verify(resolver, never()).applyBatch(anyString(), any(ArrayList.class));
+
+        inserter.add(values(2, "b"));
+        verify(resolver).applyBatch(eq("sms"), any(ArrayList.class));
+        assertThat(inserted).containsExactly(Uri.parse("content://sms/1"), Uri.parse("content://sms/2"));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test public void shouldInsertRemainingRowsOnFlush() throws Exception {
+        when(resolver.applyBatch(eq("sms"), any(ArrayList.class))).thenReturn(new ContentProviderResult[] {
+            new ContentProviderResult(Uri.parse("content://sms/1"))
+        });
+
+        inserter.add(values(1, "a"));
+        inserter.flush();
+        inserter.flush();
+
+        verify(resolver, times(1)).applyBatch(eq("sms"), any(ArrayList.class));
+        assertThat(inserted).containsExactly(Uri.parse("content://sms/1"));
+    }
+
+    @Test public void shouldReportPendingRows() throws Exception {
+        inserter.add(values(1, "a"));
+
+        assertThat(inserter.isPending(values(1, "a"))).isTrue();
+        assertThat(inserter.isPending(values(1, "b"))).isFalse();
+
+        inserter.flush();
+        assertThat(inserter.isPending(values(1, "a"))).isFalse();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test public void shouldInsertRowsSeparatelyIfBatchFails() throws Exception {
+        ContentValues first = values(1, "a");
+        ContentValues second = values(2, "b");
+        when(resolver.applyBatch(eq("sms"), any(ArrayList.class)))
+                .thenThrow(new OperationApplicationException("failed"));
+        when(resolver.insert(URI, second)).thenReturn(Uri.parse("content://sms/2"));
+        existing.add(first);
+
+        inserter.add(first);
+        inserter.add(second);
+
+        verify(resolver, never()).insert(URI, first);
+        verify(resolver).insert(URI, second);
+        assertThat(inserted).containsExactly(Uri.parse("content://sms/2"));
+        assertThat(failed).isEmpty();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test public void shouldInsertRowsSeparatelyIfProviderRejectsBatch() throws Exception {
+        ContentValues first = values(1, "a");
+        ContentValues second = values(2, "b");
+        when(resolver.applyBatch(eq("sms"), any(ArrayList.class)))
+                .thenThrow(new IllegalArgumentException("unknown column"));
+        when(resolver.insert(URI, first)).thenReturn(Uri.parse("content://sms/1"));
+        when(resolver.insert(URI, second)).thenThrow(new IllegalArgumentException("invalid row"));
+
+        inserter.add(first);
+        inserter.add(second);
+
+        verify(resolver).insert(URI, first);
+        verify(resolver).insert(URI, second);
+        assertThat(inserted).containsExactly(Uri.parse("content://sms/1"));
+        assertThat(failed).containsExactly(second);
+        assertThat(inserter.isPending(first)).isFalse();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test public void shouldReportRowsWithoutResultAsFailed() throws Exception {
+        when(resolver.applyBatch(eq("sms"), any(ArrayList.class))).thenReturn(new ContentProviderResult[] {
+            new ContentProviderResult(Uri.parse("content://sms/1"))
+        });
+        ContentValues second = values(2, "b");
+        inserter.add(values(1, "a"));
+        inserter.add(second);
+
+        verify(resolver).applyBatch(eq("sms"), any(ArrayList.class));
+        assertThat(inserted).containsExactly(Uri.parse("content://sms/1"));
+        assertThat(failed).containsExactly(second);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test public void shouldReportRowsNotInsertedSeparatelyAsFailed() throws Exception {
+        ContentValues row = values(1, "a");
+        when(resolver.insert(URI, row)).thenReturn(null);
+        when(resolver.applyBatch(eq("sms"), any(ArrayList.class)))
+                .thenThrow(new OperationApplicationException("failed"));
+
+        inserter.add(row);
+        inserter.flush();
+
+        assertThat(inserted).isEmpty();
+        assertThat(failed).containsExactly(row);
+    }
+
+    private static ContentValues values(long date, String address) {
+        ContentValues values = new ContentValues();
+        values.put("date", date);
+        values.put("address", address);
+        return values;
+    }
+}
@@ -1,9 +1,9 @@
 package com.zegoggles.smssync.service;
 
-import android.provider.CallLog;
 import com.fsck.k9.mail.internet.MimeMessage;
 import com.zegoggles.smssync.calendar.CalendarAccessor;
 import com.zegoggles.smssync.mail.CallFormatter;
+import com.zegoggles.smssync.mail.CallLogRecord;
 import com.zegoggles.smssync.mail.ConversionResult;
 import com.zegoggles.smssync.mail.DataType;
 import com.zegoggles.smssync.mail.PersonLookup;
@@ -15,8 +15,6 @@ import org.mockito.Mock;
 import org.robolectric.RobolectricTestRunner;
 
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
 
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.*;
@@ -77,12 +75,7 @@ public class CalendarSyncerTest {
         verify(accessor, never()).enableSync(CALENDAR_ID);
     }
 
-    private Map<String,String> message(int DURATION, int TYPE, String NUMBER, Date callTime) {
-        Map<String, String> map = new HashMap<String, String>();
-        map.put(CallLog.Calls.DURATION, String.valueOf(DURATION));
-        map.put(CallLog.Calls.TYPE, String.valueOf(TYPE));
-        map.put(CallLog.Calls.NUMBER,   NUMBER);
-        map.put(CallLog.Calls.DATE, String.valueOf(callTime.getTime()));
-        return map;
+    private CallLogRecord message(int DURATION, int TYPE, String NUMBER, Date callTime) {
+        return new CallLogRecord(1, NUMBER, TYPE, callTime.getTime(), DURATION);
     }
 }
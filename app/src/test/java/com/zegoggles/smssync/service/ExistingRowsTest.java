@@ -0,0 +1,92 @@
+package com.zegoggles.smssync.service;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+public class ExistingRowsTest {
+    private static final Uri URI = Uri.parse("content://sms");
+    private static final String[] COLUMNS = { "date", "address", "type" };
+
+    @Mock ContentResolver resolver;
+
+    @Before public void before() {
+        initMocks(this);
+    }
+
+    @Test public void shouldLoadRows() throws Exception {
+        MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        cursor.addRow(new Object[] { 1234567890000L, "+49 123 456", 1 });
+        cursor.addRow(new Object[] { 1234567890001L, null, 2 });
+        queryReturns(cursor);
+
+        ExistingRows rows = ExistingRows.load(resolver, URI, COLUMNS);
+
+        assertThat(rows).isNotNull();
+        assertThat(rows.size()).isEqualTo(2);
+        assertThat(rows.contains(values(1234567890000L, "+49 123 456", 1))).isTrue();
+        assertThat(rows.contains(values(1234567890001L, null, 2))).isTrue();
+        assertThat(rows.contains(values(1234567890000L, "+49 123 456", 2))).isFalse();
+        assertThat(rows.contains(values(1234567890001L, "", 2))).isFalse();
+        assertThat(cursor.isClosed()).isTrue();
+    }
+
+    @Test public void shouldAddInsertedRows() throws Exception {
+        queryReturns(new MatrixCursor(COLUMNS));
+        ExistingRows rows = ExistingRows.load(resolver, URI, COLUMNS);
+
+        ContentValues values = values(1234567890000L, "+49 123 456", 1);
+        assertThat(rows.contains(values)).isFalse();
+        rows.add(values);
+        assertThat(rows.contains(values)).isTrue();
+    }
+
+    @Test public void shouldReturnNullIfProviderCannotBeQueried() throws Exception {
+        queryReturns(null);
+        assertThat(ExistingRows.load(resolver, URI, COLUMNS)).isNull();
+    }
+
+    @Test public void shouldReturnNullIfProviderFails() throws Exception {
+        when(resolver.query(any(Uri.class), any(String[].class), (String) isNull(),
+                (String[]) isNull(), (String) isNull()))
+                .thenThrow(new SecurityException("denied"))
+                .thenThrow(new SQLiteException("no such column"));
+
+        assertThat(ExistingRows.load(resolver, URI, COLUMNS)).isNull();
+        assertThat(ExistingRows.load(resolver, URI, COLUMNS)).isNull();
+    }
+
+    @Test public void shouldSeparateColumns() throws Exception {
+        assertThat(ExistingRows.key(new String[] { "12", "3" }))
+                .isNotEqualTo(ExistingRows.key(new String[] { "1", "23" }));
+        assertThat(ExistingRows.key(new String[] { null, "1" }))
+                .isNotEqualTo(ExistingRows.key(new String[] { "", "1" }));
+    }
+
+    private void queryReturns(MatrixCursor cursor) {
+        when(resolver.query(any(Uri.class), any(String[].class), (String) isNull(),
+                (String[]) isNull(), (String) isNull())).thenReturn(cursor);
+    }
+
+    private static ContentValues values(long date, String address, int type) {
+        ContentValues values = new ContentValues();
+        values.put("date", date);
+        values.put("address", address);
+        values.put("type", type);
+        return values;
+    }
+}
@@ -0,0 +1,54 @@
+package com.zegoggles.smssync.service;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class LongHashSetTest {
+    @Test public void shouldAddValues() {
+        LongHashSet set = new LongHashSet();
+        assertThat(set.add(42)).isTrue();
+        assertThat(set.add(42)).isFalse();
+        assertThat(set.contains(42)).isTrue();
+        assertThat(set.contains(43)).isFalse();
+        assertThat(set.size()).isEqualTo(1);
+    }
+
+    @Test public void shouldHandleZero() {
+        LongHashSet set = new LongHashSet();
+        assertThat(set.contains(0)).isFalse();
+        assertThat(set.add(0)).isTrue();
+        assertThat(set.add(0)).isFalse();
+        assertThat(set.contains(0)).isTrue();
+        assertThat(set.size()).isEqualTo(1);
+    }
+
+    @Test public void shouldGrow() {
+        Random random = new Random(1);
+        Set<Long> expected = new HashSet<Long>();
+        LongHashSet set = new LongHashSet(1);
+        for (int i = 0; i < 10000; i++) {
+            long value = random.nextLong();
+            assertThat(set.add(value)).isEqualTo(expected.add(value));
+        }
+        assertThat(set.size()).isEqualTo(expected.size());
+        for (Long value : expected) {
+            assertThat(set.contains(value)).isTrue();
+        }
+        assertThat(set.contains(random.nextLong())).isFalse();
+    }
+
+    @Test public void shouldHandleSequentialValues() {
+        LongHashSet set = new LongHashSet();
+        for (long value = 1000000; value < 1000000 + 5000 * 1024; value += 1024) {
+            set.add(value);
+        }
+        assertThat(set.size()).isEqualTo(5000);
+        assertThat(set.contains(1000000 + 4999 * 1024)).isTrue();
+        assertThat(set.contains(1000001)).isFalse();
+    }
+}
@@ -0,0 +1,118 @@
+package com.zegoggles.smssync.service;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.support.annotation.NonNull;
+import com.zegoggles.smssync.mail.DataType;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class PagedCursorTest {
+
+    @Test public void shouldIterateAllRowsAcrossPages() throws Exception {
+        FakeLoader loader = new FakeLoader(100, 100, 100, 100, 200, 300, 300);
+        PagedCursor cursor = new PagedCursor(loader, 7, 3);
+
+        assertThat(ids(cursor)).containsExactly(1L, 2L, 3L, 4L, 5L, 6L, 7L);
+        assertThat(loader.pages).isEqualTo(3);
+        assertThat(cursor.getCount()).isEqualTo(7);
+    }
+
+    @Test public void shouldContinueAfterLastRowOfPreviousPage() throws Exception {
+        FakeLoader loader = new FakeLoader(100, 100, 100, 100, 200);
+        PagedCursor cursor = new PagedCursor(loader, 5, 2);
+
+        ids(cursor);
+
+        assertThat(loader.keysets).containsExactly("-1/-1", "100/2", "100/4");
+    }
+
+    @Test public void shouldNotReadMoreThanCount() throws Exception {
+        FakeLoader loader = new FakeLoader(1, 2, 3, 4, 5, 6, 7, 8, 9, 10);
+        PagedCursor cursor = new PagedCursor(loader, 4, 3);
+
+        assertThat(ids(cursor)).containsExactly(1L, 2L, 3L, 4L);
+        assertThat(loader.limits).containsExactly(3, 1);
+    }
+
+    @Test public void shouldCorrectCountIfProviderHasFewerRows() throws Exception {
+        FakeLoader loader = new FakeLoader(1, 2, 3);
+        PagedCursor cursor = new PagedCursor(loader, 5, 3);
+
+        assertThat(cursor.moveToPosition(2)).isTrue();
+        assertThat(cursor.isLast()).isTrue();
+        assertThat(cursor.getCount()).isEqualTo(3);
+        assertThat(cursor.moveToNext()).isFalse();
+    }
+
+    @Test public void shouldRestartWhenMovingBackwards() throws Exception {
+        FakeLoader loader = new FakeLoader(1, 2, 3, 4, 5);
+        PagedCursor cursor = new PagedCursor(loader, 5, 2);
+
+        ids(cursor);
+        assertThat(cursor.moveToFirst()).isTrue();
+        assertThat(cursor.getLong(cursor.getColumnIndex("_id"))).isEqualTo(1L);
+    }
+
+    @Test public void shouldWorkWithBackupCursors() throws Exception {
+        BackupCursors cursors = new BackupCursors();
+        cursors.add(DataType.SMS, new PagedCursor(new FakeLoader(1, 2, 3, 4), 4, 2));
+        cursors.add(DataType.CALLLOG, new PagedCursor(new FakeLoader(1, 2, 3), 5, 2));
+
+        assertThat(cursors.count()).isEqualTo(9);
+        int rows = 0;
+        while (cursors.hasNext()) {
+            cursors.next();
+            rows++;
+        }
+        assertThat(rows).isEqualTo(7);
+        cursors.close();
+    }
+
+    private static List<Long> ids(Cursor cursor) {
+        List<Long> ids = new ArrayList<Long>();
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            ids.add(cursor.getLong(cursor.getColumnIndex("_id")));
+        }
+        return ids;
+    }
+
+    /**
+     * Serves rows with ids 1..n and the given dates (in ascending order).
+     */
+    private static class FakeLoader implements PagedCursor.PageLoader {
+        final long[] dates;
+        int pages;
+        final List<String> keysets = new ArrayList<String>();
+        final List<Integer> limits = new ArrayList<Integer>();
+
+        FakeLoader(long... dates) {
+            this.dates = dates;
+        }
+
+        @Override public @NonNull Cursor loadPage(long afterDate, long afterId, int limit) {
+            pages++;
+            keysets.add(afterDate + "/" + afterId);
+            limits.add(limit);
+
+            MatrixCursor cursor = new MatrixCursor(new String[] { "_id", "date" });
+            for (int i = 0; i < dates.length && cursor.getCount() < limit; i++) {
+                long id = i + 1;
+                if (afterId == PagedCursor.NONE ||
+                    dates[i] > afterDate ||
+                    (dates[i] == afterDate && id > afterId)) {
+                    cursor.addRow(new Object[] { id, dates[i] });
+                }
+            }
+            return cursor;
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package com.zegoggles.smssync.service;
+
+import com.fsck.k9.mail.FetchProfile;
+import com.fsck.k9.mail.MessageRetrievalListener;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.store.imap.ImapMessage;
+import com.zegoggles.smssync.mail.BackupImapStore;
+import com.zegoggles.smssync.mail.ImapFolderStandIn;
+import com.zegoggles.smssync.mail.MessageWindows;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+public class RestoreFetcherTest {
+    private static final int LARGE_FOLDER = 100000;
+
+    @Mock BackupImapStore.BackupFolder smsFolder;
+    @Mock BackupImapStore.BackupFolder callLogFolder;
+    private File cacheDir;
+
+    @Before public void before() {
+        initMocks(this);
+        cacheDir = RuntimeEnvironment.application.getCacheDir();
+        for (File body : bodies()) {
+            body.delete();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test public void shouldFetchMessagesInWindows() throws Exception {
+        List<ImapMessage> messages = messages(250);
+
+        RestoreFetcher fetcher = fetcher(0, 250, new Source(smsFolder, messages));
+        fetcher.start();
+
+        List<ImapMessage> returned = new ArrayList<ImapMessage>();
+        RestoreFetcher.Window window;
+        while ((window = fetcher.next()) != null) {
+            returned.addAll(window.messages);
+            window.release();
+        }
+        fetcher.close();
+
+        assertThat(returned).isEqualTo(messages);
+        verify(smsFolder, times(3)).fetch(anyListOf(ImapMessage.class), any(FetchProfile.class),
+                any(MessageRetrievalListener.class));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test public void shouldFetchEachFolderSeparately() throws Exception {
+        RestoreFetcher fetcher = fetcher(0, 4, new Source(smsFolder, messages(2)), new Source(callLogFolder, messages(2)));
+        fetcher.start();
+        assertThat(fetcher.next().messages).hasSize(2);
+        assertThat(fetcher.next().messages).hasSize(2);
+        assertThat(fetcher.next()).isNull();
+        fetcher.close();
+
+        verify(smsFolder).fetch(anyListOf(ImapMessage.class), any(FetchProfile.class), any(MessageRetrievalListener.class));
+        verify(callLogFolder).fetch(anyListOf(ImapMessage.class), any(FetchProfile.class), any(MessageRetrievalListener.class));
+    }
+
+    @Test public void shouldSkipMessagesWhenResuming() throws Exception {
+        List<ImapMessage> messages = messages(300);
+
+        RestoreFetcher fetcher = fetcher(150, 250, new Source(smsFolder, messages));
+        fetcher.start();
+        RestoreFetcher.Window window = fetcher.next();
+        assertThat(window.messages).isEqualTo(messages.subList(150, 250));
+        window.release();
+        assertThat(fetcher.next()).isNull();
+        fetcher.close();
+    }
+
+    @Test public void shouldStopAtLimit() throws Exception {
+        RestoreFetcher fetcher = fetcher(0, 3, new Source(smsFolder, messages(2)), new Source(callLogFolder, messages(2)));
+        fetcher.start();
+        assertThat(fetcher.next().messages).hasSize(2);
+        assertThat(fetcher.next().messages).hasSize(1);
+        assertThat(fetcher.next()).isNull();
+        fetcher.close();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test public void shouldFetchMessagesSeparatelyIfWindowFails() throws Exception {
+        List<ImapMessage> messages = messages(3);
+        final ImapMessage broken = messages.get(1);
+        doThrow(new MessagingException("failed")).when(smsFolder).fetch(
+                eq(new ArrayList<ImapMessage>(messages)), any(FetchProfile.class), any(MessageRetrievalListener.class));
+        doThrow(new MessagingException("failed")).when(smsFolder).fetch(
+                eq(Collections.singletonList(broken)), any(FetchProfile.class), any(MessageRetrievalListener.class));
+
+        RestoreFetcher fetcher = fetcher(0, 3, new Source(smsFolder, messages));
+        fetcher.start();
+        RestoreFetcher.Window window = fetcher.next();
+        fetcher.close();
+
+        assertThat(window.messages).hasSize(3);
+        assertThat(window.isFailed(window.messages.get(0))).isFalse();
+        assertThat(window.isFailed(broken)).isTrue();
+        verify(smsFolder, times(4)).fetch(anyListOf(ImapMessage.class), any(FetchProfile.class),
+                any(MessageRetrievalListener.class));
+    }
+
+    @Test public void shouldReportSearchErrors() throws Exception {
+        MessagingException error = new MessagingException("search failed");
+        MessageWindows source = mock(MessageWindows.class);
+        when(source.getFolder()).thenReturn(smsFolder);
+        when(source.next(anyInt())).thenThrow(error);
+
+        RestoreFetcher fetcher = fetcher(0, 100, source);
+        fetcher.start();
+        try {
+            fetcher.next();
+            fail("expected exception");
+        } catch (MessagingException e) {
+            assertThat(e).isSameAs(error);
+        } finally {
+            fetcher.close();
+        }
+    }
+
+    @Test public void shouldDeleteBodiesOfReleasedWindows() throws Exception {
+        fetchCreatesBody(smsFolder);
+        File unrelated = File.createTempFile(RestoreFetcher.BODY_PREFIX, null, cacheDir);
+
+        RestoreFetcher fetcher = fetcher(0, 100, new Source(smsFolder, messages(100)));
+        fetcher.start();
+        RestoreFetcher.Window window = fetcher.next();
+        assertThat(bodies()).hasSize(2);
+        window.release();
+        fetcher.close();
+
+        assertThat(bodies()).containsOnly(unrelated);
+    }
+
+    @Test public void shouldReleaseRemainingWindowsWhenClosed() throws Exception {
+        fetchCreatesBody(smsFolder);
+
+        RestoreFetcher fetcher = fetcher(0, 250, new Source(smsFolder, messages(250)));
+        fetcher.start();
+        fetcher.next().release();
+        fetcher.close();
+
+        assertThat(bodies()).isEmpty();
+    }
+
+    /**
+     * Restores a large folder whose messages together take up twice the max heap size,
+     * which only works if messages are not kept once their window has been imported.
+     */
+    @Test public void shouldRestoreLargeFolderWithBoundedMemory() throws Exception {
+        final int payloadSize = (int) Math.min(1 << 20, 2 * Runtime.getRuntime().maxMemory() / LARGE_FOLDER);
+        // a folder which does not record its invocations, see ImapFolderStandIn#getMessage(String)
+        final BackupImapStore.BackupFolder folder = mock(BackupImapStore.BackupFolder.class, withSettings().stubOnly());
+        final ImapFolderStandIn server = new ImapFolderStandIn(folder, LARGE_FOLDER, 1, payloadSize);
+        final MessageWindows source = server.getMessageWindows();
+
+        RestoreFetcher fetcher = fetcher(0, Integer.MAX_VALUE, source);
+        fetcher.start();
+
+        int restored = 0;
+        RestoreFetcher.Window window;
+        while ((window = fetcher.next()) != null) {
+            for (ImapMessage message : window.messages) {
+                assertThat(message.getUid()).isEqualTo(String.valueOf(++restored));
+            }
+            window.release();
+        }
+        fetcher.close();
+
+        assertThat(restored).isEqualTo(LARGE_FOLDER);
+        assertThat(server.getMaxSearchResults()).isLessThanOrEqualTo(10000);
+    }
+
+    private RestoreFetcher fetcher(int skip, int limit, MessageWindows... sources) {
+        return new RestoreFetcher(Arrays.asList(sources), skip, limit, 100, cacheDir);
+    }
+
+    /**
+     * Makes each fetch store a body in the temp directory, like k9 does.
+     */
+    @SuppressWarnings("unchecked")
+    private void fetchCreatesBody(BackupImapStore.BackupFolder folder) throws MessagingException {
+        doAnswer(new Answer<Void>() {
+            @Override public Void answer(InvocationOnMock invocation) throws Throwable {
+                File.createTempFile(RestoreFetcher.BODY_PREFIX, null, cacheDir);
+                return null;
+            }
+        }).when(folder).fetch(anyListOf(ImapMessage.class), any(FetchProfile.class), any(MessageRetrievalListener.class));
+    }
+
+    private List<File> bodies() {
+        File[] bodies = cacheDir.listFiles(new FilenameFilter() {
+            @Override public boolean accept(File dir, String name) {
+                return name.startsWith(RestoreFetcher.BODY_PREFIX);
+            }
+        });
+        return bodies == null ? Collections.<File>emptyList() : Arrays.asList(bodies);
+    }
+
+    private static List<ImapMessage> messages(int count) {
+        List<ImapMessage> messages = new ArrayList<ImapMessage>(count);
+        for (int i = 0; i < count; i++) {
+            messages.add(mock(ImapMessage.class));
+        }
+        return messages;
+    }
+
+    private static class Source implements MessageWindows {
+        private final BackupImapStore.BackupFolder folder;
+        private final List<ImapMessage> messages;
+        private int position;
+
+        Source(BackupImapStore.BackupFolder folder, List<ImapMessage> messages) {
+            this.folder = folder;
+            this.messages = messages;
+        }
+
+        @Override public BackupImapStore.BackupFolder getFolder() {
+            return folder;
+        }
+
+        @Override public int count() {
+            return messages.size();
+        }
+
+        @Override public List<ImapMessage> next(int max) {
+            if (position == messages.size()) return null;
+            final int end = Math.min(messages.size(), position + max);
+            final List<ImapMessage> next = new ArrayList<ImapMessage>(messages.subList(position, end));
+            position = end;
+            return next;
+        }
+
+        @Override public long getUidValidity() {
+            return -1;
+        }
+
+        @Override public long getLastUid() {
+            return -1;
+        }
+    }
+}
@@ -1,9 +1,13 @@
 package com.zegoggles.smssync.service;
 
 
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.net.Uri;
 import android.provider.Telephony;
 import com.fsck.k9.mail.MessagingException;
@@ -12,18 +16,24 @@ import com.zegoggles.smssync.Consts;
 import com.zegoggles.smssync.auth.TokenRefresher;
 import com.zegoggles.smssync.mail.BackupImapStore;
 import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.mail.ImapStandInServer;
 import com.zegoggles.smssync.mail.MessageConverter;
+import com.zegoggles.smssync.mail.MessageWindows;
 import com.zegoggles.smssync.preferences.DataTypePreferences;
 import com.zegoggles.smssync.preferences.Preferences;
+import com.zegoggles.smssync.preferences.RestoreMark;
 import com.zegoggles.smssync.service.state.RestoreState;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.RuntimeEnvironment;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
@@ -31,7 +41,11 @@ import static org.fest.assertions.api.Assertions.assertThat;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
@@ -42,6 +56,7 @@ public class RestoreTaskTest {
     RestoreConfig config;
     @Mock BackupImapStore store;
     @Mock BackupImapStore.BackupFolder folder;
+    @Mock MessageWindows windows;
     @Mock SmsRestoreService service;
     @Mock RestoreState state;
     @Mock MessageConverter converter;
@@ -57,6 +72,8 @@ public class RestoreTaskTest {
         when(service.getPreferences()).thenReturn(new Preferences(RuntimeEnvironment.application));
 
         when(store.getFolder(any(DataType.class), any(DataTypePreferences.class))).thenReturn(folder);
+        when(folder.getMessageWindows(anyInt(), anyBoolean(), any(Date.class))).thenReturn(windows);
+        when(windows.getFolder()).thenReturn(folder);
 
         task = new RestoreTask(service, converter, resolver, tokenRefresher);
     }
@@ -77,6 +94,7 @@ public class RestoreTaskTest {
         verify(store).closeFolders();
     }
 
+    @SuppressWarnings("unchecked")
     @Test
     public void shouldRestoreItems() throws Exception {
         Date now = new Date();
@@ -92,11 +110,13 @@ public class RestoreTaskTest {
 
         messages.add(mockMessage);
 
-        when(folder.getMessages(anyInt(), anyBoolean(), any(Date.class))).thenReturn(messages);
-        when(resolver.insert(Consts.SMS_PROVIDER, values)).thenReturn(Uri.parse("content://sms/123"));
+        when(windows.count()).thenReturn(messages.size());
+        when(windows.next(anyInt())).thenReturn(messages, (List<ImapMessage>) null);
+        when(resolver.applyBatch(eq(Consts.SMS_PROVIDER.getAuthority()), any(ArrayList.class))).thenReturn(
+                new ContentProviderResult[] { new ContentProviderResult(Uri.parse("content://sms/123")) });
         task.doInBackground(config);
 
-        verify(resolver).insert(Consts.SMS_PROVIDER, values);
+        verify(resolver).applyBatch(eq(Consts.SMS_PROVIDER.getAuthority()), any(ArrayList.class));
         verify(resolver).delete(Uri.parse("content://sms/conversations/-1"), null, null);
 
         assertThat(service.getPreferences().getDataTypePreferences().getMaxSyncedDate(DataType.SMS)).isEqualTo(now.getTime());
@@ -104,4 +124,147 @@ public class RestoreTaskTest {
 
         verify(store).closeFolders();
     }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void shouldRestoreItemsIfCountIsUnknown() throws Exception {
+        ImapMessage mockMessage = mock(ImapMessage.class);
+        when(mockMessage.getFolder()).thenReturn(folder);
+        when(converter.getDataType(mockMessage)).thenReturn(DataType.SMS);
+        when(converter.messageToContentValues(mockMessage)).thenReturn(new ContentValues());
+        when(windows.count()).thenReturn(-1);
+        when(windows.next(anyInt())).thenReturn(Collections.singletonList(mockMessage), (List<ImapMessage>) null);
+        when(resolver.applyBatch(eq(Consts.SMS_PROVIDER.getAuthority()), any(ArrayList.class))).thenReturn(
+                new ContentProviderResult[] { new ContentProviderResult(Uri.parse("content://sms/123")) });
+
+        RestoreState finalState = task.doInBackground(config);
+
+        assertThat(task.getSmsIds()).containsExactly("123");
+        assertThat(finalState.currentRestoredCount).isEqualTo(1);
+        assertThat(finalState.itemsToRestore).isEqualTo(1);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void shouldSaveRestoreMarkAfterCompleteRestore() throws Exception {
+        ImapMessage mockMessage = mock(ImapMessage.class);
+        when(converter.getDataType(mockMessage)).thenReturn(DataType.SMS);
+        when(converter.messageToContentValues(mockMessage)).thenReturn(new ContentValues());
+        when(windows.count()).thenReturn(1);
+        when(windows.next(anyInt())).thenReturn(Collections.singletonList(mockMessage), (List<ImapMessage>) null);
+        when(windows.getUidValidity()).thenReturn(7L);
+        when(windows.getLastUid()).thenReturn(99L);
+        providerContains(3);
+
+        task.doInBackground(config);
+
+        RestoreMark mark = service.getPreferences().getDataTypePreferences().getRestoreMark(DataType.SMS);
+        assertThat(mark).isNotNull();
+        assertThat(mark.uidValidity).isEqualTo(7L);
+        assertThat(mark.lastUid).isEqualTo(99L);
+        assertThat(mark.rows).isEqualTo(3);
+        assertThat(mark.folder).isEqualTo(service.getPreferences().getDataTypePreferences().getFolder(DataType.SMS));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void shouldNotSaveRestoreMarkIfRowsCouldNotBeInserted() throws Exception {
+        ContentValues values = new ContentValues();
+        values.put(Telephony.TextBasedSmsColumns.TYPE, Telephony.TextBasedSmsColumns.MESSAGE_TYPE_INBOX);
+        values.put(Telephony.TextBasedSmsColumns.DATE, 1000L);
+        ImapMessage mockMessage = mock(ImapMessage.class);
+        when(mockMessage.getFolder()).thenReturn(folder);
+        when(converter.getDataType(mockMessage)).thenReturn(DataType.SMS);
+        when(converter.messageToContentValues(mockMessage)).thenReturn(values);
+        when(windows.count()).thenReturn(1);
+        when(windows.next(anyInt())).thenReturn(Collections.singletonList(mockMessage), (List<ImapMessage>) null);
+        when(windows.getUidValidity()).thenReturn(7L);
+        when(windows.getLastUid()).thenReturn(99L);
+        when(resolver.applyBatch(eq(Consts.SMS_PROVIDER.getAuthority()), any(ArrayList.class)))
+                .thenThrow(new OperationApplicationException("failed"));
+        when(resolver.insert(eq(Consts.SMS_PROVIDER), any(ContentValues.class)))
+                .thenThrow(new IllegalArgumentException("invalid row"));
+        providerContains(3);
+
+        task.doInBackground(config);
+
+        verify(resolver).insert(eq(Consts.SMS_PROVIDER), any(ContentValues.class));
+        assertThat(task.getSmsIds()).isEmpty();
+        assertThat(service.getPreferences().getDataTypePreferences().getRestoreMark(DataType.SMS)).isNull();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void shouldRestoreMessagesSearchedOnServer() throws Exception {
+        ImapStandInServer server = new ImapStandInServer();
+        server.setUidValidity(7);
+        server.addMessages(2500);
+        when(folder.getMessageWindows(anyInt(), anyBoolean(), any(Date.class))).thenReturn(server.getMessageWindows(folder));
+        ContentValues values = new ContentValues();
+        values.put(Telephony.TextBasedSmsColumns.TYPE, Telephony.TextBasedSmsColumns.MESSAGE_TYPE_INBOX);
+        values.put(Telephony.TextBasedSmsColumns.DATE, 1000L);
+        when(converter.getDataType(any(ImapMessage.class))).thenReturn(DataType.SMS);
+        when(converter.messageToContentValues(any(ImapMessage.class))).thenReturn(values);
+        when(resolver.applyBatch(eq(Consts.SMS_PROVIDER.getAuthority()), any(ArrayList.class))).thenAnswer(
+                new Answer<ContentProviderResult[]>() {
+                    private int inserted;
+
+                    @Override public ContentProviderResult[] answer(InvocationOnMock invocation) {
+                        List<?> operations = (List<?>) invocation.getArguments()[1];
+                        ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+                        for (int i = 0; i < results.length; i++) {
+                            results[i] = new ContentProviderResult(Uri.parse("content://sms/" + (++inserted)));
+                        }
+                        return results;
+                    }
+                });
+        providerContains(2500);
+
+        task.doInBackground(config);
+
+        assertThat(task.getSmsIds()).hasSize(2500);
+        assertThat(server.getCommands()).startsWith("SELECT \"SMS\"", "UID SEARCH UID 1:1000 1:* UNDELETED");
+        RestoreMark mark = service.getPreferences().getDataTypePreferences().getRestoreMark(DataType.SMS);
+        assertThat(mark).isNotNull();
+        assertThat(mark.uidValidity).isEqualTo(7L);
+        assertThat(mark.lastUid).isEqualTo(2500L);
+    }
+
+    @Test
+    public void shouldRestoreMessagesAfterLastRestore() throws Exception {
+        DataTypePreferences preferences = service.getPreferences().getDataTypePreferences();
+        preferences.setRestoreMark(DataType.SMS, new RestoreMark(preferences.getFolder(DataType.SMS), 7, 99, 1000, 3));
+        when(folder.getMessageWindowsAfter(7, 99)).thenReturn(windows);
+        providerContains(3);
+
+        task.doInBackground(config);
+
+        verify(folder).getMessageWindowsAfter(7, 99);
+        verify(folder, never()).getMessageWindows(anyInt(), anyBoolean(), any(Date.class));
+    }
+
+    @Test
+    public void shouldRestoreAllMessagesIfMessagesWereDeleted() throws Exception {
+        DataTypePreferences preferences = service.getPreferences().getDataTypePreferences();
+        preferences.setRestoreMark(DataType.SMS, new RestoreMark(preferences.getFolder(DataType.SMS), 7, 99, 1000, 3));
+        providerContains(2);
+
+        task.doInBackground(config);
+
+        verify(folder, never()).getMessageWindowsAfter(anyLong(), anyLong());
+        verify(folder).getMessageWindows(anyInt(), anyBoolean(), any(Date.class));
+    }
+
+    private void providerContains(final int rows) {
+        when(resolver.query(eq(Consts.SMS_PROVIDER), any(String[].class), eq("date <= ?"), any(String[].class),
+                (String) isNull())).thenAnswer(new Answer<Cursor>() {
+            @Override public Cursor answer(InvocationOnMock invocation) {
+                MatrixCursor cursor = new MatrixCursor(new String[] { "_id" });
+                for (int i = 0; i < rows; i++) {
+                    cursor.addRow(new Object[] { i });
+                }
+                return cursor;
+            }
+        });
+    }
 }
@@ -0,0 +1,109 @@
+package com.zegoggles.smssync.service;
+
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.zegoggles.smssync.mail.ConversionResult;
+import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.mail.Headers;
+import com.zegoggles.smssync.mail.SmsRecord;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class UploadedMessagesTest {
+    private static final String SCOPE = "user@example.com imap.example.com:993 SMS";
+    private File directory;
+
+    @Before public void before() {
+        directory = RuntimeEnvironment.application.getFilesDir();
+        new UploadedMessages(directory).clear();
+    }
+
+    @Test public void shouldRemoveUploadedMessages() throws Exception {
+        new UploadedMessages(directory).add(Arrays.asList(
+            message("0cc175b9c0f1b6a831c399e269772661"),
+            message("92eb5ffee6ae2fec3ad71c777531578f")), SCOPE);
+
+        ConversionResult result = new ConversionResult(DataType.SMS);
+        result.add(message("0cc175b9c0f1b6a831c399e269772661"), sms(1, 1000L));
+        result.add(message("4a8a08f09d37b73795649038408b5f33"), sms(2, 2000L));
+        result.add(message("92eb5ffee6ae2fec3ad71c777531578f"), sms(3, 3000L));
+
+        assertThat(new UploadedMessages(directory).removeUploaded(result, SCOPE)).isEqualTo(2);
+
+        assertThat(result.size()).isEqualTo(1);
+        assertThat(result.getRecords().get(0).id).isEqualTo(2L);
+        assertThat(result.getMaxDate()).isEqualTo(3000L);
+    }
+
+    @Test public void shouldNotRemoveAnythingIfNothingWasUploaded() throws Exception {
+        ConversionResult result = new ConversionResult(DataType.SMS);
+        result.add(message("0cc175b9c0f1b6a831c399e269772661"), sms(1, 1000L));
+
+        assertThat(new UploadedMessages(directory).removeUploaded(result, SCOPE)).isEqualTo(0);
+        assertThat(result.size()).isEqualTo(1);
+    }
+
+    @Test public void shouldNotRemoveMessagesUploadedToAnotherFolder() throws Exception {
+        new UploadedMessages(directory).add(Arrays.asList(message("0cc175b9c0f1b6a831c399e269772661")), SCOPE);
+
+        ConversionResult result = new ConversionResult(DataType.SMS);
+        result.add(message("0cc175b9c0f1b6a831c399e269772661"), sms(1, 1000L));
+
+        assertThat(new UploadedMessages(directory).removeUploaded(result, "user@example.com imap.example.com:993 Other"))
+            .isEqualTo(0);
+        assertThat(new UploadedMessages(directory).removeUploaded(result, "other@example.com imap.example.com:993 SMS"))
+            .isEqualTo(0);
+    }
+
+    @Test public void shouldForgetUploadedMessagesWhenCleared() throws Exception {
+        UploadedMessages uploaded = new UploadedMessages(directory);
+        uploaded.add(Arrays.asList(message("0cc175b9c0f1b6a831c399e269772661")), SCOPE);
+        uploaded.clear();
+
+        ConversionResult result = new ConversionResult(DataType.SMS);
+        result.add(message("0cc175b9c0f1b6a831c399e269772661"), sms(1, 1000L));
+
+        assertThat(uploaded.removeUploaded(result, SCOPE)).isEqualTo(0);
+    }
+
+    @Test public void shouldGetDigestFromMessageId() throws Exception {
+        assertThat(UploadedMessages.getDigest(message("0cc175b9c0f1b6a831c399e269772661"), SCOPE))
+            .isEqualTo(UploadedMessages.getDigest(message("0cc175b9c0f1b6a831c399e269772661"), SCOPE));
+        assertThat(UploadedMessages.getDigest(message("0cc175b9c0f1b6a831c399e269772661"), SCOPE))
+            .isNotEqualTo(UploadedMessages.getDigest(message("92eb5ffee6ae2fec3ad71c777531578f"), SCOPE));
+        assertThat(UploadedMessages.getDigest(new MimeMessage(), SCOPE)).isNull();
+    }
+
+    @Test public void shouldDistinguishMmsWithTheSameMessageId() throws Exception {
+        Message first = mms("0cc175b9c0f1b6a831c399e269772661", "1");
+        Message second = mms("0cc175b9c0f1b6a831c399e269772661", "2");
+
+        assertThat(UploadedMessages.getDigest(first, SCOPE)).isNotEqualTo(UploadedMessages.getDigest(second, SCOPE));
+    }
+
+    private static Message message(String digest) throws Exception {
+        Message message = new MimeMessage();
+        message.setHeader(Headers.MESSAGE_ID, "<" + digest + "@sms-backup-plus.local>");
+        return message;
+    }
+
+    private static Message mms(String digest, String id) throws Exception {
+        Message message = message(digest);
+        message.setHeader(Headers.DATATYPE, DataType.MMS.toString());
+        message.setHeader(Headers.ID, id);
+        return message;
+    }
+
+    private static SmsRecord sms(long id, long date) {
+        return new SmsRecord(id, "1234", "body", 1, date, null, null, null, null, null);
+    }
+}